@@ -19,6 +19,7 @@ import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer.AudioTrackInitializationException;
 import com.google.android.exoplayer.MediaCodecTrackRenderer.DecoderInitializationException;
 import com.google.android.exoplayer.demo.full.player.DemoPlayer;
+import com.google.android.exoplayer.upstream.AllocatorCounters;
 import com.google.android.exoplayer.util.VerboseLogUtil;
 
 import android.media.MediaCodec.CryptoException;
@@ -45,6 +46,7 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
 
   private long sessionStartTimeMs;
   private long[] loadStartTimeMs;
+  private AllocatorCounters lastAllocatorCounters;
 
   public EventLogger() {
     loadStartTimeMs = new long[DemoPlayer.RENDERER_COUNT];
@@ -109,6 +111,26 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     }
   }
 
+  @Override
+  public void onFirstSampleRead(int sourceId, String formatId, int mediaTimeMs, long elapsedMs,
+      long bytesLoaded, long length) {
+    if (VerboseLogUtil.isTagEnabled(TAG)) {
+      Log.v(TAG, "firstSample [" + getSessionTimeString() + ", " + sourceId + ", " + formatId
+          + ", " + mediaTimeMs + ", " + elapsedMs + ", " + bytesLoaded + "/" + length + "]");
+    }
+  }
+
+  @Override
+  public void onAllocatorCounters(AllocatorCounters counters) {
+    if (VerboseLogUtil.isTagEnabled(TAG)) {
+      long allocationRate = lastAllocatorCounters == null ? 0
+          : counters.getAllocationRate(lastAllocatorCounters);
+      Log.v(TAG, "allocator [" + getSessionTimeString() + ", " + allocationRate + ", "
+          + counters.getDebugString() + "]");
+    }
+    lastAllocatorCounters = counters;
+  }
+
   @Override
   public void onVideoFormatEnabled(String formatId, int trigger, int mediaTimeMs) {
     Log.d(TAG, "videoFormat [" + getSessionTimeString() + ", " + formatId + ", " +
@@ -106,7 +106,8 @@ public class DashVodRendererBuilder implements RendererBuilder,
   @Override
   public void onManifest(String contentId, MediaPresentationDescription manifest) {
     Handler mainHandler = player.getMainHandler();
-    LoadControl loadControl = new DefaultLoadControl(new BufferPool(BUFFER_SEGMENT_SIZE));
+    BufferPool bufferPool = new BufferPool(BUFFER_SEGMENT_SIZE);
+    LoadControl loadControl = new DefaultLoadControl(bufferPool);
     DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player);
 
     // Obtain Representations for playback.
@@ -220,7 +221,7 @@ public class DashVodRendererBuilder implements RendererBuilder,
     renderers[DemoPlayer.TYPE_VIDEO] = videoRenderer;
     renderers[DemoPlayer.TYPE_AUDIO] = audioRenderer;
     renderers[DemoPlayer.TYPE_DEBUG] = debugRenderer;
-    callback.onRenderers(trackNames, multiTrackChunkSources, renderers);
+    callback.onRenderers(trackNames, multiTrackChunkSources, renderers, bufferPool);
   }
 
   private Representation[] getSdRepresentations(Representation[] representations) {
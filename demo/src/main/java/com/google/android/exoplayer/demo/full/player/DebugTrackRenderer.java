@@ -88,7 +88,8 @@ import android.widget.TextView;
 
   private String getQualityString() {
     Format format = videoSampleSource == null ? null : videoSampleSource.getFormat();
-    return format == null ? "null" : "height(" + format.height + "), itag(" + format.id + ")";
+    return format == null ? "null" : "height(" + format.height + "), itag(" + format.id + "), "
+        + "alloc(" + videoSampleSource.getAllocatedSize() + ")";
   }
 
   @Override
@@ -27,6 +27,8 @@ import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.MultiTrackChunkSource;
 import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
 import com.google.android.exoplayer.text.TextTrackRenderer;
+import com.google.android.exoplayer.upstream.AllocatorCounters;
+import com.google.android.exoplayer.upstream.BufferPool;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.util.PlayerControl;
 
@@ -76,9 +78,11 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
      *     multiple tracks. An individual element may be null if it does not have multiple tracks.
      * @param renderers Renderers indexed by {@link DemoPlayer} TYPE_* constants. An individual
      *     element may be null if there do not exist tracks of the corresponding type.
+     * @param bufferPool The {@link BufferPool} used by the renderers, whose counters are reported
+     *     to the {@link InfoListener}. May be null if the renderers do not use a pool.
      */
     void onRenderers(String[][] trackNames, MultiTrackChunkSource[] multiTrackSources,
-        TrackRenderer[] renderers);
+        TrackRenderer[] renderers, BufferPool bufferPool);
     /**
      * Invoked if a {@link RendererBuilder} encounters an error.
      *
@@ -125,6 +129,9 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
     void onLoadStarted(int sourceId, String formatId, int trigger, boolean isInitialization,
         int mediaStartTimeMs, int mediaEndTimeMs, long length);
     void onLoadCompleted(int sourceId, long bytesLoaded);
+    void onFirstSampleRead(int sourceId, String formatId, int mediaTimeMs, long elapsedMs,
+        long bytesLoaded, long length);
+    void onAllocatorCounters(AllocatorCounters counters);
   }
 
   /**
@@ -167,6 +174,7 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
   private Surface surface;
   private InternalRendererBuilderCallback builderCallback;
   private TrackRenderer videoRenderer;
+  private BufferPool bufferPool;
 
   private MultiTrackChunkSource[] multiTrackSources;
   private String[][] trackNames;
@@ -262,7 +270,8 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
   }
 
   /* package */ void onRenderers(String[][] trackNames,
-      MultiTrackChunkSource[] multiTrackSources, TrackRenderer[] renderers) {
+      MultiTrackChunkSource[] multiTrackSources, TrackRenderer[] renderers,
+      BufferPool bufferPool) {
     builderCallback = null;
     // Normalize the results.
     if (trackNames == null) {
@@ -284,6 +293,7 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
     }
     // Complete preparation.
     this.videoRenderer = renderers[TYPE_VIDEO];
+    this.bufferPool = bufferPool;
     this.trackNames = trackNames;
     this.multiTrackSources = multiTrackSources;
     rendererBuildingState = RENDERER_BUILDING_STATE_BUILT;
@@ -482,6 +492,18 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
   public void onLoadCompleted(int sourceId, long bytesLoaded) {
     if (infoListener != null) {
       infoListener.onLoadCompleted(sourceId, bytesLoaded);
+      if (bufferPool != null) {
+        infoListener.onAllocatorCounters(bufferPool.getCounters());
+      }
+    }
+  }
+
+  @Override
+  public void onFirstSampleRead(int sourceId, String formatId, int mediaTimeMs, long elapsedMs,
+      long bytesLoaded, long length) {
+    if (infoListener != null) {
+      infoListener.onFirstSampleRead(sourceId, formatId, mediaTimeMs, elapsedMs, bytesLoaded,
+          length);
     }
   }
 
@@ -560,9 +582,9 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
 
     @Override
     public void onRenderers(String[][] trackNames, MultiTrackChunkSource[] multiTrackSources,
-        TrackRenderer[] renderers) {
+        TrackRenderer[] renderers, BufferPool bufferPool) {
       if (!canceled) {
-        DemoPlayer.this.onRenderers(trackNames, multiTrackSources, renderers);
+        DemoPlayer.this.onRenderers(trackNames, multiTrackSources, renderers, bufferPool);
       }
     }
 
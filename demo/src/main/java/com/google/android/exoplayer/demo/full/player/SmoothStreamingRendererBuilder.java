@@ -99,7 +99,8 @@ public class SmoothStreamingRendererBuilder implements RendererBuilder,
   @Override
   public void onManifest(String contentId, SmoothStreamingManifest manifest) {
     Handler mainHandler = player.getMainHandler();
-    LoadControl loadControl = new DefaultLoadControl(new BufferPool(BUFFER_SEGMENT_SIZE));
+    BufferPool bufferPool = new BufferPool(BUFFER_SEGMENT_SIZE);
+    LoadControl loadControl = new DefaultLoadControl(bufferPool);
     DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player);
 
     // Check drm support if necessary.
@@ -241,7 +242,7 @@ public class SmoothStreamingRendererBuilder implements RendererBuilder,
     renderers[DemoPlayer.TYPE_AUDIO] = audioRenderer;
     renderers[DemoPlayer.TYPE_TEXT] = textRenderer;
     renderers[DemoPlayer.TYPE_DEBUG] = debugRenderer;
-    callback.onRenderers(trackNames, multiTrackChunkSources, renderers);
+    callback.onRenderers(trackNames, multiTrackChunkSources, renderers, bufferPool);
   }
 
   @TargetApi(18)
@@ -18,11 +18,15 @@ package com.google.android.exoplayer;
 import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.NetworkLock;
 
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A {@link LoadControl} implementation that allows loads to continue in a sequence that prevents
@@ -38,8 +42,14 @@ import java.util.List;
  * This implementation of {@link LoadControl} integrates with {@link NetworkLock}, by registering
  * itself as a task with priority {@link NetworkLock#STREAMING_PRIORITY} during loading periods,
  * and unregistering itself during draining periods.
+ * <p>
+ * By default the target buffer size is the sum of the buffer size contributions of the registered
+ * loaders. If adaptive target buffer sizing is enabled, the target is instead scaled at runtime
+ * according to the observed heap headroom, and is reduced further in response to memory trim
+ * requests passed to {@link #onTrimMemory(int)}. Whenever the target shrinks the allocator is
+ * trimmed to match.
  */
-public class DefaultLoadControl implements LoadControl {
+public class DefaultLoadControl implements PriorityLoadControl {
 
   /**
    * Interface definition for a callback to be notified of {@link DefaultLoadControl} events.
@@ -60,6 +70,23 @@ public class DefaultLoadControl implements LoadControl {
   public static final float DEFAULT_LOW_POOL_LOAD = 0.2f;
   public static final float DEFAULT_HIGH_POOL_LOAD = 0.8f;
 
+  /**
+   * The minimum target buffer size in adaptive mode, as a fraction of the sum of the buffer size
+   * contributions of the registered loaders.
+   */
+  private static final float MIN_ADAPTIVE_TARGET_SCALE = 0.25f;
+  /**
+   * The maximum target buffer size in adaptive mode, as a multiple of the sum of the buffer size
+   * contributions of the registered loaders.
+   */
+  private static final float MAX_ADAPTIVE_TARGET_SCALE = 2f;
+  /**
+   * The fraction of the available heap that the target buffer size may occupy in adaptive mode.
+   */
+  private static final float ADAPTIVE_HEAP_FRACTION = 0.5f;
+  private static final int ADAPTIVE_HEAP_SAMPLE_INTERVAL_MS = 1000;
+  private static final int ADAPTIVE_MEMORY_PRESSURE_DECAY_MS = 30000;
+
   private static final int ABOVE_HIGH_WATERMARK = 0;
   private static final int BETWEEN_WATERMARKS = 1;
   private static final int BELOW_LOW_WATERMARK = 2;
@@ -74,8 +101,14 @@ public class DefaultLoadControl implements LoadControl {
   private final long highWatermarkUs;
   private final float lowPoolLoad;
   private final float highPoolLoad;
+  private final boolean adaptiveTargetBufferSize;
+  private final AtomicInteger pendingTrimMemoryLevel;
 
+  private int registeredBufferSize;
   private int targetBufferSize;
+  private int memoryPressureLevel;
+  private long memoryPressureTimeMs;
+  private long lastTargetBufferSizeUpdateMs;
   private long maxLoadStartPositionUs;
   private int bufferPoolState;
   private boolean fillingBuffers;
@@ -124,6 +157,33 @@ public class DefaultLoadControl implements LoadControl {
    */
   public DefaultLoadControl(Allocator allocator, Handler eventHandler, EventListener eventListener,
       int lowWatermarkMs, int highWatermarkMs, float lowPoolLoad, float highPoolLoad) {
+    this(allocator, eventHandler, eventListener, lowWatermarkMs, highWatermarkMs, lowPoolLoad,
+        highPoolLoad, false);
+  }
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param allocator The {@link Allocator} used by the loader.
+   * @param eventHandler A handler to use when delivering events to {@code eventListener}. May be
+   *     null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param lowWatermarkMs The minimum duration of media that can be buffered for the control to
+   *     be in the draining state. If less media is buffered, then the control will transition to
+   *     the filling state.
+   * @param highWatermarkMs The minimum duration of media that can be buffered for the control to
+   *     transition from filling to draining.
+   * @param lowPoolLoad The minimum fraction of the buffer that must be utilized for the control
+   *     to be in the draining state. If the utilization is lower, then the control will transition
+   *     to the filling state.
+   * @param highPoolLoad The minimum fraction of the buffer that must be utilized for the control
+   *     to transition from the loading state to the draining state.
+   * @param adaptiveTargetBufferSize Whether the target buffer size should be adapted at runtime
+   *     according to the available heap and to memory trim requests.
+   */
+  public DefaultLoadControl(Allocator allocator, Handler eventHandler, EventListener eventListener,
+      int lowWatermarkMs, int highWatermarkMs, float lowPoolLoad, float highPoolLoad,
+      boolean adaptiveTargetBufferSize) {
     this.allocator = allocator;
     this.eventHandler = eventHandler;
     this.eventListener = eventListener;
@@ -133,20 +193,51 @@ public class DefaultLoadControl implements LoadControl {
     this.highWatermarkUs = highWatermarkMs * 1000L;
     this.lowPoolLoad = lowPoolLoad;
     this.highPoolLoad = highPoolLoad;
+    this.adaptiveTargetBufferSize = adaptiveTargetBufferSize;
+    this.pendingTrimMemoryLevel = new AtomicInteger();
+  }
+
+  /**
+   * Notifies the control of a request to trim memory, such as one received by
+   * {@link ComponentCallbacks2#onTrimMemory(int)}. The target buffer size is reduced according to
+   * the level of the request for a period of time, after which it is allowed to grow again.
+   * <p>
+   * Only the {@code TRIM_MEMORY_RUNNING_*} levels, which indicate memory pressure whilst the
+   * application is running, are acted upon. Other levels, such as
+   * {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN}, are ignored.
+   * <p>
+   * Has no effect unless adaptive target buffer sizing is enabled. Can be called from any thread.
+   * The request takes effect on the next call to {@link #update}.
+   *
+   * @param level The trim memory level, as defined by {@link ComponentCallbacks2}.
+   */
+  @SuppressLint("InlinedApi")
+  public void onTrimMemory(int level) {
+    if (level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE
+        && level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+        && level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      return;
+    }
+    int pendingLevel = pendingTrimMemoryLevel.get();
+    while (level > pendingLevel && !pendingTrimMemoryLevel.compareAndSet(pendingLevel, level)) {
+      pendingLevel = pendingTrimMemoryLevel.get();
+    }
   }
 
   @Override
   public void register(Object loader, int bufferSizeContribution) {
     loaders.add(loader);
     loaderStates.put(loader, new LoaderState(bufferSizeContribution));
-    targetBufferSize += bufferSizeContribution;
+    registeredBufferSize += bufferSizeContribution;
+    updateTargetBufferSize(SystemClock.elapsedRealtime());
   }
 
   @Override
   public void unregister(Object loader) {
     loaders.remove(loader);
     LoaderState state = loaderStates.remove(loader);
-    targetBufferSize -= state.bufferSizeContribution;
+    registeredBufferSize -= state.bufferSizeContribution;
+    updateTargetBufferSize(SystemClock.elapsedRealtime());
     updateControlState();
   }
 
@@ -163,12 +254,16 @@ public class DefaultLoadControl implements LoadControl {
   @Override
   public boolean update(Object loader, long playbackPositionUs, long nextLoadPositionUs,
       boolean loading, boolean failed) {
+    maybeUpdateTargetBufferSize();
+
     // Update the loader state.
     int loaderBufferState = getLoaderBufferState(playbackPositionUs, nextLoadPositionUs);
     LoaderState loaderState = loaderStates.get(loader);
     boolean loaderStateChanged = loaderState.bufferState != loaderBufferState ||
         loaderState.nextLoadPositionUs != nextLoadPositionUs || loaderState.loading != loading ||
         loaderState.failed != failed;
+    loaderState.bufferedDurationUs = nextLoadPositionUs == -1 ? -1
+        : nextLoadPositionUs - playbackPositionUs;
     if (loaderStateChanged) {
       loaderState.bufferState = loaderBufferState;
       loaderState.nextLoadPositionUs = nextLoadPositionUs;
@@ -193,6 +288,80 @@ public class DefaultLoadControl implements LoadControl {
         && nextLoadPositionUs <= maxLoadStartPositionUs;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The priority of a loader is its buffer deficit, which is the amount by which the duration of
+   * media that it has buffered falls short of the high watermark, in milliseconds. Loaders that
+   * are nearly starved are therefore prioritized over loaders that have buffered more media. A
+   * loader that has finished, or whose buffer is above the high watermark, has a priority of 0.
+   */
+  @Override
+  public int getLoadPriority(Object loader) {
+    LoaderState loaderState = loaderStates.get(loader);
+    if (loaderState == null || loaderState.bufferedDurationUs == -1) {
+      return 0;
+    }
+    return (int) (Math.max(0, highWatermarkUs - Math.max(0, loaderState.bufferedDurationUs))
+        / 1000);
+  }
+
+  private void maybeUpdateTargetBufferSize() {
+    if (!adaptiveTargetBufferSize) {
+      return;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    int trimMemoryLevel = pendingTrimMemoryLevel.getAndSet(0);
+    if (trimMemoryLevel > 0) {
+      memoryPressureLevel = Math.max(memoryPressureLevel, trimMemoryLevel);
+      memoryPressureTimeMs = nowMs;
+    } else if (nowMs - lastTargetBufferSizeUpdateMs < ADAPTIVE_HEAP_SAMPLE_INTERVAL_MS) {
+      return;
+    }
+    if (memoryPressureLevel != 0
+        && nowMs - memoryPressureTimeMs > ADAPTIVE_MEMORY_PRESSURE_DECAY_MS) {
+      memoryPressureLevel = 0;
+    }
+    updateTargetBufferSize(nowMs);
+  }
+
+  private void updateTargetBufferSize(long nowMs) {
+    if (!adaptiveTargetBufferSize) {
+      targetBufferSize = registeredBufferSize;
+      return;
+    }
+    lastTargetBufferSizeUpdateMs = nowMs;
+    // Our own allocations are counted as available, since they are already part of the buffer.
+    Runtime runtime = Runtime.getRuntime();
+    long usedHeapSize = runtime.totalMemory() - runtime.freeMemory();
+    long availableHeapSize = runtime.maxMemory() - usedHeapSize + allocator.getAllocatedSize();
+    long heapTargetBufferSize = (long) (availableHeapSize * ADAPTIVE_HEAP_FRACTION);
+    long minTargetBufferSize = (long) (registeredBufferSize * MIN_ADAPTIVE_TARGET_SCALE);
+    long maxTargetBufferSize = (long) (registeredBufferSize
+        * getMaxTargetScale(memoryPressureLevel));
+    int newTargetBufferSize = (int) Math.max(minTargetBufferSize,
+        Math.min(maxTargetBufferSize, heapTargetBufferSize));
+    boolean shrinking = newTargetBufferSize < targetBufferSize;
+    targetBufferSize = newTargetBufferSize;
+    if (shrinking) {
+      allocator.trim(targetBufferSize);
+    }
+  }
+
+  @SuppressLint("InlinedApi")
+  private static float getMaxTargetScale(int trimMemoryLevel) {
+    switch (trimMemoryLevel) {
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+        return 0;
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+        return 0.5f;
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+        return 0.75f;
+      default:
+        return MAX_ADAPTIVE_TARGET_SCALE;
+    }
+  }
+
   private int getLoaderBufferState(long playbackPositionUs, long nextLoadPositionUs) {
     if (nextLoadPositionUs == -1) {
       return ABOVE_HIGH_WATERMARK;
@@ -270,6 +439,7 @@ public class DefaultLoadControl implements LoadControl {
     public boolean loading;
     public boolean failed;
     public long nextLoadPositionUs;
+    public long bufferedDurationUs;
 
     public LoaderState(int bufferSizeContribution) {
       this.bufferSizeContribution = bufferSizeContribution;
@@ -277,6 +447,7 @@ public class DefaultLoadControl implements LoadControl {
       loading = false;
       failed = false;
       nextLoadPositionUs = -1;
+      bufferedDurationUs = -1;
     }
 
   }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer;
+
+/**
+ * A {@link LoadControl} that also prioritizes the loads of its registered loaders, for loaders
+ * that share a {@link com.google.android.exoplayer.upstream.LoaderScheduler}. Loaders whose
+ * control does not implement this interface load with the default priority.
+ */
+public interface PriorityLoadControl extends LoadControl {
+
+  /**
+   * Gets the priority with which the loader's loads should be scheduled, relative to those of the
+   * other registered loaders. Higher values indicate a more urgent need to load. The value is based
+   * on the state most recently passed to {@link #update}.
+   *
+   * @param loader The loader whose priority is required.
+   * @return The priority of the loader's loads.
+   */
+  int getLoadPriority(Object loader);
+
+}
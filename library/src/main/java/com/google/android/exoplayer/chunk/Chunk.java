@@ -23,6 +23,7 @@ import com.google.android.exoplayer.upstream.DataSourceStream;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.Loader.Loadable;
 import com.google.android.exoplayer.upstream.NonBlockingInputStream;
+import com.google.android.exoplayer.upstream.PipelinedDataSource;
 import com.google.android.exoplayer.util.Assertions;
 
 import java.io.IOException;
@@ -45,6 +46,7 @@ public abstract class Chunk implements Loadable {
   public final int trigger;
 
   private final DataSource dataSource;
+  private final DataSource[] rangeDataSources;
   private final DataSpec dataSpec;
 
   private DataSourceStream dataSourceStream;
@@ -59,8 +61,25 @@ public abstract class Chunk implements Loadable {
    * @param trigger See {@link #trigger}.
    */
   public Chunk(DataSource dataSource, DataSpec dataSpec, Format format, int trigger) {
+    this(dataSource, null, dataSpec, format, trigger);
+  }
+
+  /**
+   * @param dataSource The source from which the data should be loaded.
+   * @param rangeDataSources Additional sources that may be used to load ranges of the data in
+   *     parallel with {@code dataSource}, or null. See {@link DataSourceStream}.
+   * @param dataSpec Defines the data to be loaded. {@code dataSpec.length} must not exceed
+   *     {@link Integer#MAX_VALUE}. If {@code dataSpec.length == C.LENGTH_UNBOUNDED} then
+   *     the length resolved by {@code dataSource.open(dataSpec)} must not exceed
+   *     {@link Integer#MAX_VALUE}.
+   * @param format See {@link #format}.
+   * @param trigger See {@link #trigger}.
+   */
+  public Chunk(DataSource dataSource, DataSource[] rangeDataSources, DataSpec dataSpec,
+      Format format, int trigger) {
     Assertions.checkState(dataSpec.length <= Integer.MAX_VALUE);
     this.dataSource = Assertions.checkNotNull(dataSource);
+    this.rangeDataSources = rangeDataSources;
     this.dataSpec = Assertions.checkNotNull(dataSpec);
     this.format = Assertions.checkNotNull(format);
     this.trigger = trigger;
@@ -74,7 +93,42 @@ public abstract class Chunk implements Loadable {
    */
   public final void init(Allocator allocator) {
     Assertions.checkState(dataSourceStream == null);
-    dataSourceStream = new DataSourceStream(dataSource, dataSpec, allocator);
+    dataSourceStream = new DataSourceStream(dataSource, rangeDataSources, dataSpec, allocator);
+  }
+
+  /**
+   * Whether the chunk's {@link DataSource} is a {@link PipelinedDataSource}, meaning that the
+   * request for the following chunk's data can be opened ahead of time by
+   * {@link #preopenNext(DataSpec)}.
+   *
+   * @return True if the chunk supports pre-opening. False otherwise.
+   */
+  public final boolean isPipelined() {
+    return dataSource instanceof PipelinedDataSource;
+  }
+
+  /**
+   * Opens the request for the data of the chunk that's expected to be loaded after this one ahead
+   * of time, using this chunk's {@link DataSource}. The following chunk is assumed to use the same
+   * range {@link DataSource}s as this one, so that the request matches the first request made
+   * when it's loaded. Has no effect if {@link #isPipelined()} returns false.
+   *
+   * @param nextDataSpec The {@link DataSpec} of the chunk that's expected to be loaded next.
+   */
+  public final void preopenNext(DataSpec nextDataSpec) {
+    if (dataSource instanceof PipelinedDataSource) {
+      ((PipelinedDataSource) dataSource).preopen(
+          DataSourceStream.getInitialRequestDataSpec(nextDataSpec, rangeDataSources));
+    }
+  }
+
+  /**
+   * Cancels any request opened ahead of time by {@link #preopenNext(DataSpec)}.
+   */
+  public final void cancelPreopen() {
+    if (dataSource instanceof PipelinedDataSource) {
+      ((PipelinedDataSource) dataSource).cancelPreopen();
+    }
   }
 
   /**
@@ -124,6 +178,16 @@ public abstract class Chunk implements Loadable {
     return dataSourceStream.getLoadPosition();
   }
 
+  /**
+   * Gets the number of bytes allocated to hold the chunk's data.
+   *
+   * @return The number of bytes allocated, or 0 if the chunk has not been initialized or has been
+   *     released.
+   */
+  public final int getAllocatedSize() {
+    return dataSourceStream == null ? 0 : dataSourceStream.getAllocatedSize();
+  }
+
   /**
    * Causes loaded data to be consumed.
    *
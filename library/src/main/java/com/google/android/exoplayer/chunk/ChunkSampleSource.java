@@ -16,28 +16,44 @@
 package com.google.android.exoplayer.chunk;
 
 import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.CryptoInfo;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.PriorityLoadControl;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.SampleSource;
 import com.google.android.exoplayer.TrackInfo;
 import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.Loader;
+import com.google.android.exoplayer.upstream.LoaderScheduler;
 import com.google.android.exoplayer.util.Assertions;
 
+import android.media.MediaExtractor;
 import android.os.Handler;
 import android.os.SystemClock;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * A {@link SampleSource} that loads media in {@link Chunk}s, which are themselves obtained from a
  * {@link ChunkSource}.
+ * <p>
+ * By default the source exposes a single track. A source constructed with information about
+ * multiple tracks exposes the tracks co-muxed within each chunk, which are loaded once and
+ * demuxed as they are read. Samples belonging to a track other than the one being read are held
+ * in a queue for that track until they are read, or are discarded if the track is not enabled.
+ * Queued samples count towards the source's contribution to the target buffer size. Whilst they
+ * exceed it, further samples are not queued and loading is paused until the queues are drained.
  */
 public class ChunkSampleSource implements SampleSource, Loader.Listener {
 
@@ -131,6 +147,24 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
      */
     void onDownstreamFormatChanged(int sourceId, String formatId, int trigger, int mediaTimeMs);
 
+    /**
+     * Invoked when the first sample is read from a media chunk, or when the first sample is read
+     * from a media chunk following a seek into it. Samples are read as soon as they are loaded, so
+     * the reported values can be used to tune startup and seek latency against segment size.
+     *
+     * @param sourceId The id of the reporting {@link SampleSource}.
+     * @param formatId The format id.
+     * @param mediaTimeMs The media time of the sample.
+     * @param elapsedMs The time elapsed between the chunk starting to load, or the seek, and the
+     *     sample being read.
+     * @param bytesLoaded The number of bytes of the chunk that had been loaded when the sample was
+     *     read.
+     * @param length The length of the chunk in bytes, or {@link C#LENGTH_UNBOUNDED} if the length
+     *     has yet to be determined.
+     */
+    void onFirstSampleRead(int sourceId, String formatId, int mediaTimeMs, long elapsedMs,
+        long bytesLoaded, long length);
+
   }
 
   private static final int STATE_UNPREPARED = 0;
@@ -149,22 +183,35 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
   private final boolean frameAccurateSeeking;
   private final Handler eventHandler;
   private final EventListener eventListener;
-
+  private final LoaderScheduler loaderScheduler;
+  private final TrackInfo[] trackInfos;
+  private final int trackCount;
+  private final boolean[] trackEnabledStates;
+  private final boolean[] pendingDiscontinuities;
+  private final MediaFormat[] downstreamMediaFormats;
+  private final ArrayList<LinkedList<QueuedSample>> sampleQueues;
+  private final LinkedList<QueuedSample> queuedSamplePool;
+  private final SampleHolder discardSampleHolder;
+
+  private int queuedSampleBytes;
   private int state;
+  private int enabledTrackCount;
   private long downstreamPositionUs;
   private long lastSeekPositionUs;
   private long pendingResetTime;
   private long lastPerformedBufferOperation;
-  private boolean pendingDiscontinuity;
+  private boolean readSinceLastSeek;
 
   private Loader loader;
+  private Chunk preopenedAfterChunk;
+  private Format preopenedFormat;
   private IOException currentLoadableException;
   private boolean currentLoadableExceptionFatal;
   private int currentLoadableExceptionCount;
   private long currentLoadableExceptionTimestamp;
 
-  private MediaFormat downstreamMediaFormat;
   private volatile Format downstreamFormat;
+  private volatile int allocatedSize;
 
   public ChunkSampleSource(ChunkSource chunkSource, LoadControl loadControl,
       int bufferSizeContribution, boolean frameAccurateSeeking) {
@@ -174,16 +221,74 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
   public ChunkSampleSource(ChunkSource chunkSource, LoadControl loadControl,
       int bufferSizeContribution, boolean frameAccurateSeeking, Handler eventHandler,
       EventListener eventListener, int eventSourceId) {
+    this(chunkSource, loadControl, bufferSizeContribution, frameAccurateSeeking, eventHandler,
+        eventListener, eventSourceId, null);
+  }
+
+  /**
+   * @param chunkSource A {@link ChunkSource} from which chunks to load are obtained.
+   * @param loadControl Controls when the source is permitted to load data.
+   * @param bufferSizeContribution The source's contribution to the target buffer size.
+   * @param frameAccurateSeeking Whether seeking should be frame accurate.
+   * @param eventHandler A handler to use when delivering events to {@code eventListener}. May be
+   *     null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param eventSourceId An identifier that gets passed to {@code eventListener} methods.
+   * @param loaderScheduler A {@link LoaderScheduler} on which chunks should be loaded. May be
+   *     shared with other sources, in which case loads are prioritized according to
+   *     {@link PriorityLoadControl#getLoadPriority(Object)} if {@code loadControl} implements it.
+   *     May be null, in which case the source loads chunks on a thread of its own.
+   */
+  public ChunkSampleSource(ChunkSource chunkSource, LoadControl loadControl,
+      int bufferSizeContribution, boolean frameAccurateSeeking, Handler eventHandler,
+      EventListener eventListener, int eventSourceId, LoaderScheduler loaderScheduler) {
+    this(chunkSource, null, loadControl, bufferSizeContribution, frameAccurateSeeking,
+        eventHandler, eventListener, eventSourceId, loaderScheduler);
+  }
+
+  /**
+   * @param chunkSource A {@link ChunkSource} from which chunks to load are obtained.
+   * @param trackInfos Information about each of the tracks co-muxed within the chunks, in the
+   *     order in which the chunks expose them (i.e. the track indices reported by
+   *     {@link MediaChunk#getSampleTrack()}). May be null, in which case the source exposes a
+   *     single track described by {@link ChunkSource#getTrackInfo()}.
+   * @param loadControl Controls when the source is permitted to load data.
+   * @param bufferSizeContribution The source's contribution to the target buffer size.
+   * @param frameAccurateSeeking Whether seeking should be frame accurate.
+   * @param eventHandler A handler to use when delivering events to {@code eventListener}. May be
+   *     null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param eventSourceId An identifier that gets passed to {@code eventListener} methods.
+   * @param loaderScheduler A {@link LoaderScheduler} on which chunks should be loaded. May be
+   *     null, in which case the source loads chunks on a thread of its own.
+   */
+  public ChunkSampleSource(ChunkSource chunkSource, TrackInfo[] trackInfos,
+      LoadControl loadControl, int bufferSizeContribution, boolean frameAccurateSeeking,
+      Handler eventHandler, EventListener eventListener, int eventSourceId,
+      LoaderScheduler loaderScheduler) {
+    Assertions.checkArgument(trackInfos == null || trackInfos.length > 0);
     this.chunkSource = chunkSource;
+    this.trackInfos = trackInfos;
     this.loadControl = loadControl;
     this.bufferSizeContribution = bufferSizeContribution;
     this.frameAccurateSeeking = frameAccurateSeeking;
     this.eventHandler = eventHandler;
     this.eventListener = eventListener;
     this.eventSourceId = eventSourceId;
+    this.loaderScheduler = loaderScheduler;
     currentLoadableHolder = new ChunkOperationHolder();
     mediaChunks = new LinkedList<MediaChunk>();
     readOnlyMediaChunks = Collections.unmodifiableList(mediaChunks);
+    trackCount = trackInfos == null ? 1 : trackInfos.length;
+    trackEnabledStates = new boolean[trackCount];
+    pendingDiscontinuities = new boolean[trackCount];
+    downstreamMediaFormats = new MediaFormat[trackCount];
+    sampleQueues = new ArrayList<LinkedList<QueuedSample>>(trackCount);
+    for (int i = 0; i < trackCount; i++) {
+      sampleQueues.add(new LinkedList<QueuedSample>());
+    }
+    queuedSamplePool = new LinkedList<QueuedSample>();
+    discardSampleHolder = new SampleHolder(false);
     state = STATE_UNPREPARED;
   }
 
@@ -196,10 +301,21 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     return downstreamFormat;
   }
 
+  /**
+   * Exposes the number of bytes allocated to this source's buffered and loading chunks, for
+   * debugging purposes. Can be called from any thread.
+   *
+   * @return The number of bytes allocated to this source.
+   */
+  public int getAllocatedSize() {
+    return allocatedSize;
+  }
+
   @Override
   public boolean prepare() {
     Assertions.checkState(state == STATE_UNPREPARED);
-    loader = new Loader("Loader:" + chunkSource.getTrackInfo().mimeType, this);
+    loader = loaderScheduler != null ? new Loader(loaderScheduler, this)
+        : new Loader("Loader:" + chunkSource.getTrackInfo().mimeType, this);
     state = STATE_PREPARED;
     return true;
   }
@@ -207,37 +323,58 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
   @Override
   public int getTrackCount() {
     Assertions.checkState(state != STATE_UNPREPARED);
-    return 1;
+    return trackCount;
   }
 
   @Override
   public TrackInfo getTrackInfo(int track) {
     Assertions.checkState(state != STATE_UNPREPARED);
-    Assertions.checkState(track == 0);
-    return chunkSource.getTrackInfo();
+    Assertions.checkState(track >= 0 && track < trackCount);
+    return trackInfos == null ? chunkSource.getTrackInfo() : trackInfos[track];
   }
 
   @Override
   public void enable(int track, long timeUs) {
-    Assertions.checkState(state == STATE_PREPARED);
-    Assertions.checkState(track == 0);
+    Assertions.checkState(state == STATE_PREPARED || state == STATE_ENABLED);
+    Assertions.checkState(!trackEnabledStates[track]);
+    trackEnabledStates[track] = true;
+    enabledTrackCount++;
+    downstreamMediaFormats[track] = null;
+    if (state == STATE_ENABLED) {
+      // Samples of the track that precede the read position have been discarded, so loading must
+      // be restarted unless nothing has been read since seeking to the same position.
+      if (readSinceLastSeek || timeUs != lastSeekPositionUs) {
+        downstreamPositionUs = timeUs;
+        lastSeekPositionUs = timeUs;
+        readSinceLastSeek = false;
+        restartFromWithDiscontinuity(timeUs);
+      }
+      return;
+    }
     state = STATE_ENABLED;
     chunkSource.enable();
     loadControl.register(this, bufferSizeContribution);
     downstreamFormat = null;
-    downstreamMediaFormat = null;
     downstreamPositionUs = timeUs;
     lastSeekPositionUs = timeUs;
+    readSinceLastSeek = false;
     restartFrom(timeUs);
   }
 
   @Override
   public void disable(int track) {
     Assertions.checkState(state == STATE_ENABLED);
-    Assertions.checkState(track == 0);
-    pendingDiscontinuity = false;
+    Assertions.checkState(trackEnabledStates[track]);
+    trackEnabledStates[track] = false;
+    enabledTrackCount--;
+    pendingDiscontinuities[track] = false;
+    clearSampleQueue(track);
+    if (enabledTrackCount > 0) {
+      return;
+    }
     state = STATE_PREPARED;
     loadControl.unregister(this);
+    cancelPreopen();
     chunkSource.disable(mediaChunks);
     if (loader.isLoading()) {
       loader.cancelLoading();
@@ -254,7 +391,11 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     downstreamPositionUs = playbackPositionUs;
     chunkSource.continueBuffering(playbackPositionUs);
     updateLoadControl();
-    if (isPendingReset() || mediaChunks.isEmpty()) {
+    if (isPendingReset()) {
+      return false;
+    } else if (hasQueuedSamples()) {
+      return true;
+    } else if (mediaChunks.isEmpty()) {
       return false;
     } else if (mediaChunks.getFirst().sampleAvailable()) {
       // There's a sample available to be read from the current chunk.
@@ -270,10 +411,10 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
   public int readData(int track, long playbackPositionUs, MediaFormatHolder formatHolder,
       SampleHolder sampleHolder, boolean onlyReadDiscontinuity) throws IOException {
     Assertions.checkState(state == STATE_ENABLED);
-    Assertions.checkState(track == 0);
+    Assertions.checkState(trackEnabledStates[track]);
 
-    if (pendingDiscontinuity) {
-      pendingDiscontinuity = false;
+    if (pendingDiscontinuities[track]) {
+      pendingDiscontinuities[track] = false;
       return DISCONTINUITY_READ;
     }
 
@@ -293,6 +434,10 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
       return NOTHING_READ;
     }
 
+    if (!sampleQueues.get(track).isEmpty()) {
+      return readQueuedSample(track, formatHolder, sampleHolder);
+    }
+
     MediaChunk mediaChunk = mediaChunks.getFirst();
     if (mediaChunk.isReadFinished()) {
       // We've read all of the samples from the current media chunk.
@@ -324,17 +469,26 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
       return NOTHING_READ;
     }
 
-    MediaFormat mediaFormat = mediaChunk.getMediaFormat();
-    if (mediaFormat != null && !mediaFormat.equals(downstreamMediaFormat, true)) {
+    MediaFormat mediaFormat = mediaChunk.getMediaFormat(track);
+    if (mediaFormat != null && !mediaFormat.equals(downstreamMediaFormats[track], true)) {
       chunkSource.getMaxVideoDimensions(mediaFormat);
       formatHolder.format = mediaFormat;
       formatHolder.drmInitData = mediaChunk.getPsshInfo();
-      downstreamMediaFormat = mediaFormat;
+      downstreamMediaFormats[track] = mediaFormat;
       return FORMAT_READ;
     }
 
+    readSinceLastSeek = true;
+    if (trackCount > 1 && !queueSamplesPrecedingTrack(track, mediaChunk)) {
+      if (currentLoadableException != null) {
+        throw currentLoadableException;
+      }
+      return NOTHING_READ;
+    }
+
     if (mediaChunk.read(sampleHolder)) {
       sampleHolder.decodeOnly = frameAccurateSeeking && sampleHolder.timeUs < lastSeekPositionUs;
+      maybeNotifyFirstSampleRead(mediaChunk, sampleHolder);
       onSampleRead(mediaChunk, sampleHolder);
       return SAMPLE_READ;
     } else {
@@ -350,21 +504,138 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     Assertions.checkState(state == STATE_ENABLED);
     downstreamPositionUs = timeUs;
     lastSeekPositionUs = timeUs;
+    readSinceLastSeek = false;
     if (pendingResetTime == timeUs) {
       return;
     }
 
     MediaChunk mediaChunk = getMediaChunk(timeUs);
     if (mediaChunk == null) {
-      restartFrom(timeUs);
-      pendingDiscontinuity = true;
+      restartFromWithDiscontinuity(timeUs);
     } else {
-      pendingDiscontinuity |= mediaChunk.seekTo(timeUs, mediaChunk == mediaChunks.getFirst());
+      // If multiple tracks are exposed then the seek cannot be a no-op, since samples that have
+      // been queued are discarded.
+      boolean allowNoop = trackCount == 1 && mediaChunk == mediaChunks.getFirst();
+      boolean isDiscontinuous = mediaChunk.seekTo(timeUs, allowNoop);
+      if (isDiscontinuous) {
+        mediaChunk.firstSampleTimerStartMs = SystemClock.elapsedRealtime();
+      }
+      clearSampleQueues();
+      for (int i = 0; i < trackCount; i++) {
+        pendingDiscontinuities[i] |= isDiscontinuous && trackEnabledStates[i];
+      }
       discardDownstreamMediaChunks(mediaChunk);
       updateLoadControl();
     }
   }
 
+  /**
+   * Reads samples that precede the next sample of the specified track from a {@link MediaChunk}.
+   * Samples belonging to other enabled tracks are added to the queues of those tracks. Samples
+   * belonging to disabled tracks are discarded.
+   *
+   * @param track The track whose next sample is required.
+   * @param mediaChunk The chunk from which to read.
+   * @return True if the next sample in the chunk belongs to the specified track. False if no
+   *     further samples are available from the chunk.
+   * @throws IOException If an error occurs reading from the chunk.
+   */
+  private boolean queueSamplesPrecedingTrack(int track, MediaChunk mediaChunk)
+      throws IOException {
+    while (mediaChunk.sampleAvailable()) {
+      int sampleTrack = mediaChunk.getSampleTrack();
+      if (sampleTrack == track) {
+        return true;
+      }
+      if (sampleTrack >= trackCount || !trackEnabledStates[sampleTrack]) {
+        mediaChunk.read(discardSampleHolder);
+        continue;
+      }
+      if (queuedSampleBytes >= bufferSizeContribution) {
+        // The queues are full. The track can't be read until the other tracks have been read.
+        return false;
+      }
+      QueuedSample queuedSample = queuedSamplePool.isEmpty() ? new QueuedSample()
+          : queuedSamplePool.removeFirst();
+      SampleHolder holder = queuedSample.holder;
+      mediaChunk.read(holder);
+      holder.decodeOnly = frameAccurateSeeking && holder.timeUs < lastSeekPositionUs;
+      onSampleRead(mediaChunk, holder);
+      queuedSample.mediaChunk = mediaChunk;
+      queuedSample.mediaFormat = mediaChunk.getMediaFormat(sampleTrack);
+      queuedSample.psshInfo = mediaChunk.getPsshInfo();
+      queuedSampleBytes += holder.size;
+      sampleQueues.get(sampleTrack).add(queuedSample);
+    }
+    return false;
+  }
+
+  /**
+   * Reads the format or sample at the head of the queue of the specified track.
+   */
+  private int readQueuedSample(int track, MediaFormatHolder formatHolder,
+      SampleHolder sampleHolder) {
+    LinkedList<QueuedSample> sampleQueue = sampleQueues.get(track);
+    QueuedSample queuedSample = sampleQueue.getFirst();
+    MediaFormat mediaFormat = queuedSample.mediaFormat;
+    if (mediaFormat != null && !mediaFormat.equals(downstreamMediaFormats[track], true)) {
+      chunkSource.getMaxVideoDimensions(mediaFormat);
+      formatHolder.format = mediaFormat;
+      formatHolder.drmInitData = queuedSample.psshInfo;
+      downstreamMediaFormats[track] = mediaFormat;
+      return FORMAT_READ;
+    }
+    sampleQueue.removeFirst();
+    queuedSample.copyTo(sampleHolder);
+    maybeNotifyFirstSampleRead(queuedSample.mediaChunk, sampleHolder);
+    recycleQueuedSample(queuedSample);
+    return SAMPLE_READ;
+  }
+
+  private boolean hasQueuedSamples() {
+    for (int i = 0; i < trackCount; i++) {
+      if (!sampleQueues.get(i).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void clearSampleQueues() {
+    for (int i = 0; i < trackCount; i++) {
+      clearSampleQueue(i);
+    }
+  }
+
+  private void clearSampleQueue(int track) {
+    LinkedList<QueuedSample> sampleQueue = sampleQueues.get(track);
+    while (!sampleQueue.isEmpty()) {
+      recycleQueuedSample(sampleQueue.removeFirst());
+    }
+  }
+
+  private void recycleQueuedSample(QueuedSample queuedSample) {
+    queuedSampleBytes -= queuedSample.holder.size;
+    queuedSample.holder.size = 0;
+    queuedSample.mediaChunk = null;
+    queuedSample.mediaFormat = null;
+    queuedSample.psshInfo = null;
+    if (queuedSample.holder.data != null) {
+      queuedSample.holder.data.clear();
+    }
+    queuedSamplePool.add(queuedSample);
+  }
+
+  private void maybeNotifyFirstSampleRead(MediaChunk mediaChunk, SampleHolder sampleHolder) {
+    if (mediaChunk.firstSampleTimerStartMs == -1) {
+      return;
+    }
+    long elapsedMs = SystemClock.elapsedRealtime() - mediaChunk.firstSampleTimerStartMs;
+    mediaChunk.firstSampleTimerStartMs = -1;
+    notifyFirstSampleRead(mediaChunk.format.id, sampleHolder.timeUs, elapsedMs,
+        mediaChunk.bytesLoaded(), mediaChunk.getLength());
+  }
+
   private MediaChunk getMediaChunk(long timeUs) {
     Iterator<MediaChunk> mediaChunkIterator = mediaChunks.iterator();
     while (mediaChunkIterator.hasNext()) {
@@ -472,8 +743,17 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     // no-op
   }
 
+  private void restartFromWithDiscontinuity(long timeUs) {
+    restartFrom(timeUs);
+    for (int i = 0; i < trackCount; i++) {
+      pendingDiscontinuities[i] = trackEnabledStates[i];
+    }
+  }
+
   private void restartFrom(long timeUs) {
+    clearSampleQueues();
     pendingResetTime = timeUs;
+    cancelPreopen();
     if (loader.isLoading()) {
       loader.cancelLoading();
     } else {
@@ -503,9 +783,18 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
       loadPositionUs = lastMediaChunk.nextChunkIndex == -1 ? -1 : lastMediaChunk.endTimeUs;
     }
 
+    updateAllocatedSize();
+
     boolean isBackedOff = currentLoadableException != null && !currentLoadableExceptionFatal;
     boolean nextLoader = loadControl.update(this, downstreamPositionUs, loadPositionUs,
         isBackedOff || loader.isLoading(), currentLoadableExceptionFatal);
+    if (queuedSampleBytes > 0 && allocatedSize + queuedSampleBytes >= bufferSizeContribution) {
+      // Queued samples are held outside of the allocator, so the LoadControl doesn't see them.
+      nextLoader = false;
+    }
+    if (loadControl instanceof PriorityLoadControl) {
+      loader.setPriority(((PriorityLoadControl) loadControl).getLoadPriority(this));
+    }
 
     if (currentLoadableExceptionFatal) {
       return;
@@ -528,13 +817,78 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
         chunkSource.getChunkOperation(readOnlyMediaChunks, pendingResetTime, downstreamPositionUs,
             currentLoadableHolder);
         discardUpstreamMediaChunks(currentLoadableHolder.queueSize);
+        maybeCancelPreopen(nextLoader);
       }
       if (nextLoader) {
         maybeStartLoading();
       }
+    } else if (nextLoader) {
+      maybePreopenNextChunk();
     }
   }
 
+  /**
+   * If the current loadable is a pipelined media chunk, obtains the chunk that's expected to be
+   * loaded after it and opens the request for its data ahead of time. This hides the latency of
+   * the request that would otherwise be incurred between the two loads.
+   * <p>
+   * The next chunk is obtained from {@link ChunkSource#getNextChunkDataSpec(MediaChunk)}, which
+   * assumes that the format of the current chunk is retained. No format evaluation is performed.
+   */
+  private void maybePreopenNextChunk() {
+    Chunk currentLoadable = currentLoadableHolder.chunk;
+    if (currentLoadable == preopenedAfterChunk || !isMediaChunk(currentLoadable)
+        || !currentLoadable.isPipelined()) {
+      return;
+    }
+    preopenedAfterChunk = currentLoadable;
+    DataSpec nextDataSpec = chunkSource.getNextChunkDataSpec((MediaChunk) currentLoadable);
+    if (nextDataSpec != null) {
+      currentLoadable.preopenNext(nextDataSpec);
+      preopenedFormat = currentLoadable.format;
+    }
+  }
+
+  /**
+   * Cancels the request opened by {@link #maybePreopenNextChunk()}, unless loading is to continue
+   * with a chunk of the same format as the pre-opened chunk. In the latter case the pre-opened
+   * request is used when the new chunk is opened. The request is always canceled if loading is
+   * paused, since the connection would otherwise be held open for an unbounded time.
+   *
+   * @param nextLoader Whether the {@link LoadControl} allows the next chunk to be loaded.
+   */
+  private void maybeCancelPreopen(boolean nextLoader) {
+    if (preopenedFormat == null) {
+      return;
+    }
+    Chunk nextChunk = currentLoadableHolder.chunk;
+    if (!nextLoader || !isMediaChunk(nextChunk)
+        || !nextChunk.format.id.equals(preopenedFormat.id)) {
+      preopenedAfterChunk.cancelPreopen();
+    }
+    preopenedFormat = null;
+  }
+
+  private void cancelPreopen() {
+    if (preopenedFormat != null) {
+      preopenedAfterChunk.cancelPreopen();
+      preopenedFormat = null;
+    }
+    preopenedAfterChunk = null;
+  }
+
+  private void updateAllocatedSize() {
+    int allocatedSize = 0;
+    for (MediaChunk mediaChunk : mediaChunks) {
+      allocatedSize += mediaChunk.getAllocatedSize();
+    }
+    Chunk currentLoadable = currentLoadableHolder.chunk;
+    if (currentLoadable != null && !isMediaChunk(currentLoadable)) {
+      allocatedSize += currentLoadable.getAllocatedSize();
+    }
+    this.allocatedSize = allocatedSize;
+  }
+
   /**
    * Resumes loading.
    * <p>
@@ -602,6 +956,7 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
         mediaChunk.seekTo(pendingResetTime, false);
         pendingResetTime = NO_RESET_PENDING;
       }
+      mediaChunk.firstSampleTimerStartMs = SystemClock.elapsedRealtime();
       mediaChunks.add(mediaChunk);
       notifyLoadStarted(mediaChunk.format.id, mediaChunk.trigger, false,
           mediaChunk.startTimeUs, mediaChunk.endTimeUs, mediaChunk.getLength());
@@ -765,6 +1120,85 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     }
   }
 
+  private void notifyFirstSampleRead(final String formatId, final long mediaTimeUs,
+      final long elapsedMs, final long bytesLoaded, final long length) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable()  {
+        @Override
+        public void run() {
+          eventListener.onFirstSampleRead(eventSourceId, formatId, usToMs(mediaTimeUs), elapsedMs,
+              bytesLoaded, length);
+        }
+      });
+    }
+  }
+
+  /**
+   * A sample that has been read from a chunk, together with the chunk and the format of its track.
+   */
+  private static final class QueuedSample {
+
+    public final SampleHolder holder;
+
+    public MediaChunk mediaChunk;
+    public MediaFormat mediaFormat;
+    public Map<UUID, byte[]> psshInfo;
+
+    public QueuedSample() {
+      holder = new SampleHolder(true);
+    }
+
+    /**
+     * Copies the sample into {@code out}. If replacement of {@link SampleHolder#data} is permitted
+     * then the data buffers are exchanged instead, which avoids copying the data. The sample data
+     * is skipped if there's nowhere to copy it.
+     */
+    public void copyTo(SampleHolder out) {
+      out.timeUs = holder.timeUs;
+      out.flags = holder.flags;
+      out.decodeOnly = holder.decodeOnly;
+      if ((holder.flags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0) {
+        copyCryptoInfo(holder.cryptoInfo, out.cryptoInfo);
+      }
+      if (out.allowDataBufferReplacement && holder.data != null) {
+        ByteBuffer outData = out.data;
+        out.data = holder.data;
+        out.size = holder.size;
+        holder.data = outData;
+        return;
+      }
+      if (out.data == null || holder.data == null) {
+        out.size = 0;
+        return;
+      }
+      ByteBuffer data = holder.data;
+      data.flip();
+      out.data.put(data);
+      out.size = holder.size;
+    }
+
+    private static void copyCryptoInfo(CryptoInfo from, CryptoInfo to) {
+      int subsampleCount = from.numSubSamples;
+      int[] clearDataSizes = to.numBytesOfClearData;
+      if (clearDataSizes == null || clearDataSizes.length < subsampleCount) {
+        clearDataSizes = new int[subsampleCount];
+      }
+      int[] encryptedDataSizes = to.numBytesOfEncryptedData;
+      if (encryptedDataSizes == null || encryptedDataSizes.length < subsampleCount) {
+        encryptedDataSizes = new int[subsampleCount];
+      }
+      System.arraycopy(from.numBytesOfClearData, 0, clearDataSizes, 0, subsampleCount);
+      System.arraycopy(from.numBytesOfEncryptedData, 0, encryptedDataSizes, 0, subsampleCount);
+      byte[] iv = to.iv;
+      if (iv == null || iv.length != from.iv.length) {
+        iv = new byte[from.iv.length];
+      }
+      System.arraycopy(from.iv, 0, iv, 0, iv.length);
+      to.set(subsampleCount, clearDataSizes, encryptedDataSizes, from.key, iv, from.mode);
+    }
+
+  }
+
   private void notifyDownstreamDiscarded(final long mediaStartTimeUs, final long mediaEndTimeUs,
       final long bytesDiscarded) {
     if (eventHandler != null && eventListener != null) {
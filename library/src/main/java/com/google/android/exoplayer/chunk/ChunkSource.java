@@ -17,6 +17,7 @@ package com.google.android.exoplayer.chunk;
 
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.upstream.DataSpec;
 
 import java.io.IOException;
 import java.util.List;
@@ -91,6 +92,19 @@ public interface ChunkSource {
   void getChunkOperation(List<? extends MediaChunk> queue, long seekPositionUs,
       long playbackPositionUs, ChunkOperationHolder out);
 
+  /**
+   * Returns the {@link DataSpec} of the {@link MediaChunk} that would be loaded after the specified
+   * chunk if its format were retained, so that the request can be opened ahead of time.
+   * <p>
+   * Unlike {@link #getChunkOperation}, this method must not have side effects. In particular it
+   * must not perform a format evaluation.
+   *
+   * @param chunk A {@link MediaChunk} previously supplied by the {@link ChunkSource}.
+   * @return The {@link DataSpec} of the following chunk, or null if there is no following chunk or
+   *     it cannot be determined.
+   */
+  DataSpec getNextChunkDataSpec(MediaChunk chunk);
+
   /**
    * If the {@link ChunkSource} is currently unable to provide chunks through
    * {@link ChunkSource#getChunkOperation}, then this method returns the underlying cause. Returns
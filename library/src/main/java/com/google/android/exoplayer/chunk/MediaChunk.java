@@ -42,6 +42,14 @@ public abstract class MediaChunk extends Chunk {
    */
   public final int nextChunkIndex;
 
+  /**
+   * The value of {@link android.os.SystemClock#elapsedRealtime()} at which the chunk started to
+   * load, or at which the most recent seek into the chunk was performed, if a sample has not been
+   * read from the chunk since. -1 otherwise. Used by {@link ChunkSampleSource} to measure the time
+   * taken for the first sample to become readable.
+   */
+  /* package */ long firstSampleTimerStartMs;
+
   /**
    * Constructor for a chunk of media samples.
    *
@@ -55,10 +63,29 @@ public abstract class MediaChunk extends Chunk {
    */
   public MediaChunk(DataSource dataSource, DataSpec dataSpec, Format format, int trigger,
       long startTimeUs, long endTimeUs, int nextChunkIndex) {
-    super(dataSource, dataSpec, format, trigger);
+    this(dataSource, null, dataSpec, format, trigger, startTimeUs, endTimeUs, nextChunkIndex);
+  }
+
+  /**
+   * Constructor for a chunk of media samples whose data may be loaded as parallel ranges.
+   *
+   * @param dataSource A {@link DataSource} for loading the data.
+   * @param rangeDataSources Additional {@link DataSource}s for loading ranges of the data in
+   *     parallel, or null.
+   * @param dataSpec Defines the data to be loaded.
+   * @param format The format of the stream to which this chunk belongs.
+   * @param trigger The reason for this chunk being selected.
+   * @param startTimeUs The start time of the media contained by the chunk, in microseconds.
+   * @param endTimeUs The end time of the media contained by the chunk, in microseconds.
+   * @param nextChunkIndex The index of the next chunk, or -1 if this is the last chunk.
+   */
+  public MediaChunk(DataSource dataSource, DataSource[] rangeDataSources, DataSpec dataSpec,
+      Format format, int trigger, long startTimeUs, long endTimeUs, int nextChunkIndex) {
+    super(dataSource, rangeDataSources, dataSpec, format, trigger);
     this.startTimeUs = startTimeUs;
     this.endTimeUs = endTimeUs;
     this.nextChunkIndex = nextChunkIndex;
+    firstSampleTimerStartMs = -1;
   }
 
   /**
@@ -128,6 +155,43 @@ public abstract class MediaChunk extends Chunk {
    */
   public abstract MediaFormat getMediaFormat();
 
+  /**
+   * Returns the number of tracks whose samples are contained within this chunk.
+   * <p>
+   * Should only be called after the chunk has been successfully prepared. The default
+   * implementation returns 1.
+   *
+   * @return The number of tracks.
+   */
+  public int getTrackCount() {
+    return 1;
+  }
+
+  /**
+   * Returns the media format of the samples belonging to the specified track.
+   * <p>
+   * Should only be called after the chunk has been successfully prepared. The default
+   * implementation returns {@link #getMediaFormat()}.
+   *
+   * @param track The index of the track.
+   * @return The sample media format of the track.
+   */
+  public MediaFormat getMediaFormat(int track) {
+    return getMediaFormat();
+  }
+
+  /**
+   * Returns the index of the track to which the next sample belongs.
+   * <p>
+   * Should only be called after {@link #sampleAvailable()} has returned true. The default
+   * implementation returns 0.
+   *
+   * @return The index of the track to which the next sample belongs.
+   */
+  public int getSampleTrack() {
+    return 0;
+  }
+
   /**
    * Returns the pssh information associated with the chunk.
    * <p>
@@ -19,6 +19,7 @@ import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.ParserException;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.parser.Extractor;
+import com.google.android.exoplayer.parser.MultiTrackExtractor;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.NonBlockingInputStream;
@@ -38,6 +39,7 @@ public final class Mp4MediaChunk extends MediaChunk {
 
   private boolean prepared;
   private MediaFormat mediaFormat;
+  private MediaFormat[] mediaFormats;
   private Map<UUID, byte[]> psshInfo;
 
   /**
@@ -58,7 +60,30 @@ public final class Mp4MediaChunk extends MediaChunk {
   public Mp4MediaChunk(DataSource dataSource, DataSpec dataSpec, Format format,
       int trigger, long startTimeUs, long endTimeUs, int nextChunkIndex,
       Extractor extractor, boolean maybeSelfContained, long sampleOffsetUs) {
-    super(dataSource, dataSpec, format, trigger, startTimeUs, endTimeUs, nextChunkIndex);
+    this(dataSource, null, dataSpec, format, trigger, startTimeUs, endTimeUs, nextChunkIndex,
+        extractor, maybeSelfContained, sampleOffsetUs);
+  }
+
+  /**
+   * @param dataSource A {@link DataSource} for loading the data.
+   * @param rangeDataSources Additional {@link DataSource}s for loading ranges of the data in
+   *     parallel, or null.
+   * @param dataSpec Defines the data to be loaded.
+   * @param format The format of the stream to which this chunk belongs.
+   * @param trigger The reason for this chunk being selected.
+   * @param startTimeUs The start time of the media contained by the chunk, in microseconds.
+   * @param endTimeUs The end time of the media contained by the chunk, in microseconds.
+   * @param nextChunkIndex The index of the next chunk, or -1 if this is the last chunk.
+   * @param extractor The extractor that will be used to extract the samples.
+   * @param maybeSelfContained Set to true if this chunk might be self contained, meaning it might
+   *     contain a moov atom defining the media format of the chunk.
+   * @param sampleOffsetUs An offset to subtract from the sample timestamps parsed by the extractor.
+   */
+  public Mp4MediaChunk(DataSource dataSource, DataSource[] rangeDataSources, DataSpec dataSpec,
+      Format format, int trigger, long startTimeUs, long endTimeUs, int nextChunkIndex,
+      Extractor extractor, boolean maybeSelfContained, long sampleOffsetUs) {
+    super(dataSource, rangeDataSources, dataSpec, format, trigger, startTimeUs, endTimeUs,
+        nextChunkIndex);
     this.extractor = extractor;
     this.maybeSelfContained = maybeSelfContained;
     this.sampleOffsetUs = sampleOffsetUs;
@@ -85,11 +110,13 @@ public final class Mp4MediaChunk extends MediaChunk {
     if (!prepared) {
       if (maybeSelfContained) {
         // Read up to the first sample. Once we're there, we know that the extractor must have
-        // parsed a moov atom if the chunk contains one.
+        // parsed a moov atom if the chunk contains one. If a moov atom is parsed before then, we
+        // can finish preparing without waiting for the first sample to be loaded.
         NonBlockingInputStream inputStream = getNonBlockingInputStream();
         Assertions.checkState(inputStream != null);
         int result = extractor.read(inputStream, null);
-        prepared = (result & Extractor.RESULT_NEED_SAMPLE_HOLDER) != 0;
+        prepared = (result & (Extractor.RESULT_NEED_SAMPLE_HOLDER | Extractor.RESULT_READ_INIT))
+            != 0;
       } else {
         // We know there isn't a moov atom. The extractor must have parsed one from a separate
         // initialization chunk.
@@ -98,6 +125,13 @@ public final class Mp4MediaChunk extends MediaChunk {
       if (prepared) {
         mediaFormat = Assertions.checkNotNull(extractor.getFormat());
         psshInfo = extractor.getPsshInfo();
+        if (extractor instanceof MultiTrackExtractor) {
+          MultiTrackExtractor multiTrackExtractor = (MultiTrackExtractor) extractor;
+          mediaFormats = new MediaFormat[multiTrackExtractor.getTrackCount()];
+          for (int i = 0; i < mediaFormats.length; i++) {
+            mediaFormats[i] = multiTrackExtractor.getFormat(i);
+          }
+        }
       }
     }
     return prepared;
@@ -127,6 +161,22 @@ public final class Mp4MediaChunk extends MediaChunk {
     return mediaFormat;
   }
 
+  @Override
+  public int getTrackCount() {
+    return mediaFormats == null ? 1 : mediaFormats.length;
+  }
+
+  @Override
+  public MediaFormat getMediaFormat(int track) {
+    return mediaFormats == null ? mediaFormat : mediaFormats[track];
+  }
+
+  @Override
+  public int getSampleTrack() {
+    return extractor instanceof MultiTrackExtractor
+        ? ((MultiTrackExtractor) extractor).getSampleTrack() : 0;
+  }
+
   @Override
   public Map<UUID, byte[]> getPsshInfo() {
     return psshInfo;
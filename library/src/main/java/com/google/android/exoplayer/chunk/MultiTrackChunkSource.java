@@ -19,6 +19,7 @@ import com.google.android.exoplayer.ExoPlaybackException;
 import com.google.android.exoplayer.ExoPlayer.ExoPlayerComponent;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.util.Assertions;
 
 import java.io.IOException;
@@ -84,6 +85,11 @@ public class MultiTrackChunkSource implements ChunkSource, ExoPlayerComponent {
     selectedSource.getChunkOperation(queue, seekPositionUs, playbackPositionUs, out);
   }
 
+  @Override
+  public DataSpec getNextChunkDataSpec(MediaChunk chunk) {
+    return selectedSource.getNextChunkDataSpec(chunk);
+  }
+
   @Override
   public IOException getError() {
     return null;
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.chunk;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.parser.Extractor;
+import com.google.android.exoplayer.parser.SegmentIndex;
+import com.google.android.exoplayer.parser.webm.WebmExtractor;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.NonBlockingInputStream;
+import com.google.android.exoplayer.util.Util;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link ChunkSource} for a single WebM file that isn't described by a manifest.
+ * <p>
+ * The start of the file is requested first, from which the tracks are parsed together with the
+ * position of the Cues element. If the Cues aren't contained within the start of the file then
+ * they're requested separately. Each {@link MediaChunk} is then a single byte range request for
+ * one of the clusters referenced by the Cues. Seeking to a position that isn't buffered requires
+ * only a single request starting at the cluster containing the seek position, rather than loading
+ * the file from its start. Files without Cues aren't supported.
+ */
+public class WebmChunkSource implements ChunkSource {
+
+  /**
+   * The default number of bytes requested from the start of the file to parse the tracks.
+   */
+  public static final int DEFAULT_HEADER_LENGTH = 64 * 1024;
+
+  private final DataSource dataSource;
+  private final Uri uri;
+  private final Format format;
+  private final TrackInfo trackInfo;
+  private final int headerLength;
+  private final WebmExtractor extractor;
+
+  /**
+   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param uri The location of the file.
+   * @param format The format of the file.
+   * @param durationUs The duration of the file, or
+   *     {@link com.google.android.exoplayer.TrackRenderer#UNKNOWN_TIME_US} if it's not known.
+   */
+  public WebmChunkSource(DataSource dataSource, Uri uri, Format format, long durationUs) {
+    this(dataSource, uri, format, durationUs, DEFAULT_HEADER_LENGTH, false);
+  }
+
+  /**
+   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param uri The location of the file.
+   * @param format The format of the file.
+   * @param durationUs The duration of the file, or
+   *     {@link com.google.android.exoplayer.TrackRenderer#UNKNOWN_TIME_US} if it's not known.
+   * @param headerLength The number of bytes to request from the start of the file, which must be
+   *     sufficient to contain the tracks.
+   * @param extractAllTracks True if the samples of every supported track should be extracted.
+   *     False if only the samples of the first supported track should be extracted.
+   */
+  public WebmChunkSource(DataSource dataSource, Uri uri, Format format, long durationUs,
+      int headerLength, boolean extractAllTracks) {
+    this.dataSource = dataSource;
+    this.uri = uri;
+    this.format = format;
+    this.headerLength = headerLength;
+    trackInfo = new TrackInfo(format.mimeType, durationUs);
+    extractor = new WebmExtractor(extractAllTracks);
+  }
+
+  @Override
+  public final TrackInfo getTrackInfo() {
+    return trackInfo;
+  }
+
+  @Override
+  public void getMaxVideoDimensions(MediaFormat out) {
+    // Do nothing.
+  }
+
+  @Override
+  public void enable() {
+    // Do nothing.
+  }
+
+  @Override
+  public void disable(List<? extends MediaChunk> queue) {
+    // Do nothing.
+  }
+
+  @Override
+  public void continueBuffering(long playbackPositionUs) {
+    // Do nothing.
+  }
+
+  @Override
+  public final void getChunkOperation(List<? extends MediaChunk> queue, long seekPositionUs,
+      long playbackPositionUs, ChunkOperationHolder out) {
+    out.queueSize = queue.size();
+    if (out.chunk != null) {
+      // We already have a chunk. Leave unchanged.
+      return;
+    }
+
+    if (extractor.getFormat() == null) {
+      DataSpec dataSpec = new DataSpec(uri, 0, headerLength, null);
+      out.chunk = new HeaderLoadable(dataSource, dataSpec, format, extractor);
+      return;
+    }
+
+    SegmentIndex cues = extractor.getIndex();
+    if (cues == null) {
+      long cuesSizeBytes = extractor.getCuesSizeBytes();
+      DataSpec dataSpec = new DataSpec(uri, extractor.getCuesOffsetBytes(),
+          cuesSizeBytes != -1 ? cuesSizeBytes : C.LENGTH_UNBOUNDED, null);
+      out.chunk = new CuesLoadable(dataSource, dataSpec, format, extractor);
+      return;
+    }
+
+    int nextClusterIndex;
+    if (queue.isEmpty()) {
+      nextClusterIndex = Util.binarySearchFloor(cues.timesUs, seekPositionUs, true, true);
+    } else {
+      nextClusterIndex = queue.get(out.queueSize - 1).nextChunkIndex;
+    }
+
+    if (nextClusterIndex == -1) {
+      out.chunk = null;
+      return;
+    }
+
+    out.chunk = newMediaChunk(cues, nextClusterIndex);
+  }
+
+  @Override
+  public DataSpec getNextChunkDataSpec(MediaChunk chunk) {
+    SegmentIndex cues = extractor.getIndex();
+    if (cues == null || chunk.nextChunkIndex == -1) {
+      return null;
+    }
+    return newMediaChunkDataSpec(cues, chunk.nextChunkIndex);
+  }
+
+  @Override
+  public IOException getError() {
+    return null;
+  }
+
+  @Override
+  public void onChunkLoadError(Chunk chunk, Exception e) {
+    // Do nothing.
+  }
+
+  private Chunk newMediaChunk(SegmentIndex cues, int clusterIndex) {
+    int lastClusterIndex = cues.length - 1;
+    int nextClusterIndex = clusterIndex == lastClusterIndex ? -1 : clusterIndex + 1;
+    long startTimeUs = cues.timesUs[clusterIndex];
+    long endTimeUs = clusterIndex < lastClusterIndex ? cues.timesUs[clusterIndex + 1]
+        : startTimeUs + cues.durationsUs[clusterIndex];
+    DataSpec dataSpec = newMediaChunkDataSpec(cues, clusterIndex);
+    return new Mp4MediaChunk(dataSource, dataSpec, format, FormatEvaluator.TRIGGER_MANUAL,
+        startTimeUs, endTimeUs, nextClusterIndex, extractor, false, 0);
+  }
+
+  private DataSpec newMediaChunkDataSpec(SegmentIndex cues, int clusterIndex) {
+    return new DataSpec(uri, cues.offsets[clusterIndex], cues.sizes[clusterIndex], null);
+  }
+
+  /**
+   * Parses the tracks, and the Cues if they precede the clusters, from the start of the file.
+   */
+  private static final class HeaderLoadable extends Chunk {
+
+    private final WebmExtractor extractor;
+
+    public HeaderLoadable(DataSource dataSource, DataSpec dataSpec, Format format,
+        WebmExtractor extractor) {
+      super(dataSource, dataSpec, format, FormatEvaluator.TRIGGER_INITIAL);
+      this.extractor = extractor;
+    }
+
+    @Override
+    protected void consumeStream(NonBlockingInputStream stream) throws IOException {
+      // Parsing stops at the first sample, or at the end of the loaded data.
+      int result = extractor.read(stream, null);
+      if ((result & Extractor.RESULT_READ_INIT) == 0) {
+        throw new ParserException("Tracks not found");
+      }
+      if ((result & Extractor.RESULT_READ_INDEX) == 0 && extractor.getCuesOffsetBytes() == -1) {
+        throw new ParserException("Cues not found");
+      }
+    }
+
+  }
+
+  /**
+   * Parses the Cues from a request starting at the Cues element.
+   */
+  private static final class CuesLoadable extends Chunk {
+
+    private final WebmExtractor extractor;
+
+    public CuesLoadable(DataSource dataSource, DataSpec dataSpec, Format format,
+        WebmExtractor extractor) {
+      super(dataSource, dataSpec, format, FormatEvaluator.TRIGGER_INITIAL);
+      this.extractor = extractor;
+    }
+
+    @Override
+    protected void consumeStream(NonBlockingInputStream stream) throws IOException {
+      // The extractor may have stopped part way through the header, so it's reset to parse the
+      // Cues element from the start of the loaded data.
+      extractor.seekTo(0, false);
+      int result = extractor.read(stream, null);
+      if ((result & Extractor.RESULT_READ_INDEX) == 0) {
+        throw new ParserException("Cues not found");
+      }
+    }
+
+  }
+
+}
@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer.dash;
 
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.ParserException;
 import com.google.android.exoplayer.TrackInfo;
@@ -32,17 +33,25 @@ import com.google.android.exoplayer.dash.mpd.Representation;
 import com.google.android.exoplayer.parser.Extractor;
 import com.google.android.exoplayer.parser.mp4.FragmentedMp4Extractor;
 import com.google.android.exoplayer.parser.webm.WebmExtractor;
+import com.google.android.exoplayer.upstream.ByteArrayNonBlockingInputStream;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.NonBlockingInputStream;
 import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.Util;
 
 import android.net.Uri;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An {@link ChunkSource} for DASH streams.
@@ -53,6 +62,8 @@ public class DashChunkSource implements ChunkSource {
 
   private final TrackInfo trackInfo;
   private final DataSource dataSource;
+  private final DataSource[] rangeDataSources;
+  private final DashIndexCache indexCache;
   private final FormatEvaluator evaluator;
   private final Evaluation evaluation;
   private final int maxWidth;
@@ -63,7 +74,12 @@ public class DashChunkSource implements ChunkSource {
   private final HashMap<String, Extractor> extractors;
   private final HashMap<String, DashSegmentIndex> segmentIndexes;
 
+  private boolean extractAllTracks;
   private boolean lastChunkWasInitialization;
+  private final AtomicReference<Representation[]> pendingRepresentations;
+
+  private DataSource[] prefetchDataSources;
+  private InitializationPrefetcher prefetcher;
 
   /**
    * @param dataSource A {@link DataSource} suitable for loading the media data.
@@ -72,12 +88,45 @@ public class DashChunkSource implements ChunkSource {
    */
   public DashChunkSource(DataSource dataSource, FormatEvaluator evaluator,
       Representation... representations) {
+    this(dataSource, null, evaluator, representations);
+  }
+
+  /**
+   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param rangeDataSources Additional {@link DataSource}s that may be used to load byte ranges of
+   *     each media segment in parallel with {@code dataSource}, or null. Only segments whose
+   *     length is known from the manifest are loaded in this way.
+   * @param evaluator Selects from the available formats.
+   * @param representations The representations to be considered by the source.
+   */
+  public DashChunkSource(DataSource dataSource, DataSource[] rangeDataSources,
+      FormatEvaluator evaluator, Representation... representations) {
+    this(dataSource, rangeDataSources, null, evaluator, representations);
+  }
+
+  /**
+   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param rangeDataSources Additional {@link DataSource}s that may be used to load byte ranges of
+   *     each media segment in parallel with {@code dataSource}, or null. Only segments whose
+   *     length is known from the manifest are loaded in this way.
+   * @param indexCache A cache of initialization data and segment indices, or null. The cache is
+   *     consulted before requesting the initialization data or segment index of a representation,
+   *     and is populated when they are loaded. Representations without a content id are not
+   *     cached.
+   * @param evaluator Selects from the available formats.
+   * @param representations The representations to be considered by the source.
+   */
+  public DashChunkSource(DataSource dataSource, DataSource[] rangeDataSources,
+      DashIndexCache indexCache, FormatEvaluator evaluator, Representation... representations) {
     this.dataSource = dataSource;
+    this.rangeDataSources = rangeDataSources;
+    this.indexCache = indexCache;
     this.evaluator = evaluator;
     this.formats = new Format[representations.length];
     this.extractors = new HashMap<String, Extractor>();
     this.segmentIndexes = new HashMap<String, DashSegmentIndex>();
     this.representations = new HashMap<String, Representation>();
+    this.pendingRepresentations = new AtomicReference<Representation[]>();
     this.trackInfo = new TrackInfo(representations[0].format.mimeType,
         representations[0].periodDurationMs * 1000);
     this.evaluation = new Evaluation();
@@ -87,23 +136,83 @@ public class DashChunkSource implements ChunkSource {
       formats[i] = representations[i].format;
       maxWidth = Math.max(formats[i].width, maxWidth);
       maxHeight = Math.max(formats[i].height, maxHeight);
-      Extractor extractor = formats[i].mimeType.startsWith(MimeTypes.VIDEO_WEBM)
-          ? new WebmExtractor() : new FragmentedMp4Extractor();
-      extractors.put(formats[i].id, extractor);
+      extractors.put(formats[i].id, newExtractor(formats[i]));
       this.representations.put(formats[i].id, representations[i]);
       DashSegmentIndex segmentIndex = representations[i].getIndex();
       if (segmentIndex != null) {
         segmentIndexes.put(formats[i].id, segmentIndex);
       }
+      String indexCacheKey = getIndexCacheKey(representations[i]);
+      if (indexCacheKey != null) {
+        indexCache.prefetch(indexCacheKey);
+      }
     }
     this.maxWidth = maxWidth;
     this.maxHeight = maxHeight;
     Arrays.sort(formats, new DecreasingBandwidthComparator());
   }
 
+  /**
+   * Updates the representations considered by the source, for example following a refresh of the
+   * manifest. The update is applied on the playback thread.
+   * <p>
+   * Only representations whose format ids are already known to the source are applied. A
+   * representation that is the same instance as the one currently held is ignored, so that
+   * passing representations from a manifest parsed with
+   * {@link com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser
+   * #parseMediaPresentationDescription(java.io.InputStream, String, String, Uri,
+   * com.google.android.exoplayer.dash.mpd.MediaPresentationDescription)} retains the loaded
+   * initialization data and segment indices of unchanged representations.
+   *
+   * @param representations The updated representations.
+   */
+  public void updateRepresentations(Representation... representations) {
+    pendingRepresentations.set(representations);
+  }
+
+  /**
+   * Enables prefetching of initialization data and segment indices.
+   * <p>
+   * When prefetching is enabled, each call to {@link #enable()} concurrently requests the
+   * initialization data and segment index of every representation for which they are not already
+   * available, so that switching to a representation for the first time does not require an
+   * additional round trip. Adjacent initialization and index ranges are requested together, and
+   * other index ranges are requested separately. Loaded data is applied on the playback thread. A
+   * representation that is selected before its prefetch has completed is initialized in the usual
+   * way, and the prefetched data is then discarded.
+   * <p>
+   * Must be called before {@link #enable()}.
+   *
+   * @param prefetchDataSources {@link DataSource}s used for prefetching, one per concurrent
+   *     request. Must not be used for any other purpose. Null or an empty array disables
+   *     prefetching.
+   */
+  public void setPrefetchDataSources(DataSource... prefetchDataSources) {
+    this.prefetchDataSources = prefetchDataSources;
+  }
+
+  /**
+   * Sets whether the samples of every track co-muxed within each representation should be
+   * extracted, rather than only those of the first track. The chunks can then be demuxed by a
+   * {@link com.google.android.exoplayer.chunk.ChunkSampleSource} constructed with information
+   * about each of the tracks, so that muxed media is loaded only once. Must not be called whilst
+   * the source is enabled.
+   *
+   * @param extractAllTracks Whether the samples of every track should be extracted.
+   */
+  public void setExtractAllTracks(boolean extractAllTracks) {
+    if (this.extractAllTracks == extractAllTracks) {
+      return;
+    }
+    this.extractAllTracks = extractAllTracks;
+    for (int i = 0; i < formats.length; i++) {
+      extractors.put(formats[i].id, newExtractor(formats[i]));
+    }
+  }
+
   @Override
   public final void getMaxVideoDimensions(MediaFormat out) {
-    if (trackInfo.mimeType.startsWith("video")) {
+    if (trackInfo.mimeType.startsWith("video") && MimeTypes.isVideo(out.mimeType)) {
       out.setMaxVideoDimensions(maxWidth, maxHeight);
     }
   }
@@ -116,16 +225,34 @@ public class DashChunkSource implements ChunkSource {
   @Override
   public void enable() {
     evaluator.enable();
+    if (prefetchDataSources != null && prefetchDataSources.length > 0
+        && (prefetcher == null || !prefetcher.hasActiveLoaders())) {
+      // Note: If a canceled prefetch is still using the prefetch sources, prefetching is skipped.
+      startPrefetch();
+    }
   }
 
   @Override
   public void disable(List<? extends MediaChunk> queue) {
     evaluator.disable();
+    if (prefetcher != null) {
+      prefetcher.cancel();
+    }
   }
 
   @Override
   public void continueBuffering(long playbackPositionUs) {
-    // Do nothing
+    Representation[] updatedRepresentations = pendingRepresentations.getAndSet(null);
+    if (updatedRepresentations != null) {
+      boolean formatsChanged = false;
+      for (int i = 0; i < updatedRepresentations.length; i++) {
+        formatsChanged |= applyRepresentationUpdate(updatedRepresentations[i]);
+      }
+      if (formatsChanged) {
+        Arrays.sort(formats, new DecreasingBandwidthComparator());
+      }
+    }
+    maybeApplyPrefetchedData();
   }
 
   @Override
@@ -148,15 +275,18 @@ public class DashChunkSource implements ChunkSource {
       return;
     }
 
+    maybeApplyPrefetchedData();
     Representation selectedRepresentation = representations.get(selectedFormat.id);
     Extractor extractor = extractors.get(selectedRepresentation.format.id);
 
     RangedUri pendingInitializationUri = null;
     RangedUri pendingIndexUri = null;
-    if (extractor.getFormat() == null) {
+    if (extractor.getFormat() == null && !restoreInitialization(selectedRepresentation,
+        extractor)) {
       pendingInitializationUri = selectedRepresentation.getInitializationUri();
     }
-    if (!segmentIndexes.containsKey(selectedRepresentation.format.id)) {
+    if (!segmentIndexes.containsKey(selectedRepresentation.format.id)
+        && !restoreSegmentIndex(selectedRepresentation)) {
       pendingIndexUri = selectedRepresentation.getIndexUri();
     }
     if (pendingInitializationUri != null || pendingIndexUri != null) {
@@ -187,6 +317,17 @@ public class DashChunkSource implements ChunkSource {
     out.chunk = nextMediaChunk;
   }
 
+  @Override
+  public DataSpec getNextChunkDataSpec(MediaChunk chunk) {
+    Representation representation = representations.get(chunk.format.id);
+    DashSegmentIndex segmentIndex = segmentIndexes.get(chunk.format.id);
+    if (representation == null || segmentIndex == null || chunk.nextChunkIndex == -1
+        || chunk.nextChunkIndex > segmentIndex.getLastSegmentNum()) {
+      return null;
+    }
+    return newMediaChunkDataSpec(representation, segmentIndex, chunk.nextChunkIndex);
+  }
+
   @Override
   public IOException getError() {
     return null;
@@ -197,6 +338,180 @@ public class DashChunkSource implements ChunkSource {
     // Do nothing.
   }
 
+  private void startPrefetch() {
+    List<InitializationLoadable> loadables = new ArrayList<InitializationLoadable>();
+    for (Representation representation : representations.values()) {
+      Extractor extractor = extractors.get(representation.format.id);
+      RangedUri initializationUri = null;
+      RangedUri indexUri = null;
+      if (extractor.getFormat() == null && !restoreInitialization(representation, extractor)) {
+        initializationUri = representation.getInitializationUri();
+      }
+      if (!segmentIndexes.containsKey(representation.format.id)
+          && !restoreSegmentIndex(representation)) {
+        indexUri = representation.getIndexUri();
+      }
+      if (initializationUri != null && indexUri != null
+          && initializationUri.attemptMerge(indexUri) == null) {
+        // The ranges aren't adjacent, so the index is prefetched as a separate request.
+        loadables.add((InitializationLoadable) newInitializationChunk(null, indexUri,
+            representation, extractor, dataSource, FormatEvaluator.TRIGGER_INITIAL));
+        indexUri = null;
+      }
+      if (initializationUri != null || indexUri != null) {
+        loadables.add((InitializationLoadable) newInitializationChunk(initializationUri, indexUri,
+            representation, extractor, dataSource, FormatEvaluator.TRIGGER_INITIAL));
+      }
+    }
+    if (!loadables.isEmpty()) {
+      prefetcher = new InitializationPrefetcher(loadables, prefetchDataSources);
+      prefetcher.start();
+    }
+  }
+
+  private void maybeApplyPrefetchedData() {
+    if (prefetcher == null || prefetcher.isCanceled()) {
+      return;
+    }
+    boolean appliedInitialization;
+    do {
+      // An index that arrived before the initialization data it depends on is retried once any
+      // initialization data has been applied.
+      prefetcher.retryDeferred();
+      appliedInitialization = false;
+      InitializationLoadable loadable;
+      while ((loadable = prefetcher.pollLoaded()) != null) {
+        if (extractors.get(loadable.format.id) != loadable.extractor) {
+          // The representation was updated whilst the prefetch was in progress.
+          continue;
+        }
+        boolean initializationPending = loadable.extractor.getFormat() == null;
+        boolean indexPending = !segmentIndexes.containsKey(loadable.format.id);
+        boolean loadedInitialization =
+            (loadable.expectedExtractorResult & Extractor.RESULT_READ_INIT) != 0;
+        boolean loadedIndex = (loadable.expectedExtractorResult & Extractor.RESULT_READ_INDEX) != 0;
+        if (initializationPending && !loadedInitialization) {
+          prefetcher.defer(loadable);
+          continue;
+        }
+        if (initializationPending != loadedInitialization || (loadedIndex && !indexPending)) {
+          // The representation was initialized without waiting for the prefetch.
+          continue;
+        }
+        try {
+          loadable.consumeData(new ByteArrayNonBlockingInputStream(loadable.prefetchedData),
+              loadable.prefetchedData);
+          appliedInitialization |= loadedInitialization;
+        } catch (IOException e) {
+          // Ignore. The representation will be initialized in the usual way when selected.
+        }
+      }
+    } while (appliedInitialization && prefetcher.hasDeferred());
+    if (prefetcher.isFinished()) {
+      prefetcher = null;
+    }
+  }
+
+  /**
+   * Attempts to initialize an extractor using initialization data held in {@link #indexCache}.
+   *
+   * @return True if the extractor was initialized. False otherwise.
+   */
+  private boolean restoreInitialization(Representation representation, Extractor extractor) {
+    String indexCacheKey = getIndexCacheKey(representation);
+    if (indexCacheKey == null) {
+      return false;
+    }
+    byte[] initializationData = indexCache.getInitializationData(indexCacheKey);
+    if (initializationData == null) {
+      return false;
+    }
+    try {
+      int result = extractor.read(new ByteArrayNonBlockingInputStream(initializationData), null);
+      return (result & Extractor.RESULT_READ_INIT) != 0;
+    } catch (ParserException e) {
+      // Fall back to loading the initialization data.
+      return false;
+    }
+  }
+
+  /**
+   * Attempts to obtain the segment index of a representation from {@link #indexCache}.
+   *
+   * @return True if the segment index was obtained. False otherwise.
+   */
+  private boolean restoreSegmentIndex(Representation representation) {
+    String indexCacheKey = getIndexCacheKey(representation);
+    if (indexCacheKey == null) {
+      return false;
+    }
+    DashSegmentIndex segmentIndex = indexCache.getSegmentIndex(indexCacheKey);
+    if (segmentIndex == null) {
+      return false;
+    }
+    segmentIndexes.put(representation.format.id, segmentIndex);
+    return true;
+  }
+
+  /**
+   * Returns the key of a representation in {@link #indexCache}, or null if it shouldn't be cached.
+   * Representations without a content id aren't cached, since their keys wouldn't identify the
+   * content to which they belong.
+   */
+  private String getIndexCacheKey(Representation representation) {
+    return indexCache != null && representation.contentId != null
+        ? representation.getCacheKey() : null;
+  }
+
+  /**
+   * Applies an updated representation.
+   *
+   * @param updatedRepresentation The updated representation.
+   * @return Whether the format of the representation was replaced.
+   */
+  private boolean applyRepresentationUpdate(Representation updatedRepresentation) {
+    String formatId = updatedRepresentation.format.id;
+    Representation representation = representations.get(formatId);
+    if (representation == null || representation == updatedRepresentation) {
+      // The representation is unknown, or unchanged.
+      return false;
+    }
+    representations.put(formatId, updatedRepresentation);
+
+    DashSegmentIndex segmentIndex = updatedRepresentation.getIndex();
+    if (segmentIndex != null) {
+      segmentIndexes.put(formatId, segmentIndex);
+    } else if (!Util.areEqual(representation.getCacheKey(), updatedRepresentation.getCacheKey())
+        || !Util.areEqual(representation.getIndexUri(), updatedRepresentation.getIndexUri())) {
+      // The index must be reloaded.
+      segmentIndexes.remove(formatId);
+    }
+
+    if (!Util.areEqual(representation.getInitializationUri(),
+        updatedRepresentation.getInitializationUri())) {
+      // The initialization data must be reloaded.
+      extractors.put(formatId, newExtractor(updatedRepresentation.format));
+    }
+
+    if (representation.format == updatedRepresentation.format) {
+      return false;
+    }
+    for (int i = 0; i < formats.length; i++) {
+      if (formats[i].id.equals(formatId)) {
+        formats[i] = updatedRepresentation.format;
+      }
+    }
+    return true;
+  }
+
+  private Extractor newExtractor(Format format) {
+    if (format.mimeType.startsWith(MimeTypes.VIDEO_WEBM)
+        || format.mimeType.startsWith(MimeTypes.AUDIO_WEBM)) {
+      return new WebmExtractor(extractAllTracks);
+    }
+    return new FragmentedMp4Extractor(0, extractAllTracks);
+  }
+
   private Chunk newInitializationChunk(RangedUri initializationUri, RangedUri indexUri,
       Representation representation, Extractor extractor, DataSource dataSource,
       int trigger) {
@@ -226,7 +541,7 @@ public class DashChunkSource implements ChunkSource {
     DataSpec dataSpec = new DataSpec(requestUri.getUri(), requestUri.start, requestUri.length,
         representation.getCacheKey());
     return new InitializationLoadable(dataSource, dataSpec, trigger, representation.format,
-        extractor, expectedExtractorResult, indexAnchor);
+        getIndexCacheKey(representation), extractor, expectedExtractorResult, indexAnchor);
   }
 
   private Chunk newMediaChunk(Representation representation, DashSegmentIndex segmentIndex,
@@ -236,32 +551,57 @@ public class DashChunkSource implements ChunkSource {
     long startTimeUs = segmentIndex.getTimeUs(segmentNum);
     long endTimeUs = segmentNum < lastSegmentNum ? segmentIndex.getTimeUs(segmentNum + 1)
         : startTimeUs + segmentIndex.getDurationUs(segmentNum);
+    DataSpec dataSpec = newMediaChunkDataSpec(representation, segmentIndex, segmentNum);
+    return new Mp4MediaChunk(dataSource, rangeDataSources, dataSpec, representation.format,
+        trigger, startTimeUs, endTimeUs, nextSegmentNum, extractor, false, 0);
+  }
+
+  private static DataSpec newMediaChunkDataSpec(Representation representation,
+      DashSegmentIndex segmentIndex, int segmentNum) {
     RangedUri segmentUri = segmentIndex.getSegmentUrl(segmentNum);
-    DataSpec dataSpec = new DataSpec(segmentUri.getUri(), segmentUri.start, segmentUri.length,
+    return new DataSpec(segmentUri.getUri(), segmentUri.start, segmentUri.length,
         representation.getCacheKey());
-    return new Mp4MediaChunk(dataSource, dataSpec, representation.format, trigger, startTimeUs,
-        endTimeUs, nextSegmentNum, extractor, false, 0);
   }
 
   private class InitializationLoadable extends Chunk {
 
+    // The key of the representation in indexCache, or null if the data shouldn't be cached.
+    private final String cacheKey;
     private final Extractor extractor;
     private final int expectedExtractorResult;
     private final long indexAnchor;
     private final Uri uri;
+    private final DataSpec dataSpec;
+
+    // Set by an InitializationPrefetcher.
+    private byte[] prefetchedData;
 
     public InitializationLoadable(DataSource dataSource, DataSpec dataSpec, int trigger,
-        Format format, Extractor extractor, int expectedExtractorResult,
+        Format format, String cacheKey, Extractor extractor, int expectedExtractorResult,
         long indexAnchor) {
       super(dataSource, dataSpec, format, trigger);
+      this.cacheKey = cacheKey;
       this.extractor = extractor;
       this.expectedExtractorResult = expectedExtractorResult;
       this.indexAnchor = indexAnchor;
       this.uri = dataSpec.uri;
+      this.dataSpec = dataSpec;
     }
 
     @Override
     protected void consumeStream(NonBlockingInputStream stream) throws IOException {
+      consumeData(stream, null);
+    }
+
+    /**
+     * Consumes the loaded data.
+     *
+     * @param stream A stream from which the loaded data can be read.
+     * @param data The loaded data, or null if it should be obtained from {@link #getLoadedData()}
+     *     should it be required.
+     * @throws IOException If an error occurs parsing the data.
+     */
+    public void consumeData(NonBlockingInputStream stream, byte[] data) throws IOException {
       int result = extractor.read(stream, null);
       if (result != expectedExtractorResult) {
         throw new ParserException("Invalid extractor result. Expected "
@@ -271,6 +611,137 @@ public class DashChunkSource implements ChunkSource {
         segmentIndexes.put(format.id,
             new DashWrappingSegmentIndex(extractor.getIndex(), uri, indexAnchor));
       }
+      if (cacheKey != null) {
+        if ((result & Extractor.RESULT_READ_INIT) != 0) {
+          indexCache.putInitializationData(cacheKey, data != null ? data : getLoadedData());
+        }
+        if ((result & Extractor.RESULT_READ_INDEX) != 0) {
+          indexCache.putSegmentIndex(cacheKey, extractor.getIndex(), uri, indexAnchor);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Loads the data of {@link InitializationLoadable}s on background threads, using one thread per
+   * {@link DataSource}.
+   */
+  private static final class InitializationPrefetcher {
+
+    private static ExecutorService executor;
+
+    private final LinkedList<InitializationLoadable> pendingLoadables;
+    private final ConcurrentLinkedQueue<InitializationLoadable> loadedLoadables;
+    private final LinkedList<InitializationLoadable> deferredLoadables;
+    private final DataSource[] dataSources;
+
+    private volatile boolean canceled;
+    private int activeLoaderCount;
+
+    public InitializationPrefetcher(List<InitializationLoadable> loadables,
+        DataSource[] dataSources) {
+      this.pendingLoadables = new LinkedList<InitializationLoadable>(loadables);
+      this.loadedLoadables = new ConcurrentLinkedQueue<InitializationLoadable>();
+      this.deferredLoadables = new LinkedList<InitializationLoadable>();
+      this.dataSources = dataSources;
+    }
+
+    public synchronized void start() {
+      ExecutorService executor = getExecutor();
+      activeLoaderCount = Math.min(dataSources.length, pendingLoadables.size());
+      for (int i = 0; i < activeLoaderCount; i++) {
+        final DataSource dataSource = dataSources[i];
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            InitializationLoadable loadable;
+            while ((loadable = takePending()) != null) {
+              try {
+                loadable.prefetchedData = load(dataSource, loadable.dataSpec);
+                loadedLoadables.add(loadable);
+              } catch (IOException e) {
+                // Ignore. The representation will be initialized in the usual way when selected.
+              }
+            }
+          }
+        });
+      }
+    }
+
+    public void cancel() {
+      canceled = true;
+    }
+
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    public synchronized boolean hasActiveLoaders() {
+      return activeLoaderCount > 0;
+    }
+
+    public InitializationLoadable pollLoaded() {
+      return loadedLoadables.poll();
+    }
+
+    /**
+     * Holds a loaded loadable that can't be applied yet, until {@link #retryDeferred()} is called.
+     * Must only be called on the playback thread.
+     */
+    public void defer(InitializationLoadable loadable) {
+      deferredLoadables.add(loadable);
+    }
+
+    /**
+     * Returns deferred loadables to the queue polled by {@link #pollLoaded()}. Must only be called
+     * on the playback thread.
+     */
+    public void retryDeferred() {
+      loadedLoadables.addAll(deferredLoadables);
+      deferredLoadables.clear();
+    }
+
+    public boolean hasDeferred() {
+      return !deferredLoadables.isEmpty();
+    }
+
+    public synchronized boolean isFinished() {
+      return activeLoaderCount == 0 && loadedLoadables.isEmpty() && deferredLoadables.isEmpty();
+    }
+
+    private synchronized InitializationLoadable takePending() {
+      if (canceled || pendingLoadables.isEmpty()) {
+        activeLoaderCount--;
+        return null;
+      }
+      return pendingLoadables.removeFirst();
+    }
+
+    private byte[] load(DataSource dataSource, DataSpec dataSpec) throws IOException {
+      try {
+        long length = dataSource.open(dataSpec);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(
+            length != C.LENGTH_UNBOUNDED ? (int) length : 4096);
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while (!canceled && (bytesRead = dataSource.read(buffer, 0, buffer.length)) != -1) {
+          output.write(buffer, 0, bytesRead);
+        }
+        if (canceled) {
+          throw new IOException("Canceled");
+        }
+        return output.toByteArray();
+      } finally {
+        Util.closeQuietly(dataSource);
+      }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+      if (executor == null) {
+        executor = Util.newCachedThreadPool("DashChunkSource:Prefetch");
+      }
+      return executor;
     }
 
   }
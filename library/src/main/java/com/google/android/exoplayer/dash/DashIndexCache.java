@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.dash;
+
+import com.google.android.exoplayer.parser.SegmentIndex;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size bounded cache of the initialization data and segment indices of DASH representations.
+ * <p>
+ * Entries are keyed by {@link com.google.android.exoplayer.dash.mpd.Representation#getCacheKey()},
+ * which incorporates the revision of the representation. A single instance can be shared between
+ * {@link DashChunkSource}s, including those of successive playbacks, so that representations that
+ * have been played before can be started without requesting their initialization data and segment
+ * indices again. Entries are evicted in least recently used order once the total size of the
+ * cached data exceeds the specified limit.
+ * <p>
+ * If a directory is specified then entries are also persisted to disk, so that they survive the
+ * process. All disk access is performed on a background thread, so lookups never block on I/O.
+ * The thread is shared by all instances, and terminates once it has been idle for a while. A
+ * lookup that misses in memory schedules the entry to be read from disk, and reports a miss. A
+ * {@link DashChunkSource} schedules the entries of its representations to be read when it's
+ * created, so that they're normally in memory by the time they're first looked up. Disk entries
+ * are evicted in least recently used order once their total size exceeds the specified limit.
+ * <p>
+ * Keys must identify the content to which a representation belongs. Representations without a
+ * content id should not be cached.
+ */
+public final class DashIndexCache {
+
+  private static final String TAG = "DashIndexCache";
+
+  private static final String FILE_SUFFIX = ".idx";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final int FILE_VERSION = 1;
+
+  // An estimate of the fixed overhead of each entry, in bytes.
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  private static final long DISK_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  private static ExecutorService diskExecutor;
+
+  private final int maxSizeBytes;
+  private final File directory;
+  private final long maxDiskSizeBytes;
+  private final LinkedHashMap<String, Entry> entries;
+  private final HashSet<String> pendingReads;
+
+  private int sizeBytes;
+
+  /**
+   * @param maxSizeBytes The maximum size of the data held in memory, in bytes.
+   */
+  public DashIndexCache(int maxSizeBytes) {
+    this(maxSizeBytes, null, 0);
+  }
+
+  /**
+   * @param maxSizeBytes The maximum size of the data held in memory, in bytes.
+   * @param directory A directory in which entries should be persisted, or null.
+   * @param maxDiskSizeBytes The maximum size of the entries persisted in {@code directory}.
+   */
+  public DashIndexCache(int maxSizeBytes, File directory, long maxDiskSizeBytes) {
+    Assertions.checkArgument(maxSizeBytes > 0);
+    this.maxSizeBytes = maxSizeBytes;
+    this.directory = directory;
+    this.maxDiskSizeBytes = maxDiskSizeBytes;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.pendingReads = new HashSet<String>();
+    if (directory != null) {
+      getDiskExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!directory.exists()) {
+            directory.mkdirs();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Removes all entries, including those persisted to disk.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    pendingReads.clear();
+    sizeBytes = 0;
+    if (directory != null) {
+      getDiskExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          File[] files = directory.listFiles();
+          if (files != null) {
+            for (File file : files) {
+              file.delete();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Schedules the entry for a representation to be read from disk, if it is not already held in
+   * memory. Does nothing if entries are not persisted to disk.
+   *
+   * @param key The cache key of the representation.
+   */
+  /* package */ synchronized void prefetch(String key) {
+    if (directory != null && !entries.containsKey(key)) {
+      scheduleRead(key);
+    }
+  }
+
+  /**
+   * Returns the cached initialization data for a representation.
+   *
+   * @param key The cache key of the representation.
+   * @return The initialization data, or null if it is not cached.
+   */
+  /* package */ synchronized byte[] getInitializationData(String key) {
+    Entry entry = getEntry(key);
+    return entry != null ? entry.initializationData : null;
+  }
+
+  /**
+   * Returns the cached segment index for a representation.
+   *
+   * @param key The cache key of the representation.
+   * @return The segment index, or null if it is not cached.
+   */
+  /* package */ synchronized DashSegmentIndex getSegmentIndex(String key) {
+    Entry entry = getEntry(key);
+    return entry != null && entry.segmentIndex != null
+        ? new DashWrappingSegmentIndex(entry.segmentIndex, entry.indexUri, entry.indexAnchor)
+        : null;
+  }
+
+  /**
+   * Caches the initialization data of a representation.
+   *
+   * @param key The cache key of the representation.
+   * @param initializationData The data from which the initialization data was parsed. Passing
+   *     this data to a newly created extractor must yield the same initialization data.
+   */
+  /* package */ synchronized void putInitializationData(String key, byte[] initializationData) {
+    Entry entry = entries.get(key);
+    Entry newEntry = new Entry(key, initializationData,
+        entry != null ? entry.segmentIndex : null, entry != null ? entry.indexUri : null,
+        entry != null ? entry.indexAnchor : 0);
+    putEntry(newEntry);
+  }
+
+  /**
+   * Caches the segment index of a representation.
+   *
+   * @param key The cache key of the representation.
+   * @param segmentIndex The parsed segment index.
+   * @param indexUri The {@link Uri} of the indexed media.
+   * @param indexAnchor The index anchor point, as passed to {@link DashWrappingSegmentIndex}.
+   */
+  /* package */ synchronized void putSegmentIndex(String key, SegmentIndex segmentIndex,
+      Uri indexUri, long indexAnchor) {
+    Entry entry = entries.get(key);
+    Entry newEntry = new Entry(key, entry != null ? entry.initializationData : null, segmentIndex,
+        indexUri, indexAnchor);
+    putEntry(newEntry);
+  }
+
+  private Entry getEntry(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null && directory != null) {
+      // Don't block on disk. The entry will be available to a subsequent lookup if it's found.
+      scheduleRead(key);
+    }
+    return entry;
+  }
+
+  private void scheduleRead(final String key) {
+    if (!pendingReads.add(key)) {
+      return;
+    }
+    getDiskExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        Entry entry = readEntry(key);
+        synchronized (DashIndexCache.this) {
+          // The read is discarded if the cache was cleared whilst it was pending. An entry put
+          // whilst the read was pending is at least as recent as the one read.
+          if (pendingReads.remove(key) && entry != null && !entries.containsKey(key)) {
+            addEntry(entry);
+          }
+        }
+      }
+    });
+  }
+
+  private void putEntry(final Entry entry) {
+    Entry previousEntry = entries.remove(entry.key);
+    if (previousEntry != null) {
+      sizeBytes -= previousEntry.sizeBytes;
+    }
+    addEntry(entry);
+    if (directory != null) {
+      getDiskExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          writeEntry(mergeWithDiskEntry(entry));
+          trimDirectory();
+        }
+      });
+    }
+  }
+
+  /**
+   * Fills in any part of an entry that is missing from memory, but that is persisted on disk. Must
+   * only be called on the disk thread.
+   */
+  private Entry mergeWithDiskEntry(Entry entry) {
+    if (entry.initializationData != null && entry.segmentIndex != null) {
+      return entry;
+    }
+    Entry diskEntry = readEntry(entry.key);
+    if (diskEntry == null) {
+      return entry;
+    }
+    return entry.segmentIndex != null
+        ? new Entry(entry.key, diskEntry.initializationData, entry.segmentIndex, entry.indexUri,
+            entry.indexAnchor)
+        : new Entry(entry.key, entry.initializationData, diskEntry.segmentIndex,
+            diskEntry.indexUri, diskEntry.indexAnchor);
+  }
+
+  private void addEntry(Entry entry) {
+    entries.put(entry.key, entry);
+    sizeBytes += entry.sizeBytes;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Entry eldestEntry = iterator.next();
+      if (eldestEntry != entry) {
+        iterator.remove();
+        sizeBytes -= eldestEntry.sizeBytes;
+      }
+    }
+  }
+
+  /**
+   * Returns the executor on which disk access is performed. It has a single thread, so that the
+   * operations of each instance are performed in the order in which they're scheduled.
+   */
+  private static synchronized ExecutorService getDiskExecutor() {
+    if (diskExecutor == null) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, DISK_THREAD_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              return new Thread(r, "DashIndexCache:Disk");
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      diskExecutor = executor;
+    }
+    return diskExecutor;
+  }
+
+  // Disk persistence.
+
+  private File getFile(String key) {
+    // Collisions are resolved by the key stored within the file.
+    return new File(directory, Integer.toHexString(key.hashCode()) + FILE_SUFFIX);
+  }
+
+  private Entry readEntry(String key) {
+    File file = getFile(key);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (input.readInt() != FILE_VERSION || !key.equals(input.readUTF())) {
+        return null;
+      }
+      byte[] initializationData = null;
+      int initializationDataLength = input.readInt();
+      if (initializationDataLength != -1) {
+        initializationData = new byte[initializationDataLength];
+        input.readFully(initializationData);
+      }
+      SegmentIndex segmentIndex = null;
+      Uri indexUri = null;
+      long indexAnchor = 0;
+      if (input.readBoolean()) {
+        indexUri = Uri.parse(input.readUTF());
+        indexAnchor = input.readLong();
+        int indexSizeBytes = input.readInt();
+        int length = input.readInt();
+        int[] sizes = new int[length];
+        long[] offsets = new long[length];
+        long[] durationsUs = new long[length];
+        long[] timesUs = new long[length];
+        for (int i = 0; i < length; i++) {
+          sizes[i] = input.readInt();
+          offsets[i] = input.readLong();
+          durationsUs[i] = input.readLong();
+          timesUs[i] = input.readLong();
+        }
+        segmentIndex = new SegmentIndex(indexSizeBytes, sizes, offsets, durationsUs, timesUs);
+      }
+      // Mark the file as recently used.
+      file.setLastModified(System.currentTimeMillis());
+      return new Entry(key, initializationData, segmentIndex, indexUri, indexAnchor);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read entry: " + file, e);
+      file.delete();
+      return null;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  private void writeEntry(Entry entry) {
+    File file = getFile(entry.key);
+    File tempFile = new File(directory, file.getName() + TEMP_FILE_SUFFIX);
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      output.writeInt(FILE_VERSION);
+      output.writeUTF(entry.key);
+      if (entry.initializationData != null) {
+        output.writeInt(entry.initializationData.length);
+        output.write(entry.initializationData);
+      } else {
+        output.writeInt(-1);
+      }
+      SegmentIndex segmentIndex = entry.segmentIndex;
+      output.writeBoolean(segmentIndex != null);
+      if (segmentIndex != null) {
+        output.writeUTF(entry.indexUri.toString());
+        output.writeLong(entry.indexAnchor);
+        output.writeInt(segmentIndex.sizeBytes);
+        output.writeInt(segmentIndex.length);
+        for (int i = 0; i < segmentIndex.length; i++) {
+          output.writeInt(segmentIndex.sizes[i]);
+          output.writeLong(segmentIndex.offsets[i]);
+          output.writeLong(segmentIndex.durationsUs[i]);
+          output.writeLong(segmentIndex.timesUs[i]);
+        }
+      }
+      output.close();
+      output = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename: " + tempFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write entry: " + file, e);
+      tempFile.delete();
+    } finally {
+      Util.closeQuietly(output);
+    }
+  }
+
+  private void trimDirectory() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long totalSizeBytes = 0;
+    for (File file : files) {
+      totalSizeBytes += file.length();
+    }
+    if (totalSizeBytes <= maxDiskSizeBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long lhsLastModified = lhs.lastModified();
+        long rhsLastModified = rhs.lastModified();
+        return lhsLastModified < rhsLastModified ? -1
+            : (lhsLastModified == rhsLastModified ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < files.length && totalSizeBytes > maxDiskSizeBytes; i++) {
+      long fileSizeBytes = files[i].length();
+      if (files[i].delete()) {
+        totalSizeBytes -= fileSizeBytes;
+      }
+    }
+  }
+
+  private static final class Entry {
+
+    public final String key;
+    public final byte[] initializationData;
+    public final SegmentIndex segmentIndex;
+    public final Uri indexUri;
+    public final long indexAnchor;
+    public final int sizeBytes;
+
+    public Entry(String key, byte[] initializationData, SegmentIndex segmentIndex, Uri indexUri,
+        long indexAnchor) {
+      this.key = key;
+      this.initializationData = initializationData;
+      this.segmentIndex = segmentIndex;
+      this.indexUri = indexUri;
+      this.indexAnchor = indexAnchor;
+      int sizeBytes = ENTRY_OVERHEAD_BYTES;
+      if (initializationData != null) {
+        sizeBytes += initializationData.length;
+      }
+      if (segmentIndex != null) {
+        // Each segment occupies an int and three longs.
+        sizeBytes += segmentIndex.length * 28;
+      }
+      this.sizeBytes = sizeBytes;
+    }
+
+  }
+
+}
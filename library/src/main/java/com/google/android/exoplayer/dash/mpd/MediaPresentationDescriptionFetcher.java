@@ -35,14 +35,14 @@ public final class MediaPresentationDescriptionFetcher extends
     ManifestFetcher<MediaPresentationDescription> {
 
   private final MediaPresentationDescriptionParser parser;
+  private final MediaPresentationDescription previousManifest;
 
   /**
    * @param callback The callback to provide with the parsed manifest (or error).
    */
   public MediaPresentationDescriptionFetcher(
       ManifestCallback<MediaPresentationDescription> callback) {
-    super(callback);
-    parser = new MediaPresentationDescriptionParser();
+    this(callback, DEFAULT_HTTP_TIMEOUT_MILLIS, null);
   }
 
   /**
@@ -51,14 +51,48 @@ public final class MediaPresentationDescriptionFetcher extends
    */
   public MediaPresentationDescriptionFetcher(
       ManifestCallback<MediaPresentationDescription> callback, int timeoutMillis) {
+    this(callback, timeoutMillis, null);
+  }
+
+  /**
+   * Constructs a fetcher for refreshing a manifest. Unchanged representations in the refreshed
+   * manifest are replaced by the corresponding instances in {@code previousManifest}. See
+   * {@link MediaPresentationDescriptionParser#parseMediaPresentationDescription(InputStream,
+   * String, String, Uri, MediaPresentationDescription)}.
+   *
+   * @param callback The callback to provide with the parsed manifest (or error).
+   * @param timeoutMillis The timeout in milliseconds for the connection used to load the data.
+   * @param previousManifest The manifest being refreshed. May be null.
+   */
+  public MediaPresentationDescriptionFetcher(
+      ManifestCallback<MediaPresentationDescription> callback, int timeoutMillis,
+      MediaPresentationDescription previousManifest) {
+    this(callback, timeoutMillis, new MediaPresentationDescriptionParser(), previousManifest);
+  }
+
+  /**
+   * Constructs a fetcher for refreshing a manifest using the specified parser. Since a fetcher can
+   * only be executed once, the values pooled by the parser are shared across refreshes only if
+   * the same parser is passed to the fetcher for each refresh.
+   *
+   * @param callback The callback to provide with the parsed manifest (or error).
+   * @param timeoutMillis The timeout in milliseconds for the connection used to load the data.
+   * @param parser The parser to use.
+   * @param previousManifest The manifest being refreshed. May be null.
+   */
+  public MediaPresentationDescriptionFetcher(
+      ManifestCallback<MediaPresentationDescription> callback, int timeoutMillis,
+      MediaPresentationDescriptionParser parser, MediaPresentationDescription previousManifest) {
     super(callback, timeoutMillis);
-    parser = new MediaPresentationDescriptionParser();
+    this.parser = parser;
+    this.previousManifest = previousManifest;
   }
 
   @Override
   protected MediaPresentationDescription parse(InputStream stream, String inputEncoding,
       String contentId, Uri baseUrl) throws IOException, ParserException {
-    return parser.parseMediaPresentationDescription(stream, inputEncoding, contentId, baseUrl);
+    return parser.parseMediaPresentationDescription(stream, inputEncoding, contentId, baseUrl,
+        previousManifest);
   }
 
 }
@@ -19,7 +19,6 @@ import com.google.android.exoplayer.ParserException;
 import com.google.android.exoplayer.chunk.Format;
 import com.google.android.exoplayer.dash.mpd.SegmentBase.SegmentList;
 import com.google.android.exoplayer.dash.mpd.SegmentBase.SegmentTemplate;
-import com.google.android.exoplayer.dash.mpd.SegmentBase.SegmentTimelineElement;
 import com.google.android.exoplayer.dash.mpd.SegmentBase.SingleSegmentBase;
 import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.MimeTypes;
@@ -34,31 +33,32 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigDecimal;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A parser of media presentation description files.
+ * <p>
+ * Attribute values that are typically repeated throughout a manifest, such as mime types,
+ * languages and representation ids, are pooled so that the parsed manifest holds a single instance
+ * of each distinct value. Url templates are pooled in compiled form. The pools are retained by the
+ * parser instance, so that manifests obtained by repeatedly refreshing a live stream with the same
+ * parser share their values. The application should therefore hold a single parser for the
+ * lifetime of a playback, and pass it to each {@link MediaPresentationDescriptionFetcher} that it
+ * creates. Concurrent parses by the same instance are serialized.
  */
 public class MediaPresentationDescriptionParser extends DefaultHandler {
 
-  // Note: Does not support the date part of ISO 8601
-  private static final Pattern DURATION =
-      Pattern.compile("^PT(([0-9]*)H)?(([0-9]*)M)?(([0-9.]*)S)?$");
-
-  private static final Pattern DATE_TIME_PATTERN =
-      Pattern.compile("(\\d\\d\\d\\d)\\-(\\d\\d)\\-(\\d\\d)[Tt]"
-          + "(\\d\\d):(\\d\\d):(\\d\\d)(\\.(\\d+))?"
-          + "([Zz]|((\\+|\\-)(\\d\\d):(\\d\\d)))?");
+  /**
+   * The number of entries beyond which the pools of repeated values are cleared.
+   */
+  private static final int MAX_POOL_SIZE = 1024;
 
   private final XmlPullParserFactory xmlParserFactory;
+  private final HashMap<String, String> stringPool;
+  private final HashMap<String, UrlTemplate> urlTemplatePool;
 
   public MediaPresentationDescriptionParser() {
     try {
@@ -66,6 +66,8 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     } catch (XmlPullParserException e) {
       throw new RuntimeException("Couldn't create XmlPullParserFactory instance", e);
     }
+    stringPool = new HashMap<String, String>();
+    urlTemplatePool = new HashMap<String, UrlTemplate>();
   }
 
   // MPD parsing.
@@ -81,8 +83,9 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
    * @throws IOException If a problem occurred reading from the stream.
    * @throws ParserException If a problem occurred parsing the xml as a DASH mpd.
    */
-  public MediaPresentationDescription parseMediaPresentationDescription(InputStream inputStream,
-      String inputEncoding, String contentId, Uri baseUrl) throws IOException, ParserException {
+  public synchronized MediaPresentationDescription parseMediaPresentationDescription(
+      InputStream inputStream, String inputEncoding, String contentId, Uri baseUrl)
+      throws IOException, ParserException {
     try {
       XmlPullParser xpp = xmlParserFactory.newPullParser();
       xpp.setInput(inputStream, inputEncoding);
@@ -99,6 +102,39 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     }
   }
 
+  /**
+   * Parses a refreshed manifest from the provided {@link InputStream}, reusing the unchanged parts
+   * of the manifest that it replaces.
+   * <p>
+   * Each {@link Representation} in the parsed manifest that is equivalent to its counterpart in
+   * {@code previousManifest} is replaced by the previous instance. Representations are matched by
+   * format id, within adaptation sets of the same type at the same index, within periods with the
+   * same id (or at the same index, for periods without ids). Unchanged representations can
+   * therefore be identified by reference, allowing consumers to retain any state associated with
+   * them, such as loaded segment indices.
+   * <p>
+   * A representation whose SegmentTimeline has grown, as is the case for live streams, is merged
+   * with its counterpart instead. The merged representation reuses the timeline of the previous
+   * instance, to which only the runs of segments that follow it are appended, and from which the
+   * segments that are no longer listed are removed.
+   *
+   * @param inputStream The stream from which to parse the manifest.
+   * @param inputEncoding The encoding of the input.
+   * @param contentId The content id of the media.
+   * @param baseUrl The url that any relative urls defined within the manifest are relative to.
+   * @param previousManifest The manifest being refreshed. May be null.
+   * @return The parsed manifest.
+   * @throws IOException If a problem occurred reading from the stream.
+   * @throws ParserException If a problem occurred parsing the xml as a DASH mpd.
+   */
+  public MediaPresentationDescription parseMediaPresentationDescription(InputStream inputStream,
+      String inputEncoding, String contentId, Uri baseUrl,
+      MediaPresentationDescription previousManifest) throws IOException, ParserException {
+    MediaPresentationDescription manifest = parseMediaPresentationDescription(inputStream,
+        inputEncoding, contentId, baseUrl);
+    return previousManifest != null ? reuseUnchanged(manifest, previousManifest) : manifest;
+  }
+
   private MediaPresentationDescription parseMediaPresentationDescription(XmlPullParser xpp,
       String contentId, Uri baseUrl) throws XmlPullParserException, IOException, ParseException {
     long availabilityStartTime = parseDateTime(xpp, "availabilityStartTime", -1);
@@ -126,6 +162,85 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
         dynamic, minUpdateTimeMs, timeShiftBufferDepthMs, utcTiming, periods);
   }
 
+  // Incremental refresh.
+
+  private MediaPresentationDescription reuseUnchanged(MediaPresentationDescription manifest,
+      MediaPresentationDescription previousManifest) {
+    boolean reused = false;
+    List<Period> periods = new ArrayList<Period>(manifest.periods.size());
+    for (int i = 0; i < manifest.periods.size(); i++) {
+      Period period = manifest.periods.get(i);
+      Period previousPeriod = getCorrespondingPeriod(previousManifest, period, i);
+      Period mergedPeriod =
+          previousPeriod != null ? reuseUnchanged(period, previousPeriod) : period;
+      reused |= mergedPeriod != period;
+      periods.add(mergedPeriod);
+    }
+    if (!reused) {
+      return manifest;
+    }
+    return new MediaPresentationDescription(manifest.availabilityStartTime, manifest.duration,
+        manifest.minBufferTime, manifest.dynamic, manifest.minUpdatePeriod,
+        manifest.timeShiftBufferDepth, manifest.utcTiming, periods);
+  }
+
+  private Period reuseUnchanged(Period period, Period previousPeriod) {
+    boolean reused = false;
+    List<AdaptationSet> adaptationSets =
+        new ArrayList<AdaptationSet>(period.adaptationSets.size());
+    for (int i = 0; i < period.adaptationSets.size(); i++) {
+      AdaptationSet adaptationSet = period.adaptationSets.get(i);
+      AdaptationSet mergedAdaptationSet = adaptationSet;
+      if (i < previousPeriod.adaptationSets.size()
+          && previousPeriod.adaptationSets.get(i).type == adaptationSet.type) {
+        mergedAdaptationSet = reuseUnchanged(adaptationSet, previousPeriod.adaptationSets.get(i));
+      }
+      reused |= mergedAdaptationSet != adaptationSet;
+      adaptationSets.add(mergedAdaptationSet);
+    }
+    return reused ? new Period(period.id, period.startMs, period.durationMs, adaptationSets)
+        : period;
+  }
+
+  private AdaptationSet reuseUnchanged(AdaptationSet adaptationSet,
+      AdaptationSet previousAdaptationSet) {
+    boolean reused = false;
+    List<Representation> representations =
+        new ArrayList<Representation>(adaptationSet.representations.size());
+    for (int i = 0; i < adaptationSet.representations.size(); i++) {
+      Representation representation = adaptationSet.representations.get(i);
+      for (int j = 0; j < previousAdaptationSet.representations.size(); j++) {
+        Representation previousRepresentation = previousAdaptationSet.representations.get(j);
+        if (previousRepresentation.format.id.equals(representation.format.id)) {
+          Representation mergedRepresentation = previousRepresentation.mergeRefreshed(
+              representation);
+          reused |= mergedRepresentation != representation;
+          representation = mergedRepresentation;
+          break;
+        }
+      }
+      representations.add(representation);
+    }
+    return reused ? new AdaptationSet(adaptationSet.id, adaptationSet.type, representations,
+        adaptationSet.contentProtections) : adaptationSet;
+  }
+
+  private static Period getCorrespondingPeriod(MediaPresentationDescription previousManifest,
+      Period period, int index) {
+    if (period.id == null) {
+      return index < previousManifest.periods.size()
+          && previousManifest.periods.get(index).id == null
+          ? previousManifest.periods.get(index) : null;
+    }
+    for (int i = 0; i < previousManifest.periods.size(); i++) {
+      Period previousPeriod = previousManifest.periods.get(i);
+      if (period.id.equals(previousPeriod.id)) {
+        return previousPeriod;
+      }
+    }
+    return null;
+  }
+
   private UtcTimingElement parseUtcTiming(XmlPullParser xpp) {
     String schemeIdUri = xpp.getAttributeValue(null, "schemeIdUri");
     String value = xpp.getAttributeValue(null, "value");
@@ -134,7 +249,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
 
   private Period parsePeriod(XmlPullParser xpp, String contentId, Uri baseUrl, long mpdDurationMs)
       throws XmlPullParserException, IOException {
-    String id = xpp.getAttributeValue(null, "id");
+    String id = parsePooledString(xpp, "id", null);
     long startMs = parseDurationMs(xpp, "start", 0);
     long durationMs = parseDurationMs(xpp, "duration", mpdDurationMs);
     SegmentBase segmentBase = null;
@@ -164,8 +279,8 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
       long periodStartMs, long periodDurationMs, SegmentBase segmentBase)
       throws XmlPullParserException, IOException {
 
-    String mimeType = xpp.getAttributeValue(null, "mimeType");
-    String language = xpp.getAttributeValue(null, "lang");
+    String mimeType = parsePooledString(xpp, "mimeType", null);
+    String language = parsePooledString(xpp, "lang", null);
     int contentType = parseAdaptationSetTypeFromMimeType(mimeType);
 
     int id = -1;
@@ -258,12 +373,12 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
   private Representation parseRepresentation(XmlPullParser xpp, String contentId, Uri baseUrl,
       long periodStartMs, long periodDurationMs, String mimeType, String language,
       SegmentBase segmentBase) throws XmlPullParserException, IOException {
-    String id = xpp.getAttributeValue(null, "id");
+    String id = parsePooledString(xpp, "id", null);
     int bandwidth = parseInt(xpp, "bandwidth");
     int audioSamplingRate = parseInt(xpp, "audioSamplingRate");
     int width = parseInt(xpp, "width");
     int height = parseInt(xpp, "height");
-    mimeType = parseString(xpp, "mimeType", mimeType);
+    mimeType = parsePooledString(xpp, "mimeType", mimeType);
 
     int numChannels = -1;
     do {
@@ -301,9 +416,10 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     long indexLength = parent != null ? parent.indexLength : -1;
     String indexRangeText = xpp.getAttributeValue(null, "indexRange");
     if (indexRangeText != null) {
-      String[] indexRange = indexRangeText.split("-");
-      indexStart = Long.parseLong(indexRange[0]);
-      indexLength = Long.parseLong(indexRange[1]) - indexStart + 1;
+      int separatorIndex = indexRangeText.indexOf('-');
+      indexStart = parseLong(indexRangeText, 0, separatorIndex);
+      indexLength = parseLong(indexRangeText, separatorIndex + 1, indexRangeText.length())
+          - indexStart + 1;
     }
 
     RangedUri initialization = parent != null ? parent.initialization : null;
@@ -328,7 +444,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     int startNumber = parseInt(xpp, "startNumber", parent != null ? parent.startNumber : 0);
 
     RangedUri initialization = null;
-    List<SegmentTimelineElement> timeline = null;
+    SegmentTimeline timeline = null;
     List<RangedUri> segments = null;
 
     do {
@@ -369,7 +485,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
         parent != null ? parent.initializationTemplate : null);
 
     RangedUri initialization = null;
-    List<SegmentTimelineElement> timeline = null;
+    SegmentTimeline timeline = null;
 
     do {
       xpp.next();
@@ -389,9 +505,9 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
         startNumber, duration, timeline, initializationTemplate, mediaTemplate, baseUrl);
   }
 
-  private List<SegmentTimelineElement> parseSegmentTimeline(XmlPullParser xpp)
+  private SegmentTimeline parseSegmentTimeline(XmlPullParser xpp)
       throws XmlPullParserException, IOException {
-    List<SegmentTimelineElement> segmentTimeline = new ArrayList<SegmentTimelineElement>();
+    SegmentTimeline segmentTimeline = new SegmentTimeline();
     long elapsedTime = 0;
     do {
       xpp.next();
@@ -399,9 +515,9 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
         elapsedTime = parseLong(xpp, "t", elapsedTime);
         long duration = parseLong(xpp, "d");
         int count = 1 + parseInt(xpp, "r", 0);
-        for (int i = 0; i < count; i++) {
-          segmentTimeline.add(new SegmentTimelineElement(elapsedTime, duration));
-          elapsedTime += duration;
+        if (count > 0) {
+          segmentTimeline.append(elapsedTime, duration, count);
+          elapsedTime += duration * count;
         }
       }
     } while (!isEndTag(xpp, "SegmentTimeline"));
@@ -411,10 +527,21 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
   private UrlTemplate parseUrlTemplate(XmlPullParser xpp, String name,
       UrlTemplate defaultValue) {
     String valueString = xpp.getAttributeValue(null, name);
-    if (valueString != null) {
-      return UrlTemplate.compile(valueString);
+    if (valueString == null) {
+      return defaultValue;
+    }
+    UrlTemplate urlTemplate;
+    synchronized (urlTemplatePool) {
+      urlTemplate = urlTemplatePool.get(valueString);
+      if (urlTemplate == null) {
+        if (urlTemplatePool.size() >= MAX_POOL_SIZE) {
+          urlTemplatePool.clear();
+        }
+        urlTemplate = UrlTemplate.compile(valueString);
+        urlTemplatePool.put(valueString, urlTemplate);
+      }
     }
-    return defaultValue;
+    return urlTemplate;
   }
 
   private RangedUri parseInitialization(XmlPullParser xpp, Uri baseUrl) {
@@ -432,9 +559,9 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     long rangeLength = -1;
     String rangeText = xpp.getAttributeValue(null, rangeAttribute);
     if (rangeText != null) {
-      String[] rangeTextArray = rangeText.split("-");
-      rangeStart = Long.parseLong(rangeTextArray[0]);
-      rangeLength = Long.parseLong(rangeTextArray[1]) - rangeStart + 1;
+      int separatorIndex = rangeText.indexOf('-');
+      rangeStart = parseLong(rangeText, 0, separatorIndex);
+      rangeLength = parseLong(rangeText, separatorIndex + 1, rangeText.length()) - rangeStart + 1;
     }
     return new RangedUri(baseUrl, urlText, rangeStart, rangeLength);
   }
@@ -467,66 +594,176 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
 
   // VisibleForTesting
   static long parseDateTime(String value) throws ParseException {
-    Matcher matcher = DATE_TIME_PATTERN.matcher(value);
-    if (!matcher.matches()) {
+    // Matches YYYY-MM-DDThh:mm:ss[.s+][Z|(+|-)hh:mm].
+    int length = value.length();
+    if (length < 19 || value.charAt(4) != '-' || value.charAt(7) != '-'
+        || Character.toUpperCase(value.charAt(10)) != 'T' || value.charAt(13) != ':'
+        || value.charAt(16) != ':') {
+      throw new ParseException("Invalid date/time format: " + value, 0);
+    }
+    int year = parseDigits(value, 0, 4);
+    int month = parseDigits(value, 5, 7);
+    int day = parseDigits(value, 8, 10);
+    int hour = parseDigits(value, 11, 13);
+    int minute = parseDigits(value, 14, 16);
+    int second = parseDigits(value, 17, 19);
+    if ((year | month | day | hour | minute | second) < 0) {
       throw new ParseException("Invalid date/time format: " + value, 0);
     }
 
-    int timezoneShift;
-    if (matcher.group(9) == null) {
-      // No time zone specified.
-      timezoneShift = 0;
-    } else if (matcher.group(9).equalsIgnoreCase("Z")) {
-      timezoneShift = 0;
-    } else {
-      timezoneShift = ((Integer.valueOf(matcher.group(12)) * 60
-          + Integer.valueOf(matcher.group(13))));
-      if (matcher.group(11).equals("-")) {
-        timezoneShift *= -1;
+    int position = 19;
+    int millisecond = 0;
+    if (position < length && value.charAt(position) == '.') {
+      // We care only for milliseconds, so digits beyond the third are ignored.
+      int fractionStart = ++position;
+      int multiplier = 100;
+      while (position < length && isDigit(value.charAt(position))) {
+        millisecond += (value.charAt(position) - '0') * multiplier;
+        multiplier /= 10;
+        position++;
+      }
+      if (position == fractionStart) {
+        throw new ParseException("Invalid date/time format: " + value, 0);
       }
     }
 
-    Calendar dateTime = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
-
-    dateTime.clear();
-    // Note: The month value is 0-based, hence the -1 on group(2)
-    dateTime.set(Integer.valueOf(matcher.group(1)),
-                 Integer.valueOf(matcher.group(2)) - 1,
-                 Integer.valueOf(matcher.group(3)),
-                 Integer.valueOf(matcher.group(4)),
-                 Integer.valueOf(matcher.group(5)),
-                 Integer.valueOf(matcher.group(6)));
-    if (!TextUtils.isEmpty(matcher.group(8))) {
-      final BigDecimal bd = new BigDecimal("0." + matcher.group(8));
-      // we care only for milliseconds, so movePointRight(3)
-      dateTime.set(Calendar.MILLISECOND, bd.movePointRight(3).intValue());
+    int timezoneShift = 0;
+    if (position < length) {
+      char designator = value.charAt(position);
+      if (Character.toUpperCase(designator) == 'Z' && position + 1 == length) {
+        // UTC.
+      } else if ((designator == '+' || designator == '-') && position + 6 == length
+          && value.charAt(position + 3) == ':') {
+        int timezoneHours = parseDigits(value, position + 1, position + 3);
+        int timezoneMinutes = parseDigits(value, position + 4, position + 6);
+        if ((timezoneHours | timezoneMinutes) < 0) {
+          throw new ParseException("Invalid date/time format: " + value, 0);
+        }
+        timezoneShift = timezoneHours * 60 + timezoneMinutes;
+        if (designator == '-') {
+          timezoneShift *= -1;
+        }
+      } else {
+        throw new ParseException("Invalid date/time format: " + value, 0);
+      }
     }
 
-    long time = dateTime.getTimeInMillis();
-    if (timezoneShift != 0) {
-      time -= timezoneShift * 60000;
-    }
+    long time = getDaysSinceEpoch(year, month, day) * 86400000L + hour * 3600000L
+        + minute * 60000L + second * 1000L + millisecond;
+    return time - timezoneShift * 60000L;
+  }
 
-    return time;
+  /**
+   * Parses a duration of the form [PnD][T][nH][nM][n[.n]S], or a number of hours.
+   * <p>
+   * Note: The year and month components of ISO 8601 durations are not supported.
+   */
+  // VisibleForTesting
+  static long parseDurationMs(String value) {
+    int length = value.length();
+    if (length < 2 || value.charAt(0) != 'P') {
+      return (long) (Double.parseDouble(value) * 3600 * 1000);
+    }
+    long durationMs = 0;
+    boolean inTimePart = false;
+    int position = 1;
+    while (position < length) {
+      char c = value.charAt(position);
+      if (c == 'T' && !inTimePart) {
+        inTimePart = true;
+        position++;
+        continue;
+      }
+      long whole = 0;
+      int wholeStart = position;
+      while (position < length && isDigit(c = value.charAt(position))) {
+        whole = whole * 10 + (c - '0');
+        position++;
+      }
+      long fractionMs = 0;
+      if (position < length && c == '.') {
+        int multiplier = 100;
+        while (++position < length && isDigit(c = value.charAt(position))) {
+          fractionMs += (c - '0') * multiplier;
+          multiplier /= 10;
+        }
+      }
+      if (position == length || position == wholeStart) {
+        return (long) (Double.parseDouble(value) * 3600 * 1000);
+      }
+      if (!inTimePart && c == 'D' && fractionMs == 0) {
+        durationMs += whole * 86400000L;
+      } else if (inTimePart && c == 'H' && fractionMs == 0) {
+        durationMs += whole * 3600000L;
+      } else if (inTimePart && c == 'M' && fractionMs == 0) {
+        durationMs += whole * 60000L;
+      } else if (inTimePart && c == 'S' && position + 1 == length) {
+        durationMs += whole * 1000L + fractionMs;
+      } else {
+        // Not a supported duration.
+        return (long) (Double.parseDouble(value) * 3600 * 1000);
+      }
+      position++;
+    }
+    return durationMs;
   }
 
   private static long parseDurationMs(XmlPullParser xpp, String name, long defaultValue) {
     String value = xpp.getAttributeValue(null, name);
-    if (value != null) {
-      Matcher matcher = DURATION.matcher(value);
-      if (matcher.matches()) {
-        String hours = matcher.group(2);
-        double durationSeconds = (hours != null) ? Double.parseDouble(hours) * 3600 : 0;
-        String minutes = matcher.group(4);
-        durationSeconds += (minutes != null) ? Double.parseDouble(minutes) * 60 : 0;
-        String seconds = matcher.group(6);
-        durationSeconds += (seconds != null) ? Double.parseDouble(seconds) : 0;
-        return (long) (durationSeconds * 1000);
-      } else {
-        return (long) (Double.parseDouble(value) * 3600 * 1000);
+    return value == null ? defaultValue : parseDurationMs(value);
+  }
+
+  /**
+   * Returns the number of days from 1970-01-01 to the specified date in the proleptic Gregorian
+   * calendar.
+   */
+  private static long getDaysSinceEpoch(int year, int month, int day) {
+    // Shift the start of the year to March, so that the leap day falls at the end of the year.
+    long shiftedYear = month <= 2 ? year - 1 : year;
+    long era = (shiftedYear >= 0 ? shiftedYear : shiftedYear - 399) / 400;
+    long yearOfEra = shiftedYear - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Parses the decimal digits in {@code value} between {@code start} (inclusive) and {@code end}
+   * (exclusive), returning -1 if any of the characters is not a digit.
+   */
+  private static int parseDigits(String value, int start, int end) {
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Like {@link Long#parseLong(String)}, but parses only the part of {@code value} between
+   * {@code start} (inclusive) and {@code end} (exclusive).
+   */
+  private static long parseLong(String value, int start, int end) {
+    if (start < 0 || start >= end) {
+      throw new NumberFormatException("Invalid number: " + value);
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (!isDigit(c)) {
+        throw new NumberFormatException("Invalid number: " + value);
       }
+      result = result * 10 + (c - '0');
     }
-    return defaultValue;
+    return result;
   }
 
   protected static Uri parseBaseUrl(XmlPullParser xpp, Uri parentBaseUrl)
@@ -563,4 +800,27 @@ public class MediaPresentationDescriptionParser extends DefaultHandler {
     return value == null ? defaultValue : value;
   }
 
+  /**
+   * Like {@link #parseString(XmlPullParser, String, String)}, but returns a pooled instance of the
+   * value. Should be used for values that are likely to be repeated within a manifest, and across
+   * refreshes of the same manifest.
+   */
+  protected String parsePooledString(XmlPullParser xpp, String name, String defaultValue) {
+    String value = xpp.getAttributeValue(null, name);
+    if (value == null) {
+      return defaultValue;
+    }
+    synchronized (stringPool) {
+      String pooledValue = stringPool.get(value);
+      if (pooledValue == null) {
+        if (stringPool.size() >= MAX_POOL_SIZE) {
+          stringPool.clear();
+        }
+        stringPool.put(value, value);
+        pooledValue = value;
+      }
+      return pooledValue;
+    }
+  }
+
 }
@@ -16,6 +16,7 @@
 package com.google.android.exoplayer.dash.mpd;
 
 import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
 
 import android.net.Uri;
 
@@ -130,9 +131,12 @@ public final class RangedUri {
       return false;
     }
     RangedUri other = (RangedUri) obj;
-    return this.start == other.start
-        && this.length == other.length
-        && getUri().equals(other.getUri());
+    if (this.start != other.start || this.length != other.length) {
+      return false;
+    }
+    // Avoid building the uris if the instances are defined in the same way.
+    return (Util.areEqual(stringUri, other.stringUri) && Util.areEqual(baseUri, other.baseUri))
+        || getUri().equals(other.getUri());
   }
 
 }
@@ -19,6 +19,7 @@ import com.google.android.exoplayer.chunk.Format;
 import com.google.android.exoplayer.dash.DashSegmentIndex;
 import com.google.android.exoplayer.dash.mpd.SegmentBase.MultiSegmentBase;
 import com.google.android.exoplayer.dash.mpd.SegmentBase.SingleSegmentBase;
+import com.google.android.exoplayer.util.Util;
 
 import android.net.Uri;
 
@@ -140,6 +141,46 @@ public abstract class Representation {
     return contentId + "." + format.id + "." + revisionId;
   }
 
+  /**
+   * Whether this representation is equivalent to another, meaning that the other can be used in
+   * its place. Used to reuse unchanged representations when a manifest is refreshed.
+   *
+   * @param other The other representation.
+   * @return True if the representations are equivalent. False otherwise.
+   */
+  /* package */ boolean isEquivalentTo(Representation other) {
+    return getClass() == other.getClass()
+        && periodStartMs == other.periodStartMs
+        && periodDurationMs == other.periodDurationMs
+        && presentationTimeOffsetMs == other.presentationTimeOffsetMs
+        && revisionId == other.revisionId
+        && Util.areEqual(contentId, other.contentId)
+        && Util.areEqual(initializationUri, other.initializationUri)
+        && isEquivalentFormat(format, other.format);
+  }
+
+  /**
+   * Merges a refreshed version of this representation, obtained by refreshing the manifest.
+   *
+   * @param refreshed The refreshed representation, which must have the same format id.
+   * @return This instance if {@code refreshed} is equivalent to it, a representation equivalent
+   *     to {@code refreshed} that reuses this instance where possible, or {@code refreshed}.
+   */
+  /* package */ Representation mergeRefreshed(Representation refreshed) {
+    return isEquivalentTo(refreshed) ? this : refreshed;
+  }
+
+  private static boolean isEquivalentFormat(Format format, Format other) {
+    return format.id.equals(other.id)
+        && Util.areEqual(format.mimeType, other.mimeType)
+        && format.width == other.width
+        && format.height == other.height
+        && format.numChannels == other.numChannels
+        && format.audioSamplingRate == other.audioSamplingRate
+        && format.bitrate == other.bitrate
+        && Util.areEqual(format.language, other.language);
+  }
+
   /**
    * A DASH representation consisting of a single segment.
    */
@@ -210,6 +251,17 @@ public abstract class Representation {
       return null;
     }
 
+    @Override
+    /* package */ boolean isEquivalentTo(Representation other) {
+      if (!super.isEquivalentTo(other)) {
+        return false;
+      }
+      SingleSegmentRepresentation otherRepresentation = (SingleSegmentRepresentation) other;
+      return contentLength == otherRepresentation.contentLength
+          && Util.areEqual(uri, otherRepresentation.uri)
+          && Util.areEqual(indexUri, otherRepresentation.indexUri);
+    }
+
   }
 
   /**
@@ -245,6 +297,28 @@ public abstract class Representation {
       return this;
     }
 
+    @Override
+    /* package */ boolean isEquivalentTo(Representation other) {
+      return super.isEquivalentTo(other)
+          && segmentBase.isEquivalentTo(((MultiSegmentRepresentation) other).segmentBase);
+    }
+
+    @Override
+    /* package */ Representation mergeRefreshed(Representation refreshed) {
+      if (!super.isEquivalentTo(refreshed)) {
+        return refreshed;
+      }
+      MultiSegmentBase mergedSegmentBase = segmentBase.mergeRefreshed(
+          ((MultiSegmentRepresentation) refreshed).segmentBase);
+      if (mergedSegmentBase == segmentBase) {
+        return this;
+      } else if (mergedSegmentBase == null) {
+        return refreshed;
+      }
+      return new MultiSegmentRepresentation(periodStartMs, periodDurationMs, contentId, revisionId,
+          format, mergedSegmentBase);
+    }
+
     // DashSegmentIndex implementation.
 
     @Override
@@ -15,6 +15,8 @@
  */
 package com.google.android.exoplayer.dash.mpd;
 
+import com.google.android.exoplayer.util.Util;
+
 import android.net.Uri;
 
 import java.util.List;
@@ -97,7 +99,7 @@ public abstract class SegmentBase {
     /* package */ final long periodDurationMs;
     /* package */ final int startNumber;
     /* package */ final long duration;
-    /* package */ final List<SegmentTimelineElement> segmentTimeline;
+    /* package */ final SegmentTimeline segmentTimeline;
 
     /**
      * @param initialization A {@link RangedUri} corresponding to initialization data, if such data
@@ -116,7 +118,7 @@ public abstract class SegmentBase {
      */
     public MultiSegmentBase(RangedUri initialization, long timescale, long presentationTimeOffset,
         long periodDurationMs, int startNumber, long duration,
-        List<SegmentTimelineElement> segmentTimeline) {
+        SegmentTimeline segmentTimeline) {
       super(initialization, timescale, presentationTimeOffset);
       this.periodDurationMs = periodDurationMs;
       this.startNumber = startNumber;
@@ -124,22 +126,45 @@ public abstract class SegmentBase {
       this.segmentTimeline = segmentTimeline;
     }
 
+    /**
+     * Returns the sequence number of the segment containing the specified time. If the time is
+     * before the start of the first segment then the first segment number is returned.
+     * <p>
+     * The number is computed directly for fixed duration segments, and by binary search in the
+     * case of a segment timeline.
+     *
+     * @param timeUs The time in microseconds.
+     * @return The sequence number of the segment containing the time.
+     */
     public final int getSegmentNum(long timeUs) {
-      // TODO: Optimize this
-      int index = startNumber;
-      while (index + 1 <= getLastSegmentNum()) {
-        if (getSegmentTimeUs(index + 1) <= timeUs) {
-          index++;
+      int firstSegmentNum = getFirstSegmentNum();
+      int lastSegmentNum = getLastSegmentNum();
+      if (segmentTimeline == null) {
+        // The largest segment number whose start time, as computed by getSegmentTimeUs, does not
+        // exceed timeUs.
+        if (timeUs < 0) {
+          return firstSegmentNum;
+        }
+        long segmentIndex = ((timeUs + 1) * timescale - 1) / (duration * 1000000L);
+        return (int) Math.min(firstSegmentNum + segmentIndex, lastSegmentNum);
+      }
+      // Binary search for the last segment whose start time does not exceed timeUs.
+      int lowIndex = firstSegmentNum;
+      int highIndex = lastSegmentNum;
+      while (lowIndex < highIndex) {
+        int midIndex = (lowIndex + highIndex + 1) >>> 1;
+        if (getSegmentTimeUs(midIndex) <= timeUs) {
+          lowIndex = midIndex;
         } else {
-          return index;
+          highIndex = midIndex - 1;
         }
       }
-      return index;
+      return lowIndex;
     }
 
     public final long getSegmentDurationUs(int sequenceNumber) {
       if (segmentTimeline != null) {
-        return (segmentTimeline.get(sequenceNumber - startNumber).duration * 1000000) / timescale;
+        return (segmentTimeline.getDuration(sequenceNumber - startNumber) * 1000000) / timescale;
       } else {
         return sequenceNumber == getLastSegmentNum()
             ? (periodDurationMs * 1000) - getSegmentTimeUs(sequenceNumber)
@@ -150,7 +175,7 @@ public abstract class SegmentBase {
     public final long getSegmentTimeUs(int sequenceNumber) {
       long unscaledSegmentTime;
       if (segmentTimeline != null) {
-        unscaledSegmentTime = segmentTimeline.get(sequenceNumber - startNumber).startTime
+        unscaledSegmentTime = segmentTimeline.getStartTime(sequenceNumber - startNumber)
             - presentationTimeOffset;
       } else {
         unscaledSegmentTime = (sequenceNumber - startNumber) * duration;
@@ -166,6 +191,47 @@ public abstract class SegmentBase {
 
     public abstract int getLastSegmentNum();
 
+    /**
+     * Whether this segment base defines the same segments as another.
+     *
+     * @param other The other segment base.
+     * @return True if the segment bases are equivalent. False otherwise.
+     */
+    /* package */ boolean isEquivalentTo(MultiSegmentBase other) {
+      return hasEquivalentAttributes(other)
+          && periodDurationMs == other.periodDurationMs
+          && startNumber == other.startNumber
+          && Util.areEqual(segmentTimeline, other.segmentTimeline);
+    }
+
+    /**
+     * Merges a refreshed version of this segment base, in which segments may have been appended
+     * to the end and removed from the start.
+     * <p>
+     * This implementation returns this instance if the segment bases are equivalent, and null
+     * otherwise.
+     *
+     * @param refreshed The refreshed segment base.
+     * @return This instance if {@code refreshed} defines the same segments, a segment base
+     *     equivalent to {@code refreshed} that reuses this instance where possible, or null if the
+     *     segment bases can't be merged, in which case {@code refreshed} should be used.
+     */
+    /* package */ MultiSegmentBase mergeRefreshed(MultiSegmentBase refreshed) {
+      return isEquivalentTo(refreshed) ? this : null;
+    }
+
+    /**
+     * Whether this segment base has the same attributes as another, disregarding the segments
+     * that are defined.
+     */
+    /* package */ boolean hasEquivalentAttributes(MultiSegmentBase other) {
+      return getClass() == other.getClass()
+          && Util.areEqual(initialization, other.initialization)
+          && timescale == other.timescale
+          && presentationTimeOffset == other.presentationTimeOffset
+          && duration == other.duration;
+    }
+
   }
 
   /**
@@ -193,7 +259,7 @@ public abstract class SegmentBase {
      */
     public SegmentList(RangedUri initialization, long timescale, long presentationTimeOffset,
         long periodDurationMs, int startNumber, long duration,
-        List<SegmentTimelineElement> segmentTimeline, List<RangedUri> mediaSegments) {
+        SegmentTimeline segmentTimeline, List<RangedUri> mediaSegments) {
       super(initialization, timescale, presentationTimeOffset, periodDurationMs, startNumber,
           duration, segmentTimeline);
       this.mediaSegments = mediaSegments;
@@ -209,6 +275,12 @@ public abstract class SegmentBase {
       return startNumber + mediaSegments.size() - 1;
     }
 
+    @Override
+    /* package */ boolean isEquivalentTo(MultiSegmentBase other) {
+      return super.isEquivalentTo(other)
+          && Util.areEqual(mediaSegments, ((SegmentList) other).mediaSegments);
+    }
+
   }
 
   /**
@@ -244,7 +316,7 @@ public abstract class SegmentBase {
      */
     public SegmentTemplate(RangedUri initialization, long timescale, long presentationTimeOffset,
         long periodDurationMs, int startNumber, long duration,
-        List<SegmentTimelineElement> segmentTimeline, UrlTemplate initializationTemplate,
+        SegmentTimeline segmentTimeline, UrlTemplate initializationTemplate,
         UrlTemplate mediaTemplate, Uri baseUrl) {
       super(initialization, timescale, presentationTimeOffset, periodDurationMs, startNumber,
           duration, segmentTimeline);
@@ -268,7 +340,7 @@ public abstract class SegmentBase {
     public RangedUri getSegmentUrl(Representation representation, int sequenceNumber) {
       long time = 0;
       if (segmentTimeline != null) {
-        time = segmentTimeline.get(sequenceNumber - startNumber).startTime;
+        time = segmentTimeline.getStartTime(sequenceNumber - startNumber);
       } else {
         time = (sequenceNumber - startNumber) * duration;
       }
@@ -280,32 +352,68 @@ public abstract class SegmentBase {
     @Override
     public int getLastSegmentNum() {
       if (segmentTimeline != null) {
-        return segmentTimeline.size() + startNumber - 1;
+        return segmentTimeline.getSegmentCount() + startNumber - 1;
       } else {
         long durationMs = (duration * 1000) / timescale;
         return startNumber + (int) (periodDurationMs / durationMs);
       }
     }
 
-  }
-
-  /**
-   * Represents a timeline segment from the MPD's SegmentTimeline list.
-   */
-  public static class SegmentTimelineElement {
-
-    /* package */ long startTime;
-    /* package */ long duration;
-
     /**
-     * @param startTime The start time of the element. The value in seconds is the division of this
-     *     value and the {@code timescale} of the enclosing element.
-     * @param duration The duration of the element. The value in seconds is the division of this
-     *     value and the {@code timescale} of the enclosing element.
+     * {@inheritDoc}
+     * <p>
+     * If both segment bases have a timeline then the timelines are merged, such that only the
+     * runs of segments that follow the end of this timeline are taken from the refreshed timeline.
+     * Segments that have been published aren't expected to change, so only the boundaries of the
+     * overlapping segments are compared. The merge therefore takes time proportional to the number
+     * of runs, rather than requiring the refreshed timeline to be compared in full.
      */
-    public SegmentTimelineElement(long startTime, long duration) {
-      this.startTime = startTime;
-      this.duration = duration;
+    @Override
+    /* package */ MultiSegmentBase mergeRefreshed(MultiSegmentBase refreshed) {
+      if (segmentTimeline == null || refreshed.segmentTimeline == null
+          || segmentTimeline.getSegmentCount() == 0
+          || refreshed.segmentTimeline.getSegmentCount() == 0) {
+        return super.mergeRefreshed(refreshed);
+      } else if (!hasEquivalentAttributes(refreshed)) {
+        return null;
+      }
+      SegmentTimeline refreshedTimeline = refreshed.segmentTimeline;
+      int segmentCount = segmentTimeline.getSegmentCount();
+      int refreshedSegmentCount = refreshedTimeline.getSegmentCount();
+      int firstIndex = segmentTimeline.getIndexOfStartTime(refreshedTimeline.getStartTime(0));
+      if (firstIndex == -1 || refreshed.startNumber != startNumber + firstIndex) {
+        // The refreshed timeline doesn't start at a segment of this timeline.
+        return null;
+      }
+      int overlapCount = segmentCount - firstIndex;
+      if (overlapCount > refreshedSegmentCount
+          || refreshedTimeline.getStartTime(overlapCount - 1)
+              != segmentTimeline.getStartTime(segmentCount - 1)
+          || refreshedTimeline.getDuration(overlapCount - 1)
+              != segmentTimeline.getDuration(segmentCount - 1)) {
+        // The refreshed timeline doesn't continue from the end of this timeline.
+        return null;
+      }
+      if (firstIndex == 0 && overlapCount == refreshedSegmentCount
+          && periodDurationMs == refreshed.periodDurationMs) {
+        return this;
+      }
+      SegmentTimeline mergedTimeline = segmentTimeline.merge(firstIndex, refreshedTimeline,
+          overlapCount);
+      return new SegmentTemplate(initialization, timescale, presentationTimeOffset,
+          refreshed.periodDurationMs, refreshed.startNumber, duration, mergedTimeline,
+          initializationTemplate, mediaTemplate, baseUrl);
+    }
+
+    @Override
+    /* package */ boolean hasEquivalentAttributes(MultiSegmentBase other) {
+      if (!super.hasEquivalentAttributes(other)) {
+        return false;
+      }
+      SegmentTemplate otherTemplate = (SegmentTemplate) other;
+      return Util.areEqual(initializationTemplate, otherTemplate.initializationTemplate)
+          && Util.areEqual(mediaTemplate, otherTemplate.mediaTemplate)
+          && Util.areEqual(baseUrl, otherTemplate.baseUrl);
     }
 
   }
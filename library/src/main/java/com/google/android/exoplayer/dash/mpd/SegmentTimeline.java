@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.dash.mpd;
+
+/**
+ * A run-length encoded representation of a SegmentTimeline manifest element.
+ * <p>
+ * Consecutive segments of equal duration are stored as a single run, consisting of the start time
+ * of the first segment in the run, the duration of each segment and the index of the first
+ * segment. Repeated S elements ({@code S@r}) therefore occupy constant space, as do consecutive S
+ * elements that continue a run.
+ */
+public final class SegmentTimeline {
+
+  private static final int INITIAL_RUN_CAPACITY = 4;
+
+  private long[] runStartTimes;
+  private long[] runDurations;
+  private int[] runFirstIndices;
+  private int runCount;
+  private int segmentCount;
+
+  /**
+   * Constructs an empty timeline.
+   */
+  public SegmentTimeline() {
+    runStartTimes = new long[INITIAL_RUN_CAPACITY];
+    runDurations = new long[INITIAL_RUN_CAPACITY];
+    runFirstIndices = new int[INITIAL_RUN_CAPACITY];
+  }
+
+  /**
+   * Appends segments to the end of the timeline.
+   *
+   * @param startTime The start time of the first segment being appended. The value in seconds is
+   *     the division of this value and the {@code timescale} of the enclosing element.
+   * @param duration The duration of each segment being appended. The value in seconds is the
+   *     division of this value and the {@code timescale} of the enclosing element.
+   * @param count The number of segments to append.
+   */
+  /* package */ void append(long startTime, long duration, int count) {
+    if (count <= 0) {
+      return;
+    }
+    int lastRun = runCount - 1;
+    if (lastRun >= 0 && runDurations[lastRun] == duration
+        && getRunEndTime(lastRun) == startTime) {
+      // The segments continue the last run.
+      segmentCount += count;
+      return;
+    }
+    if (runCount == runStartTimes.length) {
+      int newRunCapacity = runCount * 2;
+      long[] newRunStartTimes = new long[newRunCapacity];
+      System.arraycopy(runStartTimes, 0, newRunStartTimes, 0, runCount);
+      runStartTimes = newRunStartTimes;
+      long[] newRunDurations = new long[newRunCapacity];
+      System.arraycopy(runDurations, 0, newRunDurations, 0, runCount);
+      runDurations = newRunDurations;
+      int[] newRunFirstIndices = new int[newRunCapacity];
+      System.arraycopy(runFirstIndices, 0, newRunFirstIndices, 0, runCount);
+      runFirstIndices = newRunFirstIndices;
+    }
+    runStartTimes[runCount] = startTime;
+    runDurations[runCount] = duration;
+    runFirstIndices[runCount] = segmentCount;
+    runCount++;
+    segmentCount += count;
+  }
+
+  /**
+   * Returns the number of segments in the timeline.
+   *
+   * @return The number of segments.
+   */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Returns the number of runs of equal duration segments in the timeline.
+   *
+   * @return The number of runs.
+   */
+  public int getRunCount() {
+    return runCount;
+  }
+
+  /**
+   * Returns the start time of a segment.
+   *
+   * @param index The index of the segment, where 0 is the first segment in the timeline.
+   * @return The start time of the segment, in the timescale of the enclosing element.
+   */
+  public long getStartTime(int index) {
+    int run = getRunIndex(index);
+    return runStartTimes[run] + (index - runFirstIndices[run]) * runDurations[run];
+  }
+
+  /**
+   * Returns the duration of a segment.
+   *
+   * @param index The index of the segment, where 0 is the first segment in the timeline.
+   * @return The duration of the segment, in the timescale of the enclosing element.
+   */
+  public long getDuration(int index) {
+    return runDurations[getRunIndex(index)];
+  }
+
+  /**
+   * Returns the index of the segment that starts at the specified time.
+   *
+   * @param startTime The start time, in the timescale of the enclosing element.
+   * @return The index of the segment, or -1 if no segment starts at the specified time.
+   */
+  public int getIndexOfStartTime(long startTime) {
+    if (segmentCount == 0 || startTime < runStartTimes[0]) {
+      return -1;
+    }
+    // Binary search for the last run that starts at or before startTime.
+    int lowRun = 0;
+    int highRun = runCount - 1;
+    while (lowRun < highRun) {
+      int midRun = (lowRun + highRun + 1) >>> 1;
+      if (runStartTimes[midRun] <= startTime) {
+        lowRun = midRun;
+      } else {
+        highRun = midRun - 1;
+      }
+    }
+    long offset = startTime - runStartTimes[lowRun];
+    long duration = runDurations[lowRun];
+    if (duration == 0 ? offset != 0 : offset % duration != 0) {
+      return -1;
+    }
+    long index = runFirstIndices[lowRun] + (duration == 0 ? 0 : offset / duration);
+    int runEndIndex = lowRun + 1 < runCount ? runFirstIndices[lowRun + 1] : segmentCount;
+    return index < runEndIndex ? (int) index : -1;
+  }
+
+  /**
+   * Returns a timeline consisting of the segments of this timeline from {@code firstIndex},
+   * followed by the segments of {@code other} from {@code otherFirstIndex}. The runs of both
+   * timelines are copied, so the time taken is proportional to the number of runs rather than the
+   * number of segments.
+   *
+   * @param firstIndex The index of the first segment of this timeline to include.
+   * @param other The timeline whose segments are appended.
+   * @param otherFirstIndex The index of the first segment of {@code other} to include.
+   * @return The merged timeline.
+   */
+  /* package */ SegmentTimeline merge(int firstIndex, SegmentTimeline other, int otherFirstIndex) {
+    SegmentTimeline merged = new SegmentTimeline();
+    appendTo(merged, firstIndex);
+    other.appendTo(merged, otherFirstIndex);
+    return merged;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = 17;
+    result = 31 * result + segmentCount;
+    for (int i = 0; i < runCount; i++) {
+      result = 31 * result + (int) runStartTimes[i];
+      result = 31 * result + (int) runDurations[i];
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    SegmentTimeline other = (SegmentTimeline) obj;
+    if (runCount != other.runCount || segmentCount != other.segmentCount) {
+      return false;
+    }
+    for (int i = 0; i < runCount; i++) {
+      if (runStartTimes[i] != other.runStartTimes[i] || runDurations[i] != other.runDurations[i]
+          || runFirstIndices[i] != other.runFirstIndices[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void appendTo(SegmentTimeline timeline, int firstIndex) {
+    if (firstIndex >= segmentCount) {
+      return;
+    }
+    for (int run = getRunIndex(firstIndex); run < runCount; run++) {
+      int runFirstIndex = Math.max(runFirstIndices[run], firstIndex);
+      int runEndIndex = run + 1 < runCount ? runFirstIndices[run + 1] : segmentCount;
+      long startTime = runStartTimes[run]
+          + (runFirstIndex - runFirstIndices[run]) * runDurations[run];
+      timeline.append(startTime, runDurations[run], runEndIndex - runFirstIndex);
+    }
+  }
+
+  private long getRunEndTime(int run) {
+    int runSegmentCount = (run + 1 < runCount ? runFirstIndices[run + 1] : segmentCount)
+        - runFirstIndices[run];
+    return runStartTimes[run] + runSegmentCount * runDurations[run];
+  }
+
+  /**
+   * Returns the index of the run containing the segment with the specified index.
+   */
+  private int getRunIndex(int index) {
+    if (index < 0 || index >= segmentCount) {
+      throw new IndexOutOfBoundsException();
+    }
+    int lowRun = 0;
+    int highRun = runCount - 1;
+    while (lowRun < highRun) {
+      int midRun = (lowRun + highRun + 1) >>> 1;
+      if (runFirstIndices[midRun] <= index) {
+        lowRun = midRun;
+      } else {
+        highRun = midRun - 1;
+      }
+    }
+    return lowRun;
+  }
+
+}
@@ -19,6 +19,8 @@ package com.google.android.exoplayer.dash.mpd;
  * A template from which URLs can be built.
  * <p>
  * URLs are built according to the substitution rules defined in ISO/IEC 23009-1:2014 5.3.9.4.4.
+ * Numeric identifiers are formatted directly into a buffer that is reused between calls to
+ * {@link #buildUri(String, int, int, long)}.
  */
 public final class UrlTemplate {
 
@@ -27,17 +29,20 @@ public final class UrlTemplate {
   private static final String BANDWIDTH = "Bandwidth";
   private static final String TIME = "Time";
   private static final String ESCAPED_DOLLAR = "$$";
-  private static final String DEFAULT_FORMAT_TAG = "%01d";
+  private static final String FORMAT_TAG_PREFIX = "%0";
+  private static final int DEFAULT_WIDTH = 1;
 
   private static final int REPRESENTATION_ID = 1;
   private static final int NUMBER_ID = 2;
   private static final int BANDWIDTH_ID = 3;
   private static final int TIME_ID = 4;
 
+  private final String template;
   private final String[] urlPieces;
   private final int[] identifiers;
-  private final String[] identifierFormatTags;
+  private final int[] identifierWidths;
   private final int identifierCount;
+  private final StringBuilder builder;
 
   /**
    * Compile an instance from the provided template string.
@@ -51,20 +56,27 @@ public final class UrlTemplate {
     // most once in the template, which seems like a reasonable assumption.
     String[] urlPieces = new String[5];
     int[] identifiers = new int[4];
-    String[] identifierFormatTags = new String[4];
-    int identifierCount = parseTemplate(template, urlPieces, identifiers, identifierFormatTags);
-    return new UrlTemplate(urlPieces, identifiers, identifierFormatTags, identifierCount);
+    int[] identifierWidths = new int[4];
+    int identifierCount = parseTemplate(template, urlPieces, identifiers, identifierWidths);
+    return new UrlTemplate(template, urlPieces, identifiers, identifierWidths, identifierCount);
   }
 
   /**
    * Internal constructor. Use {@link #compile(String)} to build instances of this class.
    */
-  private UrlTemplate(String[] urlPieces, int[] identifiers, String[] identifierFormatTags,
-      int identifierCount) {
+  private UrlTemplate(String template, String[] urlPieces, int[] identifiers,
+      int[] identifierWidths, int identifierCount) {
+    this.template = template;
     this.urlPieces = urlPieces;
     this.identifiers = identifiers;
-    this.identifierFormatTags = identifierFormatTags;
+    this.identifierWidths = identifierWidths;
     this.identifierCount = identifierCount;
+    int urlPiecesLength = 0;
+    for (int i = 0; i <= identifierCount; i++) {
+      urlPiecesLength += urlPieces[i].length();
+    }
+    // Allow for each identifier to be substituted by a value of up to 20 characters.
+    this.builder = new StringBuilder(urlPiecesLength + identifierCount * 20);
   }
 
   /**
@@ -78,41 +90,90 @@ public final class UrlTemplate {
    * @param time The time as specified by the segment timeline.
    * @return The built Uri.
    */
-  public String buildUri(String representationId, int segmentNumber, int bandwidth, long time) {
-    StringBuilder builder = new StringBuilder();
+  public synchronized String buildUri(String representationId, int segmentNumber, int bandwidth,
+      long time) {
+    if (identifierCount == 0) {
+      return urlPieces[0];
+    }
+    builder.setLength(0);
     for (int i = 0; i < identifierCount; i++) {
       builder.append(urlPieces[i]);
       if (identifiers[i] == REPRESENTATION_ID) {
         builder.append(representationId);
       } else if (identifiers[i] == NUMBER_ID) {
-        builder.append(String.format(identifierFormatTags[i], segmentNumber));
+        appendPadded(builder, segmentNumber, identifierWidths[i]);
       } else if (identifiers[i] == BANDWIDTH_ID) {
-        builder.append(String.format(identifierFormatTags[i], bandwidth));
+        appendPadded(builder, bandwidth, identifierWidths[i]);
       } else if (identifiers[i] == TIME_ID) {
-        builder.append(String.format(identifierFormatTags[i], time));
+        appendPadded(builder, time, identifierWidths[i]);
       }
     }
     builder.append(urlPieces[identifierCount]);
     return builder.toString();
   }
 
+  @Override
+  public int hashCode() {
+    return template.hashCode();
+  }
+
+  /**
+   * Implements equality based on the template string from which the instance was compiled.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    UrlTemplate other = (UrlTemplate) obj;
+    return template.equals(other.template);
+  }
+
+  /**
+   * Appends the decimal representation of {@code value} to {@code builder}, padded with leading
+   * zeros to at least {@code width} characters. Equivalent to formatting with {@code %0[width]d}.
+   */
+  private static void appendPadded(StringBuilder builder, long value, int width) {
+    if (value == Long.MIN_VALUE) {
+      // The value cannot be negated, and is wider than any realistic width.
+      builder.append(value);
+      return;
+    }
+    int length = 1;
+    long absValue = Math.abs(value);
+    for (long remaining = absValue / 10; remaining != 0; remaining /= 10) {
+      length++;
+    }
+    if (value < 0) {
+      builder.append('-');
+      length++;
+    }
+    for (int i = length; i < width; i++) {
+      builder.append('0');
+    }
+    builder.append(absValue);
+  }
+
   /**
    * Parses {@code template}, placing the decomposed components into the provided arrays.
    * <p>
    * If the return value is N, {@code urlPieces} will contain (N+1) strings that must be
    * interleaved with N arguments in order to construct a url. The N identifiers that correspond to
-   * the required arguments, together with the tags that define their required formatting, are
-   * returned in {@code identifiers} and {@code identifierFormatTags} respectively.
+   * the required arguments, together with the minimum widths to which they should be zero padded,
+   * are returned in {@code identifiers} and {@code identifierWidths} respectively.
    *
    * @param template The template to parse.
    * @param urlPieces A holder for pieces of url parsed from the template.
    * @param identifiers A holder for identifiers parsed from the template.
-   * @param identifierFormatTags A holder for format tags corresponding to the parsed identifiers.
+   * @param identifierWidths A holder for widths corresponding to the parsed identifiers.
    * @return The number of identifiers in the template url.
    * @throws IllegalArgumentException If the template string is malformed.
    */
   private static int parseTemplate(String template, String[] urlPieces, int[] identifiers,
-      String[] identifierFormatTags) {
+      int[] identifierWidths) {
     urlPieces[0] = "";
     int templateIndex = 0;
     int identifierCount = 0;
@@ -133,12 +194,15 @@ public final class UrlTemplate {
         if (identifier.equals(REPRESENTATION)) {
           identifiers[identifierCount] = REPRESENTATION_ID;
         } else {
-          int formatTagIndex = identifier.indexOf("%0");
-          String formatTag = DEFAULT_FORMAT_TAG;
+          int formatTagIndex = identifier.indexOf(FORMAT_TAG_PREFIX);
+          int width = DEFAULT_WIDTH;
           if (formatTagIndex != -1) {
-            formatTag = identifier.substring(formatTagIndex);
-            if (!formatTag.endsWith("d")) {
-              formatTag += "d";
+            int widthEnd = identifier.endsWith("d") ? identifier.length() - 1 : identifier.length();
+            try {
+              width = Integer.parseInt(identifier.substring(
+                  formatTagIndex + FORMAT_TAG_PREFIX.length(), widthEnd));
+            } catch (NumberFormatException e) {
+              throw new IllegalArgumentException("Invalid template: " + template);
             }
             identifier = identifier.substring(0, formatTagIndex);
           }
@@ -151,7 +215,7 @@ public final class UrlTemplate {
           } else {
             throw new IllegalArgumentException("Invalid template: " + template);
           }
-          identifierFormatTags[identifierCount] = formatTag;
+          identifierWidths[identifierCount] = width;
         }
         identifierCount++;
         urlPieces[identifierCount] = "";
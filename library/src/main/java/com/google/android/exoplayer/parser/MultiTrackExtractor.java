@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.parser;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.upstream.NonBlockingInputStream;
+
+/**
+ * An {@link Extractor} that may extract samples belonging to more than one track from a single
+ * media stream.
+ * <p>
+ * Samples are returned by {@link #read(NonBlockingInputStream, SampleHolder)} in the order in
+ * which they occur in the stream, regardless of the track to which they belong. The track of each
+ * sample can be queried using {@link #getSampleTrack()}. {@link #getFormat()} returns the format of
+ * the first track.
+ */
+public interface MultiTrackExtractor extends Extractor {
+
+  /**
+   * Returns the number of tracks contained within the media stream.
+   *
+   * @return The number of tracks, or 0 if the initialization data has yet to be parsed.
+   */
+  public int getTrackCount();
+
+  /**
+   * Returns the format of the samples belonging to the specified track.
+   *
+   * @param track The index of the track, in the range [0, {@link #getTrackCount()}).
+   * @return The sample media format of the track.
+   */
+  public MediaFormat getFormat(int track);
+
+  /**
+   * Returns the index of the track to which the current sample belongs. The current sample is the
+   * one most recently read, or the one that will be read next if the most recent call to
+   * {@link #read(NonBlockingInputStream, SampleHolder)} returned
+   * {@link #RESULT_NEED_SAMPLE_HOLDER}.
+   *
+   * @return The index of the track to which the current sample belongs.
+   */
+  public int getSampleTrack();
+
+}
@@ -54,7 +54,7 @@ import java.util.ArrayList;
   public static final int TYPE_uuid = 0x75756964;
   public static final int TYPE_senc = 0x73656E63;
 
-  public final int type;
+  public int type;
 
   Atom(int type) {
     this.type = type;
@@ -69,6 +69,17 @@ import java.util.ArrayList;
       this.data = data;
     }
 
+    /**
+     * Resets the atom for reuse.
+     *
+     * @param type The type of the atom.
+     * @param size The size of the atom, including its header.
+     */
+    public void reset(int type, int size) {
+      this.type = type;
+      data.reset(size);
+    }
+
   }
 
   public final static class ContainerAtom extends Atom {
@@ -80,6 +91,15 @@ import java.util.ArrayList;
       children = new ArrayList<Atom>();
     }
 
+    /**
+     * Resets the atom for reuse. The atom must not have any children.
+     *
+     * @param type The type of the atom.
+     */
+    public void reset(int type) {
+      this.type = type;
+    }
+
     public void add(Atom atom) {
       children.add(atom);
     }
@@ -17,12 +17,16 @@ package com.google.android.exoplayer.parser.mp4;
 
 /* package */ final class DefaultSampleValues {
 
-  public final int sampleDescriptionIndex;
-  public final int duration;
-  public final int size;
-  public final int flags;
+  public int sampleDescriptionIndex;
+  public int duration;
+  public int size;
+  public int flags;
 
   public DefaultSampleValues(int sampleDescriptionIndex, int duration, int size, int flags) {
+    set(sampleDescriptionIndex, duration, size, flags);
+  }
+
+  public void set(int sampleDescriptionIndex, int duration, int size, int flags) {
     this.sampleDescriptionIndex = sampleDescriptionIndex;
     this.duration = duration;
     this.size = size;
@@ -18,7 +18,7 @@ package com.google.android.exoplayer.parser.mp4;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.ParserException;
 import com.google.android.exoplayer.SampleHolder;
-import com.google.android.exoplayer.parser.Extractor;
+import com.google.android.exoplayer.parser.MultiTrackExtractor;
 import com.google.android.exoplayer.parser.SegmentIndex;
 import com.google.android.exoplayer.parser.mp4.Atom.ContainerAtom;
 import com.google.android.exoplayer.parser.mp4.Atom.LeafAtom;
@@ -26,6 +26,7 @@ import com.google.android.exoplayer.upstream.NonBlockingInputStream;
 import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.CodecSpecificDataUtil;
 import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.Util;
 
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -37,19 +38,26 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
 import java.util.UUID;
 
 /**
  * Facilitates the extraction of data from the fragmented mp4 container format.
  * <p>
- * This implementation only supports de-muxed (i.e. single track) streams.
+ * By default only the first track of the stream is extracted, and so the stream is expected to be
+ * de-muxed (i.e. single track). An extractor constructed to extract all tracks supports co-muxed
+ * streams, in which case the samples of every audio and video track are returned in the order in
+ * which they occur in each mdat atom. In this mode the data of each track fragment is located as
+ * defined by ISO/IEC 14496-12. The base data offset is the explicit base_data_offset in the tfhd
+ * atom if present, else the start of the moof atom if default-base-is-moof is set or the track
+ * fragment is the first in the moof, else the end of the data of the previous track fragment. The
+ * data offset of each trun atom is relative to the base data offset. A trun atom without a data
+ * offset whose base is the moof atom is assumed to follow the data of the previous track fragment,
+ * or to start at the beginning of the mdat payload if there is no previous track fragment.
  */
-public final class FragmentedMp4Extractor implements Extractor {
+public final class FragmentedMp4Extractor implements MultiTrackExtractor {
 
   /**
    * Flag to work around an issue in some video streams where every frame is marked as a sync frame.
@@ -76,81 +84,43 @@ public final class FragmentedMp4Extractor implements Extractor {
   private static final int ATOM_HEADER_SIZE = 8;
   private static final int FULL_ATOM_HEADER_SIZE = 12;
 
-  // Atoms that the parser cares about
-  private static final Set<Integer> PARSED_ATOMS;
-  static {
-    HashSet<Integer> parsedAtoms = new HashSet<Integer>();
-    parsedAtoms.add(Atom.TYPE_avc1);
-    parsedAtoms.add(Atom.TYPE_avc3);
-    parsedAtoms.add(Atom.TYPE_esds);
-    parsedAtoms.add(Atom.TYPE_hdlr);
-    parsedAtoms.add(Atom.TYPE_mdat);
-    parsedAtoms.add(Atom.TYPE_mdhd);
-    parsedAtoms.add(Atom.TYPE_moof);
-    parsedAtoms.add(Atom.TYPE_moov);
-    parsedAtoms.add(Atom.TYPE_mp4a);
-    parsedAtoms.add(Atom.TYPE_sidx);
-    parsedAtoms.add(Atom.TYPE_stsd);
-    parsedAtoms.add(Atom.TYPE_tfdt);
-    parsedAtoms.add(Atom.TYPE_tfhd);
-    parsedAtoms.add(Atom.TYPE_tkhd);
-    parsedAtoms.add(Atom.TYPE_traf);
-    parsedAtoms.add(Atom.TYPE_trak);
-    parsedAtoms.add(Atom.TYPE_trex);
-    parsedAtoms.add(Atom.TYPE_trun);
-    parsedAtoms.add(Atom.TYPE_mvex);
-    parsedAtoms.add(Atom.TYPE_mdia);
-    parsedAtoms.add(Atom.TYPE_minf);
-    parsedAtoms.add(Atom.TYPE_stbl);
-    parsedAtoms.add(Atom.TYPE_pssh);
-    parsedAtoms.add(Atom.TYPE_saiz);
-    parsedAtoms.add(Atom.TYPE_uuid);
-    parsedAtoms.add(Atom.TYPE_senc);
-    PARSED_ATOMS = Collections.unmodifiableSet(parsedAtoms);
-  }
-
-  // Atoms that the parser considers to be containers
-  private static final Set<Integer> CONTAINER_TYPES;
-  static {
-    HashSet<Integer> atomContainerTypes = new HashSet<Integer>();
-    atomContainerTypes.add(Atom.TYPE_moov);
-    atomContainerTypes.add(Atom.TYPE_trak);
-    atomContainerTypes.add(Atom.TYPE_mdia);
-    atomContainerTypes.add(Atom.TYPE_minf);
-    atomContainerTypes.add(Atom.TYPE_stbl);
-    atomContainerTypes.add(Atom.TYPE_avcC);
-    atomContainerTypes.add(Atom.TYPE_moof);
-    atomContainerTypes.add(Atom.TYPE_traf);
-    atomContainerTypes.add(Atom.TYPE_mvex);
-    CONTAINER_TYPES = Collections.unmodifiableSet(atomContainerTypes);
-  }
-
   private final int workaroundFlags;
+  private final boolean extractAllTracks;
 
   // Parser state
   private final ParsableByteArray atomHeader;
   private final byte[] extendedTypeScratch;
+  private final byte[] nalLengthScratch;
   private final Stack<ContainerAtom> containerAtoms;
-  private final Stack<Integer> containerAtomEndPoints;
-  private final TrackFragment fragmentRun;
+  private final ArrayList<TrackBundle> trackBundles;
+  private final DefaultSampleValues fragmentDefaults;
+  private final HashMap<Integer, DefaultSampleValues> ignoredTrackDefaults;
+  private final TrackFragment ignoredTrackFragment;
+  private int[] containerAtomEndPoints;
+  private int containerAtomEndPointCount;
+
+  // Recycled atoms. Atoms are recycled once the top level atom containing them has been parsed.
+  private final ArrayList<LeafAtom> leafAtomPool;
+  private final ArrayList<ContainerAtom> containerAtomPool;
 
   private int parserState;
   private int atomBytesRead;
   private int rootAtomBytesRead;
   private int atomType;
   private int atomSize;
-  private ParsableByteArray atomData;
+  private LeafAtom leafAtom;
+
+  // Positions relative to the start of the current moof atom
+  private long fragmentPosition;
+  private long mdatEndFragmentPosition;
 
-  private int pendingSeekTimeMs;
-  private int sampleIndex;
-  private int pendingSeekSyncSampleIndex;
-  private int lastSyncSampleIndex;
+  private long pendingSeekTimeUs;
+  private TrackBundle currentTrackBundle;
+  private int sampleBytesSkipped;
 
   // Data parsed from moov and sidx atoms
   private final HashMap<UUID, byte[]> psshData;
   private SegmentIndex segmentIndex;
-  private Track track;
-  private DefaultSampleValues extendsDefaults;
 
   public FragmentedMp4Extractor() {
     this(0);
@@ -161,13 +131,30 @@ public final class FragmentedMp4Extractor implements Extractor {
    *     {@link #WORKAROUND_EVERY_VIDEO_FRAME_IS_SYNC_FRAME} is currently the only flag defined.
    */
   public FragmentedMp4Extractor(int workaroundFlags) {
+    this(workaroundFlags, false);
+  }
+
+  /**
+   * @param workaroundFlags Flags to allow parsing of faulty streams.
+   *     {@link #WORKAROUND_EVERY_VIDEO_FRAME_IS_SYNC_FRAME} is currently the only flag defined.
+   * @param extractAllTracks True if the samples of every audio and video track should be
+   *     extracted. False if only the samples of the first track should be extracted.
+   */
+  public FragmentedMp4Extractor(int workaroundFlags, boolean extractAllTracks) {
     this.workaroundFlags = workaroundFlags;
+    this.extractAllTracks = extractAllTracks;
     parserState = STATE_READING_ATOM_HEADER;
     atomHeader = new ParsableByteArray(ATOM_HEADER_SIZE);
     extendedTypeScratch = new byte[16];
+    nalLengthScratch = new byte[4];
     containerAtoms = new Stack<ContainerAtom>();
-    containerAtomEndPoints = new Stack<Integer>();
-    fragmentRun = new TrackFragment();
+    containerAtomEndPoints = new int[8];
+    trackBundles = new ArrayList<TrackBundle>();
+    fragmentDefaults = new DefaultSampleValues(0, 0, 0, 0);
+    ignoredTrackDefaults = new HashMap<Integer, DefaultSampleValues>();
+    ignoredTrackFragment = new TrackFragment();
+    leafAtomPool = new ArrayList<LeafAtom>();
+    containerAtomPool = new ArrayList<ContainerAtom>();
     psshData = new HashMap<UUID, byte[]>();
   }
 
@@ -177,8 +164,8 @@ public final class FragmentedMp4Extractor implements Extractor {
    * @param track The track to sideload.
    */
   public void setTrack(Track track) {
-    this.extendsDefaults = new DefaultSampleValues(0, 0, 0, 0);
-    this.track = track;
+    trackBundles.clear();
+    trackBundles.add(new TrackBundle(track, new DefaultSampleValues(0, 0, 0, 0)));
   }
 
   /**
@@ -212,7 +199,22 @@ public final class FragmentedMp4Extractor implements Extractor {
 
   @Override
   public MediaFormat getFormat() {
-    return track == null ? null : track.mediaFormat;
+    return trackBundles.isEmpty() ? null : trackBundles.get(0).track.mediaFormat;
+  }
+
+  @Override
+  public int getTrackCount() {
+    return trackBundles.size();
+  }
+
+  @Override
+  public MediaFormat getFormat(int track) {
+    return trackBundles.get(track).track.mediaFormat;
+  }
+
+  @Override
+  public int getSampleTrack() {
+    return currentTrackBundle == null ? 0 : trackBundles.indexOf(currentTrackBundle);
   }
 
   @Override
@@ -244,39 +246,67 @@ public final class FragmentedMp4Extractor implements Extractor {
 
   @Override
   public boolean seekTo(long seekTimeUs, boolean allowNoop) {
-    pendingSeekTimeMs = (int) (seekTimeUs / 1000);
-    if (allowNoop && fragmentRun != null
-        && pendingSeekTimeMs >= fragmentRun.getSamplePresentationTime(0)
-        && pendingSeekTimeMs <= fragmentRun.getSamplePresentationTime(fragmentRun.length - 1)) {
+    pendingSeekTimeUs = seekTimeUs;
+    if (allowNoop && isSeekNoop(seekTimeUs)) {
+      pendingSeekTimeUs = 0;
+      return false;
+    }
+    while (!containerAtoms.isEmpty()) {
+      recycleAtom(containerAtoms.pop());
+    }
+    containerAtomEndPointCount = 0;
+    enterState(STATE_READING_ATOM_HEADER);
+    return true;
+  }
+
+  /**
+   * Returns whether a seek to the specified time can be performed as a no-op, as described by
+   * {@link #seekTo(long, boolean)}. If multiple tracks are being extracted then this must be the
+   * case for each track that has samples in the current fragment run.
+   */
+  private boolean isSeekNoop(long seekTimeUs) {
+    boolean isSeekNoop = false;
+    int trackBundleCount = trackBundles.size();
+    for (int i = 0; i < trackBundleCount; i++) {
+      TrackBundle trackBundle = trackBundles.get(i);
+      TrackFragment fragmentRun = trackBundle.fragment;
+      if (fragmentRun.length == 0) {
+        continue;
+      }
+      if (seekTimeUs < fragmentRun.getSamplePresentationTimeUs(0)
+          || seekTimeUs > fragmentRun.getSamplePresentationTimeUs(fragmentRun.length - 1)) {
+        return false;
+      }
       int sampleIndexFound = 0;
       int syncSampleIndexFound = 0;
-      for (int i = 0; i < fragmentRun.length; i++) {
-        if (fragmentRun.getSamplePresentationTime(i) <= pendingSeekTimeMs) {
-          if (fragmentRun.sampleIsSyncFrameTable[i]) {
-            syncSampleIndexFound = i;
+      for (int j = 0; j < fragmentRun.length; j++) {
+        if (fragmentRun.getSamplePresentationTimeUs(j) <= seekTimeUs) {
+          if (fragmentRun.sampleIsSyncFrameTable[j]) {
+            syncSampleIndexFound = j;
           }
-          sampleIndexFound = i;
+          sampleIndexFound = j;
         }
       }
-      if (syncSampleIndexFound == lastSyncSampleIndex && sampleIndexFound >= sampleIndex) {
-        pendingSeekTimeMs = 0;
+      if (syncSampleIndexFound != trackBundle.lastSyncSampleIndex
+          || sampleIndexFound < trackBundle.sampleIndex) {
         return false;
       }
+      isSeekNoop = true;
     }
-    containerAtoms.clear();
-    containerAtomEndPoints.clear();
-    enterState(STATE_READING_ATOM_HEADER);
-    return true;
+    return isSeekNoop;
   }
 
   private void enterState(int state) {
     switch (state) {
       case STATE_READING_ATOM_HEADER:
         atomBytesRead = 0;
-        if (containerAtomEndPoints.isEmpty()) {
+        if (containerAtomEndPointCount == 0) {
           rootAtomBytesRead = 0;
         }
         break;
+      case STATE_READING_SAMPLE:
+        sampleBytesSkipped = 0;
+        break;
     }
     parserState = state;
   }
@@ -289,6 +319,7 @@ public final class FragmentedMp4Extractor implements Extractor {
     }
     rootAtomBytesRead += bytesRead;
     atomBytesRead += bytesRead;
+    fragmentPosition += bytesRead;
     if (atomBytesRead != ATOM_HEADER_SIZE) {
       return RESULT_NEED_MORE_DATA;
     }
@@ -298,7 +329,12 @@ public final class FragmentedMp4Extractor implements Extractor {
     atomType = atomHeader.readInt();
 
     if (atomType == Atom.TYPE_mdat) {
-      if (fragmentRun.sampleEncryptionDataNeedsFill) {
+      mdatEndFragmentPosition = fragmentPosition - ATOM_HEADER_SIZE + atomSize;
+      if (!trackBundles.isEmpty() && trackBundles.get(0).fragment.sampleEncryptionDataNeedsFill) {
+        if (extractAllTracks) {
+          throw new IllegalStateException("Sample encryption data in mdat is only supported when "
+              + "extracting a single track");
+        }
         enterState(STATE_READING_ENCRYPTION_DATA);
       } else {
         enterState(STATE_READING_SAMPLE);
@@ -306,18 +342,21 @@ public final class FragmentedMp4Extractor implements Extractor {
       return 0;
     }
 
-    if (PARSED_ATOMS.contains(atomType)) {
-      if (CONTAINER_TYPES.contains(atomType)) {
-        enterState(STATE_READING_ATOM_HEADER);
-        containerAtoms.add(new ContainerAtom(atomType));
-        containerAtomEndPoints.add(rootAtomBytesRead + atomSize - ATOM_HEADER_SIZE);
-      } else {
-        atomData = new ParsableByteArray(atomSize);
-        System.arraycopy(atomHeader.data, 0, atomData.data, 0, ATOM_HEADER_SIZE);
-        enterState(STATE_READING_ATOM_PAYLOAD);
-      }
+    if (atomType == Atom.TYPE_moof) {
+      // Positions within the fragment are relative to the start of the moof atom.
+      fragmentPosition = ATOM_HEADER_SIZE;
+    }
+
+    if (isParsedContainerAtom(atomType)) {
+      enterState(STATE_READING_ATOM_HEADER);
+      containerAtoms.add(obtainContainerAtom(atomType));
+      pushContainerAtomEndPoint(rootAtomBytesRead + atomSize - ATOM_HEADER_SIZE);
+    } else if (isParsedLeafAtom(atomType)) {
+      leafAtom = obtainLeafAtom(atomType, atomSize);
+      System.arraycopy(atomHeader.data, 0, leafAtom.data.data, 0, ATOM_HEADER_SIZE);
+      enterState(STATE_READING_ATOM_PAYLOAD);
     } else {
-      atomData = null;
+      leafAtom = null;
       enterState(STATE_READING_ATOM_PAYLOAD);
     }
 
@@ -326,8 +365,8 @@ public final class FragmentedMp4Extractor implements Extractor {
 
   private int readAtomPayload(NonBlockingInputStream inputStream) {
     int bytesRead;
-    if (atomData != null) {
-      bytesRead = inputStream.read(atomData.data, atomBytesRead, atomSize - atomBytesRead);
+    if (leafAtom != null) {
+      bytesRead = inputStream.read(leafAtom.data.data, atomBytesRead, atomSize - atomBytesRead);
     } else {
       bytesRead = inputStream.skip(atomSize - atomBytesRead);
     }
@@ -336,18 +375,20 @@ public final class FragmentedMp4Extractor implements Extractor {
     }
     rootAtomBytesRead += bytesRead;
     atomBytesRead += bytesRead;
+    fragmentPosition += bytesRead;
     if (atomBytesRead != atomSize) {
       return RESULT_NEED_MORE_DATA;
     }
 
     int results = 0;
-    if (atomData != null) {
-      results |= onLeafAtomRead(new LeafAtom(atomType, atomData));
+    if (leafAtom != null) {
+      results |= onLeafAtomRead(leafAtom);
+      leafAtom = null;
     }
 
-    while (!containerAtomEndPoints.isEmpty()
-        && containerAtomEndPoints.peek() == rootAtomBytesRead) {
-      containerAtomEndPoints.pop();
+    while (containerAtomEndPointCount > 0
+        && containerAtomEndPoints[containerAtomEndPointCount - 1] == rootAtomBytesRead) {
+      containerAtomEndPointCount--;
       results |= onContainerAtomRead(containerAtoms.pop());
     }
 
@@ -358,23 +399,122 @@ public final class FragmentedMp4Extractor implements Extractor {
   private int onLeafAtomRead(LeafAtom leaf) {
     if (!containerAtoms.isEmpty()) {
       containerAtoms.peek().add(leaf);
-    } else if (leaf.type == Atom.TYPE_sidx) {
+      return 0;
+    }
+    int results = 0;
+    if (leaf.type == Atom.TYPE_sidx) {
       segmentIndex = parseSidx(leaf.data);
-      return RESULT_READ_INDEX;
+      results = RESULT_READ_INDEX;
     }
-    return 0;
+    recycleAtom(leaf);
+    return results;
   }
 
   private int onContainerAtomRead(ContainerAtom container) {
+    if (!containerAtoms.isEmpty()) {
+      containerAtoms.peek().add(container);
+      return 0;
+    }
+    int results = 0;
     if (container.type == Atom.TYPE_moov) {
       onMoovContainerAtomRead(container);
-      return RESULT_READ_INIT;
+      results = RESULT_READ_INIT;
     } else if (container.type == Atom.TYPE_moof) {
       onMoofContainerAtomRead(container);
-    } else if (!containerAtoms.isEmpty()) {
-      containerAtoms.peek().add(container);
     }
-    return 0;
+    recycleAtom(container);
+    return results;
+  }
+
+  private void pushContainerAtomEndPoint(int endPoint) {
+    if (containerAtomEndPointCount == containerAtomEndPoints.length) {
+      containerAtomEndPoints =
+          Arrays.copyOf(containerAtomEndPoints, containerAtomEndPointCount * 2);
+    }
+    containerAtomEndPoints[containerAtomEndPointCount++] = endPoint;
+  }
+
+  private LeafAtom obtainLeafAtom(int type, int size) {
+    if (leafAtomPool.isEmpty()) {
+      return new LeafAtom(type, new ParsableByteArray(size));
+    }
+    LeafAtom atom = leafAtomPool.remove(leafAtomPool.size() - 1);
+    atom.reset(type, size);
+    return atom;
+  }
+
+  private ContainerAtom obtainContainerAtom(int type) {
+    if (containerAtomPool.isEmpty()) {
+      return new ContainerAtom(type);
+    }
+    ContainerAtom atom = containerAtomPool.remove(containerAtomPool.size() - 1);
+    atom.reset(type);
+    return atom;
+  }
+
+  /**
+   * Returns an atom and its descendants to the pools of atoms available for reuse.
+   */
+  private void recycleAtom(Atom atom) {
+    if (atom instanceof LeafAtom) {
+      leafAtomPool.add((LeafAtom) atom);
+    } else {
+      ContainerAtom container = (ContainerAtom) atom;
+      ArrayList<Atom> children = container.children;
+      int childrenSize = children.size();
+      for (int i = 0; i < childrenSize; i++) {
+        recycleAtom(children.get(i));
+      }
+      children.clear();
+      containerAtomPool.add(container);
+    }
+  }
+
+  /**
+   * Returns whether the parser should parse a container atom of the specified type.
+   */
+  private static boolean isParsedContainerAtom(int atomType) {
+    switch (atomType) {
+      case Atom.TYPE_moov:
+      case Atom.TYPE_trak:
+      case Atom.TYPE_mdia:
+      case Atom.TYPE_minf:
+      case Atom.TYPE_stbl:
+      case Atom.TYPE_moof:
+      case Atom.TYPE_traf:
+      case Atom.TYPE_mvex:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether the parser should parse a leaf atom of the specified type.
+   */
+  private static boolean isParsedLeafAtom(int atomType) {
+    switch (atomType) {
+      case Atom.TYPE_esds:
+      case Atom.TYPE_hdlr:
+      case Atom.TYPE_mdhd:
+      case Atom.TYPE_sidx:
+      case Atom.TYPE_stsd:
+      case Atom.TYPE_tfdt:
+      case Atom.TYPE_tfhd:
+      case Atom.TYPE_tkhd:
+      case Atom.TYPE_trex:
+      case Atom.TYPE_trun:
+      case Atom.TYPE_pssh:
+      case Atom.TYPE_saiz:
+      case Atom.TYPE_uuid:
+      case Atom.TYPE_senc:
+      case Atom.TYPE_avc1:
+      case Atom.TYPE_avc3:
+      case Atom.TYPE_mp4a:
+        return true;
+      default:
+        return false;
+    }
   }
 
   private void onMoovContainerAtomRead(ContainerAtom moov) {
@@ -393,26 +533,192 @@ public final class FragmentedMp4Extractor implements Extractor {
       }
     }
     ContainerAtom mvex = moov.getContainerAtomOfType(Atom.TYPE_mvex);
-    extendsDefaults = parseTrex(mvex.getLeafAtomOfType(Atom.TYPE_trex).data);
-    track = parseTrak(moov.getContainerAtomOfType(Atom.TYPE_trak));
+    trackBundles.clear();
+    ignoredTrackDefaults.clear();
+    currentTrackBundle = null;
+    if (!extractAllTracks) {
+      Track track = parseTrak(moov.getContainerAtomOfType(Atom.TYPE_trak));
+      Assertions.checkState(track != null);
+      DefaultSampleValues extendsDefaults =
+          parseTrex(mvex.getLeafAtomOfType(Atom.TYPE_trex).data);
+      trackBundles.add(new TrackBundle(track, extendsDefaults));
+      return;
+    }
+    for (int i = 0; i < moovChildrenSize; i++) {
+      Atom child = moovChildren.get(i);
+      if (child.type != Atom.TYPE_trak) {
+        continue;
+      }
+      Track track = parseTrak((ContainerAtom) child);
+      if (track != null) {
+        DefaultSampleValues extendsDefaults = parseTrex(findTrex(mvex, track.id).data);
+        trackBundles.add(new TrackBundle(track, extendsDefaults));
+      } else {
+        // The defaults are retained so that the extent of the track's sample data can be parsed.
+        int trackId = parseTkhd(((ContainerAtom) child).getLeafAtomOfType(Atom.TYPE_tkhd).data)
+            .first;
+        ignoredTrackDefaults.put(trackId, parseTrex(findTrex(mvex, trackId).data));
+      }
+    }
+    Assertions.checkState(!trackBundles.isEmpty());
   }
 
   private void onMoofContainerAtomRead(ContainerAtom moof) {
-    fragmentRun.reset();
-    parseMoof(track, extendsDefaults, moof, fragmentRun, workaroundFlags, extendedTypeScratch);
-    sampleIndex = 0;
-    lastSyncSampleIndex = 0;
-    pendingSeekSyncSampleIndex = 0;
-    if (pendingSeekTimeMs != 0) {
-      for (int i = 0; i < fragmentRun.length; i++) {
-        if (fragmentRun.sampleIsSyncFrameTable[i]) {
-          if (fragmentRun.getSamplePresentationTime(i) <= pendingSeekTimeMs) {
-            pendingSeekSyncSampleIndex = i;
+    currentTrackBundle = null;
+    int trackBundleCount = trackBundles.size();
+    for (int i = 0; i < trackBundleCount; i++) {
+      trackBundles.get(i).fragment.reset();
+    }
+    if (!extractAllTracks) {
+      TrackBundle trackBundle = trackBundles.get(0);
+      parseTraf(trackBundle.track, trackBundle.extendsDefaults,
+          moof.getContainerAtomOfType(Atom.TYPE_traf), trackBundle.fragment, fragmentDefaults,
+          workaroundFlags, extendedTypeScratch);
+    } else {
+      // The base data offset of each traf is resolved as defined in 14496-12. It's the start of
+      // the moof atom if default-base-is-moof is set, and for the first traf, and is otherwise the
+      // end of the data of the previous traf. Explicit base data offsets are absolute, and are
+      // resolved using the position of the moof atom in the file, as estimated by
+      // getMoofFilePosition. A run without a data offset that would start at the moof atom is
+      // instead assumed to start at the beginning of the mdat payload that follows.
+      long mdatPayloadFragmentPosition = fragmentPosition + ATOM_HEADER_SIZE;
+      long moofFilePosition = getMoofFilePosition(moof, mdatPayloadFragmentPosition);
+      long previousTrafDataEnd = -1;
+      List<Atom> moofChildren = moof.children;
+      int moofChildrenSize = moofChildren.size();
+      for (int i = 0; i < moofChildrenSize; i++) {
+        Atom child = moofChildren.get(i);
+        if (child.type != Atom.TYPE_traf) {
+          continue;
+        }
+        ContainerAtom traf = (ContainerAtom) child;
+        ParsableByteArray tfhd = traf.getLeafAtomOfType(Atom.TYPE_tfhd).data;
+        int tfhdFlags = parseTfhdFlags(tfhd);
+        long baseFragmentPosition;
+        if ((tfhdFlags & 0x01 /* base_data_offset_present */) != 0) {
+          baseFragmentPosition = parseTfhdBaseDataOffset(tfhd) - moofFilePosition;
+        } else if ((tfhdFlags & 0x20000 /* default_base_is_moof */) != 0
+            || previousTrafDataEnd == -1) {
+          baseFragmentPosition = 0;
+        } else {
+          baseFragmentPosition = previousTrafDataEnd;
+        }
+        int trackId = parseTfhdTrackId(tfhd);
+        TrackBundle trackBundle = getTrackBundle(trackId);
+        TrackFragment fragmentRun;
+        long runSize = 0;
+        if (trackBundle != null) {
+          fragmentRun = trackBundle.fragment;
+          parseTraf(trackBundle.track, trackBundle.extendsDefaults, traf, fragmentRun,
+              fragmentDefaults, workaroundFlags, extendedTypeScratch);
+          for (int j = 0; j < fragmentRun.length; j++) {
+            runSize += fragmentRun.sampleSizeTable[j];
+          }
+        } else {
+          DefaultSampleValues extendsDefaults = ignoredTrackDefaults.get(trackId);
+          if (extendsDefaults == null) {
+            throw new IllegalStateException("Unexpected track: " + trackId);
+          }
+          fragmentRun = ignoredTrackFragment;
+          runSize = parseTrunExtent(parseTfhd(extendsDefaults, tfhd, fragmentDefaults),
+              traf.getLeafAtomOfType(Atom.TYPE_trun).data, fragmentRun);
+        }
+        long runFragmentPosition;
+        if (fragmentRun.definesDataOffset) {
+          runFragmentPosition = baseFragmentPosition + fragmentRun.dataOffset;
+        } else if (baseFragmentPosition == 0) {
+          runFragmentPosition = previousTrafDataEnd == -1 ? mdatPayloadFragmentPosition
+              : previousTrafDataEnd;
+        } else {
+          runFragmentPosition = baseFragmentPosition;
+        }
+        if (trackBundle != null) {
+          trackBundle.nextSampleFragmentPosition = runFragmentPosition;
+        }
+        previousTrafDataEnd = runFragmentPosition + runSize;
+      }
+    }
+    for (int i = 0; i < trackBundleCount; i++) {
+      TrackBundle trackBundle = trackBundles.get(i);
+      TrackFragment fragmentRun = trackBundle.fragment;
+      trackBundle.sampleIndex = 0;
+      trackBundle.lastSyncSampleIndex = 0;
+      trackBundle.pendingSeekSyncSampleIndex = 0;
+      if (pendingSeekTimeUs != 0) {
+        for (int j = 0; j < fragmentRun.length; j++) {
+          if (fragmentRun.sampleIsSyncFrameTable[j]) {
+            if (fragmentRun.getSamplePresentationTimeUs(j) <= pendingSeekTimeUs) {
+              trackBundle.pendingSeekSyncSampleIndex = j;
+            }
           }
         }
       }
-      pendingSeekTimeMs = 0;
     }
+    pendingSeekTimeUs = 0;
+  }
+
+  /**
+   * Returns the position of the specified moof atom in the file, for resolving explicit base data
+   * offsets. The position can't be observed, since the extractor may be passed any part of the
+   * file. The earliest run whose traf defines a base data offset is therefore assumed to start at
+   * the beginning of the mdat payload that follows the moof atom.
+   *
+   * @param moof The moof atom.
+   * @param mdatPayloadFragmentPosition The position of the mdat payload relative to the start of
+   *     the moof atom.
+   * @return The position of the moof atom in the file, or 0 if none of its trafs define a base
+   *     data offset.
+   */
+  private static long getMoofFilePosition(ContainerAtom moof, long mdatPayloadFragmentPosition) {
+    long firstRunFilePosition = Long.MAX_VALUE;
+    List<Atom> moofChildren = moof.children;
+    int moofChildrenSize = moofChildren.size();
+    for (int i = 0; i < moofChildrenSize; i++) {
+      Atom child = moofChildren.get(i);
+      if (child.type != Atom.TYPE_traf) {
+        continue;
+      }
+      ContainerAtom traf = (ContainerAtom) child;
+      ParsableByteArray tfhd = traf.getLeafAtomOfType(Atom.TYPE_tfhd).data;
+      if ((parseTfhdFlags(tfhd) & 0x01 /* base_data_offset_present */) != 0) {
+        long runFilePosition = parseTfhdBaseDataOffset(tfhd)
+            + parseTrunDataOffset(traf.getLeafAtomOfType(Atom.TYPE_trun).data);
+        firstRunFilePosition = Math.min(firstRunFilePosition, runFilePosition);
+      }
+    }
+    return firstRunFilePosition == Long.MAX_VALUE ? 0
+        : firstRunFilePosition - mdatPayloadFragmentPosition;
+  }
+
+  private TrackBundle getTrackBundle(int trackId) {
+    int trackBundleCount = trackBundles.size();
+    for (int i = 0; i < trackBundleCount; i++) {
+      TrackBundle trackBundle = trackBundles.get(i);
+      if (trackBundle.track.id == trackId) {
+        return trackBundle;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the trex atom corresponding to the specified track, or the first trex atom if none of
+   * them correspond to the track.
+   */
+  private static LeafAtom findTrex(ContainerAtom mvex, int trackId) {
+    List<Atom> mvexChildren = mvex.children;
+    int mvexChildrenSize = mvexChildren.size();
+    for (int i = 0; i < mvexChildrenSize; i++) {
+      Atom child = mvexChildren.get(i);
+      if (child.type == Atom.TYPE_trex) {
+        ParsableByteArray trex = ((LeafAtom) child).data;
+        trex.setPosition(FULL_ATOM_HEADER_SIZE);
+        if (trex.readInt() == trackId) {
+          return (LeafAtom) child;
+        }
+      }
+    }
+    return mvex.getLeafAtomOfType(Atom.TYPE_trex);
   }
 
   /**
@@ -430,11 +736,15 @@ public final class FragmentedMp4Extractor implements Extractor {
 
   /**
    * Parses a trak atom (defined in 14496-12).
+   *
+   * @return The parsed track, or null if the track is neither an audio nor a video track.
    */
   private static Track parseTrak(ContainerAtom trak) {
     ContainerAtom mdia = trak.getContainerAtomOfType(Atom.TYPE_mdia);
     int trackType = parseHdlr(mdia.getLeafAtomOfType(Atom.TYPE_hdlr).data);
-    Assertions.checkState(trackType == Track.TYPE_AUDIO || trackType == Track.TYPE_VIDEO);
+    if (trackType != Track.TYPE_AUDIO && trackType != Track.TYPE_VIDEO) {
+      return null;
+    }
 
     Pair<Integer, Long> header = parseTkhd(trak.getLeafAtomOfType(Atom.TYPE_tkhd).data);
     int id = header.first;
@@ -446,9 +756,9 @@ public final class FragmentedMp4Extractor implements Extractor {
     ContainerAtom stbl = mdia.getContainerAtomOfType(Atom.TYPE_minf)
         .getContainerAtomOfType(Atom.TYPE_stbl);
 
-    Pair<MediaFormat, TrackEncryptionBox[]> sampleDescriptions =
-        parseStsd(stbl.getLeafAtomOfType(Atom.TYPE_stsd).data);
-    return new Track(id, trackType, timescale, sampleDescriptions.first, sampleDescriptions.second);
+    StsdDataHolder stsdData = parseStsd(stbl.getLeafAtomOfType(Atom.TYPE_stsd).data);
+    return new Track(id, trackType, timescale, stsdData.mediaFormat,
+        stsdData.trackEncryptionBoxes, stsdData.nalUnitLengthFieldLength);
   }
 
   /**
@@ -496,34 +806,30 @@ public final class FragmentedMp4Extractor implements Extractor {
     return mdhd.readUnsignedInt();
   }
 
-  private static Pair<MediaFormat, TrackEncryptionBox[]> parseStsd(ParsableByteArray stsd) {
+  private static StsdDataHolder parseStsd(ParsableByteArray stsd) {
     stsd.setPosition(FULL_ATOM_HEADER_SIZE);
     int numberOfEntries = stsd.readInt();
-    MediaFormat mediaFormat = null;
-    TrackEncryptionBox[] trackEncryptionBoxes = new TrackEncryptionBox[numberOfEntries];
+    StsdDataHolder out = new StsdDataHolder(numberOfEntries);
     for (int i = 0; i < numberOfEntries; i++) {
       int childStartPosition = stsd.getPosition();
       int childAtomSize = stsd.readInt();
       int childAtomType = stsd.readInt();
       if (childAtomType == Atom.TYPE_avc1 || childAtomType == Atom.TYPE_avc3
           || childAtomType == Atom.TYPE_encv) {
-        Pair<MediaFormat, TrackEncryptionBox> avc =
-            parseAvcFromParent(stsd, childStartPosition, childAtomSize);
-        mediaFormat = avc.first;
-        trackEncryptionBoxes[i] = avc.second;
+        parseAvcFromParent(stsd, childStartPosition, childAtomSize, out, i);
       } else if (childAtomType == Atom.TYPE_mp4a || childAtomType == Atom.TYPE_enca) {
         Pair<MediaFormat, TrackEncryptionBox> mp4a =
             parseMp4aFromParent(stsd, childStartPosition, childAtomSize);
-        mediaFormat = mp4a.first;
-        trackEncryptionBoxes[i] = mp4a.second;
+        out.mediaFormat = mp4a.first;
+        out.trackEncryptionBoxes[i] = mp4a.second;
       }
       stsd.setPosition(childStartPosition + childAtomSize);
     }
-    return Pair.create(mediaFormat, trackEncryptionBoxes);
+    return out;
   }
 
-  private static Pair<MediaFormat, TrackEncryptionBox> parseAvcFromParent(ParsableByteArray parent,
-      int position, int size) {
+  private static void parseAvcFromParent(ParsableByteArray parent, int position, int size,
+      StsdDataHolder out, int entryIndex) {
     parent.setPosition(position + ATOM_HEADER_SIZE);
 
     parent.skip(24);
@@ -540,6 +846,9 @@ public final class FragmentedMp4Extractor implements Extractor {
       int childAtomSize = parent.readInt();
       int childAtomType = parent.readInt();
       if (childAtomType == Atom.TYPE_avcC) {
+        parent.setPosition(childStartPosition + ATOM_HEADER_SIZE + 4);
+        // The length of the NAL unit length field (defined in 14496-15).
+        out.nalUnitLengthFieldLength = (parent.readUnsignedByte() & 0x3) + 1;
         initializationData = parseAvcCFromParent(parent, childStartPosition);
       } else if (childAtomType == Atom.TYPE_sinf) {
         trackEncryptionBox = parseSinfFromParent(parent, childStartPosition, childAtomSize);
@@ -547,9 +856,9 @@ public final class FragmentedMp4Extractor implements Extractor {
       childPosition += childAtomSize;
     }
 
-    MediaFormat format = MediaFormat.createVideoFormat(MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE,
+    out.mediaFormat = MediaFormat.createVideoFormat(MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE,
         width, height, initializationData);
-    return Pair.create(format, trackEncryptionBox);
+    out.trackEncryptionBoxes[entryIndex] = trackEncryptionBox;
   }
 
   private static Pair<MediaFormat, TrackEncryptionBox> parseMp4aFromParent(ParsableByteArray parent,
@@ -592,12 +901,7 @@ public final class FragmentedMp4Extractor implements Extractor {
   private static List<byte[]> parseAvcCFromParent(ParsableByteArray parent, int position) {
     parent.setPosition(position + ATOM_HEADER_SIZE + 4);
     // Start of the AVCDecoderConfigurationRecord (defined in 14496-15)
-    int nalUnitLength = (parent.readUnsignedByte() & 0x3) + 1;
-    if (nalUnitLength != 4) {
-      // readSample currently relies on a nalUnitLength of 4.
-      // TODO: Consider handling the case where it isn't.
-      throw new IllegalStateException();
-    }
+    parent.skip(1); // The NAL unit length field length, which is parsed in parseAvcFromParent.
     List<byte[]> initializationData = new ArrayList<byte[]>();
     // TODO: We should try and parse these using CodecSpecificDataUtil.parseSpsNalUnit, and
     // expose the AVC profile and level somewhere useful; Most likely in MediaFormat.
@@ -707,22 +1011,17 @@ public final class FragmentedMp4Extractor implements Extractor {
     return initializationData;
   }
 
-  private static void parseMoof(Track track, DefaultSampleValues extendsDefaults,
-      ContainerAtom moof, TrackFragment out, int workaroundFlags, byte[] extendedTypeScratch) {
-    parseTraf(track, extendsDefaults, moof.getContainerAtomOfType(Atom.TYPE_traf),
-        out, workaroundFlags, extendedTypeScratch);
-  }
-
   /**
    * Parses a traf atom (defined in 14496-12).
    */
   private static void parseTraf(Track track, DefaultSampleValues extendsDefaults,
-      ContainerAtom traf, TrackFragment out, int workaroundFlags, byte[] extendedTypeScratch) {
+      ContainerAtom traf, TrackFragment out, DefaultSampleValues fragmentDefaults,
+      int workaroundFlags, byte[] extendedTypeScratch) {
     LeafAtom tfdtAtom = traf.getLeafAtomOfType(Atom.TYPE_tfdt);
     long decodeTime = tfdtAtom == null ? 0 : parseTfdt(traf.getLeafAtomOfType(Atom.TYPE_tfdt).data);
 
     LeafAtom tfhd = traf.getLeafAtomOfType(Atom.TYPE_tfhd);
-    DefaultSampleValues fragmentHeader = parseTfhd(extendsDefaults, tfhd.data);
+    DefaultSampleValues fragmentHeader = parseTfhd(extendsDefaults, tfhd.data, fragmentDefaults);
     out.sampleDescriptionIndex = fragmentHeader.sampleDescriptionIndex;
 
     LeafAtom trun = traf.getLeafAtomOfType(Atom.TYPE_trun);
@@ -782,10 +1081,11 @@ public final class FragmentedMp4Extractor implements Extractor {
    * Parses a tfhd atom (defined in 14496-12).
    *
    * @param extendsDefaults Default sample values from the trex atom.
-   * @return The parsed default sample values.
+   * @param out The {@link DefaultSampleValues} into which the parsed values should be placed.
+   * @return {@code out}.
    */
   private static DefaultSampleValues parseTfhd(DefaultSampleValues extendsDefaults,
-      ParsableByteArray tfhd) {
+      ParsableByteArray tfhd, DefaultSampleValues out) {
     tfhd.setPosition(ATOM_HEADER_SIZE);
     int fullAtom = tfhd.readInt();
     int flags = parseFullAtomFlags(fullAtom);
@@ -804,8 +1104,34 @@ public final class FragmentedMp4Extractor implements Extractor {
         tfhd.readUnsignedIntToInt() : extendsDefaults.size;
     int defaultSampleFlags = ((flags & 0x20 /* default_sample_flags_present */) != 0) ?
         tfhd.readUnsignedIntToInt() : extendsDefaults.flags;
-    return new DefaultSampleValues(defaultSampleDescriptionIndex, defaultSampleDuration,
-        defaultSampleSize, defaultSampleFlags);
+    out.set(defaultSampleDescriptionIndex, defaultSampleDuration, defaultSampleSize,
+        defaultSampleFlags);
+    return out;
+  }
+
+  /**
+   * Parses the flags of a tfhd atom (defined in 14496-12).
+   */
+  private static int parseTfhdFlags(ParsableByteArray tfhd) {
+    tfhd.setPosition(ATOM_HEADER_SIZE);
+    return parseFullAtomFlags(tfhd.readInt());
+  }
+
+  /**
+   * Parses the base data offset from a tfhd atom (defined in 14496-12) whose
+   * base_data_offset_present flag is set.
+   */
+  private static long parseTfhdBaseDataOffset(ParsableByteArray tfhd) {
+    tfhd.setPosition(FULL_ATOM_HEADER_SIZE + 4);
+    return tfhd.readUnsignedLongToLong();
+  }
+
+  /**
+   * Parses the track id from a tfhd atom (defined in 14496-12).
+   */
+  private static int parseTfhdTrackId(ParsableByteArray tfhd) {
+    tfhd.setPosition(FULL_ATOM_HEADER_SIZE);
+    return tfhd.readInt();
   }
 
   /**
@@ -837,9 +1163,8 @@ public final class FragmentedMp4Extractor implements Extractor {
     int flags = parseFullAtomFlags(fullAtom);
 
     int sampleCount = trun.readUnsignedIntToInt();
-    if ((flags & 0x01 /* data_offset_present */) != 0) {
-      trun.skip(4);
-    }
+    boolean dataOffsetPresent = (flags & 0x01 /* data_offset_present */) != 0;
+    int dataOffset = dataOffsetPresent ? trun.readInt() : 0;
 
     boolean firstSampleFlagsPresent = (flags & 0x04 /* first_sample_flags_present */) != 0;
     int firstSampleFlags = defaultSampleValues.flags;
@@ -854,9 +1179,11 @@ public final class FragmentedMp4Extractor implements Extractor {
         (flags & 0x800 /* sample_composition_time_offsets_present */) != 0;
 
     out.initTables(sampleCount);
+    out.definesDataOffset = dataOffsetPresent;
+    out.dataOffset = dataOffset;
     int[] sampleSizeTable = out.sampleSizeTable;
-    int[] sampleDecodingTimeTable = out.sampleDecodingTimeTable;
-    int[] sampleCompositionTimeOffsetTable = out.sampleCompositionTimeOffsetTable;
+    long[] sampleDecodingTimeUsTable = out.sampleDecodingTimeUsTable;
+    long[] sampleCompositionTimeOffsetUsTable = out.sampleCompositionTimeOffsetUsTable;
     boolean[] sampleIsSyncFrameTable = out.sampleIsSyncFrameTable;
 
     long timescale = track.timescale;
@@ -878,11 +1205,13 @@ public final class FragmentedMp4Extractor implements Extractor {
         // here, because unsigned integers will still be parsed correctly (unless their top bit is
         // set, which is never true in practice because sample offsets are always small).
         int sampleOffset = trun.readInt();
-        sampleCompositionTimeOffsetTable[i] = (int) ((sampleOffset * 1000) / timescale);
+        sampleCompositionTimeOffsetUsTable[i] =
+            Util.scaleLargeTimestamp(sampleOffset, 1000000L, timescale);
       } else {
-        sampleCompositionTimeOffsetTable[i] = 0;
+        sampleCompositionTimeOffsetUsTable[i] = 0;
       }
-      sampleDecodingTimeTable[i] = (int) ((cumulativeTime * 1000) / timescale);
+      sampleDecodingTimeUsTable[i] =
+          Util.scaleLargeTimestamp(cumulativeTime, 1000000L, timescale);
       sampleSizeTable[i] = sampleSize;
       sampleIsSyncFrameTable[i] = ((sampleFlags >> 16) & 0x1) == 0
           && (!workaroundEveryVideoFrameIsSyncFrame || i == 0);
@@ -890,6 +1219,52 @@ public final class FragmentedMp4Extractor implements Extractor {
     }
   }
 
+  /**
+   * Parses the data offset from a trun atom (defined in 14496-12).
+   *
+   * @return The data offset, or 0 if the trun doesn't define one.
+   */
+  private static int parseTrunDataOffset(ParsableByteArray trun) {
+    trun.setPosition(ATOM_HEADER_SIZE);
+    int flags = parseFullAtomFlags(trun.readInt());
+    trun.skip(4); // sample_count
+    return (flags & 0x01 /* data_offset_present */) != 0 ? trun.readInt() : 0;
+  }
+
+  /**
+   * Parses the data offset and the total size of the samples of a trun atom (defined in
+   * 14496-12), for a track whose samples aren't extracted.
+   *
+   * @param defaultSampleValues Default sample values.
+   * @param trun The trun atom to parse.
+   * @param out The {@link TrackFragment} into which the data offset should be placed.
+   * @return The total size of the samples in the run.
+   */
+  private static long parseTrunExtent(DefaultSampleValues defaultSampleValues,
+      ParsableByteArray trun, TrackFragment out) {
+    trun.setPosition(ATOM_HEADER_SIZE);
+    int flags = parseFullAtomFlags(trun.readInt());
+    int sampleCount = trun.readUnsignedIntToInt();
+    out.definesDataOffset = (flags & 0x01 /* data_offset_present */) != 0;
+    out.dataOffset = out.definesDataOffset ? trun.readInt() : 0;
+    if ((flags & 0x200 /* sample_size_present */) == 0) {
+      return (long) sampleCount * defaultSampleValues.size;
+    }
+    if ((flags & 0x04 /* first_sample_flags_present */) != 0) {
+      trun.skip(4);
+    }
+    int bytesBeforeSize = (flags & 0x100 /* sample_duration_present */) != 0 ? 4 : 0;
+    int bytesAfterSize = ((flags & 0x400 /* sample_flags_present */) != 0 ? 4 : 0)
+        + ((flags & 0x800 /* sample_composition_time_offsets_present */) != 0 ? 4 : 0);
+    long size = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      trun.skip(bytesBeforeSize);
+      size += trun.readUnsignedIntToInt();
+      trun.skip(bytesAfterSize);
+    }
+    return size;
+  }
+
   private static void parseUuid(ParsableByteArray uuid, TrackFragment out,
       byte[] extendedTypeScratch) {
     uuid.setPosition(ATOM_HEADER_SIZE);
@@ -975,8 +1350,8 @@ public final class FragmentedMp4Extractor implements Extractor {
 
       // Calculate time and duration values such that any rounding errors are consistent. i.e. That
       // timesUs[i] + durationsUs[i] == timesUs[i + 1].
-      timesUs[i] = (time * 1000000L) / timescale;
-      long nextTimeUs = ((time + referenceDuration) * 1000000L) / timescale;
+      timesUs[i] = Util.scaleLargeTimestamp(time, 1000000L, timescale);
+      long nextTimeUs = Util.scaleLargeTimestamp(time + referenceDuration, 1000000L, timescale);
       durationsUs[i] = nextTimeUs - timesUs[i];
       time += referenceDuration;
 
@@ -988,10 +1363,12 @@ public final class FragmentedMp4Extractor implements Extractor {
   }
 
   private int readEncryptionData(NonBlockingInputStream inputStream) {
+    TrackFragment fragmentRun = trackBundles.get(0).fragment;
     boolean success = fragmentRun.fillEncryptionData(inputStream);
     if (!success) {
       return RESULT_NEED_MORE_DATA;
     }
+    fragmentPosition += fragmentRun.sampleEncryptionDataLength;
     enterState(STATE_READING_SAMPLE);
     return 0;
   }
@@ -1000,7 +1377,8 @@ public final class FragmentedMp4Extractor implements Extractor {
    * Attempts to read or skip the next sample in the current mdat atom.
    * <p>
    * If there are no more samples in the current mdat atom then the parser state is transitioned
-   * to {@link #STATE_READING_ATOM_HEADER} and 0 is returned.
+   * to {@link #STATE_READING_ATOM_HEADER} and 0 is returned. If all tracks are being extracted then
+   * the remainder of the mdat atom is skipped first.
    * <p>
    * If there's a pending seek to a sync frame, and if the next sample is before that frame, then
    * the sample is skipped. Otherwise it is read.
@@ -1014,26 +1392,100 @@ public final class FragmentedMp4Extractor implements Extractor {
    * @return A combination of RESULT_* flags indicating the result of the call.
    */
   private int readOrSkipSample(NonBlockingInputStream inputStream, SampleHolder out) {
-    if (sampleIndex >= fragmentRun.length) {
+    TrackBundle trackBundle = extractAllTracks ? getNextSampleTrackBundle()
+        : trackBundles.get(0);
+    if (trackBundle == null || trackBundle.sampleIndex >= trackBundle.fragment.length) {
       // We've run out of samples in the current mdat atom.
+      if (extractAllTracks) {
+        return skipMdatRemainder();
+      }
       enterState(STATE_READING_ATOM_HEADER);
       return 0;
     }
-    int sampleSize = fragmentRun.sampleSizeTable[sampleIndex];
-    if (inputStream.getAvailableByteCount() < sampleSize) {
-      return RESULT_NEED_MORE_DATA;
+    if (extractAllTracks) {
+      // Skip any data that precedes the sample.
+      long bytesToSkip = trackBundle.nextSampleFragmentPosition - fragmentPosition;
+      Assertions.checkState(bytesToSkip >= 0);
+      if (bytesToSkip > 0) {
+        int bytesSkipped = inputStream.skip((int) bytesToSkip);
+        if (bytesSkipped == -1) {
+          return RESULT_END_OF_STREAM;
+        }
+        fragmentPosition += bytesSkipped;
+        if (bytesSkipped != bytesToSkip) {
+          return RESULT_NEED_MORE_DATA;
+        }
+      }
     }
-    if (sampleIndex < pendingSeekSyncSampleIndex) {
+    currentTrackBundle = trackBundle;
+    int sampleIndex = trackBundle.sampleIndex;
+    int sampleSize = trackBundle.fragment.sampleSizeTable[sampleIndex];
+    if (sampleIndex < trackBundle.pendingSeekSyncSampleIndex) {
+      // Samples preceding the seek position are skipped as their data arrives, rather than once
+      // each has been loaded in full.
       return skipSample(inputStream, sampleSize);
     }
+    if (inputStream.getAvailableByteCount() < sampleSize) {
+      return RESULT_NEED_MORE_DATA;
+    }
     return readSample(inputStream, sampleSize, out);
   }
 
+  /**
+   * Returns the track whose next sample is positioned first in the current mdat atom, or null if
+   * none of the tracks have any remaining samples.
+   */
+  private TrackBundle getNextSampleTrackBundle() {
+    TrackBundle nextTrackBundle = null;
+    int trackBundleCount = trackBundles.size();
+    for (int i = 0; i < trackBundleCount; i++) {
+      TrackBundle trackBundle = trackBundles.get(i);
+      if (trackBundle.sampleIndex < trackBundle.fragment.length && (nextTrackBundle == null
+          || trackBundle.nextSampleFragmentPosition
+          < nextTrackBundle.nextSampleFragmentPosition)) {
+        nextTrackBundle = trackBundle;
+      }
+    }
+    return nextTrackBundle;
+  }
+
+  /**
+   * Transitions to skipping any data remaining in the current mdat atom once all of its samples
+   * have been read.
+   */
+  private int skipMdatRemainder() {
+    long bytesRemaining = mdatEndFragmentPosition - fragmentPosition;
+    Assertions.checkState(bytesRemaining >= 0);
+    if (bytesRemaining == 0) {
+      enterState(STATE_READING_ATOM_HEADER);
+    } else {
+      leafAtom = null;
+      atomBytesRead = (int) (atomSize - bytesRemaining);
+      rootAtomBytesRead = atomBytesRead;
+      enterState(STATE_READING_ATOM_PAYLOAD);
+    }
+    return 0;
+  }
+
   private int skipSample(NonBlockingInputStream inputStream, int sampleSize) {
+    TrackBundle trackBundle = currentTrackBundle;
+    if (sampleBytesSkipped < sampleSize) {
+      int bytesSkipped = inputStream.skip(sampleSize - sampleBytesSkipped);
+      if (bytesSkipped == -1) {
+        return RESULT_END_OF_STREAM;
+      }
+      sampleBytesSkipped += bytesSkipped;
+      if (sampleBytesSkipped != sampleSize) {
+        return RESULT_NEED_MORE_DATA;
+      }
+    }
+
+    TrackFragment fragmentRun = trackBundle.fragment;
+    int sampleIndex = trackBundle.sampleIndex;
     if (fragmentRun.definesEncryptionData) {
       ParsableByteArray sampleEncryptionData = fragmentRun.sampleEncryptionData;
       TrackEncryptionBox encryptionBox =
-          track.sampleDescriptionEncryptionBoxes[fragmentRun.sampleDescriptionIndex];
+          trackBundle.track.sampleDescriptionEncryptionBoxes[fragmentRun.sampleDescriptionIndex];
       int vectorSize = encryptionBox.initializationVectorSize;
       boolean subsampleEncryption = fragmentRun.sampleHasSubsampleEncryptionTable[sampleIndex];
       sampleEncryptionData.skip(vectorSize);
@@ -1043,10 +1495,7 @@ public final class FragmentedMp4Extractor implements Extractor {
       }
     }
 
-    inputStream.skip(sampleSize);
-
-    sampleIndex++;
-    enterState(STATE_READING_SAMPLE);
+    onSampleConsumed(trackBundle, sampleSize);
     return 0;
   }
 
@@ -1055,52 +1504,121 @@ public final class FragmentedMp4Extractor implements Extractor {
     if (out == null) {
       return RESULT_NEED_SAMPLE_HOLDER;
     }
+    TrackBundle trackBundle = currentTrackBundle;
+    TrackFragment fragmentRun = trackBundle.fragment;
+    int sampleIndex = trackBundle.sampleIndex;
     ByteBuffer outputData = out.data;
-    out.timeUs = fragmentRun.getSamplePresentationTime(sampleIndex) * 1000L;
+    out.timeUs = fragmentRun.getSamplePresentationTimeUs(sampleIndex);
     out.flags = 0;
     if (fragmentRun.sampleIsSyncFrameTable[sampleIndex]) {
       out.flags |= MediaExtractor.SAMPLE_FLAG_SYNC;
-      lastSyncSampleIndex = sampleIndex;
+      trackBundle.lastSyncSampleIndex = sampleIndex;
     }
     if (out.allowDataBufferReplacement && (out.data == null || out.data.capacity() < sampleSize)) {
       outputData = ByteBuffer.allocate(sampleSize);
       out.data = outputData;
     }
     if (fragmentRun.definesEncryptionData) {
-      readSampleEncryptionData(fragmentRun.sampleEncryptionData, out);
+      readSampleEncryptionData(trackBundle, out);
     }
 
     if (outputData == null) {
       inputStream.skip(sampleSize);
       out.size = 0;
+    } else if (trackBundle.track.type == Track.TYPE_VIDEO) {
+      out.size = readNalUnits(trackBundle, inputStream, sampleSize, out);
     } else {
       inputStream.read(outputData, sampleSize);
-      if (track.type == Track.TYPE_VIDEO) {
-        // The mp4 file contains length-prefixed NAL units, but the decoder wants start code
-        // delimited content. Replace length prefixes with start codes.
-        int sampleOffset = outputData.position() - sampleSize;
-        int position = sampleOffset;
-        while (position < sampleOffset + sampleSize) {
-          outputData.position(position);
-          int length = readUnsignedIntToInt(outputData);
-          outputData.position(position);
-          outputData.put(NAL_START_CODE);
-          position += length + 4;
-        }
-        outputData.position(sampleOffset + sampleSize);
-      }
       out.size = sampleSize;
     }
 
-    sampleIndex++;
-    enterState(STATE_READING_SAMPLE);
+    onSampleConsumed(trackBundle, sampleSize);
     return RESULT_READ_SAMPLE;
   }
 
+  private void onSampleConsumed(TrackBundle trackBundle, int sampleSize) {
+    trackBundle.sampleIndex++;
+    trackBundle.nextSampleFragmentPosition += sampleSize;
+    fragmentPosition += sampleSize;
+    enterState(STATE_READING_SAMPLE);
+  }
+
+  /**
+   * Reads a sample consisting of length-prefixed NAL units into {@code out}, replacing each length
+   * prefix with a start code as the sample is copied. The decoder requires start code delimited
+   * content.
+   * <p>
+   * If the length prefixes are shorter than a start code then the sample grows by the difference
+   * for each NAL unit. In this case the buffer is replaced with a larger one if necessary and
+   * permitted, and the number of clear bytes of each encrypted subsample is adjusted to account
+   * for the start codes that it contains.
+   *
+   * @param trackBundle The track to which the sample belongs.
+   * @param inputStream The stream from which to read the sample.
+   * @param sampleSize The size of the sample in the stream.
+   * @param out The holder into which to write the sample.
+   * @return The size of the sample written to {@code out}.
+   */
+  private int readNalUnits(TrackBundle trackBundle, NonBlockingInputStream inputStream,
+      int sampleSize, SampleHolder out) {
+    int nalUnitLengthFieldLength = trackBundle.track.nalUnitLengthFieldLength;
+    int sizeIncreasePerNalUnit = NAL_START_CODE.length - nalUnitLengthFieldLength;
+    int[] clearDataSizes = null;
+    int[] encryptedDataSizes = null;
+    if (sizeIncreasePerNalUnit != 0 && trackBundle.fragment.definesEncryptionData) {
+      clearDataSizes = out.cryptoInfo.numBytesOfClearData;
+      encryptedDataSizes = out.cryptoInfo.numBytesOfEncryptedData;
+    }
+    int subsampleIndex = 0;
+    int subsampleEnd = clearDataSizes != null ? clearDataSizes[0] + encryptedDataSizes[0] : 0;
+
+    int sampleBytesRead = 0;
+    int outputSize = 0;
+    while (sampleBytesRead < sampleSize) {
+      inputStream.read(nalLengthScratch, 0, nalUnitLengthFieldLength);
+      int nalUnitLength = 0;
+      for (int i = 0; i < nalUnitLengthFieldLength; i++) {
+        nalUnitLength = (nalUnitLength << 8) | (nalLengthScratch[i] & 0xFF);
+      }
+      if (nalUnitLength < 0
+          || nalUnitLength > sampleSize - sampleBytesRead - nalUnitLengthFieldLength) {
+        throw new IllegalStateException("Invalid NAL unit length: " + nalUnitLength);
+      }
+      if (clearDataSizes != null) {
+        // Find the subsample containing the length prefix, and account for the start code.
+        while (sampleBytesRead >= subsampleEnd) {
+          subsampleIndex++;
+          subsampleEnd += clearDataSizes[subsampleIndex] + encryptedDataSizes[subsampleIndex];
+        }
+        clearDataSizes[subsampleIndex] += sizeIncreasePerNalUnit;
+      }
+      ByteBuffer outputData = out.data;
+      if (sizeIncreasePerNalUnit > 0 && out.allowDataBufferReplacement
+          && outputData.remaining() < NAL_START_CODE.length + nalUnitLength) {
+        int requiredCapacity = outputData.position() + NAL_START_CODE.length + nalUnitLength
+            + (sampleSize - sampleBytesRead - nalUnitLengthFieldLength - nalUnitLength);
+        ByteBuffer newOutputData = ByteBuffer.allocate(
+            Math.max(requiredCapacity, outputData.capacity() * 2));
+        outputData.flip();
+        newOutputData.put(outputData);
+        outputData = newOutputData;
+        out.data = newOutputData;
+      }
+      outputData.put(NAL_START_CODE);
+      inputStream.read(outputData, nalUnitLength);
+      sampleBytesRead += nalUnitLengthFieldLength + nalUnitLength;
+      outputSize += NAL_START_CODE.length + nalUnitLength;
+    }
+    return outputSize;
+  }
+
   @SuppressLint("InlinedApi")
-  private void readSampleEncryptionData(ParsableByteArray sampleEncryptionData, SampleHolder out) {
+  private void readSampleEncryptionData(TrackBundle trackBundle, SampleHolder out) {
+    TrackFragment fragmentRun = trackBundle.fragment;
+    int sampleIndex = trackBundle.sampleIndex;
+    ParsableByteArray sampleEncryptionData = fragmentRun.sampleEncryptionData;
     TrackEncryptionBox encryptionBox =
-        track.sampleDescriptionEncryptionBoxes[fragmentRun.sampleDescriptionIndex];
+        trackBundle.track.sampleDescriptionEncryptionBoxes[fragmentRun.sampleDescriptionIndex];
     byte[] keyId = encryptionBox.keyId;
     boolean isEncrypted = encryptionBox.isEncrypted;
     int vectorSize = encryptionBox.initializationVectorSize;
@@ -1152,21 +1670,46 @@ public final class FragmentedMp4Extractor implements Extractor {
   }
 
   /**
-   * Reads an unsigned integer into an integer. This method is suitable for use when it can be
-   * assumed that the top bit will always be set to zero.
-   *
-   * @throws IllegalArgumentException If the top bit of the input data is set.
+   * Holds a track and the state of its extraction from the current fragment.
    */
-  private static int readUnsignedIntToInt(ByteBuffer data) {
-    int result = 0xFF & data.get();
-    for (int i = 1; i < 4; i++) {
-      result <<= 8;
-      result |= 0xFF & data.get();
+  private static final class TrackBundle {
+
+    public final Track track;
+    public final DefaultSampleValues extendsDefaults;
+    public final TrackFragment fragment;
+
+    public int sampleIndex;
+    public int pendingSeekSyncSampleIndex;
+    public int lastSyncSampleIndex;
+    /**
+     * The position of the next sample's data relative to the start of the moof atom. Only used
+     * when extracting all tracks.
+     */
+    public long nextSampleFragmentPosition;
+
+    public TrackBundle(Track track, DefaultSampleValues extendsDefaults) {
+      this.track = track;
+      this.extendsDefaults = extendsDefaults;
+      fragment = new TrackFragment();
     }
-    if (result < 0) {
-      throw new IllegalArgumentException("Top bit not zero: " + result);
+
+  }
+
+  /**
+   * Holds data parsed from an stsd atom.
+   */
+  private static final class StsdDataHolder {
+
+    public final TrackEncryptionBox[] trackEncryptionBoxes;
+
+    public MediaFormat mediaFormat;
+    public int nalUnitLengthFieldLength;
+
+    public StsdDataHolder(int numberOfEntries) {
+      trackEncryptionBoxes = new TrackEncryptionBox[numberOfEntries];
+      nalUnitLengthFieldLength = Track.DEFAULT_NAL_UNIT_LENGTH_FIELD_LENGTH;
     }
-    return result;
+
   }
 
 }
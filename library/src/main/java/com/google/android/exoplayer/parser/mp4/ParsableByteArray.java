@@ -26,13 +26,30 @@ import java.nio.ByteBuffer;
   public byte[] data;
 
   private int position;
+  private int limit;
 
   public ParsableByteArray(int length) {
     this.data = new byte[length];
+    this.limit = length;
+  }
+
+  /**
+   * Resets the position to zero and the length to the specified value, replacing {@link #data}
+   * with a larger array if its capacity is insufficient. The contents of {@link #data} should be
+   * considered undefined after this call.
+   *
+   * @param length The new length.
+   */
+  public void reset(int length) {
+    if (data.length < length) {
+      data = new byte[length];
+    }
+    limit = length;
+    position = 0;
   }
 
   public int length() {
-    return data.length;
+    return limit;
   }
 
   public int getPosition() {
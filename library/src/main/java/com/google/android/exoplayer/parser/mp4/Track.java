@@ -39,6 +39,11 @@ public final class Track {
    */
   public static final int TYPE_META = 0x6D657461;
 
+  /**
+   * The default length of the field preceding each NAL unit of a video sample, in bytes.
+   */
+  public static final int DEFAULT_NAL_UNIT_LENGTH_FIELD_LENGTH = 4;
+
   /**
    * The track identifier.
    */
@@ -64,13 +69,26 @@ public final class Track {
    */
   public final TrackEncryptionBox[] sampleDescriptionEncryptionBoxes;
 
+  /**
+   * The length of the field preceding each NAL unit of a video sample, in bytes. One of 1, 2 and
+   * 4, as signalled in the AVCDecoderConfigurationRecord.
+   */
+  public final int nalUnitLengthFieldLength;
+
   public Track(int id, int type, long timescale, MediaFormat mediaFormat,
       TrackEncryptionBox[] sampleDescriptionEncryptionBoxes) {
+    this(id, type, timescale, mediaFormat, sampleDescriptionEncryptionBoxes,
+        DEFAULT_NAL_UNIT_LENGTH_FIELD_LENGTH);
+  }
+
+  public Track(int id, int type, long timescale, MediaFormat mediaFormat,
+      TrackEncryptionBox[] sampleDescriptionEncryptionBoxes, int nalUnitLengthFieldLength) {
     this.id = id;
     this.type = type;
     this.timescale = timescale;
     this.mediaFormat = mediaFormat;
     this.sampleDescriptionEncryptionBoxes = sampleDescriptionEncryptionBoxes;
+    this.nalUnitLengthFieldLength = nalUnitLengthFieldLength;
   }
 
 }
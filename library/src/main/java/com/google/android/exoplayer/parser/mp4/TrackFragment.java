@@ -28,18 +28,27 @@ import com.google.android.exoplayer.upstream.NonBlockingInputStream;
    * The number of samples contained by the fragment.
    */
   public int length;
+  /**
+   * True if the run defines the offset of its data. False otherwise.
+   */
+  public boolean definesDataOffset;
+  /**
+   * If {@link #definesDataOffset} is true, the offset of the run's data relative to the base data
+   * offset of the fragment. Undefined otherwise.
+   */
+  public int dataOffset;
   /**
    * The size of each sample in the run.
    */
   public int[] sampleSizeTable;
   /**
-   * The decoding time of each sample in the run.
+   * The decoding time of each sample in the run, in microseconds.
    */
-  public int[] sampleDecodingTimeTable;
+  public long[] sampleDecodingTimeUsTable;
   /**
-   * The composition time offset of each sample in the run.
+   * The composition time offset of each sample in the run, in microseconds.
    */
-  public int[] sampleCompositionTimeOffsetTable;
+  public long[] sampleCompositionTimeOffsetUsTable;
   /**
    * Indicates which samples are sync frames.
    */
@@ -95,8 +104,8 @@ import com.google.android.exoplayer.upstream.NonBlockingInputStream;
       // likely. The choice of 25% is relatively arbitrary.
       int tableSize = (sampleCount * 125) / 100;
       sampleSizeTable = new int[tableSize];
-      sampleDecodingTimeTable = new int[tableSize];
-      sampleCompositionTimeOffsetTable = new int[tableSize];
+      sampleDecodingTimeUsTable = new long[tableSize];
+      sampleCompositionTimeOffsetUsTable = new long[tableSize];
       sampleIsSyncFrameTable = new boolean[tableSize];
       sampleHasSubsampleEncryptionTable = new boolean[tableSize];
     }
@@ -112,8 +121,10 @@ import com.google.android.exoplayer.upstream.NonBlockingInputStream;
    * @param length The length in bytes of the encryption data.
    */
   public void initEncryptionData(int length) {
-    if (sampleEncryptionData == null || sampleEncryptionData.length() < length) {
+    if (sampleEncryptionData == null) {
       sampleEncryptionData = new ParsableByteArray(length);
+    } else {
+      sampleEncryptionData.reset(length);
     }
     sampleEncryptionDataLength = length;
     definesEncryptionData = true;
@@ -147,8 +158,14 @@ import com.google.android.exoplayer.upstream.NonBlockingInputStream;
     return true;
   }
 
-  public int getSamplePresentationTime(int index) {
-    return sampleDecodingTimeTable[index] + sampleCompositionTimeOffsetTable[index];
+  /**
+   * Returns the presentation time of the sample at the specified index, in microseconds.
+   *
+   * @param index The index of the sample.
+   * @return The presentation time of the sample, in microseconds.
+   */
+  public long getSamplePresentationTimeUs(int index) {
+    return sampleDecodingTimeUsTable[index] + sampleCompositionTimeOffsetUsTable[index];
   }
 
 }
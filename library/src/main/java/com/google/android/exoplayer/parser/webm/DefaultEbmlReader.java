@@ -20,7 +20,6 @@ import com.google.android.exoplayer.util.Assertions;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Stack;
 
 /**
  * Default version of a basic event-driven incremental EBML parser which needs an
@@ -48,16 +47,29 @@ import java.util.Stack;
     0x80, 0x40, 0x20, 0x10, 0x08, 0x04, 0x02, 0x01
   };
 
+  private static final int MAX_VARINT_LENGTH_BYTES = 8;
   private static final int MAX_INTEGER_ELEMENT_SIZE_BYTES = 8;
   private static final int VALID_FLOAT32_ELEMENT_SIZE_BYTES = 4;
   private static final int VALID_FLOAT64_ELEMENT_SIZE_BYTES = 8;
 
+  private static final int INITIAL_MASTER_ELEMENTS_STACK_CAPACITY = 8;
+  private static final int INITIAL_STRING_BYTES_LENGTH = 64;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   /**
    * Scratch space to read in EBML varints, unsigned ints, and floats - each of which can be
    * up to 8 bytes.
    */
   private final byte[] tempByteArray = new byte[8];
-  private final Stack<MasterElement> masterElementsStack = new Stack<MasterElement>();
+
+  /**
+   * The IDs and end offsets of the master elements currently being read, held as a stack in which
+   * the top element is at index {@link #masterElementsStackSize} - 1.
+   */
+  private int[] masterElementIds = new int[INITIAL_MASTER_ELEMENTS_STACK_CAPACITY];
+  private long[] masterElementEndOffsets = new long[INITIAL_MASTER_ELEMENTS_STACK_CAPACITY];
+  private int masterElementsStackSize;
 
   /**
    * Current {@link EbmlEventHandler} which is queried for element types
@@ -80,6 +92,12 @@ import java.util.Stack;
    */
   private long elementOffset;
 
+  /**
+   * The size of the ID and content size header of the current element being parsed. Set once
+   * {@link #elementContentSizeState} is {@link #STATE_FINISHED_READING}.
+   */
+  private int elementHeaderSize;
+
   /**
    * Holds the current element ID after {@link #elementIdState} is {@link #STATE_FINISHED_READING}.
    */
@@ -122,10 +140,10 @@ import java.util.Stack;
   private int bytesState;
 
   /**
-   * Holds string element bytes as they're being read in. Allocated after the element content
-   * size is known and released after calling {@link EbmlEventHandler#onStringElement(int, String)}.
+   * Holds string element bytes as they're being read in. Reused across string elements, and
+   * replaced with a larger array if an element's content size exceeds its length.
    */
-  private byte[] stringBytes;
+  private byte[] stringBytes = new byte[INITIAL_STRING_BYTES_LENGTH];
 
   @Override
   public void setEventHandler(EbmlEventHandler eventHandler) {
@@ -136,13 +154,22 @@ import java.util.Stack;
   public int read(NonBlockingInputStream inputStream) {
     Assertions.checkState(eventHandler != null);
     while (true) {
-      while (!masterElementsStack.isEmpty()
-          && bytesRead >= masterElementsStack.peek().elementEndOffsetBytes) {
-        eventHandler.onMasterElementEnd(masterElementsStack.pop().elementId);
+      if (masterElementsStackSize > 0
+          && bytesRead >= masterElementEndOffsets[masterElementsStackSize - 1]) {
+        eventHandler.onMasterElementEnd(masterElementIds[--masterElementsStackSize]);
         return READ_RESULT_CONTINUE;
       }
 
       if (state == STATE_BEGIN_READING) {
+        if (elementIdState == STATE_BEGIN_READING
+            && inputStream.getAvailableByteCount() >= 2 * MAX_VARINT_LENGTH_BYTES) {
+          // Fast path: the whole element header is available, so read it without the incremental
+          // state machines.
+          elementId = (int) readVarintDirect(inputStream, false);
+          elementContentSize = readVarintDirect(inputStream, true);
+          elementIdState = STATE_FINISHED_READING;
+          elementContentSizeState = STATE_FINISHED_READING;
+        }
         int idResult = readElementId(inputStream);
         if (idResult != READ_RESULT_CONTINUE) {
           return idResult;
@@ -153,14 +180,14 @@ import java.util.Stack;
         }
         state = STATE_READ_CONTENTS;
         bytesState = 0;
+        elementHeaderSize = (int) (bytesRead - elementOffset); // Header size is 16 bytes max.
       }
 
       int type = eventHandler.getElementType(elementId);
       switch (type) {
         case TYPE_MASTER:
-          int masterHeaderSize = (int) (bytesRead - elementOffset); // Header size is 12 bytes max.
-          masterElementsStack.add(new MasterElement(elementId, bytesRead + elementContentSize));
-          eventHandler.onMasterElementStart(elementId, elementOffset, masterHeaderSize,
+          pushMasterElement(elementId, bytesRead + elementContentSize);
+          eventHandler.onMasterElementStart(elementId, elementOffset, elementHeaderSize,
               elementContentSize);
           prepareForNextElement();
           return READ_RESULT_CONTINUE;
@@ -202,7 +229,7 @@ import java.util.Stack;
             throw new IllegalStateException(
                 "String element size " + elementContentSize + " is larger than MAX_INT");
           }
-          if (stringBytes == null) {
+          if (stringBytes.length < elementContentSize) {
             stringBytes = new byte[(int) elementContentSize];
           }
           int stringResult =
@@ -210,8 +237,7 @@ import java.util.Stack;
           if (stringResult != READ_RESULT_CONTINUE) {
             return stringResult;
           }
-          String stringValue = new String(stringBytes, Charset.forName("UTF-8"));
-          stringBytes = null;
+          String stringValue = new String(stringBytes, 0, (int) elementContentSize, UTF_8);
           eventHandler.onStringElement(elementId, stringValue);
           prepareForNextElement();
           return READ_RESULT_CONTINUE;
@@ -220,17 +246,17 @@ import java.util.Stack;
             throw new IllegalStateException(
                 "Binary element size " + elementContentSize + " is larger than MAX_INT");
           }
-          if (inputStream.getAvailableByteCount() < elementContentSize) {
+          // The event handler may have read part of the contents in a previous call.
+          long binaryEndOffset = elementOffset + elementHeaderSize + elementContentSize;
+          if (inputStream.getAvailableByteCount() < binaryEndOffset - bytesRead) {
             return READ_RESULT_NEED_MORE_DATA;
           }
-          int binaryHeaderSize = (int) (bytesRead - elementOffset); // Header size is 12 bytes max.
           boolean consumed = eventHandler.onBinaryElement(
-              elementId, elementOffset, binaryHeaderSize, (int) elementContentSize, inputStream);
+              elementId, elementOffset, elementHeaderSize, (int) elementContentSize, inputStream);
           if (consumed) {
-            long expectedBytesRead = elementOffset + binaryHeaderSize + elementContentSize;
-            if (expectedBytesRead != bytesRead) {
+            if (binaryEndOffset != bytesRead) {
               throw new IllegalStateException("Incorrect total bytes read. Expected "
-                  + expectedBytesRead + " but actually " + bytesRead);
+                  + binaryEndOffset + " but actually " + bytesRead);
             }
             prepareForNextElement();
           }
@@ -260,12 +286,15 @@ import java.util.Stack;
   @Override
   public void reset() {
     prepareForNextElement();
-    masterElementsStack.clear();
+    masterElementsStackSize = 0;
     bytesRead = 0;
   }
 
   @Override
   public long readVarint(NonBlockingInputStream inputStream) {
+    if (inputStream.getAvailableByteCount() >= MAX_VARINT_LENGTH_BYTES) {
+      return readVarintDirect(inputStream, true);
+    }
     varintBytesState = STATE_BEGIN_READING;
     int result = readVarintBytes(inputStream);
     if (result != READ_RESULT_CONTINUE) {
@@ -301,6 +330,60 @@ import java.util.Stack;
     }
   }
 
+  /**
+   * Pushes a master element onto the stack of master elements being read, growing the stack if
+   * necessary.
+   *
+   * @param elementId The ID of the master element
+   * @param elementEndOffsetBytes The offset of the first byte following the master element
+   */
+  private void pushMasterElement(int elementId, long elementEndOffsetBytes) {
+    if (masterElementsStackSize == masterElementIds.length) {
+      int newCapacity = masterElementsStackSize * 2;
+      int[] newMasterElementIds = new int[newCapacity];
+      long[] newMasterElementEndOffsets = new long[newCapacity];
+      System.arraycopy(masterElementIds, 0, newMasterElementIds, 0, masterElementsStackSize);
+      System.arraycopy(masterElementEndOffsets, 0, newMasterElementEndOffsets, 0,
+          masterElementsStackSize);
+      masterElementIds = newMasterElementIds;
+      masterElementEndOffsets = newMasterElementEndOffsets;
+    }
+    masterElementIds[masterElementsStackSize] = elementId;
+    masterElementEndOffsets[masterElementsStackSize] = elementEndOffsetBytes;
+    masterElementsStackSize++;
+  }
+
+  /**
+   * Reads an EBML variable-length integer (varint) in a single pass. Must only be called if at
+   * least {@link #MAX_VARINT_LENGTH_BYTES} bytes are available to be read from the input stream.
+   *
+   * <p>The length of the varint is left in {@link #varintBytesLength}.
+   *
+   * @param inputStream The input stream from which a varint should be read
+   * @param removeLengthMask Removes the variable-length integer length mask from the value
+   * @return The varint value
+   */
+  private long readVarintDirect(NonBlockingInputStream inputStream, boolean removeLengthMask) {
+    inputStream.read(tempByteArray, 0, 1);
+    int firstByte = tempByteArray[0] & 0xff;
+    if (firstByte == 0) {
+      throw new IllegalStateException(
+          "No valid varint length mask found at bytesRead = " + bytesRead);
+    }
+    // The length is one more than the number of leading zero bits in the first byte.
+    int length = Integer.numberOfLeadingZeros(firstByte) - 23;
+    long varint = removeLengthMask ? firstByte & ~VARINT_LENGTH_MASKS[length - 1] : firstByte;
+    if (length > 1) {
+      inputStream.read(tempByteArray, 1, length - 1);
+      for (int i = 1; i < length; i++) {
+        varint = (varint << 8) | (tempByteArray[i] & 0xff);
+      }
+    }
+    varintBytesLength = length;
+    bytesRead += length;
+    return varint;
+  }
+
   /**
    * Resets the internal state of {@link #read(NonBlockingInputStream)} so that it can start
    * reading a new element from scratch.
@@ -529,20 +612,4 @@ import java.util.Stack;
     return varint;
   }
 
-  /**
-   * Used in {@link #masterElementsStack} to track when the current master element ends so that
-   * {@link EbmlEventHandler#onMasterElementEnd(int)} is called.
-   */
-  private static final class MasterElement {
-
-    private final int elementId;
-    private final long elementEndOffsetBytes;
-
-    private MasterElement(int elementId, long elementEndOffsetBytes) {
-      this.elementId = elementId;
-      this.elementEndOffsetBytes = elementEndOffsetBytes;
-    }
-
-  }
-
 }
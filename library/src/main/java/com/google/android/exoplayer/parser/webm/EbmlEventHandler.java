@@ -86,11 +86,14 @@ import java.nio.ByteBuffer;
    * Called when a binary element is encountered in the {@link NonBlockingInputStream}.
    *
    * <p>The element header (containing element ID and content size) will already have been read.
-   * Subclasses must either read nothing and return {@code false}, or exactly read the entire
-   * contents of the element, which is {@code contentsSizeBytes} in length, and return {@code true}.
+   * Subclasses must either read some or none of the remaining contents of the element and return
+   * {@code false}, or exactly read the entire remaining contents of the element and return
+   * {@code true}. The contents are {@code contentsSizeBytes} in length in total. If {@code false}
+   * is returned then this method will be called again with the same arguments, and should resume
+   * reading from where it stopped.
    *
-   * <p>It's guaranteed that the full element contents will be immediately available from
-   * {@code inputStream}.
+   * <p>It's guaranteed that the full remaining element contents will be immediately available
+   * from {@code inputStream}.
    *
    * <p>Several methods in {@link EbmlReader} are available for reading the contents of a
    * binary element:
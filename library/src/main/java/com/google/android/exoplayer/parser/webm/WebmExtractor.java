@@ -17,7 +17,7 @@ package com.google.android.exoplayer.parser.webm;
 
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
-import com.google.android.exoplayer.parser.Extractor;
+import com.google.android.exoplayer.parser.MultiTrackExtractor;
 import com.google.android.exoplayer.parser.SegmentIndex;
 import com.google.android.exoplayer.upstream.NonBlockingInputStream;
 import com.google.android.exoplayer.util.LongArray;
@@ -27,7 +27,10 @@ import android.annotation.TargetApi;
 import android.media.MediaExtractor;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -38,12 +41,24 @@ import java.util.concurrent.TimeUnit;
  * <p>WebM is a subset of the EBML elements defined for Matroska. More information about EBML and
  * Matroska is available <a href="http://www.matroska.org/technical/specs/index.html">here</a>.
  * More info about WebM is <a href="http://www.webmproject.org/code/specs/container/">here</a>.
+ *
+ * <p>VP8 and VP9 video tracks and Opus and Vorbis audio tracks are supported. Samples are read from
+ * both SimpleBlock and BlockGroup elements, and laced blocks are split into individual samples
+ * that are read directly into the supplied {@link SampleHolder}. By default only the first
+ * supported track is extracted. If all tracks are extracted then the samples of every supported
+ * track are returned in the order in which they occur in the stream, so that a muxed stream can
+ * be loaded and parsed once.
  */
 @TargetApi(16)
-public final class WebmExtractor implements Extractor {
+public final class WebmExtractor implements MultiTrackExtractor {
 
   private static final String DOC_TYPE_WEBM = "webm";
+  private static final String CODEC_ID_VP8 = "V_VP8";
   private static final String CODEC_ID_VP9 = "V_VP9";
+  private static final String CODEC_ID_VORBIS = "A_VORBIS";
+  private static final String CODEC_ID_OPUS = "A_OPUS";
+  private static final int VORBIS_MAX_INPUT_SIZE = 8192;
+  private static final int OPUS_MAX_INPUT_SIZE = 5760;
   private static final int UNKNOWN = -1;
 
   // Element IDs
@@ -54,6 +69,11 @@ public final class WebmExtractor implements Extractor {
 
   private static final int ID_SEGMENT = 0x18538067;
 
+  private static final int ID_SEEK_HEAD = 0x114D9B74;
+  private static final int ID_SEEK = 0x4DBB;
+  private static final int ID_SEEK_ID = 0x53AB;
+  private static final int ID_SEEK_POSITION = 0x53AC;
+
   private static final int ID_INFO = 0x1549A966;
   private static final int ID_TIMECODE_SCALE = 0x2AD7B1;
   private static final int ID_DURATION = 0x4489;
@@ -61,13 +81,24 @@ public final class WebmExtractor implements Extractor {
   private static final int ID_CLUSTER = 0x1F43B675;
   private static final int ID_TIME_CODE = 0xE7;
   private static final int ID_SIMPLE_BLOCK = 0xA3;
+  private static final int ID_BLOCK_GROUP = 0xA0;
+  private static final int ID_BLOCK = 0xA1;
+  private static final int ID_REFERENCE_BLOCK = 0xFB;
 
   private static final int ID_TRACKS = 0x1654AE6B;
   private static final int ID_TRACK_ENTRY = 0xAE;
+  private static final int ID_TRACK_NUMBER = 0xD7;
+  private static final int ID_DEFAULT_DURATION = 0x23E383;
   private static final int ID_CODEC_ID = 0x86;
+  private static final int ID_CODEC_PRIVATE = 0x63A2;
+  private static final int ID_CODEC_DELAY = 0x56AA;
+  private static final int ID_SEEK_PRE_ROLL = 0x56BB;
   private static final int ID_VIDEO = 0xE0;
   private static final int ID_PIXEL_WIDTH = 0xB0;
   private static final int ID_PIXEL_HEIGHT = 0xBA;
+  private static final int ID_AUDIO = 0xE1;
+  private static final int ID_CHANNELS = 0x9F;
+  private static final int ID_SAMPLING_FREQUENCY = 0xB5;
 
   private static final int ID_CUES = 0x1C53BB6B;
   private static final int ID_CUE_POINT = 0xBB;
@@ -75,7 +106,11 @@ public final class WebmExtractor implements Extractor {
   private static final int ID_CUE_TRACK_POSITIONS = 0xB7;
   private static final int ID_CUE_CLUSTER_POSITION = 0xF1;
 
-  // SimpleBlock Lacing Values
+  // Block states
+  private static final int BLOCK_STATE_START = 0;
+  private static final int BLOCK_STATE_READING_SAMPLES = 1;
+
+  // SimpleBlock and Block Lacing Values
   private static final int LACING_NONE = 0;
   private static final int LACING_XIPH = 1;
   private static final int LACING_FIXED = 2;
@@ -85,7 +120,8 @@ public final class WebmExtractor implements Extractor {
       | RESULT_READ_SAMPLE | RESULT_NEED_SAMPLE_HOLDER;
 
   private final EbmlReader reader;
-  private final byte[] simpleBlockTimecodeAndFlags = new byte[3];
+  private final boolean extractAllTracks;
+  private final byte[] blockScratch = new byte[8];
 
   private SampleHolder sampleHolder;
   private int readResults;
@@ -94,23 +130,69 @@ public final class WebmExtractor implements Extractor {
   private long segmentEndOffsetBytes = UNKNOWN;
   private long timecodeScale = 1000000L;
   private long durationUs = UNKNOWN;
-  private int pixelWidth = UNKNOWN;
-  private int pixelHeight = UNKNOWN;
+  private long cuesOffsetBytes = UNKNOWN;
   private long cuesSizeBytes = UNKNOWN;
   private long clusterTimecodeUs = UNKNOWN;
-  private long simpleBlockTimecodeUs = UNKNOWN;
-  private MediaFormat format;
   private SegmentIndex cues;
   private LongArray cueTimesUs;
   private LongArray cueClusterPositions;
 
+  // State of the current Seek entry in the SeekHead.
+  private int seekEntryId = UNKNOWN;
+  private long seekEntryPosition = UNKNOWN;
+
+  // The extracted tracks, and those being parsed from the current Tracks element.
+  private ArrayList<Track> tracks;
+  private ArrayList<Track> parsedTracks;
+  private Track currentTrack;
+
+  // State of the current SimpleBlock or Block.
+  private int blockState;
+  private int blockTrackIndex = UNKNOWN;
+  private long blockTimeUs = UNKNOWN;
+  private boolean blockKeyframe;
+  private boolean blockInvisible;
+  private boolean blockSamplesDeferred;
+  private int blockLacingSampleCount;
+  private int blockLacingSampleIndex;
+  private int[] blockLacingSampleSizes = new int[1];
+  private long blockLacingTimeOffsetNs;
+
+  // State of the current BlockGroup.
+  private long blockGroupEndOffsetBytes = UNKNOWN;
+  private boolean blockGroupSizeUnknown;
+  private boolean blockGroupHasReferenceBlock;
+  private boolean blockGroupSamplePending;
+
+  // The sample of a BlockGroup of unknown size, which is buffered until the group is known to have
+  // ended.
+  private byte[] blockGroupSampleData = new byte[0];
+  private int blockGroupSampleSize;
+  private int blockGroupSampleFlags;
+  private boolean blockGroupSampleEnded;
+
   public WebmExtractor() {
-    this(new DefaultEbmlReader());
+    this(false);
+  }
+
+  /**
+   * @param extractAllTracks True if the samples of every supported track should be extracted.
+   *     False if only the samples of the first supported track should be extracted.
+   */
+  public WebmExtractor(boolean extractAllTracks) {
+    this(new DefaultEbmlReader(), extractAllTracks);
   }
 
   /* package */ WebmExtractor(EbmlReader reader) {
+    this(reader, false);
+  }
+
+  /* package */ WebmExtractor(EbmlReader reader, boolean extractAllTracks) {
     this.reader = reader;
+    this.extractAllTracks = extractAllTracks;
     this.reader.setEventHandler(new InnerEbmlEventHandler());
+    tracks = new ArrayList<Track>();
+    parsedTracks = new ArrayList<Track>();
   }
 
   @Override
@@ -118,11 +200,17 @@ public final class WebmExtractor implements Extractor {
     this.sampleHolder = sampleHolder;
     this.readResults = 0;
     while ((readResults & READ_TERMINATING_RESULTS) == 0) {
+      if (blockGroupSampleEnded) {
+        readBufferedBlockGroupSample();
+        continue;
+      }
       int ebmlReadResult = reader.read(inputStream);
       if (ebmlReadResult == EbmlReader.READ_RESULT_NEED_MORE_DATA) {
         readResults |= WebmExtractor.RESULT_NEED_MORE_DATA;
       } else if (ebmlReadResult == EbmlReader.READ_RESULT_END_OF_STREAM) {
-        readResults |= WebmExtractor.RESULT_END_OF_STREAM;
+        if (!maybeEndBufferedBlockGroupSample()) {
+          readResults |= WebmExtractor.RESULT_END_OF_STREAM;
+        }
       }
     }
     this.sampleHolder = null;
@@ -134,15 +222,23 @@ public final class WebmExtractor implements Extractor {
     if (allowNoop
         && cues != null
         && clusterTimecodeUs != UNKNOWN
-        && simpleBlockTimecodeUs != UNKNOWN
-        && seekTimeUs >= simpleBlockTimecodeUs) {
+        && blockTimeUs != UNKNOWN
+        && seekTimeUs >= blockTimeUs) {
       int clusterIndex = Arrays.binarySearch(cues.timesUs, clusterTimecodeUs);
       if (clusterIndex >= 0 && seekTimeUs < clusterTimecodeUs + cues.durationsUs[clusterIndex]) {
         return false;
       }
     }
     clusterTimecodeUs = UNKNOWN;
-    simpleBlockTimecodeUs = UNKNOWN;
+    blockTimeUs = UNKNOWN;
+    blockState = BLOCK_STATE_START;
+    blockGroupEndOffsetBytes = UNKNOWN;
+    blockGroupSizeUnknown = false;
+    blockGroupSamplePending = false;
+    blockGroupSampleEnded = false;
+    for (int i = 0; i < tracks.size(); i++) {
+      tracks.get(i).vorbisPreviousBlockSize = UNKNOWN;
+    }
     reader.reset();
     return true;
   }
@@ -152,6 +248,27 @@ public final class WebmExtractor implements Extractor {
     return cues;
   }
 
+  /**
+   * Returns the byte offset of the Cues element, as referenced by the SeekHead. This allows the
+   * Cues to be requested directly in the case that they're located after the clusters, as is
+   * typical for single file WebM.
+   *
+   * @return The byte offset of the Cues element, or -1 if it's not known.
+   */
+  public long getCuesOffsetBytes() {
+    return cuesOffsetBytes;
+  }
+
+  /**
+   * Returns the size of the Cues element, including its header. The size is known once the
+   * start of the Cues element has been parsed.
+   *
+   * @return The size of the Cues element, or -1 if it's not known.
+   */
+  public long getCuesSizeBytes() {
+    return cuesSizeBytes;
+  }
+
   @Override
   public boolean hasRelativeIndexOffsets() {
     return false;
@@ -159,7 +276,22 @@ public final class WebmExtractor implements Extractor {
 
   @Override
   public MediaFormat getFormat() {
-    return format;
+    return tracks.isEmpty() ? null : tracks.get(0).format;
+  }
+
+  @Override
+  public int getTrackCount() {
+    return tracks.size();
+  }
+
+  @Override
+  public MediaFormat getFormat(int track) {
+    return tracks.get(track).format;
+  }
+
+  @Override
+  public int getSampleTrack() {
+    return blockTrackIndex;
   }
 
   @Override
@@ -172,30 +304,45 @@ public final class WebmExtractor implements Extractor {
     switch (id) {
       case ID_EBML:
       case ID_SEGMENT:
+      case ID_SEEK_HEAD:
+      case ID_SEEK:
       case ID_INFO:
       case ID_CLUSTER:
+      case ID_BLOCK_GROUP:
       case ID_TRACKS:
       case ID_TRACK_ENTRY:
       case ID_VIDEO:
+      case ID_AUDIO:
       case ID_CUES:
       case ID_CUE_POINT:
       case ID_CUE_TRACK_POSITIONS:
         return EbmlReader.TYPE_MASTER;
       case ID_EBML_READ_VERSION:
       case ID_DOC_TYPE_READ_VERSION:
+      case ID_SEEK_POSITION:
       case ID_TIMECODE_SCALE:
       case ID_TIME_CODE:
+      case ID_REFERENCE_BLOCK:
+      case ID_TRACK_NUMBER:
+      case ID_DEFAULT_DURATION:
+      case ID_CODEC_DELAY:
+      case ID_SEEK_PRE_ROLL:
       case ID_PIXEL_WIDTH:
       case ID_PIXEL_HEIGHT:
+      case ID_CHANNELS:
       case ID_CUE_TIME:
       case ID_CUE_CLUSTER_POSITION:
         return EbmlReader.TYPE_UNSIGNED_INT;
       case ID_DOC_TYPE:
       case ID_CODEC_ID:
         return EbmlReader.TYPE_STRING;
+      case ID_SEEK_ID:
       case ID_SIMPLE_BLOCK:
+      case ID_BLOCK:
+      case ID_CODEC_PRIVATE:
         return EbmlReader.TYPE_BINARY;
       case ID_DURATION:
+      case ID_SAMPLING_FREQUENCY:
         return EbmlReader.TYPE_FLOAT;
       default:
         return EbmlReader.TYPE_UNKNOWN;
@@ -204,6 +351,8 @@ public final class WebmExtractor implements Extractor {
 
   /* package */ boolean onMasterElementStart(
       int id, long elementOffsetBytes, int headerSizeBytes, long contentsSizeBytes) {
+    // A BlockGroup of unknown size ends where the next element outside of it starts.
+    maybeEndBufferedBlockGroupSample();
     switch (id) {
       case ID_SEGMENT:
         if (segmentStartOffsetBytes != UNKNOWN || segmentEndOffsetBytes != UNKNOWN) {
@@ -212,11 +361,29 @@ public final class WebmExtractor implements Extractor {
         segmentStartOffsetBytes = elementOffsetBytes + headerSizeBytes;
         segmentEndOffsetBytes = elementOffsetBytes + headerSizeBytes + contentsSizeBytes;
         break;
+      case ID_SEEK:
+        seekEntryId = UNKNOWN;
+        seekEntryPosition = UNKNOWN;
+        break;
       case ID_CUES:
         cuesSizeBytes = headerSizeBytes + contentsSizeBytes;
         cueTimesUs = new LongArray();
         cueClusterPositions = new LongArray();
         break;
+      case ID_TRACKS:
+        parsedTracks.clear();
+        break;
+      case ID_TRACK_ENTRY:
+        currentTrack = new Track();
+        break;
+      case ID_BLOCK_GROUP:
+        // An unknown size has all of its value bits set. The BlockGroup ID is one byte long.
+        int sizeLengthBytes = headerSizeBytes - 1;
+        blockGroupSizeUnknown = contentsSizeBytes == (1L << (7 * sizeLengthBytes)) - 1;
+        blockGroupEndOffsetBytes = blockGroupSizeUnknown ? UNKNOWN
+            : elementOffsetBytes + headerSizeBytes + contentsSizeBytes;
+        blockGroupHasReferenceBlock = false;
+        break;
       default:
         // pass
     }
@@ -225,11 +392,35 @@ public final class WebmExtractor implements Extractor {
 
   /* package */ boolean onMasterElementEnd(int id) {
     switch (id) {
+      case ID_SEEK:
+        if (seekEntryId == ID_CUES && seekEntryPosition != UNKNOWN) {
+          cuesOffsetBytes = segmentStartOffsetBytes + seekEntryPosition;
+        }
+        return true;
       case ID_CUES:
         buildCues();
         return false;
-      case ID_VIDEO:
-        buildFormat();
+      case ID_TRACK_ENTRY:
+        if (currentTrack.isSupported() && (extractAllTracks || parsedTracks.isEmpty())) {
+          parsedTracks.add(currentTrack);
+        }
+        currentTrack = null;
+        return true;
+      case ID_TRACKS:
+        buildTracks();
+        return true;
+      case ID_BLOCK_GROUP:
+        if (maybeEndBufferedBlockGroupSample()) {
+          return true;
+        }
+        if (blockGroupSamplePending) {
+          // The sample was read when the Block was encountered, but whether it's a keyframe is
+          // only known now that any ReferenceBlock has been read.
+          sampleHolder.flags = blockGroupHasReferenceBlock ? 0 : MediaExtractor.SAMPLE_FLAG_SYNC;
+          blockGroupSamplePending = false;
+          readResults |= RESULT_READ_SAMPLE;
+        }
+        blockGroupEndOffsetBytes = UNKNOWN;
         return true;
       default:
         return true;
@@ -250,14 +441,35 @@ public final class WebmExtractor implements Extractor {
           throw new IllegalArgumentException("DocTypeReadVersion " + value + " not supported");
         }
         break;
+      case ID_SEEK_POSITION:
+        seekEntryPosition = value;
+        break;
       case ID_TIMECODE_SCALE:
         timecodeScale = value;
         break;
+      case ID_TRACK_NUMBER:
+        currentTrack.number = (int) value;
+        break;
+      case ID_DEFAULT_DURATION:
+        currentTrack.defaultSampleDurationNs = value;
+        break;
+      case ID_CODEC_DELAY:
+        currentTrack.codecDelayNs = value;
+        break;
+      case ID_SEEK_PRE_ROLL:
+        currentTrack.seekPreRollNs = value;
+        break;
       case ID_PIXEL_WIDTH:
-        pixelWidth = (int) value;
+        currentTrack.pixelWidth = (int) value;
         break;
       case ID_PIXEL_HEIGHT:
-        pixelHeight = (int) value;
+        currentTrack.pixelHeight = (int) value;
+        break;
+      case ID_CHANNELS:
+        currentTrack.channelCount = (int) value;
+        break;
+      case ID_REFERENCE_BLOCK:
+        blockGroupHasReferenceBlock = true;
         break;
       case ID_CUE_TIME:
         cueTimesUs.add(scaleTimecodeToUs(value));
@@ -275,8 +487,15 @@ public final class WebmExtractor implements Extractor {
   }
 
   /* package */ boolean onFloatElement(int id, double value) {
-    if (id == ID_DURATION) {
-      durationUs = scaleTimecodeToUs((long) value);
+    switch (id) {
+      case ID_DURATION:
+        durationUs = scaleTimecodeToUs((long) value);
+        break;
+      case ID_SAMPLING_FREQUENCY:
+        currentTrack.sampleRate = (int) value;
+        break;
+      default:
+        // pass
     }
     return true;
   }
@@ -290,10 +509,8 @@ public final class WebmExtractor implements Extractor {
         }
         break;
       case ID_CODEC_ID:
-        // Validate that CodecID is supported. This extractor only supports "V_VP9".
-        if (!CODEC_ID_VP9.equals(value)) {
-          throw new IllegalArgumentException("CodecID " + value + " not supported");
-        }
+        // Tracks whose CodecID isn't supported are ignored.
+        currentTrack.codecId = value;
         break;
       default:
         // pass
@@ -304,86 +521,330 @@ public final class WebmExtractor implements Extractor {
   /* package */ boolean onBinaryElement(
       int id, long elementOffsetBytes, int headerSizeBytes, int contentsSizeBytes,
       NonBlockingInputStream inputStream) {
-    if (id == ID_SIMPLE_BLOCK) {
-      // Please refer to http://www.matroska.org/technical/specs/index.html#simpleblock_structure
-      // for info about how data is organized in a SimpleBlock element.
+    switch (id) {
+      case ID_SIMPLE_BLOCK:
+        if (maybeEndBufferedBlockGroupSample()) {
+          // Output the buffered sample before this element is read.
+          return false;
+        }
+        return onBlockElement(id, elementOffsetBytes + headerSizeBytes + contentsSizeBytes,
+            inputStream);
+      case ID_BLOCK:
+        return onBlockElement(id, elementOffsetBytes + headerSizeBytes + contentsSizeBytes,
+            inputStream);
+      case ID_SEEK_ID:
+        // The SeekID is the ID of the referenced element, which is at most four bytes long.
+        if (contentsSizeBytes > 4) {
+          throw new IllegalStateException("Invalid SeekID size " + contentsSizeBytes);
+        }
+        reader.readBytes(inputStream, blockScratch, contentsSizeBytes);
+        seekEntryId = 0;
+        for (int i = 0; i < contentsSizeBytes; i++) {
+          seekEntryId = (seekEntryId << 8) | (blockScratch[i] & 0xff);
+        }
+        return true;
+      case ID_CODEC_PRIVATE:
+        currentTrack.codecPrivate = new byte[contentsSizeBytes];
+        reader.readBytes(inputStream, currentTrack.codecPrivate, contentsSizeBytes);
+        return true;
+      default:
+        return true;
+    }
+  }
 
-      // If we don't have a sample holder then don't consume the data.
-      if (sampleHolder == null) {
-        readResults |= RESULT_NEED_SAMPLE_HOLDER;
-        return false;
+  /**
+   * Reads a SimpleBlock or Block element, one sample at a time. If the block is laced then
+   * {@code false} is returned after each sample other than the last, so that the remaining samples
+   * are read by subsequent calls.
+   *
+   * <p>Please refer to http://www.matroska.org/technical/specs/index.html#simpleblock_structure
+   * and http://www.matroska.org/technical/specs/index.html#lacing for info about how data is
+   * organized in SimpleBlock and Block elements.
+   *
+   * @param id The ID of the element
+   * @param elementEndOffsetBytes The byte offset at which the element ends
+   * @param inputStream The input stream from which the element should be read
+   * @return True if the whole element was read. False otherwise.
+   */
+  private boolean onBlockElement(int id, long elementEndOffsetBytes,
+      NonBlockingInputStream inputStream) {
+    if (blockState == BLOCK_STATE_START) {
+      int trackNumber = (int) reader.readVarint(inputStream);
+      blockTrackIndex = getTrackIndex(trackNumber);
+      if (blockTrackIndex == UNKNOWN) {
+        // The block belongs to a track that isn't being extracted.
+        reader.skipBytes(inputStream, (int) (elementEndOffsetBytes - reader.getBytesRead()));
+        return true;
       }
+      Track track = tracks.get(blockTrackIndex);
 
-      // Value of trackNumber is not used but needs to be read.
-      reader.readVarint(inputStream);
+      // Next three bytes have the relative timecode and flags.
+      reader.readBytes(inputStream, blockScratch, 3);
+      int timecode = (blockScratch[0] << 8) | (blockScratch[1] & 0xff);
+      blockTimeUs = clusterTimecodeUs + scaleTimecodeToUs(timecode);
+      int flags = blockScratch[2];
+      blockInvisible = (flags & 0x08) == 0x08;
+      // Every audio sample is a keyframe. Otherwise a SimpleBlock flags whether it's a keyframe,
+      // whereas a Block is a keyframe unless its BlockGroup contains a ReferenceBlock.
+      blockSamplesDeferred = id == ID_BLOCK && !track.isAudio();
+      blockKeyframe = track.isAudio() || (id == ID_SIMPLE_BLOCK && (flags & 0x80) == 0x80);
 
-      // Next three bytes have timecode and flags.
-      reader.readBytes(inputStream, simpleBlockTimecodeAndFlags, 3);
+      int lacing = (flags & 0x06) >> 1;
+      if (lacing == LACING_NONE) {
+        blockLacingSampleCount = 1;
+        blockLacingSampleSizes[0] = (int) (elementEndOffsetBytes - reader.getBytesRead());
+      } else {
+        if (blockSamplesDeferred) {
+          throw new IllegalStateException("Lacing not supported for video Block elements");
+        }
+        readLacingSampleSizes(lacing, elementEndOffsetBytes, inputStream);
+      }
+      blockLacingSampleIndex = 0;
+      blockLacingTimeOffsetNs = 0;
+      blockState = BLOCK_STATE_READING_SAMPLES;
+    }
 
-      // First two bytes of the three are the relative timecode.
-      int timecode =
-          (simpleBlockTimecodeAndFlags[0] << 8) | (simpleBlockTimecodeAndFlags[1] & 0xff);
-      long timecodeUs = scaleTimecodeToUs(timecode);
+    if (blockSamplesDeferred && blockGroupSizeUnknown) {
+      // The end of the BlockGroup isn't known, so the sample is buffered until the next element
+      // outside of the group is reached.
+      int sampleSize = blockLacingSampleSizes[0];
+      if (blockGroupSampleData.length < sampleSize) {
+        blockGroupSampleData = new byte[sampleSize];
+      }
+      reader.readBytes(inputStream, blockGroupSampleData, sampleSize);
+      blockGroupSampleSize = sampleSize;
+      blockGroupSamplePending = true;
+      blockState = BLOCK_STATE_START;
+      return true;
+    }
 
-      // Last byte of the three has some flags and the lacing value.
-      boolean keyframe = (simpleBlockTimecodeAndFlags[2] & 0x80) == 0x80;
-      boolean invisible = (simpleBlockTimecodeAndFlags[2] & 0x08) == 0x08;
-      int lacing = (simpleBlockTimecodeAndFlags[2] & 0x06) >> 1;
+    if (blockSamplesDeferred
+        && inputStream.getAvailableByteCount() < blockGroupEndOffsetBytes - reader.getBytesRead()) {
+      // The sample is output at the end of the BlockGroup, so the whole group must be available
+      // before it's read.
+      readResults |= RESULT_NEED_MORE_DATA;
+      return false;
+    }
 
-      // Validate lacing and set info into sample holder.
-      switch (lacing) {
-        case LACING_NONE:
-          long elementEndOffsetBytes = elementOffsetBytes + headerSizeBytes + contentsSizeBytes;
-          simpleBlockTimecodeUs = clusterTimecodeUs + timecodeUs;
-          sampleHolder.flags = keyframe ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
-          sampleHolder.decodeOnly = invisible;
-          sampleHolder.timeUs = clusterTimecodeUs + timecodeUs;
-          sampleHolder.size = (int) (elementEndOffsetBytes - reader.getBytesRead());
-          break;
-        case LACING_EBML:
-        case LACING_FIXED:
-        case LACING_XIPH:
-        default:
-          throw new IllegalStateException("Lacing mode " + lacing + " not supported");
-      }
+    // If we don't have a sample holder then don't consume the data.
+    if (sampleHolder == null) {
+      readResults |= RESULT_NEED_SAMPLE_HOLDER;
+      return false;
+    }
 
-      ByteBuffer outputData = sampleHolder.data;
-      if (sampleHolder.allowDataBufferReplacement
-          && (sampleHolder.data == null || sampleHolder.data.capacity() < sampleHolder.size)) {
-        outputData = ByteBuffer.allocate(sampleHolder.size);
-        sampleHolder.data = outputData;
-      }
+    Track track = tracks.get(blockTrackIndex);
+    sampleHolder.timeUs = blockTimeUs + blockLacingTimeOffsetNs / 1000;
+    sampleHolder.flags = blockKeyframe ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    sampleHolder.decodeOnly = blockInvisible;
+    sampleHolder.size = blockLacingSampleSizes[blockLacingSampleIndex];
 
-      if (outputData == null) {
-        reader.skipBytes(inputStream, sampleHolder.size);
-        sampleHolder.size = 0;
-      } else {
-        reader.readBytes(inputStream, outputData, sampleHolder.size);
+    // Without a DefaultDuration the duration of an audio sample is parsed from its leading bytes.
+    boolean parseSampleDuration = track.isAudio() && track.defaultSampleDurationNs == UNKNOWN;
+    int sampleHeaderSize = parseSampleDuration ? Math.min(sampleHolder.size, 2) : 0;
+    ByteBuffer outputData = getSampleHolderData(sampleHolder.size);
+    if (outputData == null) {
+      reader.readBytes(inputStream, blockScratch, sampleHeaderSize);
+      reader.skipBytes(inputStream, sampleHolder.size - sampleHeaderSize);
+      sampleHolder.size = 0;
+    } else {
+      int sampleOffset = outputData.position();
+      reader.readBytes(inputStream, outputData, sampleHolder.size);
+      for (int i = 0; i < sampleHeaderSize; i++) {
+        blockScratch[i] = outputData.get(sampleOffset + i);
+      }
+    }
+    long sampleDurationNs = parseSampleDuration
+        ? track.getAudioSampleDurationNs(blockScratch, sampleHeaderSize)
+        : track.defaultSampleDurationNs;
+    blockLacingSampleIndex++;
+    if (blockLacingSampleIndex < blockLacingSampleCount) {
+      // The next sample in the lace starts where this one ends.
+      if (sampleDurationNs == UNKNOWN) {
+        throw new IllegalStateException("Laced " + track.codecId + " block without duration");
       }
+      blockLacingTimeOffsetNs += sampleDurationNs;
+    }
+
+    if (blockSamplesDeferred) {
+      blockGroupSamplePending = true;
+    } else {
       readResults |= RESULT_READ_SAMPLE;
     }
+    if (blockLacingSampleIndex < blockLacingSampleCount) {
+      return false;
+    }
+    blockState = BLOCK_STATE_START;
+    return true;
+  }
+
+  /**
+   * Returns {@link SampleHolder#data} with room for a sample of the specified size, replacing it
+   * if allowed and necessary. Returns null if the sample data should be skipped.
+   */
+  private ByteBuffer getSampleHolderData(int sampleSize) {
+    if (sampleHolder.allowDataBufferReplacement
+        && (sampleHolder.data == null || sampleHolder.data.capacity() < sampleSize)) {
+      sampleHolder.data = ByteBuffer.allocate(sampleSize);
+    }
+    return sampleHolder.data;
+  }
+
+  /**
+   * Marks the buffered sample of a BlockGroup of unknown size as ended, if there is one, so that
+   * it's output before any further elements are read. Its flags are fixed at this point, since
+   * any ReferenceBlock in the group has been read.
+   *
+   * @return True if a buffered sample was ended. False otherwise.
+   */
+  private boolean maybeEndBufferedBlockGroupSample() {
+    if (!blockGroupSizeUnknown || !blockGroupSamplePending || blockGroupSampleEnded) {
+      return false;
+    }
+    blockGroupSampleFlags = blockGroupHasReferenceBlock ? 0 : MediaExtractor.SAMPLE_FLAG_SYNC;
+    blockGroupSampleEnded = true;
     return true;
   }
 
+  /**
+   * Outputs the ended sample of a BlockGroup of unknown size into {@link #sampleHolder}.
+   */
+  private void readBufferedBlockGroupSample() {
+    if (sampleHolder == null) {
+      readResults |= RESULT_NEED_SAMPLE_HOLDER;
+      return;
+    }
+    sampleHolder.timeUs = blockTimeUs;
+    sampleHolder.flags = blockGroupSampleFlags;
+    sampleHolder.decodeOnly = blockInvisible;
+    sampleHolder.size = blockGroupSampleSize;
+    ByteBuffer outputData = getSampleHolderData(blockGroupSampleSize);
+    if (outputData == null) {
+      sampleHolder.size = 0;
+    } else {
+      outputData.put(blockGroupSampleData, 0, blockGroupSampleSize);
+    }
+    blockGroupSamplePending = false;
+    blockGroupSampleEnded = false;
+    readResults |= RESULT_READ_SAMPLE;
+  }
+
+  /**
+   * Reads the lacing header of a laced block into {@link #blockLacingSampleCount} and
+   * {@link #blockLacingSampleSizes}.
+   */
+  private void readLacingSampleSizes(int lacing, long elementEndOffsetBytes,
+      NonBlockingInputStream inputStream) {
+    reader.readBytes(inputStream, blockScratch, 1);
+    int sampleCount = (blockScratch[0] & 0xff) + 1;
+    if (blockLacingSampleSizes.length < sampleCount) {
+      blockLacingSampleSizes = new int[sampleCount];
+    }
+    int[] sampleSizes = blockLacingSampleSizes;
+    int explicitSizesTotal = 0;
+    switch (lacing) {
+      case LACING_XIPH:
+        for (int i = 0; i < sampleCount - 1; i++) {
+          int sampleSize = 0;
+          int value;
+          do {
+            reader.readBytes(inputStream, blockScratch, 1);
+            value = blockScratch[0] & 0xff;
+            sampleSize += value;
+          } while (value == 0xff);
+          sampleSizes[i] = sampleSize;
+          explicitSizesTotal += sampleSize;
+        }
+        break;
+      case LACING_EBML:
+        for (int i = 0; i < sampleCount - 1; i++) {
+          // The first size is unsigned. Each subsequent size is a signed difference.
+          sampleSizes[i] = i == 0 ? (int) readLacingVarint(inputStream, false)
+              : sampleSizes[i - 1] + (int) readLacingVarint(inputStream, true);
+          explicitSizesTotal += sampleSizes[i];
+        }
+        break;
+      case LACING_FIXED:
+        break;
+      default:
+        throw new IllegalStateException("Lacing mode " + lacing + " not supported");
+    }
+    int remainingBytes = (int) (elementEndOffsetBytes - reader.getBytesRead());
+    if (lacing == LACING_FIXED) {
+      Arrays.fill(sampleSizes, 0, sampleCount, remainingBytes / sampleCount);
+    } else {
+      sampleSizes[sampleCount - 1] = remainingBytes - explicitSizesTotal;
+    }
+    blockLacingSampleCount = sampleCount;
+  }
+
+  /**
+   * Reads an EBML lacing size, which is a varint that's signed when it's the difference between
+   * two sizes. The value of a signed varint is offset by half of the range of its length.
+   */
+  private long readLacingVarint(NonBlockingInputStream inputStream, boolean signed) {
+    reader.readBytes(inputStream, blockScratch, 1);
+    int firstByte = blockScratch[0] & 0xff;
+    if (firstByte == 0) {
+      throw new IllegalStateException("Invalid lacing size");
+    }
+    int length = Integer.numberOfLeadingZeros(firstByte) - 23;
+    long value = firstByte & (0xff >> length);
+    if (length > 1) {
+      reader.readBytes(inputStream, blockScratch, length - 1);
+      for (int i = 0; i < length - 1; i++) {
+        value = (value << 8) | (blockScratch[i] & 0xff);
+      }
+    }
+    return signed ? value - ((1L << (7 * length - 1)) - 1) : value;
+  }
+
+  /**
+   * Returns the index of the extracted track with the specified track number, or {@link #UNKNOWN}
+   * if the track isn't being extracted.
+   */
+  private int getTrackIndex(int trackNumber) {
+    int trackCount = tracks.size();
+    for (int i = 0; i < trackCount; i++) {
+      if (tracks.get(i).number == trackNumber) {
+        return i;
+      }
+    }
+    return UNKNOWN;
+  }
+
   private long scaleTimecodeToUs(long unscaledTimecode) {
     return TimeUnit.NANOSECONDS.toMicros(unscaledTimecode * timecodeScale);
   }
 
   /**
-   * Build a video {@link MediaFormat} containing recently gathered Video information, if needed.
+   * Replaces {@link #tracks} with the supported tracks parsed from the most recent Tracks element.
    *
-   * <p>Replaces the previous {@link #format} only if video width/height have changed.
-   * {@link #format} is guaranteed to not be null after calling this method. In
-   * the event that it can't be built, an {@link IllegalStateException} will be thrown.
+   * <p>The format of each track is replaced only if it has changed, in which case
+   * {@link #RESULT_READ_INIT} is set. In the event that there are no supported tracks an
+   * {@link IllegalStateException} will be thrown.
    */
-  private void buildFormat() {
-    if (pixelWidth != UNKNOWN && pixelHeight != UNKNOWN
-        && (format == null || format.width != pixelWidth || format.height != pixelHeight)) {
-      format = MediaFormat.createVideoFormat(
-          MimeTypes.VIDEO_VP9, MediaFormat.NO_VALUE, pixelWidth, pixelHeight, null);
+  private void buildTracks() {
+    int trackCount = parsedTracks.size();
+    if (trackCount == 0) {
+      throw new IllegalStateException("No supported tracks");
+    }
+    boolean formatsChanged = trackCount != tracks.size();
+    for (int i = 0; i < trackCount; i++) {
+      Track track = parsedTracks.get(i);
+      MediaFormat format = track.buildFormat();
+      if (!formatsChanged && format.equals(tracks.get(i).format)) {
+        track.format = tracks.get(i).format;
+      } else {
+        track.format = format;
+        formatsChanged = true;
+      }
+    }
+    ArrayList<Track> previousTracks = tracks;
+    tracks = parsedTracks;
+    parsedTracks = previousTracks;
+    parsedTracks.clear();
+    if (formatsChanged) {
       readResults |= RESULT_READ_INIT;
-    } else if (format == null) {
-      throw new IllegalStateException("Unable to build format");
     }
   }
 
@@ -417,7 +878,11 @@ public final class WebmExtractor implements Extractor {
       sizes[i] = (int) (offsets[i + 1] - offsets[i]);
       durationsUs[i] = timesUs[i + 1] - timesUs[i];
     }
-    sizes[cuePointsSize - 1] = (int) (segmentEndOffsetBytes - offsets[cuePointsSize - 1]);
+    // The last cluster ends at the Cues element if the Cues follow the clusters, and otherwise at
+    // the end of the segment.
+    long clustersEndOffsetBytes = cuesOffsetBytes > offsets[cuePointsSize - 1] ? cuesOffsetBytes
+        : segmentEndOffsetBytes;
+    sizes[cuePointsSize - 1] = (int) (clustersEndOffsetBytes - offsets[cuePointsSize - 1]);
     durationsUs[cuePointsSize - 1] = durationUs - timesUs[cuePointsSize - 1];
     cues = new SegmentIndex((int) cuesSizeBytes, sizes, offsets, durationsUs, timesUs);
     cueTimesUs = null;
@@ -425,6 +890,276 @@ public final class WebmExtractor implements Extractor {
     readResults |= RESULT_READ_INDEX;
   }
 
+  /**
+   * Holds information parsed from a TrackEntry element.
+   */
+  private static final class Track {
+
+    public int number = UNKNOWN;
+    public String codecId;
+    public byte[] codecPrivate;
+    public long defaultSampleDurationNs = UNKNOWN;
+    public long codecDelayNs;
+    public long seekPreRollNs;
+    public int pixelWidth = UNKNOWN;
+    public int pixelHeight = UNKNOWN;
+    public int channelCount = 1;
+    public int sampleRate = 8000;
+    public MediaFormat format;
+
+    // The short and long Vorbis block sizes, and whether each Vorbis mode uses the long size.
+    public int[] vorbisBlockSizes;
+    public boolean[] vorbisModeBlockFlags;
+    public int vorbisPreviousBlockSize = UNKNOWN;
+
+    public boolean isSupported() {
+      return CODEC_ID_VP8.equals(codecId) || CODEC_ID_VP9.equals(codecId)
+          || CODEC_ID_OPUS.equals(codecId) || CODEC_ID_VORBIS.equals(codecId);
+    }
+
+    public boolean isAudio() {
+      return CODEC_ID_OPUS.equals(codecId) || CODEC_ID_VORBIS.equals(codecId);
+    }
+
+    /**
+     * Builds a {@link MediaFormat} for the track. In the event that it can't be built, an
+     * {@link IllegalStateException} will be thrown.
+     */
+    public MediaFormat buildFormat() {
+      if (CODEC_ID_VP8.equals(codecId) || CODEC_ID_VP9.equals(codecId)) {
+        if (pixelWidth == UNKNOWN || pixelHeight == UNKNOWN) {
+          throw new IllegalStateException("Unable to build format");
+        }
+        String mimeType = CODEC_ID_VP8.equals(codecId) ? MimeTypes.VIDEO_VP8 : MimeTypes.VIDEO_VP9;
+        return MediaFormat.createVideoFormat(mimeType, MediaFormat.NO_VALUE, pixelWidth,
+            pixelHeight, null);
+      }
+      if (codecPrivate == null) {
+        throw new IllegalStateException("Missing CodecPrivate for " + codecId);
+      }
+      List<byte[]> initializationData;
+      if (CODEC_ID_OPUS.equals(codecId)) {
+        initializationData = new ArrayList<byte[]>(3);
+        initializationData.add(codecPrivate);
+        initializationData.add(ByteBuffer.allocate(8).order(ByteOrder.nativeOrder())
+            .putLong(codecDelayNs).array());
+        initializationData.add(ByteBuffer.allocate(8).order(ByteOrder.nativeOrder())
+            .putLong(seekPreRollNs).array());
+        return MediaFormat.createAudioFormat(MimeTypes.AUDIO_OPUS, OPUS_MAX_INPUT_SIZE,
+            channelCount, sampleRate, initializationData);
+      }
+      initializationData = parseVorbisCodecPrivate(codecPrivate);
+      byte[] identificationHeader = initializationData.get(0);
+      if (identificationHeader.length > 28) {
+        int blockSizeExponents = identificationHeader[28] & 0xff;
+        vorbisBlockSizes = new int[] {
+            1 << (blockSizeExponents & 0x0f), 1 << (blockSizeExponents >> 4)};
+        vorbisModeBlockFlags = parseVorbisModeBlockFlags(initializationData.get(1));
+      }
+      return MediaFormat.createAudioFormat(MimeTypes.AUDIO_VORBIS, VORBIS_MAX_INPUT_SIZE,
+          channelCount, sampleRate, initializationData);
+    }
+
+    /**
+     * Returns the duration of an audio sample, parsed from its leading bytes, or {@link #UNKNOWN}
+     * if it can't be determined. Vorbis samples must be passed in decoding order, since the
+     * duration of each depends on the block size of the one before it.
+     *
+     * @param header Holds the leading bytes of the sample.
+     * @param length The number of bytes in {@code header}, which is two unless the sample is
+     *     shorter.
+     */
+    public long getAudioSampleDurationNs(byte[] header, int length) {
+      if (length == 0) {
+        return UNKNOWN;
+      }
+      if (CODEC_ID_OPUS.equals(codecId)) {
+        return getOpusPacketDurationNs(header, length);
+      }
+      return getVorbisPacketDurationNs(header[0] & 0xff);
+    }
+
+    /**
+     * Returns the duration of an Opus packet, as described by its TOC byte and, for packets with
+     * an arbitrary number of frames, its frame count byte. See RFC 6716 section 3.1.
+     */
+    private static long getOpusPacketDurationNs(byte[] header, int length) {
+      int toc = header[0] & 0xff;
+      int config = toc >> 3;
+      long frameDurationNs;
+      if (config < 12) {
+        // SILK-only: 10, 20, 40 or 60ms.
+        int index = config & 0x03;
+        frameDurationNs = index == 3 ? 60000000L : 10000000L << index;
+      } else if (config < 16) {
+        // Hybrid: 10 or 20ms.
+        frameDurationNs = 10000000L << (config & 0x01);
+      } else {
+        // CELT-only: 2.5, 5, 10 or 20ms.
+        frameDurationNs = 2500000L << (config & 0x03);
+      }
+      int frameCount;
+      switch (toc & 0x03) {
+        case 0:
+          frameCount = 1;
+          break;
+        case 1:
+        case 2:
+          frameCount = 2;
+          break;
+        default:
+          if (length < 2) {
+            return UNKNOWN;
+          }
+          frameCount = header[1] & 0x3f;
+          break;
+      }
+      return frameCount * frameDurationNs;
+    }
+
+    /**
+     * Returns the duration of a Vorbis audio packet, which is a quarter of the sum of its block
+     * size and the block size of the previous packet, given the first byte of the packet.
+     */
+    private long getVorbisPacketDurationNs(int firstByte) {
+      if (vorbisModeBlockFlags == null || (firstByte & 0x01) != 0) {
+        return UNKNOWN;
+      }
+      int modeCount = vorbisModeBlockFlags.length;
+      int modeBits = 32 - Integer.numberOfLeadingZeros(modeCount - 1);
+      int mode = (firstByte >> 1) & ((1 << modeBits) - 1);
+      if (mode >= modeCount) {
+        return UNKNOWN;
+      }
+      int blockSize;
+      int previousBlockSize = vorbisPreviousBlockSize;
+      if (vorbisModeBlockFlags[mode]) {
+        blockSize = vorbisBlockSizes[1];
+        // A long block signals the size of the previous window.
+        previousBlockSize = vorbisBlockSizes[(firstByte >> (modeBits + 1)) & 0x01];
+      } else {
+        blockSize = vorbisBlockSizes[0];
+        if (previousBlockSize == UNKNOWN) {
+          previousBlockSize = blockSize;
+        }
+      }
+      vorbisPreviousBlockSize = blockSize;
+      return ((previousBlockSize + blockSize) / 4) * 1000000000L / sampleRate;
+    }
+
+    /**
+     * Parses whether each mode in a Vorbis setup header uses the long block size. The modes are
+     * located by scanning backwards from the framing bit at the end of the header, which avoids
+     * having to parse the codebooks, floors, residues and mappings that precede them.
+     *
+     * @return The block flag of each mode, or null if the modes couldn't be located.
+     */
+    private static boolean[] parseVorbisModeBlockFlags(byte[] setupHeader) {
+      // Bits are packed starting from the least significant bit of each byte, so they're read in
+      // reverse starting from the most significant bit of the last byte.
+      int bitCount = setupHeader.length * 8;
+      int position = 0;
+      int modesEndPosition = UNKNOWN;
+      while (bitCount - position > 97) {
+        if (readReverseBits(setupHeader, position++, 1) == 1) {
+          modesEndPosition = position;
+          break;
+        }
+      }
+      if (modesEndPosition == UNKNOWN) {
+        return null;
+      }
+      // Each mode is a block flag, two zero 16 bit fields and a mapping number. The mode count
+      // precedes them, so candidate counts are checked until the modes run out.
+      int modeCount = 0;
+      int candidateModeCount = 0;
+      while (bitCount - position >= 97) {
+        if (readReverseBits(setupHeader, position, 8) > 63
+            || readReverseBits(setupHeader, position + 8, 32) != 0) {
+          break;
+        }
+        position += 41;
+        candidateModeCount++;
+        if (candidateModeCount > 64) {
+          break;
+        }
+        if (readReverseBits(setupHeader, position, 6) + 1 == candidateModeCount) {
+          modeCount = candidateModeCount;
+        }
+      }
+      if (modeCount == 0) {
+        return null;
+      }
+      boolean[] modeBlockFlags = new boolean[modeCount];
+      position = modesEndPosition;
+      for (int i = modeCount - 1; i >= 0; i--) {
+        modeBlockFlags[i] = readReverseBits(setupHeader, position + 40, 1) == 1;
+        position += 41;
+      }
+      return modeBlockFlags;
+    }
+
+    /**
+     * Reads bits from the end of a Vorbis packet towards its start.
+     *
+     * @param data The packet data.
+     * @param position The number of bits from the end of the packet at which to start reading.
+     * @param bitCount The number of bits to read, at most 32.
+     * @return The bits, with the first bit read being the most significant.
+     */
+    private static int readReverseBits(byte[] data, int position, int bitCount) {
+      int value = 0;
+      for (int i = position; i < position + bitCount; i++) {
+        int bit = (data[data.length - 1 - i / 8] >> (7 - i % 8)) & 0x01;
+        value = (value << 1) | bit;
+      }
+      return value;
+    }
+
+    /**
+     * Splits Vorbis CodecPrivate data into the identification and setup headers required by the
+     * decoder. The data consists of a Xiph laced identification, comment and setup header.
+     */
+    private static List<byte[]> parseVorbisCodecPrivate(byte[] codecPrivate) {
+      if (codecPrivate[0] != 0x02) {
+        throw new IllegalStateException("Error parsing Vorbis CodecPrivate");
+      }
+      int offset = 1;
+      int identificationHeaderLength = 0;
+      while ((codecPrivate[offset] & 0xff) == 0xff) {
+        identificationHeaderLength += 0xff;
+        offset++;
+      }
+      identificationHeaderLength += codecPrivate[offset++] & 0xff;
+      int commentHeaderLength = 0;
+      while ((codecPrivate[offset] & 0xff) == 0xff) {
+        commentHeaderLength += 0xff;
+        offset++;
+      }
+      commentHeaderLength += codecPrivate[offset++] & 0xff;
+
+      if (codecPrivate[offset] != 0x01) {
+        throw new IllegalStateException("Error parsing Vorbis identification header");
+      }
+      byte[] identificationHeader =
+          Arrays.copyOfRange(codecPrivate, offset, offset + identificationHeaderLength);
+      offset += identificationHeaderLength;
+      if (codecPrivate[offset] != 0x03) {
+        throw new IllegalStateException("Error parsing Vorbis comment header");
+      }
+      offset += commentHeaderLength;
+      if (codecPrivate[offset] != 0x05) {
+        throw new IllegalStateException("Error parsing Vorbis setup header");
+      }
+      byte[] setupHeader = Arrays.copyOfRange(codecPrivate, offset, codecPrivate.length);
+      List<byte[]> initializationData = new ArrayList<byte[]>(2);
+      initializationData.add(identificationHeader);
+      initializationData.add(setupHeader);
+      return initializationData;
+    }
+
+  }
+
   /**
    * Passes events through to {@link WebmExtractor} as
    * callbacks from {@link EbmlReader} are received.
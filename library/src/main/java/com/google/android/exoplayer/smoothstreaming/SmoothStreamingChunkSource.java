@@ -54,6 +54,8 @@ public class SmoothStreamingChunkSource implements ChunkSource {
   private static final int INITIALIZATION_VECTOR_SIZE = 8;
 
   private final String baseUrl;
+  private final String contentId;
+  private final int streamElementIndex;
   private final StreamElement streamElement;
   private final TrackInfo trackInfo;
   private final DataSource dataSource;
@@ -79,7 +81,27 @@ public class SmoothStreamingChunkSource implements ChunkSource {
   public SmoothStreamingChunkSource(String baseUrl, SmoothStreamingManifest manifest,
       int streamElementIndex, int[] trackIndices, DataSource dataSource,
       FormatEvaluator formatEvaluator) {
+    this(baseUrl, manifest, null, streamElementIndex, trackIndices, dataSource, formatEvaluator);
+  }
+
+  /**
+   * @param baseUrl The base URL for the streams.
+   * @param manifest The manifest parsed from {@code baseUrl + "/Manifest"}.
+   * @param contentId The content id of the media, from which the cache keys of the chunks are
+   *     derived. May be null, in which case the chunks are requested without cache keys.
+   * @param streamElementIndex The index of the stream element in the manifest to be provided by
+   *     the source.
+   * @param trackIndices The indices of the tracks within the stream element to be considered by
+   *     the source. May be null if all tracks within the element should be considered.
+   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param formatEvaluator Selects from the available formats.
+   */
+  public SmoothStreamingChunkSource(String baseUrl, SmoothStreamingManifest manifest,
+      String contentId, int streamElementIndex, int[] trackIndices, DataSource dataSource,
+      FormatEvaluator formatEvaluator) {
     this.baseUrl = baseUrl;
+    this.contentId = contentId;
+    this.streamElementIndex = streamElementIndex;
     this.streamElement = manifest.streamElements[streamElementIndex];
     this.trackInfo = new TrackInfo(streamElement.tracks[0].mimeType, manifest.getDurationUs());
     this.dataSource = dataSource;
@@ -183,16 +205,22 @@ public class SmoothStreamingChunkSource implements ChunkSource {
     }
 
     boolean isLastChunk = nextChunkIndex == streamElement.chunkCount - 1;
-    String requestUrl = streamElement.buildRequestUrl(selectedFormat.trackIndex,
-        nextChunkIndex);
-    Uri uri = Uri.parse(baseUrl + '/' + requestUrl);
-    Chunk mediaChunk = newMediaChunk(selectedFormat, uri, null,
+    Chunk mediaChunk = newMediaChunk(selectedFormat,
+        newMediaChunkDataSpec(selectedFormat, nextChunkIndex),
         extractors.get(Integer.parseInt(selectedFormat.id)), dataSource, nextChunkIndex,
         isLastChunk, streamElement.getStartTimeUs(nextChunkIndex),
         isLastChunk ? -1 : streamElement.getStartTimeUs(nextChunkIndex + 1), 0);
     out.chunk = mediaChunk;
   }
 
+  @Override
+  public DataSpec getNextChunkDataSpec(MediaChunk chunk) {
+    if (chunk.nextChunkIndex == -1) {
+      return null;
+    }
+    return newMediaChunkDataSpec((SmoothStreamingFormat) chunk.format, chunk.nextChunkIndex);
+  }
+
   @Override
   public IOException getError() {
     return null;
@@ -203,6 +231,25 @@ public class SmoothStreamingChunkSource implements ChunkSource {
     // Do nothing.
   }
 
+  private DataSpec newMediaChunkDataSpec(SmoothStreamingFormat format, int chunkIndex) {
+    String requestUrl = streamElement.buildRequestUrl(format.trackIndex, chunkIndex);
+    Uri uri = Uri.parse(baseUrl + '/' + requestUrl);
+    return new DataSpec(uri, 0, -1, getCacheKey(format, chunkIndex));
+  }
+
+  /**
+   * Returns the cache key of a chunk, or null if no content id was provided. The key is derived
+   * from the start time of the chunk rather than its index, so that it remains stable across
+   * sessions.
+   */
+  private String getCacheKey(SmoothStreamingFormat format, int chunkIndex) {
+    if (contentId == null) {
+      return null;
+    }
+    return contentId + "." + streamElementIndex + "." + format.trackIndex + "."
+        + streamElement.getStartTimeUs(chunkIndex);
+  }
+
   private static MediaFormat getMediaFormat(StreamElement streamElement, int trackIndex) {
     TrackElement trackElement = streamElement.tracks[trackIndex];
     String mimeType = trackElement.mimeType;
@@ -227,13 +274,11 @@ public class SmoothStreamingChunkSource implements ChunkSource {
     return null;
   }
 
-  private static MediaChunk newMediaChunk(Format formatInfo, Uri uri, String cacheKey,
+  private static MediaChunk newMediaChunk(Format formatInfo, DataSpec dataSpec,
       Extractor extractor, DataSource dataSource, int chunkIndex,
       boolean isLast, long chunkStartTimeUs, long nextChunkStartTimeUs, int trigger) {
     int nextChunkIndex = isLast ? -1 : chunkIndex + 1;
     long nextStartTimeUs = isLast ? -1 : nextChunkStartTimeUs;
-    long offset = 0;
-    DataSpec dataSpec = new DataSpec(uri, offset, -1, cacheKey);
     // In SmoothStreaming each chunk contains sample timestamps relative to the start of the chunk.
     // To convert them the absolute timestamps, we need to set sampleOffsetUs to -chunkStartTimeUs.
     return new Mp4MediaChunk(dataSource, dataSpec, formatInfo, trigger, chunkStartTimeUs,
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A snapshot of the memory accounting counters maintained by an {@link Allocator}, for debugging
+ * and tuning purposes only.
+ * <p>
+ * Instances are obtained by polling an allocator, for example using
+ * {@link BufferPool#getCounters()}. Cumulative counters can be differenced between two snapshots
+ * to obtain rates.
+ */
+public final class AllocatorCounters {
+
+  /**
+   * The {@link android.os.SystemClock#elapsedRealtime()} at which the snapshot was taken.
+   */
+  public long snapshotTimeMs;
+
+  /**
+   * The cumulative number of {@link Allocation}s obtained from the allocator.
+   */
+  public int allocationCount;
+  /**
+   * The cumulative number of bytes allocated, including bytes added by growing existing
+   * {@link Allocation}s.
+   */
+  public long allocatedByteCount;
+  /**
+   * The cumulative number of calls to {@link Allocator#allocate(int)} that were satisfied entirely
+   * using recycled memory. Growth of existing {@link Allocation}s is not counted.
+   */
+  public int recycleHitCount;
+  /**
+   * The cumulative number of calls to {@link Allocator#allocate(int)} that required new memory to
+   * be instantiated. Growth of existing {@link Allocation}s is not counted.
+   */
+  public int recycleMissCount;
+  /**
+   * The cumulative number of calls to {@link Allocator#trim(int)} that released memory.
+   */
+  public int trimCount;
+  /**
+   * The cumulative number of bytes released by calls to {@link Allocator#trim(int)}.
+   */
+  public long trimmedByteCount;
+
+  /**
+   * The number of bytes currently allocated in the form of {@link Allocation}s.
+   */
+  public int liveByteCount;
+  /**
+   * The maximum value that {@link #liveByteCount} has reached.
+   */
+  public int peakLiveByteCount;
+  /**
+   * The number of bytes currently retained by the allocator, including both live bytes and memory
+   * that is held for re-use.
+   */
+  public long retainedByteCount;
+
+  /**
+   * Returns the fraction of calls to {@link Allocator#allocate(int)} that were satisfied using
+   * recycled memory. The sum of {@link #recycleHitCount} and {@link #recycleMissCount} is equal to
+   * {@link #allocationCount}.
+   *
+   * @return The recycle hit ratio, or 0 if no requests have been made.
+   */
+  public float getRecycleHitRatio() {
+    int requestCount = recycleHitCount + recycleMissCount;
+    return requestCount == 0 ? 0 : (float) recycleHitCount / requestCount;
+  }
+
+  /**
+   * Returns the fraction of retained memory that is not currently live.
+   *
+   * @return The fragmentation, or 0 if no memory is retained.
+   */
+  public float getFragmentation() {
+    return retainedByteCount == 0 ? 0 : 1 - (float) liveByteCount / retainedByteCount;
+  }
+
+  /**
+   * Returns the rate at which bytes have been allocated since a previous snapshot.
+   *
+   * @param previous A previous snapshot obtained from the same allocator.
+   * @return The allocation rate in bytes per second, or 0 if no time has elapsed.
+   */
+  public long getAllocationRate(AllocatorCounters previous) {
+    long elapsedMs = snapshotTimeMs - previous.snapshotTimeMs;
+    return elapsedMs <= 0 ? 0 : ((allocatedByteCount - previous.allocatedByteCount) * 1000)
+        / elapsedMs;
+  }
+
+  public String getDebugString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("ac(").append(allocationCount).append(")");
+    builder.append("ab(").append(allocatedByteCount).append(")");
+    builder.append("rhr(").append(getRecycleHitRatio()).append(")");
+    builder.append("tc(").append(trimCount).append(")");
+    builder.append("tb(").append(trimmedByteCount).append(")");
+    builder.append("lb(").append(liveByteCount).append(")");
+    builder.append("plb(").append(peakLiveByteCount).append(")");
+    builder.append("rb(").append(retainedByteCount).append(")");
+    builder.append("frag(").append(getFragmentation()).append(")");
+    return builder.toString();
+  }
+
+}
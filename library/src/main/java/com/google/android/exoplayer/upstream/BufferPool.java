@@ -17,6 +17,8 @@ package com.google.android.exoplayer.upstream;
 
 import com.google.android.exoplayer.util.Assertions;
 
+import android.os.SystemClock;
+
 import java.util.Arrays;
 
 /**
@@ -39,6 +41,14 @@ public final class BufferPool implements Allocator {
   private int recycledBufferCount;
   private byte[][] recycledBuffers;
 
+  private int allocationCount;
+  private long allocatedBufferTotal;
+  private int recycleHitCount;
+  private int recycleMissCount;
+  private int trimCount;
+  private long trimmedBufferTotal;
+  private int peakAllocatedBufferCount;
+
   /**
    * Constructs an empty pool.
    *
@@ -55,11 +65,33 @@ public final class BufferPool implements Allocator {
     return allocatedBufferCount * bufferLength;
   }
 
+  /**
+   * Returns a snapshot of the pool's memory accounting counters.
+   *
+   * @return A snapshot of the pool's counters.
+   */
+  public synchronized AllocatorCounters getCounters() {
+    AllocatorCounters counters = new AllocatorCounters();
+    counters.snapshotTimeMs = SystemClock.elapsedRealtime();
+    counters.allocationCount = allocationCount;
+    counters.allocatedByteCount = allocatedBufferTotal * bufferLength;
+    counters.recycleHitCount = recycleHitCount;
+    counters.recycleMissCount = recycleMissCount;
+    counters.trimCount = trimCount;
+    counters.trimmedByteCount = trimmedBufferTotal * bufferLength;
+    counters.liveByteCount = allocatedBufferCount * bufferLength;
+    counters.peakLiveByteCount = peakAllocatedBufferCount * bufferLength;
+    counters.retainedByteCount = (long) (allocatedBufferCount + recycledBufferCount) * bufferLength;
+    return counters;
+  }
+
   @Override
   public synchronized void trim(int targetSize) {
     int targetBufferCount = (targetSize + bufferLength - 1) / bufferLength;
     int targetRecycledBufferCount = Math.max(0, targetBufferCount - allocatedBufferCount);
     if (targetRecycledBufferCount < recycledBufferCount) {
+      trimCount++;
+      trimmedBufferTotal += recycledBufferCount - targetRecycledBufferCount;
       Arrays.fill(recycledBuffers, targetRecycledBufferCount, recycledBufferCount, null);
       recycledBufferCount = targetRecycledBufferCount;
     }
@@ -67,7 +99,8 @@ public final class BufferPool implements Allocator {
 
   @Override
   public synchronized Allocation allocate(int size) {
-    return new AllocationImpl(allocate(size, null));
+    allocationCount++;
+    return new AllocationImpl(allocate(size, null, true));
   }
 
   /**
@@ -80,6 +113,11 @@ public final class BufferPool implements Allocator {
    * @return The allocated byte arrays.
    */
   /* package */ synchronized byte[][] allocate(int size, byte[][] existing) {
+    return allocate(size, existing, false);
+  }
+
+  private byte[][] allocate(int size, byte[][] existing, boolean isAllocationRequest) {
+    int newBufferCount = 0;
     int requiredBufferCount = requiredBufferCount(size);
     if (existing != null && requiredBufferCount <= existing.length) {
       // The existing buffers are sufficient.
@@ -94,10 +132,23 @@ public final class BufferPool implements Allocator {
     }
     // Allocate the new buffers
     allocatedBufferCount += requiredBufferCount - firstNewBufferIndex;
+    allocatedBufferTotal += requiredBufferCount - firstNewBufferIndex;
+    peakAllocatedBufferCount = Math.max(peakAllocatedBufferCount, allocatedBufferCount);
     for (int i = firstNewBufferIndex; i < requiredBufferCount; i++) {
       // Use a recycled buffer if one is available. Else instantiate a new one.
-      buffers[i] = recycledBufferCount > 0 ? recycledBuffers[--recycledBufferCount] :
-          new byte[bufferLength];
+      if (recycledBufferCount > 0) {
+        buffers[i] = recycledBuffers[--recycledBufferCount];
+      } else {
+        buffers[i] = new byte[bufferLength];
+        newBufferCount++;
+      }
+    }
+    if (isAllocationRequest) {
+      if (newBufferCount == 0) {
+        recycleHitCount++;
+      } else {
+        recycleMissCount++;
+      }
     }
     return buffers;
   }
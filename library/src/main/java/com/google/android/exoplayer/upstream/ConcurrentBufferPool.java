@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Allocator} that maintains a pool of fixed length byte arrays (buffers), and that can be
+ * used concurrently from multiple threads without locking.
+ * <p>
+ * Each thread that allocates or releases buffers owns a magazine, which is a small stack of
+ * recycled buffers. Allocations are satisfied from the calling thread's magazine, and released
+ * buffers are returned to the releasing thread's magazine. When a magazine becomes full it is
+ * handed off to a shared lock-free depot, and when a magazine becomes empty it is exchanged for a
+ * full one from the depot. Buffers therefore flow from the threads that release them (typically
+ * the playback thread) to the threads that allocate them (typically {@link Loader} threads) a
+ * magazine at a time, rather than contending on a shared monitor for each buffer.
+ * <p>
+ * An {@link Allocation} obtained from a {@link ConcurrentBufferPool} consists of the whole number
+ * of buffers, as for {@link BufferPool}.
+ */
+public final class ConcurrentBufferPool implements Allocator {
+
+  /**
+   * The default maximum number of buffers held by each magazine.
+   */
+  public static final int DEFAULT_MAGAZINE_CAPACITY = 16;
+
+  /**
+   * The length in bytes of each individual buffer in the pool.
+   */
+  public final int bufferLength;
+
+  private final int magazineCapacity;
+  private final AtomicInteger allocatedBufferCount;
+  private final AtomicInteger depotBufferCount;
+  private final ConcurrentLinkedQueue<Magazine> fullMagazines;
+  private final ConcurrentLinkedQueue<Magazine> emptyMagazines;
+  private final ThreadLocal<Magazine> localMagazine;
+
+  private final AtomicInteger allocationCount;
+  private final AtomicLong allocatedBufferTotal;
+  private final AtomicInteger recycleHitCount;
+  private final AtomicInteger recycleMissCount;
+  private final AtomicInteger trimCount;
+  private final AtomicLong trimmedBufferTotal;
+  private final AtomicInteger peakAllocatedBufferCount;
+
+  /**
+   * Constructs an empty pool, using {@link #DEFAULT_MAGAZINE_CAPACITY}.
+   *
+   * @param bufferLength The length of each buffer in the pool.
+   */
+  public ConcurrentBufferPool(int bufferLength) {
+    this(bufferLength, DEFAULT_MAGAZINE_CAPACITY);
+  }
+
+  /**
+   * Constructs an empty pool.
+   *
+   * @param bufferLength The length of each buffer in the pool.
+   * @param magazineCapacity The maximum number of recycled buffers cached by each thread before
+   *     they are handed off to the shared depot.
+   */
+  public ConcurrentBufferPool(int bufferLength, int magazineCapacity) {
+    Assertions.checkArgument(bufferLength > 0);
+    Assertions.checkArgument(magazineCapacity > 0);
+    this.bufferLength = bufferLength;
+    this.magazineCapacity = magazineCapacity;
+    allocatedBufferCount = new AtomicInteger();
+    depotBufferCount = new AtomicInteger();
+    fullMagazines = new ConcurrentLinkedQueue<Magazine>();
+    emptyMagazines = new ConcurrentLinkedQueue<Magazine>();
+    allocationCount = new AtomicInteger();
+    allocatedBufferTotal = new AtomicLong();
+    recycleHitCount = new AtomicInteger();
+    recycleMissCount = new AtomicInteger();
+    trimCount = new AtomicInteger();
+    trimmedBufferTotal = new AtomicLong();
+    peakAllocatedBufferCount = new AtomicInteger();
+    localMagazine = new ThreadLocal<Magazine>() {
+      @Override
+      protected Magazine initialValue() {
+        return new Magazine(ConcurrentBufferPool.this.magazineCapacity);
+      }
+    };
+  }
+
+  @Override
+  public int getAllocatedSize() {
+    return allocatedBufferCount.get() * bufferLength;
+  }
+
+  /**
+   * Returns a snapshot of the pool's memory accounting counters.
+   * <p>
+   * The counters are read without locking, and so may not be mutually consistent if allocations
+   * are being made concurrently. Recycled buffers cached by the magazines of individual threads are
+   * not included in {@link AllocatorCounters#retainedByteCount}.
+   *
+   * @return A snapshot of the pool's counters.
+   */
+  public AllocatorCounters getCounters() {
+    AllocatorCounters counters = new AllocatorCounters();
+    counters.snapshotTimeMs = SystemClock.elapsedRealtime();
+    counters.allocationCount = allocationCount.get();
+    long allocatedBufferTotal = this.allocatedBufferTotal.get();
+    counters.allocatedByteCount = allocatedBufferTotal * bufferLength;
+    counters.recycleHitCount = recycleHitCount.get();
+    counters.recycleMissCount = recycleMissCount.get();
+    counters.trimCount = trimCount.get();
+    counters.trimmedByteCount = trimmedBufferTotal.get() * bufferLength;
+    int allocatedBufferCount = this.allocatedBufferCount.get();
+    counters.liveByteCount = allocatedBufferCount * bufferLength;
+    counters.peakLiveByteCount = peakAllocatedBufferCount.get() * bufferLength;
+    counters.retainedByteCount =
+        (long) (allocatedBufferCount + depotBufferCount.get()) * bufferLength;
+    return counters;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Recycled buffers held in the shared depot are released first, followed by those held in the
+   * calling thread's magazine. Buffers cached by the magazines of other threads are not released.
+   */
+  @Override
+  public void trim(int targetSize) {
+    int targetBufferCount = (targetSize + bufferLength - 1) / bufferLength;
+    int targetRecycledBufferCount = Math.max(0, targetBufferCount - allocatedBufferCount.get());
+    int trimmedBufferCount = 0;
+    while (depotBufferCount.get() > targetRecycledBufferCount) {
+      Magazine magazine = fullMagazines.poll();
+      if (magazine == null) {
+        break;
+      }
+      depotBufferCount.addAndGet(-magazine.count);
+      trimmedBufferCount += magazine.count;
+      magazine.clear();
+      emptyMagazines.offer(magazine);
+    }
+    int remainingRecycledBufferCount =
+        Math.max(0, targetRecycledBufferCount - depotBufferCount.get());
+    trimmedBufferCount += localMagazine.get().trim(remainingRecycledBufferCount);
+    if (trimmedBufferCount > 0) {
+      trimCount.incrementAndGet();
+      trimmedBufferTotal.addAndGet(trimmedBufferCount);
+    }
+  }
+
+  @Override
+  public Allocation allocate(int size) {
+    allocationCount.incrementAndGet();
+    return new AllocationImpl(allocate(size, null, true));
+  }
+
+  /**
+   * Allocates byte arrays whose combined length is at least {@code size}.
+   * <p>
+   * An existing array of byte arrays may be provided to form the start of the allocation.
+   *
+   * @param size The total size required, in bytes.
+   * @param existing Existing byte arrays to use as the start of the allocation. May be null.
+   * @return The allocated byte arrays.
+   */
+  /* package */ byte[][] allocate(int size, byte[][] existing) {
+    return allocate(size, existing, false);
+  }
+
+  private byte[][] allocate(int size, byte[][] existing, boolean isAllocationRequest) {
+    int newBufferCount = 0;
+    int requiredBufferCount = requiredBufferCount(size);
+    if (existing != null && requiredBufferCount <= existing.length) {
+      // The existing buffers are sufficient.
+      return existing;
+    }
+    // We need to allocate additional buffers.
+    byte[][] buffers = new byte[requiredBufferCount][];
+    int firstNewBufferIndex = 0;
+    if (existing != null) {
+      firstNewBufferIndex = existing.length;
+      System.arraycopy(existing, 0, buffers, 0, firstNewBufferIndex);
+    }
+    // Allocate the new buffers
+    int newAllocatedBufferCount =
+        allocatedBufferCount.addAndGet(requiredBufferCount - firstNewBufferIndex);
+    allocatedBufferTotal.addAndGet(requiredBufferCount - firstNewBufferIndex);
+    updatePeakAllocatedBufferCount(newAllocatedBufferCount);
+    Magazine magazine = localMagazine.get();
+    for (int i = firstNewBufferIndex; i < requiredBufferCount; i++) {
+      if (magazine.count == 0) {
+        magazine = exchangeEmptyMagazine(magazine);
+      }
+      // Use a recycled buffer if one is available. Else instantiate a new one.
+      if (magazine.count > 0) {
+        buffers[i] = magazine.pop();
+      } else {
+        buffers[i] = new byte[bufferLength];
+        newBufferCount++;
+      }
+    }
+    if (isAllocationRequest) {
+      (newBufferCount == 0 ? recycleHitCount : recycleMissCount).incrementAndGet();
+    }
+    return buffers;
+  }
+
+  /**
+   * Returns the buffers belonging to an allocation to the pool.
+   *
+   * @param buffers The buffers to return.
+   */
+  /* package */ void release(byte[][] buffers) {
+    allocatedBufferCount.addAndGet(-buffers.length);
+    Magazine magazine = localMagazine.get();
+    for (int i = 0; i < buffers.length; i++) {
+      if (magazine.count == magazineCapacity) {
+        magazine = exchangeFullMagazine(magazine);
+      }
+      magazine.push(buffers[i]);
+    }
+  }
+
+  /**
+   * Replaces the calling thread's empty magazine with a full one from the depot, if available.
+   *
+   * @param magazine The calling thread's magazine, which must be empty.
+   * @return The calling thread's new magazine.
+   */
+  private Magazine exchangeEmptyMagazine(Magazine magazine) {
+    Magazine fullMagazine = fullMagazines.poll();
+    if (fullMagazine == null) {
+      return magazine;
+    }
+    depotBufferCount.addAndGet(-fullMagazine.count);
+    emptyMagazines.offer(magazine);
+    localMagazine.set(fullMagazine);
+    return fullMagazine;
+  }
+
+  /**
+   * Hands off the calling thread's full magazine to the depot, replacing it with an empty one.
+   *
+   * @param magazine The calling thread's magazine, which must be full.
+   * @return The calling thread's new magazine.
+   */
+  private Magazine exchangeFullMagazine(Magazine magazine) {
+    depotBufferCount.addAndGet(magazine.count);
+    fullMagazines.offer(magazine);
+    Magazine emptyMagazine = emptyMagazines.poll();
+    if (emptyMagazine == null) {
+      emptyMagazine = new Magazine(magazineCapacity);
+    }
+    localMagazine.set(emptyMagazine);
+    return emptyMagazine;
+  }
+
+  private void updatePeakAllocatedBufferCount(int allocatedBufferCount) {
+    int peak = peakAllocatedBufferCount.get();
+    while (allocatedBufferCount > peak
+        && !peakAllocatedBufferCount.compareAndSet(peak, allocatedBufferCount)) {
+      peak = peakAllocatedBufferCount.get();
+    }
+  }
+
+  private int requiredBufferCount(long size) {
+    return (int) ((size + bufferLength - 1) / bufferLength);
+  }
+
+  /**
+   * A fixed capacity stack of recycled buffers. A magazine is only ever accessed by one thread at a
+   * time. Ownership is transferred between threads through the depot queues.
+   */
+  private static final class Magazine {
+
+    private final byte[][] buffers;
+
+    private int count;
+
+    public Magazine(int capacity) {
+      buffers = new byte[capacity][];
+    }
+
+    public void push(byte[] buffer) {
+      buffers[count++] = buffer;
+    }
+
+    public byte[] pop() {
+      byte[] buffer = buffers[--count];
+      buffers[count] = null;
+      return buffer;
+    }
+
+    public int trim(int targetCount) {
+      int trimmedCount = 0;
+      while (count > targetCount) {
+        buffers[--count] = null;
+        trimmedCount++;
+      }
+      return trimmedCount;
+    }
+
+    public void clear() {
+      trim(0);
+    }
+
+  }
+
+  private class AllocationImpl implements Allocation {
+
+    private byte[][] buffers;
+
+    public AllocationImpl(byte[][] buffers) {
+      this.buffers = buffers;
+    }
+
+    @Override
+    public void ensureCapacity(int size) {
+      buffers = allocate(size, buffers);
+    }
+
+    @Override
+    public int capacity() {
+      return bufferLength * buffers.length;
+    }
+
+    @Override
+    public byte[][] getBuffers() {
+      return buffers;
+    }
+
+    @Override
+    public int getFragmentOffset(int index) {
+      return 0;
+    }
+
+    @Override
+    public int getFragmentLength(int index) {
+      return bufferLength;
+    }
+
+    @Override
+    public void release() {
+      if (buffers != null) {
+        ConcurrentBufferPool.this.release(buffers);
+        buffers = null;
+      }
+    }
+
+  }
+
+}
@@ -22,10 +22,20 @@ import com.google.android.exoplayer.util.Util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Loads data from a {@link DataSource} into an in-memory {@link Allocation}. The loaded data
  * can be consumed by treating the instance as a non-blocking {@link NonBlockingInputStream}.
+ * <p>
+ * If additional range {@link DataSource}s are provided and the length of the data is known in
+ * advance, the data may instead be split into contiguous byte ranges that are loaded in parallel,
+ * each over its own connection. In this mode the loaded data is exposed for reading only once all
+ * preceding ranges have been loaded, so consumers observe the same sequential stream.
  */
 public final class DataSourceStream implements Loadable, NonBlockingInputStream {
 
@@ -42,7 +52,16 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
 
   private static final int CHUNKED_ALLOCATION_INCREMENT = 256 * 1024;
 
+  /**
+   * The minimum length of each range when loading in parallel.
+   */
+  public static final int MIN_PARALLEL_RANGE_LENGTH = 256 * 1024;
+
+  private static ExecutorService rangeLoadExecutor;
+
   private final DataSource dataSource;
+  private final DataSource[] rangeDataSources;
+  private final int rangeCount;
   private final DataSpec dataSpec;
   private final Allocator allocator;
   private final ReadHead readHead;
@@ -52,11 +71,19 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
   private volatile boolean loadCanceled;
   private volatile long loadPosition;
   private volatile long resolvedLength;
+  private volatile int allocatedSize;
+  private volatile boolean rangeLoadsAborted;
 
   private int writeFragmentIndex;
   private int writeFragmentOffset;
   private int writeFragmentRemainingLength;
 
+  private long[] rangeStartPositions;
+  private long[] rangeLoadedLengths;
+  private int firstIncompleteRangeIndex;
+  // Guarded by this. Non-null whilst range loads are in progress.
+  private Future<?>[] rangeLoads;
+
   /**
    * @param dataSource The source from which the data should be loaded.
    * @param dataSpec Defines the data to be loaded. {@code dataSpec.length} must not exceed
@@ -66,12 +93,52 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
    * @param allocator Used to obtain an {@link Allocation} for holding the data.
    */
   public DataSourceStream(DataSource dataSource, DataSpec dataSpec, Allocator allocator) {
+    this(dataSource, null, dataSpec, allocator);
+  }
+
+  /**
+   * @param dataSource The source from which the data should be loaded.
+   * @param rangeDataSources Additional sources that may be used to load ranges of the data in
+   *     parallel with {@code dataSource}, or null. Each source is used by at most one thread at a
+   *     time. Parallel loading is used only if {@code dataSpec.length} is bounded and sufficiently
+   *     large for each range to be at least {@link #MIN_PARALLEL_RANGE_LENGTH} bytes.
+   * @param dataSpec Defines the data to be loaded. {@code dataSpec.length} must not exceed
+   *     {@link Integer#MAX_VALUE}. If {@code dataSpec.length == C.LENGTH_UNBOUNDED} then
+   *     the length resolved by {@code dataSource.open(dataSpec)} must not exceed
+   *     {@link Integer#MAX_VALUE}.
+   * @param allocator Used to obtain an {@link Allocation} for holding the data.
+   */
+  public DataSourceStream(DataSource dataSource, DataSource[] rangeDataSources, DataSpec dataSpec,
+      Allocator allocator) {
     Assertions.checkState(dataSpec.length <= Integer.MAX_VALUE);
     this.dataSource = dataSource;
+    this.rangeDataSources = rangeDataSources;
     this.dataSpec = dataSpec;
     this.allocator = allocator;
     resolvedLength = C.LENGTH_UNBOUNDED;
     readHead = new ReadHead();
+    rangeCount = getRangeCount(dataSpec, rangeDataSources);
+  }
+
+  /**
+   * Returns the {@link DataSpec} of the first request that an instance constructed with the
+   * specified arguments opens on its primary {@link DataSource}. This differs from
+   * {@code dataSpec} if the data is loaded as parallel ranges, in which case the request is for
+   * the first range only.
+   *
+   * @param dataSpec The {@link DataSpec} of the data to be loaded.
+   * @param rangeDataSources Additional sources that may be used to load ranges of the data in
+   *     parallel, or null.
+   * @return The {@link DataSpec} of the first request.
+   */
+  public static DataSpec getInitialRequestDataSpec(DataSpec dataSpec,
+      DataSource[] rangeDataSources) {
+    int rangeCount = getRangeCount(dataSpec, rangeDataSources);
+    if (rangeCount == 1) {
+      return dataSpec;
+    }
+    return new DataSpec(dataSpec.uri, dataSpec.position, getRangeStartPosition(dataSpec.length,
+        rangeCount, 1), dataSpec.key);
   }
 
   /**
@@ -110,6 +177,16 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     return resolvedLength != C.LENGTH_UNBOUNDED ? resolvedLength : dataSpec.length;
   }
 
+  /**
+   * Returns the capacity of the {@link Allocation} that holds the loaded data, for debugging
+   * purposes. Can be called from any thread.
+   *
+   * @return The number of bytes allocated to the stream.
+   */
+  public int getAllocatedSize() {
+    return allocatedSize;
+  }
+
   /**
    * Whether the stream has finished loading.
    *
@@ -156,6 +233,7 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     if (allocation != null) {
       allocation.release();
       allocation = null;
+      allocatedSize = 0;
     }
   }
 
@@ -222,6 +300,7 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
   @Override
   public void cancelLoad() {
     loadCanceled = true;
+    abortRangeLoads();
   }
 
   @Override
@@ -236,6 +315,11 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
       return;
     }
 
+    if (rangeCount > 1) {
+      loadRanges();
+      return;
+    }
+
     try {
       DataSpec loadDataSpec;
       if (loadPosition == 0 && resolvedLength == C.LENGTH_UNBOUNDED) {
@@ -260,6 +344,7 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
         allocation = allocator.allocate(initialAllocationSize);
       }
       int allocationCapacity = allocation.capacity();
+      allocatedSize = allocationCapacity;
 
       if (loadPosition == 0) {
         writeFragmentIndex = 0;
@@ -284,6 +369,7 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
             if (loadPosition == allocationCapacity) {
               allocation.ensureCapacity(allocationCapacity + CHUNKED_ALLOCATION_INCREMENT);
               allocationCapacity = allocation.capacity();
+              allocatedSize = allocationCapacity;
               buffers = allocation.getBuffers();
             }
             writeFragmentOffset = allocation.getFragmentOffset(writeFragmentIndex);
@@ -305,6 +391,279 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     return resolvedLength == C.LENGTH_UNBOUNDED || loadPosition < resolvedLength;
   }
 
+  /**
+   * Loads the data as {@link #rangeCount} contiguous ranges in parallel. The first range is loaded
+   * on the calling thread and the remaining ranges on a shared executor. Ranges that were fully
+   * loaded by a previous call are skipped, and partially loaded ranges are resumed.
+   * <p>
+   * This method does not return until all of the range loads have stopped, since they write
+   * directly into {@link #allocation}. If the load is canceled, or the calling thread is
+   * interrupted, then the range loads are aborted so that this happens promptly.
+   */
+  private void loadRanges() throws IOException, InterruptedException {
+    if (allocation == null) {
+      resolvedLength = dataSpec.length;
+      allocation = allocator.allocate((int) resolvedLength);
+      allocatedSize = allocation.capacity();
+      rangeStartPositions = new long[rangeCount + 1];
+      rangeLoadedLengths = new long[rangeCount];
+      for (int i = 0; i <= rangeCount; i++) {
+        rangeStartPositions[i] = getRangeStartPosition(resolvedLength, rangeCount, i);
+      }
+    }
+
+    RangeLoadCallable[] rangeLoadCallables = new RangeLoadCallable[rangeCount];
+    Future<?>[] rangeLoads = new Future<?>[rangeCount];
+    ExecutorService executor = getRangeLoadExecutor();
+    synchronized (this) {
+      rangeLoadsAborted = false;
+      for (int i = 1; i < rangeCount; i++) {
+        rangeLoadCallables[i] = new RangeLoadCallable(rangeDataSources[i - 1], i);
+        rangeLoads[i] = executor.submit(rangeLoadCallables[i]);
+      }
+      this.rangeLoads = rangeLoads;
+    }
+    if (loadCanceled) {
+      // The load was canceled before the range loads were published.
+      abortRangeLoads();
+    }
+
+    IOException loadException = null;
+    RuntimeException runtimeException = null;
+    boolean interrupted = false;
+    try {
+      loadRange(dataSource, 0);
+    } catch (IOException e) {
+      loadException = e;
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } catch (RuntimeException e) {
+      runtimeException = e;
+    }
+    if (interrupted || loadException != null || runtimeException != null) {
+      // Stop the other ranges as soon as possible. They will be resumed if the load is retried.
+      abortRangeLoads();
+    }
+
+    for (int i = 1; i < rangeCount; i++) {
+      while (true) {
+        if (rangeLoads[i].isCancelled()) {
+          // The range load may still be running, and writing into the allocation.
+          interrupted |= rangeLoadCallables[i].awaitStopped();
+          break;
+        }
+        try {
+          rangeLoads[i].get();
+          break;
+        } catch (InterruptedException e) {
+          // The load is being canceled, but we must still wait for the range load to stop.
+          interrupted = true;
+          abortRangeLoads();
+        } catch (CancellationException e) {
+          // Handled at the start of the next iteration.
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (loadException != null || runtimeException != null) {
+            // Only the first error is reported, since later ones may be caused by the abort.
+          } else if (cause instanceof IOException) {
+            loadException = (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            runtimeException = (RuntimeException) cause;
+          } else {
+            throw new IllegalStateException(cause);
+          }
+          break;
+        }
+      }
+    }
+
+    synchronized (this) {
+      this.rangeLoads = null;
+    }
+
+    // Errors caused by aborting the range loads are ignored if the load was canceled.
+    if (interrupted) {
+      throw new InterruptedException();
+    } else if (loadCanceled) {
+      return;
+    } else if (runtimeException != null) {
+      throw runtimeException;
+    } else if (loadException != null) {
+      throw loadException;
+    }
+  }
+
+  /**
+   * Stops any range loads that are in progress as soon as possible. Range loads that have yet to
+   * start are prevented from doing so, and those that are running are interrupted and have their
+   * {@link DataSource}s closed so that blocking reads return. Can be called from any thread.
+   */
+  private void abortRangeLoads() {
+    Future<?>[] rangeLoads;
+    synchronized (this) {
+      rangeLoadsAborted = true;
+      rangeLoads = this.rangeLoads;
+    }
+    if (rangeLoads == null) {
+      return;
+    }
+    for (int i = 1; i < rangeCount; i++) {
+      rangeLoads[i].cancel(true);
+      Util.closeQuietly(rangeDataSources[i - 1]);
+    }
+  }
+
+  /**
+   * Loads the remainder of the range with the specified index.
+   */
+  private void loadRange(DataSource dataSource, int rangeIndex)
+      throws IOException, InterruptedException {
+    long rangeEnd = rangeStartPositions[rangeIndex + 1];
+    long position = rangeStartPositions[rangeIndex] + getRangeLoadedLength(rangeIndex);
+    if (position == rangeEnd) {
+      return;
+    }
+
+    try {
+      dataSource.open(new DataSpec(dataSpec.uri, dataSpec.position + position,
+          rangeEnd - position, dataSpec.key));
+
+      // Locate the fragment containing the first byte to be written.
+      int fragmentIndex = 0;
+      long fragmentStartPosition = 0;
+      while (fragmentStartPosition + allocation.getFragmentLength(fragmentIndex) <= position) {
+        fragmentStartPosition += allocation.getFragmentLength(fragmentIndex);
+        fragmentIndex++;
+      }
+      int fragmentOffset = allocation.getFragmentOffset(fragmentIndex)
+          + (int) (position - fragmentStartPosition);
+      int fragmentRemainingLength = allocation.getFragmentLength(fragmentIndex)
+          - (int) (position - fragmentStartPosition);
+
+      byte[][] buffers = allocation.getBuffers();
+      while (!loadCanceled && !rangeLoadsAborted && position < rangeEnd) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        if (fragmentRemainingLength == 0) {
+          fragmentIndex++;
+          fragmentOffset = allocation.getFragmentOffset(fragmentIndex);
+          fragmentRemainingLength = allocation.getFragmentLength(fragmentIndex);
+        }
+        int read = dataSource.read(buffers[fragmentIndex], fragmentOffset,
+            (int) Math.min(fragmentRemainingLength, rangeEnd - position));
+        if (read <= 0) {
+          throw new DataSourceStreamLoadException(new UnexpectedLengthException(
+              rangeEnd - rangeStartPositions[rangeIndex],
+              position - rangeStartPositions[rangeIndex]));
+        }
+        position += read;
+        fragmentOffset += read;
+        fragmentRemainingLength -= read;
+        onRangeDataLoaded(rangeIndex, read);
+      }
+    } finally {
+      Util.closeQuietly(dataSource);
+    }
+  }
+
+  private synchronized long getRangeLoadedLength(int rangeIndex) {
+    return rangeLoadedLengths[rangeIndex];
+  }
+
+  /**
+   * Records that data has been written into a range, and advances {@link #loadPosition} to the end
+   * of the contiguous prefix of loaded data. Synchronization ensures that the data written by each
+   * range load is visible to the reading thread before {@link #loadPosition} exposes it.
+   */
+  private synchronized void onRangeDataLoaded(int rangeIndex, int length) {
+    rangeLoadedLengths[rangeIndex] += length;
+    while (firstIncompleteRangeIndex < rangeCount
+        && rangeStartPositions[firstIncompleteRangeIndex]
+            + rangeLoadedLengths[firstIncompleteRangeIndex]
+            == rangeStartPositions[firstIncompleteRangeIndex + 1]) {
+      firstIncompleteRangeIndex++;
+    }
+    loadPosition = firstIncompleteRangeIndex == rangeCount ? resolvedLength
+        : rangeStartPositions[firstIncompleteRangeIndex]
+            + rangeLoadedLengths[firstIncompleteRangeIndex];
+  }
+
+  private static int getRangeCount(DataSpec dataSpec, DataSource[] rangeDataSources) {
+    if (rangeDataSources == null || dataSpec.length == C.LENGTH_UNBOUNDED) {
+      return 1;
+    }
+    return (int) Math.max(1, Math.min(rangeDataSources.length + 1,
+        dataSpec.length / MIN_PARALLEL_RANGE_LENGTH));
+  }
+
+  private static long getRangeStartPosition(long length, int rangeCount, int rangeIndex) {
+    return (length * rangeIndex) / rangeCount;
+  }
+
+  private static synchronized ExecutorService getRangeLoadExecutor() {
+    if (rangeLoadExecutor == null) {
+      rangeLoadExecutor = Util.newCachedThreadPool("DataSourceStream:RangeLoad");
+    }
+    return rangeLoadExecutor;
+  }
+
+  private final class RangeLoadCallable implements Callable<Void> {
+
+    private final DataSource dataSource;
+    private final int rangeIndex;
+
+    private boolean started;
+    private boolean stopped;
+
+    public RangeLoadCallable(DataSource dataSource, int rangeIndex) {
+      this.dataSource = dataSource;
+      this.rangeIndex = rangeIndex;
+    }
+
+    @Override
+    public Void call() throws IOException, InterruptedException {
+      synchronized (this) {
+        if (stopped) {
+          return null;
+        }
+        started = true;
+      }
+      try {
+        loadRange(dataSource, rangeIndex);
+      } finally {
+        synchronized (this) {
+          stopped = true;
+          notifyAll();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Blocks until the load has stopped, or prevents it from starting if it has yet to do so. Used
+     * once the corresponding {@link Future} has been canceled, after which its result can no longer
+     * be used to wait for the load to stop.
+     *
+     * @return True if the calling thread was interrupted whilst waiting. False otherwise.
+     */
+    public synchronized boolean awaitStopped() {
+      boolean interrupted = false;
+      if (!started) {
+        stopped = true;
+      }
+      while (!stopped) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return interrupted;
+    }
+
+  }
+
   private static class ReadHead {
 
     private int position;
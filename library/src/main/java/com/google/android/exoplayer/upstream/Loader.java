@@ -16,7 +16,6 @@
 package com.google.android.exoplayer.upstream;
 
 import com.google.android.exoplayer.util.Assertions;
-import com.google.android.exoplayer.util.Util;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
@@ -24,7 +23,6 @@ import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
 
 /**
  * Manages the background loading of {@link Loadable}s.
@@ -94,21 +92,50 @@ public final class Loader {
   private static final int MSG_END_OF_SOURCE = 0;
   private static final int MSG_ERROR = 1;
 
-  private final ExecutorService downloadExecutorService;
+  private final LoaderScheduler scheduler;
+  private final boolean ownsScheduler;
   private final Listener listener;
 
   private LoadTask currentTask;
   private boolean loading;
+  private volatile int priority;
 
   /**
    * @param threadName A name for the loader's thread.
    * @param listener A listener to invoke when state changes occur.
    */
   public Loader(String threadName, Listener listener) {
-    this.downloadExecutorService = Util.newSingleThreadExecutor(threadName);
+    this(new LoaderScheduler(threadName, 1), true, listener);
+  }
+
+  /**
+   * @param scheduler A {@link LoaderScheduler} on which loads should be executed. The scheduler
+   *     may be shared with other {@link Loader}s, and is not released when this {@link Loader} is
+   *     released.
+   * @param listener A listener to invoke when state changes occur.
+   */
+  public Loader(LoaderScheduler scheduler, Listener listener) {
+    this(scheduler, false, listener);
+  }
+
+  private Loader(LoaderScheduler scheduler, boolean ownsScheduler, Listener listener) {
+    this.scheduler = scheduler;
+    this.ownsScheduler = ownsScheduler;
     this.listener = listener;
   }
 
+  /**
+   * Sets the priority of the {@link Loader}'s loads relative to those of other {@link Loader}s that
+   * share the same {@link LoaderScheduler}. Loads with higher priorities are started first when
+   * the scheduler's threads are all busy. The priority can be changed whilst a load is pending, in
+   * which case the new value is used. Can be called from any thread.
+   *
+   * @param priority The priority. The default value is 0.
+   */
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
   /**
    * Start loading a {@link Loadable}.
    * <p>
@@ -121,7 +148,7 @@ public final class Loader {
     Assertions.checkState(!loading);
     loading = true;
     currentTask = new LoadTask(loadable);
-    downloadExecutorService.submit(currentTask);
+    scheduler.submit(currentTask);
   }
 
   /**
@@ -152,17 +179,19 @@ public final class Loader {
     if (loading) {
       cancelLoading();
     }
-    downloadExecutorService.shutdown();
+    if (ownsScheduler) {
+      scheduler.release();
+    }
   }
 
   @SuppressLint("HandlerLeak")
-  private final class LoadTask extends Handler implements Runnable {
+  private final class LoadTask extends Handler implements LoaderScheduler.Task {
 
     private static final String TAG = "LoadTask";
 
     private final Loadable loadable;
 
-    private volatile Thread executorThread;
+    private Thread executorThread;
 
     public LoadTask(Loadable loadable) {
       this.loadable = loadable;
@@ -170,15 +199,31 @@ public final class Loader {
 
     public void quit() {
       loadable.cancelLoad();
-      if (executorThread != null) {
-        executorThread.interrupt();
+      if (scheduler.remove(this)) {
+        // The load had yet to start.
+        sendEmptyMessage(MSG_END_OF_SOURCE);
+        return;
       }
+      synchronized (this) {
+        // The executor thread is only interrupted whilst it's executing this task, since it may
+        // subsequently be used to execute the tasks of other loaders.
+        if (executorThread != null) {
+          executorThread.interrupt();
+        }
+      }
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
     }
 
     @Override
     public void run() {
-      try {
+      synchronized (this) {
         executorThread = Thread.currentThread();
+      }
+      try {
         if (!loadable.isLoadCanceled()) {
           loadable.load();
         }
@@ -193,6 +238,10 @@ public final class Loader {
         // This should never happen, but handle it anyway.
         Log.e(TAG, "Unexpected error loading stream", e);
         obtainMessage(MSG_ERROR, new UnexpectedLoaderException(e)).sendToTarget();
+      } finally {
+        synchronized (this) {
+          executorThread = null;
+        }
       }
     }
 
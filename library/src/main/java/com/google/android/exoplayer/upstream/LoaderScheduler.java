@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.ArrayList;
+
+/**
+ * Executes the loads of one or more {@link Loader}s on a bounded pool of threads.
+ * <p>
+ * A single instance can be shared between the {@link Loader}s of several sources, so that their
+ * loads are multiplexed over a fixed number of threads rather than each {@link Loader} using a
+ * thread of its own. When more loads are pending than there are threads available, the pending
+ * load whose {@link Loader} has the highest priority (see {@link Loader#setPriority(int)}) is
+ * started first. Loads of equal priority are started in the order in which they were submitted.
+ * Priorities are evaluated when a thread becomes available, rather than when a load is submitted.
+ * <p>
+ * Threads are created on demand, and terminate after they have been idle for
+ * {@link #IDLE_THREAD_TIMEOUT_MS}.
+ */
+public final class LoaderScheduler {
+
+  /**
+   * The duration for which a thread may remain idle before it terminates.
+   */
+  public static final int IDLE_THREAD_TIMEOUT_MS = 60000;
+
+  /**
+   * A task that can be executed by a {@link LoaderScheduler}.
+   */
+  /* package */ interface Task extends Runnable {
+
+    /**
+     * Returns the priority of the task. Tasks with higher priorities are executed first.
+     */
+    int getPriority();
+
+  }
+
+  private final String threadName;
+  private final int maxThreadCount;
+  private final ArrayList<Task> pendingTasks;
+
+  private int threadCount;
+  private int idleThreadCount;
+  private boolean released;
+
+  /**
+   * @param threadName A name for the scheduler's threads.
+   * @param maxThreadCount The maximum number of loads that can be executed concurrently.
+   */
+  public LoaderScheduler(String threadName, int maxThreadCount) {
+    Assertions.checkArgument(maxThreadCount > 0);
+    this.threadName = threadName;
+    this.maxThreadCount = maxThreadCount;
+    this.pendingTasks = new ArrayList<Task>();
+  }
+
+  /**
+   * Releases the scheduler. Pending tasks that have yet to be started are discarded, and the
+   * scheduler's threads terminate once their current tasks have completed.
+   * <p>
+   * This method should be called when the scheduler is no longer required, after each
+   * {@link Loader} that uses it has been released.
+   */
+  public synchronized void release() {
+    released = true;
+    pendingTasks.clear();
+    notifyAll();
+  }
+
+  /**
+   * Submits a task for execution.
+   *
+   * @param task The task to execute.
+   */
+  /* package */ synchronized void submit(Task task) {
+    Assertions.checkState(!released);
+    pendingTasks.add(task);
+    if (idleThreadCount > 0) {
+      notify();
+    } else if (threadCount < maxThreadCount) {
+      threadCount++;
+      new Thread(new Worker(), threadName).start();
+    }
+  }
+
+  /**
+   * Removes a task that has yet to be started.
+   *
+   * @param task The task to remove.
+   * @return True if the task was removed. False if it was not pending.
+   */
+  /* package */ synchronized boolean remove(Task task) {
+    return pendingTasks.remove(task);
+  }
+
+  /**
+   * Blocks until a task is available, and then removes and returns the pending task with the
+   * highest priority. Returns null if the calling thread should terminate.
+   */
+  private synchronized Task takeTask() {
+    long timeoutMs = IDLE_THREAD_TIMEOUT_MS;
+    while (pendingTasks.isEmpty() && !released && timeoutMs > 0) {
+      long waitStartMs = System.currentTimeMillis();
+      idleThreadCount++;
+      try {
+        wait(timeoutMs);
+      } catch (InterruptedException e) {
+        // Ignore. The thread was interrupted by a cancelation that raced with the completion of
+        // the task it was executing.
+      } finally {
+        idleThreadCount--;
+      }
+      timeoutMs -= System.currentTimeMillis() - waitStartMs;
+    }
+    if (pendingTasks.isEmpty() || released) {
+      threadCount--;
+      return null;
+    }
+    int selectedIndex = 0;
+    int selectedPriority = pendingTasks.get(0).getPriority();
+    for (int i = 1; i < pendingTasks.size(); i++) {
+      int priority = pendingTasks.get(i).getPriority();
+      if (priority > selectedPriority) {
+        selectedIndex = i;
+        selectedPriority = priority;
+      }
+    }
+    return pendingTasks.remove(selectedIndex);
+  }
+
+  private final class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      Task task;
+      while ((task = takeTask()) != null) {
+        task.run();
+        // Clear any interrupt that was intended for the task that just completed.
+        Thread.interrupted();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSource} that can open a request ahead of time, whilst a previous request is still
+ * being read.
+ * <p>
+ * The source alternates between two upstream {@link DataSource}s. Whilst one is being read, a
+ * call to {@link #preopen(DataSpec)} opens the other on a background thread. If the next call to
+ * {@link #open(DataSpec)} is for the same {@link DataSpec}, the pre-opened upstream is used and
+ * the latency of issuing the request is hidden. Otherwise the pre-opened upstream is closed and the
+ * request is opened as normal.
+ * <p>
+ * {@link #open(DataSpec)}, {@link #read(byte[], int, int)} and {@link #close()} must be called
+ * from a single thread at a time, as for any other {@link DataSource}. {@link #preopen(DataSpec)}
+ * and {@link #cancelPreopen()} can be called from any thread. If the thread calling
+ * {@link #open(DataSpec)} is interrupted whilst waiting for a pre-opened request, the request is
+ * canceled and {@link InterruptedIOException} is thrown.
+ */
+public final class PipelinedDataSource implements DataSource {
+
+  private static ExecutorService preopenExecutor;
+
+  private final DataSource[] upstreams;
+  private final boolean[] upstreamsInUse;
+
+  private PreopenTask preopenTask;
+  private DataSource activeUpstream;
+
+  /**
+   * @param upstream The primary upstream {@link DataSource}.
+   * @param pipelineUpstream A second upstream {@link DataSource}, equivalent to {@code upstream}.
+   */
+  public PipelinedDataSource(DataSource upstream, DataSource pipelineUpstream) {
+    upstreams = new DataSource[] {Assertions.checkNotNull(upstream),
+        Assertions.checkNotNull(pipelineUpstream)};
+    upstreamsInUse = new boolean[2];
+  }
+
+  /**
+   * Opens a request in the background, in anticipation of it being the subsequent request passed
+   * to {@link #open(DataSpec)}. Any existing pre-opened request for a different {@link DataSpec}
+   * is canceled. The call has no effect if both upstreams are busy.
+   *
+   * @param dataSpec The {@link DataSpec} of the anticipated request.
+   */
+  public synchronized void preopen(DataSpec dataSpec) {
+    if (preopenTask != null) {
+      if (preopenTask.matches(dataSpec)) {
+        return;
+      }
+      cancelPreopen();
+    }
+    int upstreamIndex = acquireUpstream();
+    if (upstreamIndex == -1) {
+      return;
+    }
+    preopenTask = new PreopenTask(upstreamIndex, dataSpec);
+    getPreopenExecutor().execute(preopenTask);
+  }
+
+  /**
+   * Cancels any pre-opened request. The upstream used for the request is closed once the request
+   * has been opened, or immediately if it already has been.
+   */
+  public synchronized void cancelPreopen() {
+    if (preopenTask != null) {
+      cancelPreopenTask(preopenTask);
+      preopenTask = null;
+    }
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    Assertions.checkState(activeUpstream == null);
+    PreopenTask task;
+    synchronized (this) {
+      task = preopenTask;
+      preopenTask = null;
+      if (task != null && !task.matches(dataSpec)) {
+        cancelPreopenTask(task);
+        task = null;
+      }
+    }
+
+    if (task != null) {
+      if (awaitPreopen(task, dataSpec)) {
+        activeUpstream = upstreams[task.upstreamIndex];
+        return task.resolvedLength;
+      }
+      // The pre-open failed. Fall through to open the request again, since the failure may have
+      // been transient.
+      synchronized (this) {
+        closeAndReleaseUpstream(task.upstreamIndex);
+      }
+    }
+
+    int upstreamIndex;
+    synchronized (this) {
+      upstreamIndex = acquireUpstream();
+    }
+    // An upstream is always available, since at most one can be held by a pre-open.
+    Assertions.checkState(upstreamIndex != -1);
+    activeUpstream = upstreams[upstreamIndex];
+    return activeUpstream.open(dataSpec);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    return activeUpstream.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (activeUpstream == null) {
+      return;
+    }
+    try {
+      activeUpstream.close();
+    } finally {
+      synchronized (this) {
+        releaseUpstream(activeUpstream);
+      }
+      activeUpstream = null;
+    }
+  }
+
+  /**
+   * Blocks until the specified pre-open has finished.
+   *
+   * @return True if the pre-open succeeded. False otherwise.
+   * @throws InterruptedIOException If the calling thread was interrupted whilst waiting, in which
+   *     case the pre-open is canceled.
+   */
+  private synchronized boolean awaitPreopen(PreopenTask task, DataSpec dataSpec)
+      throws InterruptedIOException {
+    while (!task.finished) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // The upstream is closed and released once the pre-open finishes.
+        cancelPreopenTask(task);
+        throw new InterruptedIOException("Interrupted opening: " + dataSpec.uri);
+      }
+    }
+    return task.exception == null;
+  }
+
+  private void cancelPreopenTask(PreopenTask task) {
+    task.canceled = true;
+    if (task.finished) {
+      closeAndReleaseUpstream(task.upstreamIndex);
+    }
+  }
+
+  private int acquireUpstream() {
+    for (int i = 0; i < upstreams.length; i++) {
+      if (!upstreamsInUse[i]) {
+        upstreamsInUse[i] = true;
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void releaseUpstream(DataSource upstream) {
+    for (int i = 0; i < upstreams.length; i++) {
+      if (upstreams[i] == upstream) {
+        upstreamsInUse[i] = false;
+      }
+    }
+  }
+
+  private void closeAndReleaseUpstream(int upstreamIndex) {
+    Util.closeQuietly(upstreams[upstreamIndex]);
+    upstreamsInUse[upstreamIndex] = false;
+  }
+
+  private static synchronized ExecutorService getPreopenExecutor() {
+    if (preopenExecutor == null) {
+      preopenExecutor = Util.newCachedThreadPool("PipelinedDataSource:Preopen");
+    }
+    return preopenExecutor;
+  }
+
+  private final class PreopenTask implements Runnable {
+
+    public final int upstreamIndex;
+    public final DataSpec dataSpec;
+
+    // All fields below are guarded by the enclosing PipelinedDataSource.
+    public boolean canceled;
+    public boolean finished;
+    public long resolvedLength;
+    public IOException exception;
+
+    public PreopenTask(int upstreamIndex, DataSpec dataSpec) {
+      this.upstreamIndex = upstreamIndex;
+      this.dataSpec = dataSpec;
+    }
+
+    public boolean matches(DataSpec other) {
+      return Util.areEqual(dataSpec.uri, other.uri)
+          && dataSpec.absoluteStreamPosition == other.absoluteStreamPosition
+          && dataSpec.position == other.position
+          && dataSpec.length == other.length
+          && Util.areEqual(dataSpec.key, other.key);
+    }
+
+    @Override
+    public void run() {
+      long resolvedLength = 0;
+      IOException exception = null;
+      try {
+        resolvedLength = upstreams[upstreamIndex].open(dataSpec);
+      } catch (IOException e) {
+        exception = e;
+      }
+      synchronized (PipelinedDataSource.this) {
+        this.resolvedLength = resolvedLength;
+        this.exception = exception;
+        finished = true;
+        if (canceled) {
+          closeAndReleaseUpstream(upstreamIndex);
+        }
+        PipelinedDataSource.this.notifyAll();
+      }
+    }
+
+  }
+
+}
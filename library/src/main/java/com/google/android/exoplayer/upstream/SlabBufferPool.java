@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * An {@link Allocator} that carves variable length fragments out of large byte arrays (slabs).
+ * <p>
+ * Each slab is divided into {@link #UNITS_PER_SLAB} units of equal length. An {@link Allocation}
+ * obtained from a {@link SlabBufferPool} consists of one or more fragments, each of which is a
+ * contiguous run of units within a single slab. Small allocations therefore occupy only as many
+ * units as they require, rather than a whole buffer as is the case for {@link BufferPool}.
+ * <p>
+ * When an {@link Allocation} is released its units are returned to their slabs, where they
+ * coalesce with any adjacent free units. Slabs that become entirely free are retained for re-use
+ * until they are released by {@link #trim(int)}.
+ */
+public final class SlabBufferPool implements Allocator {
+
+  /**
+   * The number of units into which each slab is divided.
+   */
+  public static final int UNITS_PER_SLAB = 64;
+
+  private static final int INITIAL_FRAGMENT_CAPACITY = 4;
+
+  /**
+   * The length in bytes of each unit.
+   */
+  public final int unitLength;
+
+  /**
+   * The length in bytes of each slab.
+   */
+  public final int slabLength;
+
+  private final ArrayList<Slab> slabs;
+
+  private int allocatedUnitCount;
+
+  private int allocationCount;
+  private long allocatedUnitTotal;
+  private int recycleHitCount;
+  private int recycleMissCount;
+  private int trimCount;
+  private long trimmedSlabTotal;
+  private int peakAllocatedUnitCount;
+
+  /**
+   * Constructs an empty pool.
+   *
+   * @param unitLength The length of each unit, which is the granularity at which fragments are
+   *     allocated. Each slab has a length of {@code unitLength * UNITS_PER_SLAB}.
+   */
+  public SlabBufferPool(int unitLength) {
+    Assertions.checkArgument(unitLength > 0 && unitLength <= Integer.MAX_VALUE / UNITS_PER_SLAB);
+    this.unitLength = unitLength;
+    this.slabLength = unitLength * UNITS_PER_SLAB;
+    this.slabs = new ArrayList<Slab>();
+  }
+
+  @Override
+  public synchronized int getAllocatedSize() {
+    return allocatedUnitCount * unitLength;
+  }
+
+  /**
+   * Returns a snapshot of the pool's memory accounting counters.
+   * <p>
+   * An allocation whose fragments were all placed in existing slabs is counted as a recycle hit,
+   * and an allocation that required at least one new slab as a recycle miss.
+   *
+   * @return A snapshot of the pool's counters.
+   */
+  public synchronized AllocatorCounters getCounters() {
+    AllocatorCounters counters = new AllocatorCounters();
+    counters.snapshotTimeMs = SystemClock.elapsedRealtime();
+    counters.allocationCount = allocationCount;
+    counters.allocatedByteCount = allocatedUnitTotal * unitLength;
+    counters.recycleHitCount = recycleHitCount;
+    counters.recycleMissCount = recycleMissCount;
+    counters.trimCount = trimCount;
+    counters.trimmedByteCount = trimmedSlabTotal * slabLength;
+    counters.liveByteCount = allocatedUnitCount * unitLength;
+    counters.peakLiveByteCount = peakAllocatedUnitCount * unitLength;
+    counters.retainedByteCount = (long) slabs.size() * slabLength;
+    return counters;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Only slabs that are entirely free can be released. Partially occupied slabs are retained
+   * regardless of {@code targetSize}.
+   */
+  @Override
+  public synchronized void trim(int targetSize) {
+    int targetFreeSlabCount =
+        Math.max(0, targetSize - allocatedUnitCount * unitLength) / slabLength;
+    int freeSlabCount = 0;
+    int removedSlabCount = 0;
+    for (int i = slabs.size() - 1; i >= 0; i--) {
+      if (slabs.get(i).usedUnitCount == 0 && ++freeSlabCount > targetFreeSlabCount) {
+        slabs.remove(i);
+        removedSlabCount++;
+      }
+    }
+    if (removedSlabCount > 0) {
+      trimCount++;
+      trimmedSlabTotal += removedSlabCount;
+    }
+  }
+
+  @Override
+  public synchronized Allocation allocate(int size) {
+    allocationCount++;
+    AllocationImpl allocation = new AllocationImpl();
+    if (allocateFragments(allocation, size) == 0) {
+      recycleHitCount++;
+    } else {
+      recycleMissCount++;
+    }
+    return allocation;
+  }
+
+  /**
+   * Appends fragments to an allocation until its capacity is at least {@code size}.
+   *
+   * @param allocation The allocation to which fragments should be appended.
+   * @param size The total size required, in bytes.
+   * @return The number of new slabs that were instantiated.
+   */
+  /* package */ synchronized int allocateFragments(AllocationImpl allocation, int size) {
+    int newSlabCount = 0;
+    int remainingUnitCount = requiredUnitCount((long) size - allocation.capacity);
+    if (remainingUnitCount > 0) {
+      allocatedUnitCount += remainingUnitCount;
+      allocatedUnitTotal += remainingUnitCount;
+      peakAllocatedUnitCount = Math.max(peakAllocatedUnitCount, allocatedUnitCount);
+    }
+    while (remainingUnitCount > 0) {
+      int unitCount = Math.min(remainingUnitCount, UNITS_PER_SLAB);
+      Slab slab = null;
+      int firstUnit = -1;
+      for (int i = 0; i < slabs.size() && firstUnit == -1; i++) {
+        slab = slabs.get(i);
+        firstUnit = slab.findFreeRun(unitCount);
+      }
+      if (firstUnit == -1) {
+        slab = new Slab(slabLength);
+        slabs.add(slab);
+        firstUnit = 0;
+        newSlabCount++;
+      }
+      slab.markUsed(firstUnit, unitCount);
+      allocation.appendFragment(slab, firstUnit, unitCount);
+      remainingUnitCount -= unitCount;
+    }
+    return newSlabCount;
+  }
+
+  /**
+   * Returns the fragments belonging to an allocation to their slabs.
+   *
+   * @param allocation The allocation to return.
+   */
+  /* package */ synchronized void release(AllocationImpl allocation) {
+    for (int i = 0; i < allocation.fragmentCount; i++) {
+      int unitCount = allocation.fragmentLengths[i] / unitLength;
+      allocation.fragmentSlabs[i].markFree(allocation.fragmentOffsets[i] / unitLength, unitCount);
+      allocatedUnitCount -= unitCount;
+    }
+  }
+
+  private int requiredUnitCount(long size) {
+    return (int) ((size + unitLength - 1) / unitLength);
+  }
+
+  private static final class Slab {
+
+    public final byte[] data;
+
+    public long usedUnitMask;
+    public int usedUnitCount;
+
+    public Slab(int length) {
+      data = new byte[length];
+    }
+
+    /**
+     * Returns the index of the first unit of the first run of {@code unitCount} free units, or -1
+     * if the slab has no such run.
+     */
+    public int findFreeRun(int unitCount) {
+      if (UNITS_PER_SLAB - usedUnitCount < unitCount) {
+        return -1;
+      }
+      long runMask = getRunMask(unitCount);
+      for (int i = 0; i <= UNITS_PER_SLAB - unitCount; i++) {
+        if ((usedUnitMask & (runMask << i)) == 0) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    public void markUsed(int firstUnit, int unitCount) {
+      usedUnitMask |= getRunMask(unitCount) << firstUnit;
+      usedUnitCount += unitCount;
+    }
+
+    public void markFree(int firstUnit, int unitCount) {
+      usedUnitMask &= ~(getRunMask(unitCount) << firstUnit);
+      usedUnitCount -= unitCount;
+    }
+
+    private static long getRunMask(int unitCount) {
+      return unitCount == UNITS_PER_SLAB ? -1L : (1L << unitCount) - 1;
+    }
+
+  }
+
+  private class AllocationImpl implements Allocation {
+
+    private byte[][] buffers;
+    private Slab[] fragmentSlabs;
+    private int[] fragmentOffsets;
+    private int[] fragmentLengths;
+    private int fragmentCount;
+    private int capacity;
+
+    public AllocationImpl() {
+      buffers = new byte[0][];
+      fragmentSlabs = new Slab[INITIAL_FRAGMENT_CAPACITY];
+      fragmentOffsets = new int[INITIAL_FRAGMENT_CAPACITY];
+      fragmentLengths = new int[INITIAL_FRAGMENT_CAPACITY];
+    }
+
+    /**
+     * Appends a fragment consisting of a run of units within a slab.
+     */
+    public void appendFragment(Slab slab, int firstUnit, int unitCount) {
+      if (fragmentCount == fragmentSlabs.length) {
+        int newFragmentCapacity = fragmentCount * 2;
+        Slab[] newFragmentSlabs = new Slab[newFragmentCapacity];
+        System.arraycopy(fragmentSlabs, 0, newFragmentSlabs, 0, fragmentCount);
+        fragmentSlabs = newFragmentSlabs;
+        int[] newFragmentOffsets = new int[newFragmentCapacity];
+        System.arraycopy(fragmentOffsets, 0, newFragmentOffsets, 0, fragmentCount);
+        fragmentOffsets = newFragmentOffsets;
+        int[] newFragmentLengths = new int[newFragmentCapacity];
+        System.arraycopy(fragmentLengths, 0, newFragmentLengths, 0, fragmentCount);
+        fragmentLengths = newFragmentLengths;
+      }
+      fragmentSlabs[fragmentCount] = slab;
+      fragmentOffsets[fragmentCount] = firstUnit * unitLength;
+      fragmentLengths[fragmentCount] = unitCount * unitLength;
+      capacity += fragmentLengths[fragmentCount];
+      fragmentCount++;
+    }
+
+    @Override
+    public void ensureCapacity(int size) {
+      if (size > capacity()) {
+        allocateFragments(this, size);
+      }
+    }
+
+    @Override
+    public int capacity() {
+      synchronized (SlabBufferPool.this) {
+        return capacity;
+      }
+    }
+
+    @Override
+    public byte[][] getBuffers() {
+      // Fragments are appended under the pool's lock, possibly whilst another thread is reading.
+      synchronized (SlabBufferPool.this) {
+        if (buffers.length != fragmentCount) {
+          // Fragments have been appended since the buffers were last requested.
+          byte[][] newBuffers = new byte[fragmentCount][];
+          System.arraycopy(buffers, 0, newBuffers, 0, buffers.length);
+          for (int i = buffers.length; i < fragmentCount; i++) {
+            newBuffers[i] = fragmentSlabs[i].data;
+          }
+          buffers = newBuffers;
+        }
+        return buffers;
+      }
+    }
+
+    @Override
+    public int getFragmentOffset(int index) {
+      synchronized (SlabBufferPool.this) {
+        return fragmentOffsets[index];
+      }
+    }
+
+    @Override
+    public int getFragmentLength(int index) {
+      synchronized (SlabBufferPool.this) {
+        return fragmentLengths[index];
+      }
+    }
+
+    @Override
+    public void release() {
+      synchronized (SlabBufferPool.this) {
+        if (fragmentSlabs != null) {
+          SlabBufferPool.this.release(this);
+          buffers = null;
+          fragmentSlabs = null;
+        }
+      }
+    }
+
+  }
+
+}
@@ -143,8 +143,9 @@ public interface Cache {
    *
    * @param key The cache key for the data.
    * @param position The starting position of the data.
-   * @param length The length of the data to be written. Used only to ensure that there is enough
-   *     space in the cache.
+   * @param length The length of the data to be written, or
+   *     {@link com.google.android.exoplayer.C#LENGTH_UNBOUNDED} if it's not known. Used only to
+   *     ensure that there is enough space in the cache.
    * @return The file into which data should be written.
    */
   File startFile(String key, long position, long length);
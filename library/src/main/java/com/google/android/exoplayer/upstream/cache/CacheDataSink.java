@@ -64,9 +64,6 @@ public class CacheDataSink implements DataSink {
 
   @Override
   public DataSink open(DataSpec dataSpec) throws CacheDataSinkException {
-    // TODO: Support caching for unbounded requests. See TODO in {@link CacheDataSource} for
-    // more details.
-    Assertions.checkState(dataSpec.length != C.LENGTH_UNBOUNDED);
     try {
       this.dataSpec = dataSpec;
       dataSpecBytesWritten = 0;
@@ -108,8 +105,10 @@ public class CacheDataSink implements DataSink {
   }
 
   private void openNextOutputStream() throws FileNotFoundException {
+    long maxLength = dataSpec.length == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+        : Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize);
     file = cache.startFile(dataSpec.key, dataSpec.absoluteStreamPosition + dataSpecBytesWritten,
-        Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize));
+        maxLength);
     outputStream = new FileOutputStream(file);
     outputStreamBytesWritten = 0;
   }
@@ -20,6 +20,7 @@ import com.google.android.exoplayer.upstream.DataSink;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.FileDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
 import com.google.android.exoplayer.upstream.TeeDataSource;
 import com.google.android.exoplayer.upstream.cache.CacheDataSink.CacheDataSinkException;
 import com.google.android.exoplayer.util.Assertions;
@@ -32,6 +33,17 @@ import java.io.IOException;
  * A {@link DataSource} that reads and writes a {@link Cache}. Requests are fulfilled from the cache
  * when possible. When data is not cached it is requested from an upstream {@link DataSource} and
  * written into the cache.
+ * <p>
+ * Unbounded requests are cached if the cache is a {@link ContentLengthCache}, and otherwise bypass
+ * the cache. The length of the stream is stored in the cache when it's resolved by the upstream
+ * {@link DataSource}, so that subsequent unbounded requests can be fulfilled entirely from the
+ * cache. If the data is cached up to the end of the stream but its
+ * length is not recorded, then the request made to upstream at the end of the cached data is
+ * expected to fail with HTTP status 416 (Range Not Satisfiable), or to return no data. Either
+ * outcome is treated as the end of the stream, and its length is recorded.
+ * <p>
+ * Requests whose {@link DataSpec#key} is null bypass the cache, and are read directly from the
+ * upstream {@link DataSource}.
  */
 public final class CacheDataSource implements DataSource {
 
@@ -51,6 +63,7 @@ public final class CacheDataSource implements DataSource {
   }
 
   private final Cache cache;
+  private final ContentLengthCache contentLengthCache;
   private final DataSource cacheReadDataSource;
   private final DataSource cacheWriteDataSource;
   private final DataSource upstreamDataSource;
@@ -64,7 +77,9 @@ public final class CacheDataSource implements DataSource {
   private String key;
   private long readPosition;
   private long bytesRemaining;
+  private boolean currentRequestUnbounded;
   private CacheSpan lockedSpan;
+  private boolean bypassCache;
   private boolean ignoreCache;
   private long totalCachedBytesRead;
 
@@ -108,6 +123,8 @@ public final class CacheDataSource implements DataSource {
       DataSink cacheWriteDataSink, boolean blockOnCache, boolean ignoreCacheOnError,
       EventListener eventListener) {
     this.cache = cache;
+    this.contentLengthCache = cache instanceof ContentLengthCache ? (ContentLengthCache) cache
+        : null;
     this.cacheReadDataSource = cacheReadDataSource;
     this.blockOnCache = blockOnCache;
     this.ignoreCacheOnError = ignoreCacheOnError;
@@ -123,16 +140,25 @@ public final class CacheDataSource implements DataSource {
   @Override
   public long open(DataSpec dataSpec) throws IOException {
     Assertions.checkState(dataSpec.uriIsFullStream);
-    // TODO: Support caching for unbounded requests. This requires storing the source length
-    // into the cache (the simplest approach is to incorporate it into each cache file's name).
-    Assertions.checkState(dataSpec.length != C.LENGTH_UNBOUNDED);
     try {
       uri = dataSpec.uri;
       key = dataSpec.key;
       readPosition = dataSpec.position;
-      bytesRemaining = dataSpec.length;
-      openNextSource();
-      return dataSpec.length;
+      // The length of an unbounded request can only be recorded by a ContentLengthCache.
+      bypassCache = key == null
+          || (dataSpec.length == C.LENGTH_UNBOUNDED && contentLengthCache == null);
+      if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+        bytesRemaining = dataSpec.length;
+      } else {
+        long contentLength = isCacheBypassed() ? C.LENGTH_UNBOUNDED
+            : contentLengthCache.getContentLength(key);
+        bytesRemaining = contentLength == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+            : contentLength - readPosition;
+      }
+      if (bytesRemaining != 0) {
+        openNextSource();
+      }
+      return bytesRemaining;
     } catch (IOException e) {
       handleBeforeThrow(e);
       throw e;
@@ -141,6 +167,9 @@ public final class CacheDataSource implements DataSource {
 
   @Override
   public int read(byte[] buffer, int offset, int max) throws IOException {
+    if (bytesRemaining == 0) {
+      return -1;
+    }
     try {
       int bytesRead = currentDataSource.read(buffer, offset, max);
       if (bytesRead >= 0) {
@@ -148,10 +177,16 @@ public final class CacheDataSource implements DataSource {
           totalCachedBytesRead += bytesRead;
         }
         readPosition += bytesRead;
-        bytesRemaining -= bytesRead;
+        if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+          bytesRemaining -= bytesRead;
+        }
       } else {
+        if (currentRequestUnbounded) {
+          // The end of the stream has been reached, so its length is now known.
+          setContentLength(readPosition);
+        }
         closeCurrentSource();
-        if (bytesRemaining > 0) {
+        if (bytesRemaining > 0 || bytesRemaining == C.LENGTH_UNBOUNDED) {
           openNextSource();
           return read(buffer, offset, max);
         }
@@ -183,7 +218,7 @@ public final class CacheDataSource implements DataSource {
     try {
       DataSpec dataSpec;
       CacheSpan span;
-      if (ignoreCache) {
+      if (isCacheBypassed()) {
         span = null;
       } else if (blockOnCache) {
         span = cache.startReadWrite(key, readPosition);
@@ -191,32 +226,90 @@ public final class CacheDataSource implements DataSource {
         span = cache.startReadWriteNonBlocking(key, readPosition);
       }
       if (span == null) {
-        // The data is locked in the cache, or we're ignoring the cache. Bypass the cache and read
-        // from upstream.
+        // The data is locked in the cache, or we're bypassing the cache. Read from upstream.
         currentDataSource = upstreamDataSource;
         dataSpec = new DataSpec(uri, readPosition, bytesRemaining, key);
       } else if (span.isCached) {
         // Data is cached, read from cache.
         Uri fileUri = Uri.fromFile(span.file);
         long filePosition = readPosition - span.position;
-        long length = Math.min(span.length - filePosition, bytesRemaining);
+        long length = span.length - filePosition;
+        if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+          length = Math.min(length, bytesRemaining);
+        }
         dataSpec = new DataSpec(fileUri, readPosition, length, key, filePosition);
         currentDataSource = cacheReadDataSource;
       } else {
         // Data is not cached, and data is not locked, read from upstream with cache backing.
         lockedSpan = span;
-        long length = span.isOpenEnded() ? bytesRemaining : Math.min(span.length, bytesRemaining);
+        long length;
+        if (span.isOpenEnded()) {
+          length = bytesRemaining;
+        } else if (bytesRemaining == C.LENGTH_UNBOUNDED) {
+          length = span.length;
+        } else {
+          length = Math.min(span.length, bytesRemaining);
+        }
         dataSpec = new DataSpec(uri, readPosition, length, key);
         currentDataSource = cacheWriteDataSource != null ? cacheWriteDataSource
             : upstreamDataSource;
       }
-      currentDataSource.open(dataSpec);
+      long resolvedLength;
+      try {
+        resolvedLength = currentDataSource.open(dataSpec);
+      } catch (IOException e) {
+        if (!isEndOfCachedStream(dataSpec, e)) {
+          throw e;
+        }
+        // The source failed to open, so it's not closed.
+        currentDataSource = null;
+        if (lockedSpan != null) {
+          cache.releaseHoleSpan(lockedSpan);
+          lockedSpan = null;
+        }
+        setContentLength(readPosition);
+        return;
+      }
+      currentRequestUnbounded = dataSpec.length == C.LENGTH_UNBOUNDED;
+      if (currentRequestUnbounded && resolvedLength != C.LENGTH_UNBOUNDED) {
+        setContentLength(readPosition + resolvedLength);
+      }
     } catch (InterruptedException e) {
       // Should never happen.
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Returns whether an exception thrown opening an unbounded upstream request indicates that the
+   * request started at the end of the stream, immediately after data held in the cache.
+   */
+  private boolean isEndOfCachedStream(DataSpec dataSpec, IOException e) {
+    return currentDataSource != cacheReadDataSource && dataSpec.length == C.LENGTH_UNBOUNDED
+        && e instanceof InvalidResponseCodeException
+        && ((InvalidResponseCodeException) e).responseCode == 416
+        && !isCacheBypassed() && readPosition > 0 && cache.isCached(key, readPosition - 1, 1);
+  }
+
+  /**
+   * Sets the length of the stream, which has been resolved by the upstream {@link DataSource}.
+   */
+  private void setContentLength(long contentLength) {
+    bytesRemaining = contentLength - readPosition;
+    currentRequestUnbounded = false;
+    if (!isCacheBypassed()) {
+      contentLengthCache.setContentLength(key, contentLength);
+    }
+  }
+
+  /**
+   * Returns whether the current request bypasses the cache, either because the cache is being
+   * ignored following an error, or because the request can't be cached.
+   */
+  private boolean isCacheBypassed() {
+    return ignoreCache || bypassCache;
+  }
+
   private void closeCurrentSource() throws IOException {
     if (currentDataSource == null) {
       return;
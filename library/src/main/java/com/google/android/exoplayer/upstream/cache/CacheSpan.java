@@ -87,6 +87,22 @@ public final class CacheSpan implements Comparable<CacheSpan> {
         Long.parseLong(matcher.group(3)), file);
   }
 
+  /**
+   * Creates a cache span for a cache file of known length, without accessing the file.
+   *
+   * @param cacheDir The directory containing the cache file.
+   * @param key The cache key.
+   * @param position The position of the span in the original stream.
+   * @param length The length of the cache file.
+   * @param lastAccessTimestamp The last access timestamp.
+   * @return The span.
+   */
+  /* package */ static CacheSpan createCacheEntry(File cacheDir, String key, long position,
+      long length, long lastAccessTimestamp) {
+    File file = getCacheFileName(cacheDir, key, position, lastAccessTimestamp);
+    return new CacheSpan(key, position, length, true, lastAccessTimestamp, file);
+  }
+
   private static CacheSpan createCacheEntry(String key, long position, long lastAccessTimestamp,
       File file) {
     return new CacheSpan(key, position, file.length(), true, lastAccessTimestamp, file);
@@ -118,7 +134,7 @@ public final class CacheSpan implements Comparable<CacheSpan> {
     long now = System.currentTimeMillis();
     File newCacheFile = getCacheFileName(file.getParentFile(), key, position, now);
     file.renameTo(newCacheFile);
-    return CacheSpan.createCacheEntry(key, position, now, newCacheFile);
+    return new CacheSpan(key, position, length, true, now, newCacheFile);
   }
 
   @Override
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+/**
+ * A {@link Cache} that also persists the length of each stream. {@link CacheDataSource} caches
+ * unbounded requests only if its cache implements this interface.
+ */
+public interface ContentLengthCache extends Cache {
+
+  /**
+   * Sets the length of the stream identified by the given key. The length is persisted with the
+   * cached data, so that unbounded requests for the stream can be fulfilled from the cache.
+   *
+   * @param key The cache key for the data.
+   * @param length The length of the stream, in bytes.
+   */
+  void setContentLength(String key, long length);
+
+  /**
+   * Returns the length of the stream identified by the given key, if it has been set.
+   *
+   * @param key The cache key for the data.
+   * @return The length of the stream, or {@link com.google.android.exoplayer.C#LENGTH_UNBOUNDED}
+   *     if it's not known.
+   */
+  long getContentLength(String key);
+
+}
@@ -15,6 +15,8 @@
  */
 package com.google.android.exoplayer.upstream.cache;
 
+import com.google.android.exoplayer.C;
+
 import java.util.Comparator;
 import java.util.TreeSet;
 
@@ -35,7 +37,9 @@ public class LeastRecentlyUsedCacheEvictor implements CacheEvictor, Comparator<C
 
   @Override
   public void onStartFile(Cache cache, String key, long position, long length) {
-    evictCache(cache, length);
+    if (length != C.LENGTH_UNBOUNDED) {
+      evictCache(cache, length);
+    }
   }
 
   @Override
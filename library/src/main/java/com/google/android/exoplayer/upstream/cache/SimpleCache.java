@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer.upstream.cache;
 
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.util.Assertions;
 
 import android.os.ConditionVariable;
@@ -31,14 +32,23 @@ import java.util.TreeSet;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
+ * <p>
+ * The representation is persisted in an append-only index file within the cache directory, from
+ * which it's restored when the cache is constructed. The cache directory is scanned instead only
+ * if the index is missing or corrupt. Otherwise the directory is listed on a background thread
+ * once the index has been loaded, and the cache is reconciled with the listing.
  */
-public class SimpleCache implements Cache {
+public class SimpleCache implements ContentLengthCache {
+
+  private static final String INDEX_FILE_NAME = "index.v1.exi";
 
   private final File cacheDir;
   private final CacheEvictor evictor;
   private final HashMap<String, CacheSpan> lockedSpans;
   private final HashMap<String, TreeSet<CacheSpan>> cachedSpans;
   private final HashMap<String, ArrayList<Listener>> listeners;
+  private final HashMap<String, Long> contentLengths;
+  private final SimpleCacheIndex index;
   private long totalSpace = 0;
 
   /**
@@ -53,6 +63,8 @@ public class SimpleCache implements Cache {
     this.lockedSpans = new HashMap<String, CacheSpan>();
     this.cachedSpans = new HashMap<String, TreeSet<CacheSpan>>();
     this.listeners = new HashMap<String, ArrayList<Listener>>();
+    this.contentLengths = new HashMap<String, Long>();
+    this.index = new SimpleCacheIndex(new File(cacheDir, INDEX_FILE_NAME));
     // Start cache initialization.
     final ConditionVariable conditionVariable = new ConditionVariable();
     new Thread() {
@@ -137,11 +149,27 @@ public class SimpleCache implements Cache {
       // Remove the old span from the in-memory representation.
       TreeSet<CacheSpan> spansForKey = cachedSpans.get(oldCacheSpan.key);
       Assertions.checkState(spansForKey.remove(oldCacheSpan));
-      // Obtain a new span with updated last access timestamp.
-      spanningRegion = oldCacheSpan.touch();
+      // Obtain a new span with updated last access timestamp. The touch is recorded in the index
+      // before the file is renamed, so that an interruption leaves at worst an index record whose
+      // file is missing, which is reconciled when the cache is next initialized.
+      spanningRegion = CacheSpan.createCacheEntry(cacheDir, oldCacheSpan.key,
+          oldCacheSpan.position, oldCacheSpan.length, System.currentTimeMillis());
+      index.onSpanTouched(spanningRegion);
+      if (!oldCacheSpan.file.renameTo(spanningRegion.file)) {
+        // Restore the old span, and record that it's unchanged.
+        spansForKey.add(oldCacheSpan);
+        index.onSpanTouched(oldCacheSpan);
+        if (oldCacheSpan.file.exists()) {
+          return oldCacheSpan;
+        }
+        // The file has been deleted from under us.
+        removeStaleSpans();
+        return startReadWriteNonBlocking(lookupSpan);
+      }
       // Add the updated span back into the in-memory representation.
       spansForKey.add(spanningRegion);
       notifySpanTouched(oldCacheSpan, spanningRegion);
+      maybeCompactIndex();
       return spanningRegion;
     }
 
@@ -162,6 +190,7 @@ public class SimpleCache implements Cache {
       // For some reason the cache directory doesn't exist. Make a best effort to create it.
       removeStaleSpans();
       cacheDir.mkdirs();
+      index.rewrite(cachedSpans.values(), contentLengths);
     }
     evictor.onStartFile(this, key, position, length);
     return CacheSpan.getCacheFileName(cacheDir, key, position, System.currentTimeMillis());
@@ -182,7 +211,9 @@ public class SimpleCache implements Cache {
       file.delete();
       return;
     }
+    index.onSpanAdded(span);
     addSpan(span);
+    maybeCompactIndex();
     notifyAll();
   }
 
@@ -236,10 +267,43 @@ public class SimpleCache implements Cache {
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
     }
-    File[] files = cacheDir.listFiles();
-    if (files == null) {
+    ArrayList<CacheSpan> spans = new ArrayList<CacheSpan>();
+    if (index.load(cacheDir, spans, contentLengths)) {
+      for (int i = 0; i < spans.size(); i++) {
+        addSpan(spans.get(i));
+      }
+      // The index may not reflect changes made to the cache directory immediately before the
+      // process was last terminated. List the directory without holding the lock, and then
+      // reconcile the in-memory representation with the listing.
+      new Thread("SimpleCache:reconcile") {
+        @Override
+        public void run() {
+          File[] files = cacheDir.listFiles();
+          if (files != null) {
+            synchronized (SimpleCache.this) {
+              reconcile(files);
+            }
+          }
+        }
+      }.start();
       return;
     }
+    // The index is missing or corrupt. Recover the spans by scanning the cache directory, and then
+    // write a new index.
+    File[] files = cacheDir.listFiles();
+    if (files != null) {
+      scanFiles(files);
+    }
+    index.rewrite(cachedSpans.values(), contentLengths);
+  }
+
+  /**
+   * Adds the spans corresponding to the specified cache files to the in-memory representation,
+   * deleting any files that aren't recognized.
+   *
+   * @param files The files in the cache directory.
+   */
+  private void scanFiles(File[] files) {
     for (int i = 0; i < files.length; i++) {
       File file = files[i];
       if (file.length() == 0) {
@@ -255,6 +319,66 @@ public class SimpleCache implements Cache {
     }
   }
 
+  /**
+   * Reconciles the in-memory representation with a listing of the cache directory. Spans whose
+   * files are missing are removed, and cache files that aren't in the in-memory representation
+   * are added to it. Files that are being written, and files that were renamed or deleted after
+   * the listing was made, are left untouched.
+   *
+   * @param files The files in the cache directory.
+   */
+  private void reconcile(File[] files) {
+    HashSet<File> listedFiles = new HashSet<File>();
+    for (int i = 0; i < files.length; i++) {
+      listedFiles.add(files[i]);
+    }
+    // Remove spans whose files are missing.
+    boolean hasStaleSpans = false;
+    for (TreeSet<CacheSpan> spansForKey : cachedSpans.values()) {
+      for (CacheSpan span : spansForKey) {
+        if (!listedFiles.remove(span.file) && !span.file.exists()) {
+          hasStaleSpans = true;
+        }
+      }
+    }
+    if (hasStaleSpans) {
+      removeStaleSpans();
+    }
+    // Add the remaining files, which aren't referenced by the index.
+    boolean addedSpans = false;
+    for (File file : listedFiles) {
+      if (index.isIndexFile(file) || !file.exists()) {
+        continue;
+      }
+      CacheSpan span = CacheSpan.createCacheEntry(file);
+      if (span == null) {
+        file.delete();
+      } else if (lockedSpans.containsKey(span.key) || isSpanInMemory(span)) {
+        // The file is being written, or was added after the listing was made.
+        continue;
+      } else if (span.length == 0) {
+        file.delete();
+      } else {
+        index.onSpanAdded(span);
+        addSpan(span);
+        addedSpans = true;
+      }
+    }
+    if (addedSpans) {
+      maybeCompactIndex();
+      notifyAll();
+    }
+  }
+
+  private boolean isSpanInMemory(CacheSpan span) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
+    if (spansForKey == null) {
+      return false;
+    }
+    CacheSpan floorSpan = spansForKey.floor(span);
+    return floorSpan != null && floorSpan.position == span.position;
+  }
+
   /**
    * Adds a cached span to the in-memory representation.
    *
@@ -277,10 +401,13 @@ public class SimpleCache implements Cache {
     totalSpace -= span.length;
     Assertions.checkState(spansForKey.remove(span));
     span.file.delete();
+    index.onSpanRemoved(span);
     if (spansForKey.isEmpty()) {
       cachedSpans.remove(span.key);
+      removeContentLength(span.key);
     }
     notifySpanRemoved(span);
+    maybeCompactIndex();
   }
 
   /**
@@ -297,6 +424,7 @@ public class SimpleCache implements Cache {
         CacheSpan span = spanIterator.next();
         if (!span.file.exists()) {
           spanIterator.remove();
+          index.onSpanRemoved(span);
           if (span.isCached) {
             totalSpace -= span.length;
           }
@@ -307,10 +435,48 @@ public class SimpleCache implements Cache {
       }
       if (isEmpty) {
         iterator.remove();
+        removeContentLength(next.getKey());
       }
     }
   }
 
+  @Override
+  public synchronized void setContentLength(String key, long length) {
+    Long previousLength = contentLengths.put(key, length);
+    if (previousLength == null || previousLength != length) {
+      index.onContentLengthChanged(key,
+          previousLength == null ? C.LENGTH_UNBOUNDED : previousLength, length);
+      maybeCompactIndex();
+    }
+  }
+
+  @Override
+  public synchronized long getContentLength(String key) {
+    Long length = contentLengths.get(key);
+    return length == null ? C.LENGTH_UNBOUNDED : length;
+  }
+
+  /**
+   * Removes the content length of a stream for which no data remains in the cache.
+   *
+   * @param key The cache key of the stream.
+   */
+  private void removeContentLength(String key) {
+    Long previousLength = contentLengths.remove(key);
+    if (previousLength != null) {
+      index.onContentLengthChanged(key, previousLength, C.LENGTH_UNBOUNDED);
+    }
+  }
+
+  /**
+   * Rewrites the index if it contains many more records than there are spans and content lengths.
+   */
+  private void maybeCompactIndex() {
+    if (index.needsCompaction()) {
+      index.rewrite(cachedSpans.values(), contentLengths);
+    }
+  }
+
   private void notifySpanRemoved(CacheSpan span) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.util.Util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+/**
+ * An append-only index of the spans and content lengths held by a {@link SimpleCache}.
+ * <p>
+ * Each change to the cache is appended to the index as a record. Each key is written once, and
+ * is then referenced by an id, so the records stay small. The index is loaded with a single
+ * sequential read, which means the cache directory needn't be listed and the cache files needn't
+ * be accessed. It's compacted once it contains many more records than there are live entries. If
+ * the last record was only partially written then the index is truncated to the end of the
+ * previous record, and is appended to from there. If the index is otherwise missing, corrupt or
+ * can't be written then it's deleted, and the cache falls back to scanning its directory when
+ * it's next initialized.
+ */
+/* package */ final class SimpleCacheIndex {
+
+  private static final String TAG = "SimpleCacheIndex";
+
+  private static final int FILE_VERSION = 1;
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MIN_RECORDS_FOR_COMPACTION = 1024;
+
+  private static final int RECORD_KEY = 0;
+  private static final int RECORD_SPAN_ADDED = 1;
+  private static final int RECORD_SPAN_REMOVED = 2;
+  private static final int RECORD_SPAN_TOUCHED = 3;
+  private static final int RECORD_CONTENT_LENGTH = 4;
+
+  private final File file;
+  private final HashMap<String, Integer> keyIds;
+
+  private DataOutputStream output;
+  private int recordCount;
+  private int liveRecordCount;
+
+  /**
+   * @param file The file in which the index is stored.
+   */
+  public SimpleCacheIndex(File file) {
+    this.file = file;
+    this.keyIds = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Loads the index, and opens it so that further records can be appended.
+   *
+   * @param cacheDir The directory containing the cache files.
+   * @param spans A list to which the cached spans are added.
+   * @param contentLengths A map into which the content lengths are put.
+   * @return True if the index was loaded. False if it's missing or corrupt, in which case it's
+   *     deleted and nothing is added to {@code spans} or {@code contentLengths}. An index whose
+   *     last record is incomplete is loaded up to the end of the previous record.
+   */
+  public boolean load(File cacheDir, List<CacheSpan> spans, Map<String, Long> contentLengths) {
+    if (!file.exists()) {
+      return false;
+    }
+    ArrayList<String> keys = new ArrayList<String>();
+    HashMap<String, TreeSet<CacheSpan>> spansByKey = new HashMap<String, TreeSet<CacheSpan>>();
+    HashMap<String, Long> lengthsByKey = new HashMap<String, Long>();
+    int records = 0;
+    // The length of the index up to the end of the last complete record.
+    long validLength = 0;
+    boolean truncated = false;
+    CountingInputStream countingInput = null;
+    DataInputStream input = null;
+    try {
+      countingInput = new CountingInputStream(
+          new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      input = new DataInputStream(countingInput);
+      if (input.readInt() != FILE_VERSION) {
+        throw new IOException("Unsupported version");
+      }
+      validLength = countingInput.getCount();
+      int recordType;
+      while ((recordType = input.read()) != -1) {
+        if (recordType == RECORD_KEY) {
+          if (input.readInt() != keys.size()) {
+            throw new IOException("Unexpected key id");
+          }
+          keys.add(input.readUTF());
+          records++;
+          validLength = countingInput.getCount();
+          continue;
+        }
+        int keyId = input.readInt();
+        if (keyId < 0 || keyId >= keys.size()) {
+          throw new IOException("Unexpected key id");
+        }
+        String key = keys.get(keyId);
+        TreeSet<CacheSpan> spansForKey = spansByKey.get(key);
+        switch (recordType) {
+          case RECORD_SPAN_ADDED:
+            long position = input.readLong();
+            long length = input.readLong();
+            long lastAccessTimestamp = input.readLong();
+            if (spansForKey == null) {
+              spansForKey = new TreeSet<CacheSpan>();
+              spansByKey.put(key, spansForKey);
+            }
+            spansForKey.add(CacheSpan.createCacheEntry(cacheDir, key, position, length,
+                lastAccessTimestamp));
+            break;
+          case RECORD_SPAN_REMOVED:
+            CacheSpan removedSpan = findSpan(spansForKey, key, input.readLong());
+            spansForKey.remove(removedSpan);
+            break;
+          case RECORD_SPAN_TOUCHED:
+            long touchedPosition = input.readLong();
+            long touchedTimestamp = input.readLong();
+            CacheSpan oldSpan = findSpan(spansForKey, key, touchedPosition);
+            spansForKey.remove(oldSpan);
+            spansForKey.add(CacheSpan.createCacheEntry(cacheDir, key, oldSpan.position,
+                oldSpan.length, touchedTimestamp));
+            break;
+          case RECORD_CONTENT_LENGTH:
+            long contentLength = input.readLong();
+            if (contentLength == C.LENGTH_UNBOUNDED) {
+              lengthsByKey.remove(key);
+            } else {
+              lengthsByKey.put(key, contentLength);
+            }
+            break;
+          default:
+            throw new IOException("Unexpected record type " + recordType);
+        }
+        records++;
+        validLength = countingInput.getCount();
+      }
+    } catch (EOFException e) {
+      // The last record was only partially written. Every record is read in full before it's
+      // applied, so the records that precede it have been loaded.
+      truncated = validLength > 0;
+      if (!truncated) {
+        Log.w(TAG, "Failed to read index: " + file, e);
+        file.delete();
+        return false;
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read index: " + file, e);
+      file.delete();
+      return false;
+    } finally {
+      Util.closeQuietly(input);
+    }
+
+    if (truncated && !truncate(validLength)) {
+      file.delete();
+      return false;
+    }
+
+    for (TreeSet<CacheSpan> spansForKey : spansByKey.values()) {
+      spans.addAll(spansForKey);
+      liveRecordCount += spansForKey.size();
+    }
+    contentLengths.putAll(lengthsByKey);
+    liveRecordCount += lengthsByKey.size();
+    for (int i = 0; i < keys.size(); i++) {
+      keyIds.put(keys.get(i), i);
+    }
+    liveRecordCount += keys.size();
+    recordCount = records;
+    // Delete any temporary file left by a rewrite that was interrupted.
+    getTempFile().delete();
+    openForAppend();
+    return true;
+  }
+
+  /**
+   * Returns whether the specified file is the index, or a temporary file used when rewriting it.
+   */
+  public boolean isIndexFile(File file) {
+    return file.equals(this.file) || file.equals(getTempFile());
+  }
+
+  /**
+   * Appends a record of a span having been added to the cache.
+   */
+  public void onSpanAdded(CacheSpan span) {
+    if (output == null) {
+      return;
+    }
+    try {
+      int keyId = writeKeyIfNecessary(span.key);
+      output.writeByte(RECORD_SPAN_ADDED);
+      output.writeInt(keyId);
+      output.writeLong(span.position);
+      output.writeLong(span.length);
+      output.writeLong(span.lastAccessTimestamp);
+      output.flush();
+      recordCount++;
+      liveRecordCount++;
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+  }
+
+  /**
+   * Appends a record of a span having been removed from the cache.
+   */
+  public void onSpanRemoved(CacheSpan span) {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.writeByte(RECORD_SPAN_REMOVED);
+      output.writeInt(keyIds.get(span.key));
+      output.writeLong(span.position);
+      output.flush();
+      recordCount++;
+      liveRecordCount--;
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+  }
+
+  /**
+   * Appends a record of a span having been touched, which updates its last access timestamp.
+   */
+  public void onSpanTouched(CacheSpan newSpan) {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.writeByte(RECORD_SPAN_TOUCHED);
+      output.writeInt(keyIds.get(newSpan.key));
+      output.writeLong(newSpan.position);
+      output.writeLong(newSpan.lastAccessTimestamp);
+      output.flush();
+      recordCount++;
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+  }
+
+  /**
+   * Appends a record of the content length of a stream having been set or removed.
+   *
+   * @param key The cache key of the stream.
+   * @param previousLength The previous content length, or {@link C#LENGTH_UNBOUNDED} if it wasn't
+   *     set.
+   * @param length The content length, or {@link C#LENGTH_UNBOUNDED} if it's been removed.
+   */
+  public void onContentLengthChanged(String key, long previousLength, long length) {
+    if (output == null) {
+      return;
+    }
+    try {
+      int keyId = writeKeyIfNecessary(key);
+      output.writeByte(RECORD_CONTENT_LENGTH);
+      output.writeInt(keyId);
+      output.writeLong(length);
+      output.flush();
+      recordCount++;
+      if (previousLength == C.LENGTH_UNBOUNDED && length != C.LENGTH_UNBOUNDED) {
+        liveRecordCount++;
+      } else if (previousLength != C.LENGTH_UNBOUNDED && length == C.LENGTH_UNBOUNDED) {
+        liveRecordCount--;
+      }
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+  }
+
+  /**
+   * Returns whether the index contains sufficiently many more records than there are live
+   * entries that it should be rewritten by calling {@link #rewrite(Collection, Map)}.
+   */
+  public boolean needsCompaction() {
+    return output != null && recordCount > MIN_RECORDS_FOR_COMPACTION
+        && recordCount > 2 * liveRecordCount;
+  }
+
+  /**
+   * Replaces the index with one containing only the specified spans and content lengths, and
+   * opens it so that further records can be appended.
+   *
+   * @param spans The cached spans, grouped by key.
+   * @param contentLengths The content lengths, keyed by cache key.
+   */
+  public void rewrite(Collection<? extends Collection<CacheSpan>> spans,
+      Map<String, Long> contentLengths) {
+    Util.closeQuietly(output);
+    output = null;
+    keyIds.clear();
+    recordCount = 0;
+    liveRecordCount = 0;
+    File tempFile = getTempFile();
+    try {
+      FileOutputStream tempOutputStream = new FileOutputStream(tempFile);
+      output = new DataOutputStream(new BufferedOutputStream(tempOutputStream, BUFFER_SIZE));
+      output.writeInt(FILE_VERSION);
+      for (Collection<CacheSpan> spansForKey : spans) {
+        for (CacheSpan span : spansForKey) {
+          int keyId = writeKeyIfNecessary(span.key);
+          output.writeByte(RECORD_SPAN_ADDED);
+          output.writeInt(keyId);
+          output.writeLong(span.position);
+          output.writeLong(span.length);
+          output.writeLong(span.lastAccessTimestamp);
+          recordCount++;
+        }
+      }
+      for (Entry<String, Long> contentLength : contentLengths.entrySet()) {
+        int keyId = writeKeyIfNecessary(contentLength.getKey());
+        output.writeByte(RECORD_CONTENT_LENGTH);
+        output.writeInt(keyId);
+        output.writeLong(contentLength.getValue());
+        recordCount++;
+      }
+      // Sync before renaming, so that the rename can't replace the index with an incomplete file.
+      output.flush();
+      tempOutputStream.getFD().sync();
+      output.close();
+      output = null;
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename: " + tempFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write index: " + file, e);
+      Util.closeQuietly(output);
+      output = null;
+      tempFile.delete();
+      file.delete();
+      return;
+    }
+    liveRecordCount = recordCount;
+    openForAppend();
+  }
+
+  /**
+   * Truncates the index to the specified length, discarding a partially written record.
+   *
+   * @param length The length to which the index should be truncated.
+   * @return True if the index was truncated. False otherwise.
+   */
+  private boolean truncate(long length) {
+    Log.w(TAG, "Discarding incomplete record at end of index: " + file);
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(length);
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to truncate index: " + file, e);
+      return false;
+    } finally {
+      Util.closeQuietly(randomAccessFile);
+    }
+  }
+
+  private File getTempFile() {
+    return new File(file.getPath() + TEMP_FILE_SUFFIX);
+  }
+
+  private void openForAppend() {
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+  }
+
+  private int writeKeyIfNecessary(String key) throws IOException {
+    Integer keyId = keyIds.get(key);
+    if (keyId != null) {
+      return keyId;
+    }
+    int newKeyId = keyIds.size();
+    output.writeByte(RECORD_KEY);
+    output.writeInt(newKeyId);
+    output.writeUTF(key);
+    keyIds.put(key, newKeyId);
+    recordCount++;
+    liveRecordCount++;
+    return newKeyId;
+  }
+
+  private void onWriteError(IOException e) {
+    // The index no longer reflects the cache. Delete it so that the directory is scanned instead
+    // when the cache is next initialized.
+    Log.w(TAG, "Failed to write index: " + file, e);
+    Util.closeQuietly(output);
+    output = null;
+    file.delete();
+  }
+
+  private static CacheSpan findSpan(TreeSet<CacheSpan> spansForKey, String key, long position)
+      throws IOException {
+    CacheSpan span = spansForKey == null ? null
+        : spansForKey.floor(CacheSpan.createLookup(key, position));
+    if (span == null || span.position != position) {
+      throw new IOException("Unexpected span: " + key + " " + position);
+    }
+    return span;
+  }
+
+  /**
+   * An {@link InputStream} that counts the bytes read from an underlying stream.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    /**
+     * Returns the number of bytes that have been read or skipped.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result != -1) {
+        count++;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int result = super.read(buffer, offset, length);
+      if (result != -1) {
+        count += result;
+      }
+      return result;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+      long result = super.skip(length);
+      count += result;
+      return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+  }
+
+}
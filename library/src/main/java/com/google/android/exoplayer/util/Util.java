@@ -19,6 +19,7 @@ import com.google.android.exoplayer.upstream.DataSource;
 
 import android.net.Uri;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
@@ -79,6 +80,22 @@ public final class Util {
     });
   }
 
+  /**
+   * Instantiates a new executor that creates threads as needed, each of which has the specified
+   * name. Idle threads are terminated after sixty seconds.
+   *
+   * @param threadName The name of the threads.
+   * @return The executor.
+   */
+  public static ExecutorService newCachedThreadPool(final String threadName) {
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, threadName);
+      }
+    });
+  }
+
   /**
    * Instantiates a new single threaded scheduled executor whose thread has the specified name.
    *
@@ -107,6 +124,22 @@ public final class Util {
     }
   }
 
+  /**
+   * Closes a {@link Closeable}, suppressing any {@link IOException} that may occur.
+   *
+   * @param closeable The {@link Closeable} to close. May be null, in which case nothing happens.
+   */
+  public static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+
   /**
    * Converts text to lower case using {@link Locale#US}.
    *
@@ -212,4 +245,26 @@ public final class Util {
     return stayInBounds ? Math.min(list.size() - 1, index) : index;
   }
 
+  /**
+   * Scales a large timestamp.
+   * <p>
+   * Logically, scaling consists of a multiplication followed by a division. The actual operations
+   * performed are designed to avoid overflow for timestamps that would overflow if multiplied
+   * directly, whilst giving the same result as exact integer arithmetic (rounding toward zero).
+   *
+   * @param timestamp The timestamp to scale.
+   * @param multiplier The multiplier.
+   * @param divisor The divisor.
+   * @return The scaled timestamp.
+   */
+  public static long scaleLargeTimestamp(long timestamp, long multiplier, long divisor) {
+    if (divisor >= multiplier && (divisor % multiplier) == 0) {
+      return timestamp / (divisor / multiplier);
+    } else if (divisor < multiplier && (multiplier % divisor) == 0) {
+      return timestamp * (multiplier / divisor);
+    } else {
+      return (timestamp / divisor) * multiplier + ((timestamp % divisor) * multiplier) / divisor;
+    }
+  }
+
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.parser.mp4;
+
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.parser.Extractor;
+import com.google.android.exoplayer.upstream.ByteArrayNonBlockingInputStream;
+import com.google.android.exoplayer.upstream.NonBlockingInputStream;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests that {@link FragmentedMp4Extractor} parses fragments without allocating once it has
+ * reached a steady state.
+ */
+public class FragmentedMp4ExtractorAllocationTest extends TestCase {
+
+  private static final int TYPE_mfhd = 0x6D666864;
+
+  private static final int TRACK_ID = 1;
+  private static final int TIMESCALE = 1000;
+  private static final int FRAGMENT_COUNT = 16;
+  private static final int SAMPLES_PER_FRAGMENT = 32;
+  private static final int SAMPLE_SIZE = 256;
+  private static final int SAMPLE_DURATION = 20;
+
+  public void testSteadyStateFragmentParsingDoesNotAllocate() throws Exception {
+    FragmentedMp4Extractor extractor = new FragmentedMp4Extractor();
+    extractor.setTrack(new Track(TRACK_ID, Track.TYPE_AUDIO, TIMESCALE, null, null));
+    SampleHolder sampleHolder = new SampleHolder(false);
+    sampleHolder.data = ByteBuffer.allocate(SAMPLE_SIZE);
+
+    // Parse a first segment so that the atom pools and fragment tables reach their steady size.
+    assertEquals(FRAGMENT_COUNT * SAMPLES_PER_FRAGMENT,
+        readSegment(extractor, new ByteArrayNonBlockingInputStream(buildSegment(0)),
+        sampleHolder));
+
+    NonBlockingInputStream inputStream = new ByteArrayNonBlockingInputStream(
+        buildSegment(FRAGMENT_COUNT));
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    int sampleCount = readSegment(extractor, inputStream, sampleHolder);
+    Debug.stopAllocCounting();
+    int allocationCount = Debug.getThreadAllocCount();
+
+    assertEquals(FRAGMENT_COUNT * SAMPLES_PER_FRAGMENT, sampleCount);
+    assertEquals(0, allocationCount);
+  }
+
+  /**
+   * Reads every sample of a segment, returning the number of samples read.
+   */
+  private static int readSegment(FragmentedMp4Extractor extractor,
+      NonBlockingInputStream inputStream, SampleHolder sampleHolder) throws ParserException {
+    int sampleCount = 0;
+    int result = 0;
+    while ((result & Extractor.RESULT_END_OF_STREAM) == 0) {
+      result = extractor.read(inputStream, sampleHolder);
+      if ((result & Extractor.RESULT_READ_SAMPLE) != 0) {
+        sampleCount++;
+        sampleHolder.data.clear();
+      }
+    }
+    return sampleCount;
+  }
+
+  /**
+   * Builds a segment of {@link #FRAGMENT_COUNT} fragments, each consisting of a moof atom followed
+   * by an mdat atom, for a single track.
+   *
+   * @param firstFragmentIndex The index of the first fragment in the stream.
+   */
+  private static byte[] buildSegment(int firstFragmentIndex) throws IOException {
+    ByteArrayOutputStream segment = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(segment);
+    for (int i = 0; i < FRAGMENT_COUNT; i++) {
+      int fragmentIndex = firstFragmentIndex + i;
+      int trunSize = 20 + 8 * SAMPLES_PER_FRAGMENT;
+      int trafSize = 8 + 16 + 20 + trunSize;
+      int moofSize = 8 + 16 + trafSize;
+      output.writeInt(moofSize);
+      output.writeInt(Atom.TYPE_moof);
+      output.writeInt(16);
+      output.writeInt(TYPE_mfhd);
+      output.writeInt(0);
+      output.writeInt(fragmentIndex + 1);
+      output.writeInt(trafSize);
+      output.writeInt(Atom.TYPE_traf);
+      output.writeInt(16);
+      output.writeInt(Atom.TYPE_tfhd);
+      output.writeInt(0x020000 /* default_base_is_moof */);
+      output.writeInt(TRACK_ID);
+      output.writeInt(20);
+      output.writeInt(Atom.TYPE_tfdt);
+      output.writeInt(1 << 24 /* version */);
+      output.writeLong((long) fragmentIndex * SAMPLES_PER_FRAGMENT * SAMPLE_DURATION);
+      output.writeInt(trunSize);
+      output.writeInt(Atom.TYPE_trun);
+      output.writeInt(0x000301 /* data_offset, sample_duration and sample_size present */);
+      output.writeInt(SAMPLES_PER_FRAGMENT);
+      output.writeInt(moofSize + 8);
+      for (int j = 0; j < SAMPLES_PER_FRAGMENT; j++) {
+        output.writeInt(SAMPLE_DURATION);
+        output.writeInt(SAMPLE_SIZE);
+      }
+      output.writeInt(8 + SAMPLES_PER_FRAGMENT * SAMPLE_SIZE);
+      output.writeInt(Atom.TYPE_mdat);
+      output.write(new byte[SAMPLES_PER_FRAGMENT * SAMPLE_SIZE]);
+    }
+    output.close();
+    return segment.toByteArray();
+  }
+
+}
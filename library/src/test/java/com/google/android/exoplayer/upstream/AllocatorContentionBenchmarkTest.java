@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Benchmarks {@link BufferPool} against {@link ConcurrentBufferPool} when several
+ * {@link DataSourceStream} loaders allocate from the same pool concurrently.
+ * <p>
+ * Each loader repeatedly loads a stream, reads it back and releases its allocation, while a
+ * further thread polls the allocated size of the pool as a load control would. The elapsed
+ * time for each allocator is written to the log. The test fails only if the data read back is
+ * incorrect, or if an allocator doesn't account for every released allocation.
+ */
+public class AllocatorContentionBenchmarkTest extends TestCase {
+
+  private static final String TAG = "AllocatorBenchmark";
+
+  private static final int BUFFER_LENGTH = 64 * 1024;
+  private static final int STREAM_LENGTH = 256 * 1024;
+  private static final int LOADER_COUNT = 4;
+  private static final int LOADS_PER_LOADER = 250;
+
+  private byte[] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    data = new byte[STREAM_LENGTH];
+    for (int i = 0; i < STREAM_LENGTH; i++) {
+      data[i] = (byte) i;
+    }
+  }
+
+  public void testContention() throws Exception {
+    // Warm up both allocators before measuring.
+    runLoaders(new BufferPool(BUFFER_LENGTH));
+    runLoaders(new ConcurrentBufferPool(BUFFER_LENGTH));
+
+    long bufferPoolTimeMs = runLoaders(new BufferPool(BUFFER_LENGTH));
+    long concurrentBufferPoolTimeMs = runLoaders(new ConcurrentBufferPool(BUFFER_LENGTH));
+    Log.i(TAG, LOADER_COUNT + " loaders, " + LOADS_PER_LOADER + " loads each: BufferPool "
+        + bufferPoolTimeMs + "ms, ConcurrentBufferPool " + concurrentBufferPoolTimeMs + "ms");
+  }
+
+  /**
+   * Runs {@link #LOADER_COUNT} loaders against the specified allocator until each has completed
+   * {@link #LOADS_PER_LOADER} loads.
+   *
+   * @param allocator The allocator from which the loaders should allocate.
+   * @return The elapsed time, in milliseconds.
+   */
+  private long runLoaders(final Allocator allocator) throws Exception {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch finishLatch = new CountDownLatch(LOADER_COUNT);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] loaders = new Thread[LOADER_COUNT];
+    for (int i = 0; i < LOADER_COUNT; i++) {
+      loaders[i] = new Thread("Loader:" + i) {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+            byte[] readBuffer = new byte[STREAM_LENGTH];
+            for (int j = 0; j < LOADS_PER_LOADER; j++) {
+              loadAndRead(allocator, readBuffer);
+            }
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          } finally {
+            finishLatch.countDown();
+          }
+        }
+      };
+      loaders[i].start();
+    }
+    Thread poller = new Thread("Poller") {
+      @Override
+      public void run() {
+        while (finishLatch.getCount() > 0) {
+          allocator.getAllocatedSize();
+          Thread.yield();
+        }
+      }
+    };
+    poller.start();
+
+    long startTimeMs = SystemClock.elapsedRealtime();
+    startLatch.countDown();
+    finishLatch.await();
+    long elapsedTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    poller.join();
+    for (int i = 0; i < LOADER_COUNT; i++) {
+      loaders[i].join();
+    }
+
+    if (error.get() != null) {
+      throw new Exception(error.get());
+    }
+    assertEquals(0, allocator.getAllocatedSize());
+    return elapsedTimeMs;
+  }
+
+  private void loadAndRead(Allocator allocator, byte[] readBuffer) throws Exception {
+    DataSpec dataSpec = new DataSpec(Uri.parse("benchmark://data"), 0, STREAM_LENGTH, null);
+    DataSourceStream stream = new DataSourceStream(new ByteArrayDataSource(data), dataSpec,
+        allocator);
+    try {
+      stream.load();
+      int bytesRead = 0;
+      while (bytesRead < STREAM_LENGTH) {
+        int result = stream.read(readBuffer, bytesRead, STREAM_LENGTH - bytesRead);
+        assertTrue(result > 0);
+        bytesRead += result;
+      }
+      assertTrue(stream.isEndOfStream());
+      assertTrue(Arrays.equals(data, readBuffer));
+    } finally {
+      stream.close();
+    }
+  }
+
+}